@@ -31,7 +31,7 @@ import uk.co.timwise.sqlhawk.util.CaseInsensitiveMap;
 /**
  * Configuration of a sqlHawk run
  */
-public class Config
+public class Config implements Cloneable
 {
 	@Deprecated
 	private static Config instance; // TODO: remove config "instance", replace with simpler usages
@@ -55,6 +55,23 @@ public class Config
 	private String userConnectionPropertiesFile;
 	private Properties userConnectionProperties = new Properties();
 	private Integer maxDbThreads;
+	private int htmlThreads = 1;
+	private int dotThreads = -1;
+	private int dotTimeout;
+	private int dotBatchSize = 1;
+	private File diagramCacheDir;
+	private int diagramCacheSize = 256;
+	private DiagramEngine diagramEngine = DiagramEngine.GRAPHVIZ;
+	private boolean bulkReadEnabled;
+	private RowCountStrategy rowCountStrategy = RowCountStrategy.CATALOG;
+	private int rowCountTimeout;
+	private int rowCountBudget;
+	private File incrementalCacheFile;
+	private File snapshotInputFile;
+	private File snapshotOutputFile;
+	private boolean profileEnabled;
+	private boolean jdbcTraceEnabled;
+	private boolean oneOfMultipleSchemas;
 	private String css;
 	private String charset;
 	private String font;
@@ -67,6 +84,7 @@ public class Config
 	private DbType dbType;
 	private boolean htmlGenerationEnabled;
 	private boolean sourceControlOutputEnabled;
+	private boolean scmStreamingEnabled;
 	private boolean xmlOutputEnabled;
 	private boolean impliedConstraintsEnabled;
 	private String metaDataPath;
@@ -89,6 +107,7 @@ public class Config
 	private boolean databaseOutputEnabled;
 	private boolean dryRun;
 	private boolean forceEnabled;
+	private boolean deployBatchEnabled;
 	private boolean intializeLogEnabled;
 	private String upgradeBatch;
 	private String renderer;
@@ -157,6 +176,15 @@ public class Config
 		return sourceControlOutputEnabled;
 	}
 
+	/**
+	 * Write the definitions for source control as they're read from the
+	 * database rather than holding them all in memory first.
+	 * Only possible when nothing else needs the definitions.
+	 */
+	public boolean isScmStreamingEnabled() {
+		return scmStreamingEnabled;
+	}
+
 	public boolean isXmlOutputEnabled() {
 		return xmlOutputEnabled;
 	}
@@ -381,6 +409,134 @@ public class Config
 		return maxDbThreads;
 	}
 
+	/**
+	 * Number of threads writing the html pages (and diagrams) of tables.
+	 * -1 for one per processor.
+	 */
+	public int getHtmlThreads() {
+		return htmlThreads;
+	}
+
+	/**
+	 * Most dot processes (or diagrams being drawn as svg) to run at once. -1 for one per processor.
+	 */
+	public int getDotThreads() {
+		return dotThreads;
+	}
+
+	/**
+	 * Seconds that dot can take over one diagram before being killed, 0 for no limit.
+	 */
+	public int getDotTimeout() {
+		return dotTimeout;
+	}
+
+	/**
+	 * Most small diagrams to draw with one run of dot, 1 to run dot for every diagram.
+	 */
+	public int getDotBatchSize() {
+		return dotBatchSize;
+	}
+
+	/**
+	 * Directory to keep rendered diagrams in between runs, so that
+	 * unchanged diagrams don't have to be laid out again.
+	 *
+	 * @return <code>null</code> to always render every diagram
+	 */
+	public File getDiagramCacheDir() {
+		return diagramCacheDir;
+	}
+
+	/**
+	 * Megabytes the diagram cache can grow to before the least recently used diagrams are removed.
+	 */
+	public int getDiagramCacheSize() {
+		return diagramCacheSize;
+	}
+
+	/**
+	 * What draws the diagrams, Graphviz by default.
+	 */
+	public DiagramEngine getDiagramEngine() {
+		return diagramEngine;
+	}
+
+	/**
+	 * If enabled, column, key and index metadata is read for the whole schema
+	 * in one pass instead of with a set of queries per table.
+	 * Falls back to reading table by table if the driver can't do this.
+	 */
+	public boolean isBulkReadEnabled() {
+		return bulkReadEnabled;
+	}
+
+	/**
+	 * How the number of rows in each table is found, catalog statistics by default.
+	 */
+	public RowCountStrategy getRowCountStrategy() {
+		return rowCountStrategy;
+	}
+
+	/**
+	 * Number of seconds an exact row count of one table may take
+	 * before using the estimate instead. 0 for no limit.
+	 */
+	public int getRowCountTimeout() {
+		return rowCountTimeout;
+	}
+
+	/**
+	 * Number of seconds that exact row counts may take in total.
+	 * Once used up the remaining tables get estimates. 0 for no limit.
+	 */
+	public int getRowCountBudget() {
+		return rowCountBudget;
+	}
+
+	/**
+	 * File holding a snapshot of the schema from the previous run, so that only
+	 * the objects that have changed since then need to be read.
+	 *
+	 * @return <code>null</code> to always read everything
+	 */
+	public File getIncrementalCacheFile() {
+		return incrementalCacheFile;
+	}
+
+	/**
+	 * Snapshot saved by an earlier run with {@link #getSnapshotOutputFile()}
+	 * to produce output from instead of connecting to a database.
+	 */
+	public File getSnapshotInputFile() {
+		return snapshotInputFile;
+	}
+
+	/**
+	 * File to save a snapshot of the schema to once it has been read,
+	 * for use with {@link #getSnapshotInputFile()}.
+	 */
+	public File getSnapshotOutputFile() {
+		return snapshotOutputFile;
+	}
+
+	/**
+	 * Record how long each phase of the run takes, and how many statements,
+	 * rows and bytes it deals with, in runProfile.json (and profile.html
+	 * when writing html) in the target directory.
+	 */
+	public boolean isProfileEnabled() {
+		return profileEnabled;
+	}
+
+	/**
+	 * Time every JDBC call, logging the slowest at the end of the run
+	 * and writing all of them to jdbcTrace.txt in the target directory.
+	 */
+	public boolean isJdbcTraceEnabled() {
+		return jdbcTraceEnabled;
+	}
+
 	/**
 	 * Don't use this unless absolutely necessary as it screws up the layout.
 	 * Changes dot's rank direction rankdir to right-to-left (RL)
@@ -500,9 +656,48 @@ public class Config
 	 * @return boolean
 	 */
 	public boolean isOneOfMultipleSchemas() {
-		// set by MultipleSchemaAnalyzer
-		 // TODO: remove this property and setting when sorting out multiple schema support - issue #61
-		return Boolean.getBoolean("oneofmultipleschemas");
+		return oneOfMultipleSchemas;
+	}
+
+	/**
+	 * A copy of this configuration for analysing one of several schemas
+	 * in the same run, writing its output to its own directory.
+	 *
+	 * @param schema the schema to analyse
+	 * @param targetDir where its output goes
+	 */
+	public Config forSchema(String schema, File targetDir) {
+		Config copy;
+		try {
+			copy = (Config)clone();
+		} catch (CloneNotSupportedException exc) {
+			throw new RuntimeException(exc); // can't happen, we're Cloneable
+		}
+		copy.schema = schema;
+		copy.targetDir = targetDir;
+		copy.schemas = null;
+		copy.evaluateAllEnabled = false;
+		copy.oneOfMultipleSchemas = true;
+		if (incrementalCacheFile != null) // each schema needs a cache of its own
+			copy.incrementalCacheFile = new File(incrementalCacheFile.getParentFile(), schema + "." + incrementalCacheFile.getName());
+		return copy;
+	}
+
+	/**
+	 * A copy of this configuration that reads everything but the tables,
+	 * for when only procedures, views and functions are needed.
+	 * Doesn't use the incremental cache as it would end up without the tables.
+	 */
+	public Config withoutTables() {
+		Config copy;
+		try {
+			copy = (Config)clone();
+		} catch (CloneNotSupportedException exc) {
+			throw new RuntimeException(exc); // can't happen, we're Cloneable
+		}
+		copy.tableProcessingEnabled = false;
+		copy.incrementalCacheFile = null;
+		return copy;
 	}
 
 	/**
@@ -602,6 +797,14 @@ public class Config
 		return forceEnabled;
 	}
 
+	/**
+	 * Whether changes to procedures, views and functions that don't depend
+	 * on each other are sent to the database in one batch.
+	 */
+	public boolean isDeployBatchEnabled() {
+		return deployBatchEnabled;
+	}
+
 	/**
 	 * Gets the db type.
 	 * Loads DbType object on demand (and then caches it), so may throw exceptions.
@@ -642,6 +845,11 @@ public class Config
 	}
 
 
+	public void setScmStreamingEnabled(boolean scmStreamingEnabled) {
+		this.scmStreamingEnabled = scmStreamingEnabled;
+	}
+
+
 	public void setImpliedConstraintsEnabled(boolean impliedConstraintsEnabled) {
 		this.impliedConstraintsEnabled = impliedConstraintsEnabled;
 	}
@@ -816,6 +1024,11 @@ public class Config
 	}
 
 
+	public void setDeployBatchEnabled(boolean deployBatchEnabled) {
+		this.deployBatchEnabled = deployBatchEnabled;
+	}
+
+
 	public void setForceEnabled(boolean forceEnabled) {
 		this.forceEnabled = forceEnabled;
 	}
@@ -836,6 +1049,91 @@ public class Config
 	}
 
 
+	public void setHtmlThreads(int htmlThreads) {
+		this.htmlThreads = htmlThreads;
+	}
+
+
+	public void setDotThreads(int dotThreads) {
+		this.dotThreads = dotThreads;
+	}
+
+
+	public void setDotTimeout(int dotTimeout) {
+		this.dotTimeout = dotTimeout;
+	}
+
+
+	public void setDotBatchSize(int dotBatchSize) {
+		this.dotBatchSize = dotBatchSize;
+	}
+
+
+	public void setDiagramCacheDir(File diagramCacheDir) {
+		this.diagramCacheDir = diagramCacheDir;
+	}
+
+
+	public void setDiagramCacheSize(int diagramCacheSize) {
+		this.diagramCacheSize = diagramCacheSize;
+	}
+
+
+	public void setDiagramEngine(DiagramEngine diagramEngine) {
+		this.diagramEngine = diagramEngine;
+	}
+
+
+	public void setBulkReadEnabled(boolean bulkReadEnabled) {
+		this.bulkReadEnabled = bulkReadEnabled;
+	}
+
+
+	public void setRowCountStrategy(RowCountStrategy rowCountStrategy) {
+		this.rowCountStrategy = rowCountStrategy;
+	}
+
+
+	public void setRowCountTimeout(int rowCountTimeout) {
+		this.rowCountTimeout = rowCountTimeout;
+	}
+
+
+	public void setRowCountBudget(int rowCountBudget) {
+		this.rowCountBudget = rowCountBudget;
+	}
+
+
+	public void setIncrementalCacheFile(File incrementalCacheFile) {
+		this.incrementalCacheFile = incrementalCacheFile;
+	}
+
+
+	public void setSnapshotInputFile(File snapshotInputFile) {
+		this.snapshotInputFile = snapshotInputFile;
+	}
+
+
+	public void setSnapshotOutputFile(File snapshotOutputFile) {
+		this.snapshotOutputFile = snapshotOutputFile;
+	}
+
+
+	public void setProfileEnabled(boolean profileEnabled) {
+		this.profileEnabled = profileEnabled;
+	}
+
+
+	public void setJdbcTraceEnabled(boolean jdbcTraceEnabled) {
+		this.jdbcTraceEnabled = jdbcTraceEnabled;
+	}
+
+
+	public void setOneOfMultipleSchemas(boolean oneOfMultipleSchemas) {
+		this.oneOfMultipleSchemas = oneOfMultipleSchemas;
+	}
+
+
 	public Properties getUserConnectionProperties() {
 		return userConnectionProperties;
 	}
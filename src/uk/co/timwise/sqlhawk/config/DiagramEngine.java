@@ -0,0 +1,43 @@
+/* This file is a part of the sqlHawk project.
+ * http://timabell.github.com/sqlHawk/
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package uk.co.timwise.sqlhawk.config;
+
+/**
+ * What lays out and draws the relationship diagrams.
+ */
+public enum DiagramEngine {
+	/**
+	 * Run Graphviz dot for each diagram, giving an image and an image map.
+	 */
+	GRAPHVIZ,
+	/**
+	 * Lay the diagrams out in process and draw them as svg with the links built in.
+	 * Doesn't need Graphviz and is much quicker, but the layouts aren't as polished.
+	 */
+	JAVA;
+
+	/**
+	 * @param name graphviz or java
+	 * @throws InvalidConfigurationException if the name isn't recognised
+	 */
+	public static DiagramEngine parse(String name) {
+		try {
+			return valueOf(name.trim().toUpperCase());
+		} catch (IllegalArgumentException exc) {
+			throw new InvalidConfigurationException("Unknown diagram engine '" + name + "', expected graphviz or java");
+		}
+	}
+}
@@ -0,0 +1,52 @@
+/* This file is a part of the sqlHawk project.
+ * http://timabell.github.com/sqlHawk/
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package uk.co.timwise.sqlhawk.config;
+
+/**
+ * How the number of rows in each table is found.
+ */
+public enum RowCountStrategy {
+	/**
+	 * Count the rows of every table with select count(*).
+	 * Slow on big tables, limited by the row count timeout and budget.
+	 */
+	EXACT,
+	/**
+	 * Use the statistics the database keeps in its catalog.
+	 * Fast but only an estimate.
+	 */
+	CATALOG,
+	/**
+	 * Use the catalog statistics, then count the rows of the small tables exactly.
+	 */
+	SAMPLED,
+	/**
+	 * Don't read row counts.
+	 */
+	OFF;
+
+	/**
+	 * @param name exact, catalog, sampled or off
+	 * @throws InvalidConfigurationException if the name isn't recognised
+	 */
+	public static RowCountStrategy parse(String name) {
+		try {
+			return valueOf(name.trim().toUpperCase());
+		} catch (IllegalArgumentException exc) {
+			throw new InvalidConfigurationException("Unknown row count strategy '" + name + "', expected exact, catalog, sampled or off");
+		}
+	}
+}
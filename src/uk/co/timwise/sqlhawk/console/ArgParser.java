@@ -28,7 +28,9 @@ import java.util.regex.PatternSyntaxException;
 import uk.co.timwise.sqlhawk.config.Config;
 import uk.co.timwise.sqlhawk.config.DatabaseTypeFinder;
 import uk.co.timwise.sqlhawk.config.DbType;
+import uk.co.timwise.sqlhawk.config.DiagramEngine;
 import uk.co.timwise.sqlhawk.config.InvalidConfigurationException;
+import uk.co.timwise.sqlhawk.config.RowCountStrategy;
 import uk.co.timwise.sqlhawk.util.CaseInsensitiveMap;
 
 import com.martiansoftware.jsap.FlaggedOption;
@@ -86,6 +88,7 @@ public class ArgParser {
 		// store all selected options in config
 		config.setHtmlGenerationEnabled(jsapConfig.getBoolean("html-output"));
 		config.setSourceControlOutputEnabled(jsapConfig.getBoolean("scm-output"));
+		config.setScmStreamingEnabled(jsapConfig.getBoolean("scm-streaming"));
 		config.setXmlOutputEnabled(jsapConfig.getBoolean("xml-output"));
 		config.setImpliedConstraintsEnabled(jsapConfig.getBoolean("guess-relationships"));
 		config.setMetaDataPath(jsapConfig.getString("metadata-path"));
@@ -117,6 +120,13 @@ public class ArgParser {
 		config.setRailsEnabled(jsapConfig.getBoolean("rails"));
 		config.setEncodeCommentsEnabled(!jsapConfig.getBoolean("html-comments"));
 		config.setNumRowsEnabled(!jsapConfig.getBoolean("disable-row-counts"));
+		config.setRowCountStrategy(RowCountStrategy.parse(jsapConfig.getString("row-counts")));
+		if (config.getRowCountStrategy() == RowCountStrategy.OFF)
+			config.setNumRowsEnabled(false);
+		else if (!config.isNumRowsEnabled())
+			config.setRowCountStrategy(RowCountStrategy.OFF);
+		config.setRowCountTimeout(jsapConfig.getInt("row-count-timeout"));
+		config.setRowCountBudget(jsapConfig.getInt("row-count-budget"));
 		config.setViewsEnabled(!jsapConfig.getBoolean("disable-views"));
 		config.setTableProcessingEnabled(!jsapConfig.getBoolean("disable-tables"));
 		config.setColumnExclusions(GetPattern(jsapConfig, "column-exclusion-pattern"));
@@ -162,11 +172,33 @@ public class ArgParser {
 		config.setDatabaseOutputEnabled(jsapConfig.getBoolean("database-output"));
 		config.setDryRun(jsapConfig.getBoolean("dry-run"));
 		config.setForceEnabled(jsapConfig.getBoolean("force"));
+		config.setDeployBatchEnabled(jsapConfig.getBoolean("batch-deploy"));
 		config.setIntializeLogEnabled(jsapConfig.getBoolean("initialize-tracking"));
 		config.setUpgradeBatch(jsapConfig.getString("upgrade-batch"));
 		if(jsapConfig.contains("max-threads")){
 			config.setMaxDbThreads(jsapConfig.getInt("max-threads"));
 		}
+		config.setHtmlThreads(jsapConfig.getInt("html-threads"));
+		config.setDotThreads(jsapConfig.getInt("dot-threads"));
+		config.setDotTimeout(jsapConfig.getInt("dot-timeout"));
+		config.setDotBatchSize(jsapConfig.getInt("dot-batch-size"));
+		if (jsapConfig.contains("diagram-cache")){
+			config.setDiagramCacheDir(new File(jsapConfig.getString("diagram-cache")));
+		}
+		config.setDiagramCacheSize(jsapConfig.getInt("diagram-cache-size"));
+		config.setDiagramEngine(DiagramEngine.parse(jsapConfig.getString("diagram-engine")));
+		config.setBulkReadEnabled(jsapConfig.getBoolean("bulk-read"));
+		if (jsapConfig.contains("incremental-cache")){
+			config.setIncrementalCacheFile(new File(jsapConfig.getString("incremental-cache")));
+		}
+		config.setProfileEnabled(jsapConfig.getBoolean("profile"));
+		config.setJdbcTraceEnabled(jsapConfig.getBoolean("trace-jdbc"));
+		if (jsapConfig.contains("snapshot-input")){
+			config.setSnapshotInputFile(new File(jsapConfig.getString("snapshot-input")));
+		}
+		if (jsapConfig.contains("snapshot-output")){
+			config.setSnapshotOutputFile(new File(jsapConfig.getString("snapshot-output")));
+		}
 		if (jsapConfig.userSpecified("connprops")) { // TODO: fix this and matching options https://github.com/timabell/sqlHawk/issues/62 
 			String props = jsapConfig.getString("connprops");
 			if (props.indexOf(ESCAPED_EQUALS) != -1) {
@@ -277,6 +309,8 @@ public class ArgParser {
 				new Parameter[] {
 				//global options
 				new FlaggedOption("log-level", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, false, JSAP.NO_SHORTFLAG, "log-level", "Set the level of logging to perform. The available levels in ascending order of verbosity are: severe, warning, info, config, fine, finer, finest"),
+				new Switch("profile", JSAP.NO_SHORTFLAG, "profile", "Record how long each phase of the run takes and how many statements, rows and bytes it deals with. Written to runProfile.json in the target path, and to profile.html when generating html."),
+				new Switch("trace-jdbc", JSAP.NO_SHORTFLAG, "trace-jdbc", "Time every call to the database driver, by metadata method and by SQL statement, including rows fetched and a histogram of how long the calls took. The slowest are logged at the end of the run, all of them are written to jdbcTrace.txt in the target path."),
 				new Switch("disable-tables", JSAP.NO_SHORTFLAG, "disable-tables", "Disables read and output of table details."),
 				new Switch("disable-views", JSAP.NO_SHORTFLAG, "disable-views", "Disables read and output of view details."),
 				//options for connecting to db
@@ -299,7 +333,16 @@ public class ArgParser {
 				new FlaggedOption("database-instance", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, false, JSAP.NO_SHORTFLAG, "database-instance", "Sql server instance to connect to. If you want to use this then you need to use the db-type 'mssql-jtds-instance'"),
 				//options for reading from db
 				new Switch("database-input", JSAP.NO_SHORTFLAG, "database-input", "Read schema information from a database / dbms."),
-				new FlaggedOption("max-threads", JSAP.INTEGER_PARSER, JSAP.NO_DEFAULT, false, JSAP.NO_SHORTFLAG, "max-threads", "Set a limit the number of threads used to connect to the database. The default is 1. Set to -1 for no limit."),
+				new FlaggedOption("max-threads", JSAP.INTEGER_PARSER, JSAP.NO_DEFAULT, false, JSAP.NO_SHORTFLAG, "max-threads", "Set a limit the number of threads used to connect to the database. Each thread reads table details with its own connection. The default is 1. Set to -1 to use two per processor."),
+				new FlaggedOption("html-threads", JSAP.INTEGER_PARSER, "1", false, JSAP.NO_SHORTFLAG, "html-threads", "Number of threads writing the html page and diagrams of each table. The output is the same whatever the number. The default is 1. Set to -1 to use one per processor."),
+				new FlaggedOption("dot-threads", JSAP.INTEGER_PARSER, "-1", false, JSAP.NO_SHORTFLAG, "dot-threads", "Most Graphviz dot processes to run at once while pages are written. Also the most diagrams drawn at once with --diagram-engine java. The default of -1 runs one per processor."),
+				new FlaggedOption("dot-timeout", JSAP.INTEGER_PARSER, "0", false, JSAP.NO_SHORTFLAG, "dot-timeout", "Number of seconds dot can spend on one diagram before it is killed and the diagram left out. The default of 0 means no limit."),
+				new FlaggedOption("dot-batch-size", JSAP.INTEGER_PARSER, "1", false, JSAP.NO_SHORTFLAG, "dot-batch-size", "Most of the small diagrams of tables and orphans to draw with one run of dot, e.g. 100. Saves starting dot for every diagram, which takes longer than laying out a small one. Only used for png diagrams. The default of 1 runs dot for every diagram."),
+				new FlaggedOption("diagram-cache", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, false, JSAP.NO_SHORTFLAG, "diagram-cache", "Directory to keep rendered diagrams in between runs. Diagrams whose .dot files haven't changed are copied from here rather than laid out again by dot. Can be shared by several runs and schemas."),
+				new FlaggedOption("diagram-cache-size", JSAP.INTEGER_PARSER, "256", false, JSAP.NO_SHORTFLAG, "diagram-cache-size", "Megabytes the diagram cache can grow to before the least recently used diagrams are removed. The default is 256."),
+				new FlaggedOption("diagram-engine", JSAP.STRING_PARSER, "graphviz", false, JSAP.NO_SHORTFLAG, "diagram-engine", "What draws the diagrams. 'graphviz' (the default) runs dot for each diagram. 'java' lays them out without Graphviz and draws them as svg inside the pages, with links to the tables built in. It's much quicker and doesn't need Graphviz installed, but the layouts aren't as tidy."),
+				new FlaggedOption("incremental-cache", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, false, JSAP.NO_SHORTFLAG, "incremental-cache", "File to keep a snapshot of the schema in between runs. When the file exists only the tables, views, procedures and functions that the database says have changed since it was written are read again, the rest come from the file. Procedures and functions are all read again if any one of them has changed. Needs selectModifiedObjectsSql for the database type, otherwise everything is read as usual."),
+				new Switch("bulk-read", JSAP.NO_SHORTFLAG, "bulk-read", "Read column, primary key, index and foreign key details for the whole schema with one query each instead of with several queries per table. Much faster on large schemas. Falls back to reading table by table if the database driver doesn't support it."),
 				new FlaggedOption("column-exclusion-pattern", JSAP.STRING_PARSER, "[^.]", false, JSAP.NO_SHORTFLAG, "column-exclusion-pattern", "Set the columns to exclude from all relationship diagrams. Regular expression of the columns to exclude."), // default value matches nothing, i.e. nothing excluded
 				new FlaggedOption("indirect-column-exclusion-pattern", JSAP.STRING_PARSER, "[^.]", false, JSAP.NO_SHORTFLAG, "indirect-column-exclusion-pattern", "Set the columns to exclude from relationship diagrams where the specified columns aren't directly referenced by the focal table. Regular expression of the columns to exclude."), // default value matches nothing, i.e. nothing excluded
 				new FlaggedOption("table-inclusion-pattern", JSAP.STRING_PARSER, ".*", false, JSAP.NO_SHORTFLAG, "table-inclusion-pattern", "Set the tables to include in analysis. Regular expression for matching table names. By default everything is included."), // default value matches anything, i.e. everything included
@@ -312,8 +355,13 @@ public class ArgParser {
 				new FlaggedOption("schema-spec", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, false, JSAP.NO_SHORTFLAG, "schema-spec", "When -all is specified then this is the regular expression that determines which schemas to evaluate."),
 				new Switch("rails", JSAP.NO_SHORTFLAG, "rails", "Look for Ruby on Rails-based naming conventions in relationships between logical foreign keys and primary keys. Basically all tables have a primary key named 'ID'. All tables are named plural names. The columns that logically reference that 'ID' are the singular form of the table name suffixed with '_ID'."),
 				new Switch("disable-row-counts", JSAP.NO_SHORTFLAG, "disable-row-counts", "Disables read and output of current row count of each table."),
+				new FlaggedOption("row-counts", JSAP.STRING_PARSER, "catalog", false, JSAP.NO_SHORTFLAG, "row-counts", "How to find the number of rows in each table. 'catalog' (the default) uses the statistics kept by the database, which is fast but only an estimate. 'exact' counts the rows of every table, which can take a very long time on big tables. 'sampled' uses the statistics then counts the rows of small tables exactly. 'off' is the same as --disable-row-counts."),
+				new FlaggedOption("row-count-timeout", JSAP.INTEGER_PARSER, "0", false, JSAP.NO_SHORTFLAG, "row-count-timeout", "Number of seconds to let an exact row count of one table run before giving up and using the estimate. The default of 0 means no limit."),
+				new FlaggedOption("row-count-budget", JSAP.INTEGER_PARSER, "0", false, JSAP.NO_SHORTFLAG, "row-count-budget", "Number of seconds to spend on exact row counts in total. Tables not counted in time get estimates. The default of 0 means no limit."),
 				//options for reading from scm files
 				new Switch("scm-input", JSAP.NO_SHORTFLAG, "scm-input", "Read schema information from source control files."),
+				//options for reading from a snapshot
+				new FlaggedOption("snapshot-input", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, false, JSAP.NO_SHORTFLAG, "snapshot-input", "Read the schema from a snapshot file written by --snapshot-output instead of from a database. Useful for producing html or other output again without connecting to the database."),
 				//options for all file based operations
 				new FlaggedOption("target-path", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, false, JSAP.NO_SHORTFLAG, "target-path", "Sets the folder where generated files will be put or read from. The folder will be created if missing for write operations."),
 				//options for writing to html
@@ -331,8 +379,11 @@ public class ArgParser {
 				new Switch("compact-relationship-diagram", JSAP.NO_SHORTFLAG, "compact-relationship-diagram", "Switches dot to compact relationship diagrams. Use if generating diagrams for large numbers of tables (suggested for >300)"),
 				//options for writing to scm files
 				new Switch("scm-output", JSAP.NO_SHORTFLAG, "scm-output", "Generate output suitable for storing in source control."),
+				new Switch("scm-streaming", JSAP.NO_SHORTFLAG, "scm-streaming", "With --database-input and --scm-output, write each procedure, function and view definition to its file as it is read instead of holding them all in memory first. Keeps memory use down on databases with a great many large definitions. Ignored when another output needs the definitions, i.e. html, xml, snapshot or database output, or with multiple schemas. The incremental cache isn't used in this mode."),
 				//options for writing to xml
 				new Switch("xml-output", JSAP.NO_SHORTFLAG, "xml-output", "Generate file(s) containing xml representation of a schema"),
+				//options for writing a snapshot
+				new FlaggedOption("snapshot-output", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, false, JSAP.NO_SHORTFLAG, "snapshot-output", "Save the schema that was read to a compact binary file for use with --snapshot-input."),
 				//options for writing delete/insert order
 				new Switch("ordering-output", JSAP.NO_SHORTFLAG, "ordering-output", "Generate text files containing read/write order of tables that will work give current constraints. Useful for creating insert/delete scripts."),
 				//options for writing to a database
@@ -340,6 +391,7 @@ public class ArgParser {
 				new Switch("database-output", JSAP.NO_SHORTFLAG, "database-output", "Write schema to a database / dbms. RISK OF DATA LOSS! TAKE BACKUPS FIRST!"),
 				new Switch("dry-run", JSAP.NO_SHORTFLAG, "dry-run", "Dry run. Don't actually write changes to the database."),
 				new Switch("force", JSAP.NO_SHORTFLAG, "force", "Update stored procedures, views and functions even if they don't appear different. This will allow you to revalidate these against the latest schema Recommended for use on continuous integration builds."),
+				new Switch("batch-deploy", JSAP.NO_SHORTFLAG, "batch-deploy", "Send changes to stored procedures, views and functions that don't depend on each other to the database in one batch, if the driver supports it. Not all drivers accept DDL in a batch."),
 				new FlaggedOption("upgrade-batch", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, false, JSAP.NO_SHORTFLAG, "upgrade-batch", "When running upgrade scripts this will if set be added to the upgrade log to group together a set of scripts into a single batch. Suggested examples: the output of git describe, or an svn version number. This is to help track down the source of changes."),
 				//options for reading extra metadata
 				new FlaggedOption("metadata-path", JSAP.STRING_PARSER, JSAP.NO_DEFAULT, false, JSAP.NO_SHORTFLAG, "metadata-path", "Meta files are XML-based files that provide additional metadata about the schema being evaluated. Use this option to specify either the name of an individual XML file or the directory that contains meta files. If a directory is specified then it is expected to contain files matching the pattern [schema].meta.xml. For databases that don't have schema substitute [schema] with [database]."),
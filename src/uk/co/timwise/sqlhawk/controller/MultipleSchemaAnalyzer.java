@@ -17,33 +17,40 @@ package uk.co.timwise.sqlhawk.controller;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.PrintStream;
-import java.io.Reader;
+import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
-import uk.co.timwise.sqlhawk.console.Main;
-import uk.co.timwise.sqlhawk.db.read.ProcessExecutionException;
+import uk.co.timwise.sqlhawk.config.Config;
+import uk.co.timwise.sqlhawk.db.ConnectionPool;
+import uk.co.timwise.sqlhawk.db.read.DbReader;
+import uk.co.timwise.sqlhawk.db.read.SchemaRegistry;
 import uk.co.timwise.sqlhawk.html.HtmlMultipleSchemasIndexPage;
+import uk.co.timwise.sqlhawk.model.Database;
+import uk.co.timwise.sqlhawk.model.xml.SchemaMeta;
 import uk.co.timwise.sqlhawk.util.LineWriter;
 
 
 /**
- * Writes an index page of schemas in a database and fires up new instances
- * of sqlHawk to analyse each one. This should be rewritten to avoid java
- * runtime calls and work from within the java code.
- * TODO: multiple schema broken by extensive refactoring - https://github.com/timabell/sqlHawk/issues/61
+ * Reads several schemas of a database in one go, several at a time,
+ * each schema on its own connection from a pool shared by all of them.
+ * Writes the index page of the schemas that links to the output of each one.
  */
 public final class MultipleSchemaAnalyzer {
 	private static MultipleSchemaAnalyzer instance = new MultipleSchemaAnalyzer();
@@ -56,81 +63,105 @@ public final class MultipleSchemaAnalyzer {
 		return instance;
 	}
 
-	public void analyze(String dbName, DatabaseMetaData meta, String schemaSpec, List<String> schemas, List<String> args, String user, File outputDir, String charset, String loadedFrom) throws SQLException, IOException {
-		List<String> genericCommand = new ArrayList<String>();
-		genericCommand.add("java");
-		genericCommand.add("-Doneofmultipleschemas=true");
-		if (new File(loadedFrom).isDirectory()) {
-			genericCommand.add("-cp");
-			genericCommand.add(loadedFrom);
-			genericCommand.add(Main.class.getName());
-		} else {
-			genericCommand.add("-jar");
-			genericCommand.add(loadedFrom);
-		}
-
-		for (String next : args) {
-			if (next.startsWith("-"))
-				genericCommand.add(next);
-			else
-				genericCommand.add("\"" + next + "\"");
-		}
-
+	/**
+	 * The schemas to analyse: those listed with --schemas, otherwise
+	 * those that match --schema-spec (or the db type's schemaSpec) and contain tables.
+	 */
+	public List<String> getSchemas(Config config, DatabaseMetaData meta) throws SQLException, IOException {
 		List<String> populatedSchemas;
-		if (schemas == null) {
+		if (config.getSchemas() == null) {
+			String schemaSpec = config.getSchemaSpec();
+			if (schemaSpec == null)
+				schemaSpec = config.getDbType().getProps().getProperty("schemaSpec", ".*");
 			logger.info("Analyzing schemas that match regular expression '" + schemaSpec + "':");
-			logger.info("(use -schemaSpec on command line or in .properties to exclude other schemas)");
-			populatedSchemas = getPopulatedSchemas(meta, schemaSpec, user);
+			logger.info("(use --schema-spec on command line or in .properties to exclude other schemas)");
+			populatedSchemas = getPopulatedSchemas(meta, schemaSpec, config.getUser());
 		} else {
 			logger.info("Analyzing schemas:");
-			populatedSchemas = schemas;
+			populatedSchemas = config.getSchemas();
 		}
 
 		for (String populatedSchema : populatedSchemas)
 			logger.info(" " + populatedSchema);
+		return populatedSchemas;
+	}
 
-		writeIndexPage(dbName, populatedSchemas, meta, outputDir, charset);
-
-		for (String schema : populatedSchemas) {
-			List<String> command = new ArrayList<String>(genericCommand);
-			if (dbName == null)
-				command.add("-db");
-			else
-				command.add("-s");
-			command.add(schema);
-			command.add("-o");
-			command.add(new File(outputDir, schema).toString());
-			logger.info("Analyzing " + schema);
-			System.out.flush();
-			logger.fine("Analyzing schema with: " + command);
-			Process java = Runtime.getRuntime().exec(command.toArray(new String[]{}));
-			new ProcessOutputReader(java.getInputStream(), System.out).start();
-			new ProcessOutputReader(java.getErrorStream(), System.err).start();
+	/**
+	 * Read the schemas, as many at once as the connection pool allows.
+	 * A schema's references to tables in schemas earlier in the list are filled
+	 * in from those schemas rather than read from the database again.
+	 *
+	 * @param config the configuration of the run, copied for each schema with {@link Config#forSchema(String, File)}
+	 * @param schemas
+	 * @param connection
+	 * @param meta
+	 * @param connectionFactory opens more connections for the pool, <code>null</code> to read one schema at a time
+	 * @return the schemas that were read, in the same order
+	 * @throws Exception if any schema couldn't be read
+	 */
+	public Map<String, Database> read(Config config, List<String> schemas, Connection connection, DatabaseMetaData meta,
+			ConnectionPool.ConnectionFactory connectionFactory) throws Exception {
+		int threads = Math.min(DbReader.getMaxDbThreads(config.getDbType().getProps(), config), schemas.size());
+		final ConnectionPool pool = new ConnectionPool(connection, meta, connectionFactory, threads);
+		final SchemaRegistry registry = new SchemaRegistry(schemas);
+		logger.info("Reading " + schemas.size() + " schemas with " + pool.getMaxSize() + " connection(s)");
 
-			try {
-				int rc = java.waitFor();
-				if (rc != 0) {
-					StringBuilder err = new StringBuilder("Failed to execute this process (rc " + rc + "):");
-					for (String chunk : command) {
-						err.append(" ");
-						err.append(chunk);
+		// tasks are started in the order of the list, which the registry relies on
+		ExecutorService executor = Executors.newFixedThreadPool(pool.getMaxSize());
+		try {
+			Map<String, Future<Database>> results = new LinkedHashMap<String, Future<Database>>();
+			for (final String schema : schemas) {
+				final Config schemaConfig = config.forSchema(schema, getSchemaDir(config, schema));
+				results.put(schema, executor.submit(new Callable<Database>() {
+					public Database call() throws Exception {
+						return read(schemaConfig, pool, registry);
 					}
-					throw new ProcessExecutionException(err.toString());
+				}));
+			}
+
+			Map<String, Database> databases = new LinkedHashMap<String, Database>();
+			for (Map.Entry<String, Future<Database>> result : results.entrySet()) {
+				try {
+					databases.put(result.getKey(), result.getValue().get());
+				} catch (ExecutionException failure) {
+					throw new Exception("Failed to analyze schema '" + result.getKey() + "'", failure.getCause());
 				}
-			} catch (InterruptedException exc) {
 			}
+			return databases;
+		} finally {
+			executor.shutdownNow();
+			pool.close();
 		}
+	}
 
-		logger.info("Wrote relationship details of " + populatedSchemas.size() + " schema" + (populatedSchemas.size() == 1 ? "" : "s") + ".");
-		logger.info("Start with " + new File(outputDir, "index.html"));
+	private Database read(Config schemaConfig, ConnectionPool pool, SchemaRegistry registry) throws Exception {
+		String schema = schemaConfig.getSchema();
+		Database database = null;
+		Connection connection = pool.borrow();
+		try {
+			logger.info("Analyzing " + schema);
+			SchemaMeta schemaMeta = schemaConfig.getMetaDataPath() == null ? null : new SchemaMeta(schemaConfig.getMetaDataPath(), schemaConfig.getDatabase(), schema);
+			DbReader reader = new DbReader();
+			reader.setSchemaRegistry(registry);
+			database = reader.Read(schemaConfig, connection, pool.getMetaData(connection), schemaMeta);
+			logger.info("Analyzed " + schema);
+			return database;
+		} finally {
+			registry.finished(schema, database);
+			pool.release(connection);
+		}
 	}
 
-	public void analyze(String dbName, List<String> schemas, List<String> args,
-			String user, File outputDir, String charset, String loadedFromJar) throws SQLException, IOException {
-		analyze(dbName, null, null, schemas, args, user, outputDir, charset, loadedFromJar);
+	/**
+	 * Where the output of one of the schemas goes
+	 *
+	 * @return <code>null</code> if the run has no target directory
+	 */
+	public File getSchemaDir(Config config, String schema) {
+		return config.getTargetDir() == null ? null : new File(config.getTargetDir(), schema);
 	}
 
-	private void writeIndexPage(String dbName, List<String> populatedSchemas, DatabaseMetaData meta, File outputDir, String charset) throws IOException {
+	public void writeIndexPage(String dbName, List<String> populatedSchemas, DatabaseMetaData meta, File outputDir, String charset) throws IOException {
 		if (populatedSchemas.size() > 0) {
 			LineWriter index = new LineWriter(new File(outputDir, "index.html"), charset);
 			HtmlMultipleSchemasIndexPage.getInstance().write(dbName, populatedSchemas, meta, index, charset);
@@ -229,34 +260,4 @@ public final class MultipleSchemaAnalyzer {
 	private static List<String> getPopulatedSchemas(DatabaseMetaData meta) throws SQLException {
 		return getPopulatedSchemas(meta, ".*");
 	}
-
-	private static class ProcessOutputReader extends Thread {
-		private final Reader processReader;
-		private final PrintStream out;
-
-		ProcessOutputReader(InputStream processStream, PrintStream out) {
-			processReader = new InputStreamReader(processStream);
-			this.out = out;
-			setDaemon(true);
-		}
-
-		@Override
-		public void run() {
-			try {
-				int ch;
-				while ((ch = processReader.read()) != -1) {
-					out.print((char)ch);
-					out.flush();
-				}
-			} catch (IOException ioException) {
-				ioException.printStackTrace();
-			} finally {
-				try {
-					processReader.close();
-				} catch (Exception exc) {
-					exc.printStackTrace(); // shouldn't ever get here...but...
-				}
-			}
-		}
-	}
-}
\ No newline at end of file
+}
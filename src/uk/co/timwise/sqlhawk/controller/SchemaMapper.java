@@ -28,12 +28,14 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.StringTokenizer;
 import java.util.logging.Logger;
 
 import uk.co.timwise.sqlhawk.config.Config;
 import uk.co.timwise.sqlhawk.config.InvalidConfigurationException;
+import uk.co.timwise.sqlhawk.db.ConnectionPool;
 import uk.co.timwise.sqlhawk.db.ConnectionURLBuilder;
 import uk.co.timwise.sqlhawk.db.read.ConnectionFailure;
 import uk.co.timwise.sqlhawk.db.read.DbReader;
@@ -44,10 +46,19 @@ import uk.co.timwise.sqlhawk.model.Database;
 import uk.co.timwise.sqlhawk.model.ForeignKeyConstraint;
 import uk.co.timwise.sqlhawk.model.Table;
 import uk.co.timwise.sqlhawk.model.xml.SchemaMeta;
+import uk.co.timwise.sqlhawk.profile.JdbcTrace;
+import uk.co.timwise.sqlhawk.profile.ProfilePhase;
+import uk.co.timwise.sqlhawk.profile.RunProfile;
+import uk.co.timwise.sqlhawk.profile.RunProfileWriter;
 import uk.co.timwise.sqlhawk.scm.read.ScmDbReader;
 import uk.co.timwise.sqlhawk.scm.write.ScmDbWriter;
+import uk.co.timwise.sqlhawk.scm.write.ScmStreamWriter;
+import uk.co.timwise.sqlhawk.snapshot.Snapshot;
+import uk.co.timwise.sqlhawk.snapshot.SnapshotReader;
+import uk.co.timwise.sqlhawk.snapshot.SnapshotWriter;
 import uk.co.timwise.sqlhawk.text.TableOrderer;
 import uk.co.timwise.sqlhawk.text.TextFormatter;
+import uk.co.timwise.sqlhawk.util.CaseInsensitiveMap;
 import uk.co.timwise.sqlhawk.util.LineWriter;
 import uk.co.timwise.sqlhawk.xml.write.xmlWriter;
 
@@ -57,6 +68,7 @@ import uk.co.timwise.sqlhawk.xml.write.xmlWriter;
  * This is the class that orchestrates the actions taken
  */
 public class SchemaMapper {
+	private static final int JDBC_TRACE_TOP = 20;
 	private final Logger logger = Logger.getLogger(getClass().getName());
 
 	/**
@@ -67,47 +79,154 @@ public class SchemaMapper {
 	 */
 	public void RunMapping(Config config) throws Exception {
 		LogConfig.setupLogger(config);
+		RunProfile profile = RunProfile.start(config.isProfileEnabled(), config.isJdbcTraceEnabled());
 		logger.fine("Working directory: " + new File(".").getAbsolutePath());
 		//========= schema reading code ============
 		//TODO: check for any conflict in request options (read vs write?)
+		boolean isMultipleSchemas = config.isDatabaseInputEnabled() && (config.getSchemas() != null || config.isEvaluateAllEnabled());
+		if (isMultipleSchemas)
+			checkMultipleSchemaOptions(config);
 		if (config.isSourceControlOutputEnabled()
 				|| config.isXmlOutputEnabled()
 				|| config.isOrderingOutputEnabled()
 				|| config.isHtmlGenerationEnabled()) { //one or more output type enabled so need a target directory
 			setupOuputDir(config.getTargetDir());
 		}
-		//processMultipleSchemas(config, outputDir); // TODO: multischema support temporarily disabled.
+		if (config.isScmStreamingEnabled() && !canStreamScm(config)) {
+			logger.warning("Not streaming source control output as it needs --database-input and --scm-output for a single schema and no other output that needs the definitions");
+			config.setScmStreamingEnabled(false);
+		}
+		if (isMultipleSchemas) {
+			processMultipleSchemas(config, profile);
+			finish(config, null, profile);
+			return;
+		}
 		Database db = null;
-		if (config.isDatabaseInputEnabled())
+		RunProfile.Timer phase;
+		if (config.isDatabaseInputEnabled()) {
+			phase = profile.startPhase("database input");
 			db = analyze(config);
+			phase.stop();
+		}
 		if (config.isScmInputEnabled()) {
 			if (db != null) {
 				throw new Exception("Multiple inputs specified");
 			}
+			phase = profile.startPhase("scm input");
 			db = new ScmDbReader().Load(config);
+			phase.stop();
+		}
+		if (config.getSnapshotInputFile() != null) {
+			if (db != null) {
+				throw new Exception("Multiple inputs specified");
+			}
+			phase = profile.startPhase("snapshot input");
+			db = readSnapshot(config);
+			phase.stop();
 		}
 		if (db==null && !config.isIntializeLogEnabled())
 			logger.warning("No database information has been read. Set a read flag in the command line arguments if required.");
-		//========= schema writing code ============
-		if (config.isHtmlGenerationEnabled()) {
-			new HtmlWriter().writeHtml(config, db);
+		if (db != null && config.getSnapshotOutputFile() != null) {
+			logger.info("Writing snapshot to " + config.getSnapshotOutputFile());
+			phase = profile.startPhase("snapshot output");
+			new SnapshotWriter().write(new Snapshot(db, null, new CaseInsensitiveMap<String>()), config.getSnapshotOutputFile());
+			profile.addBytesWritten(config.getSnapshotOutputFile().length());
+			phase.stop();
 		}
-		if (config.isSourceControlOutputEnabled())
-			new ScmDbWriter().writeForSourceControl(config.getTargetDir(), db);
-		if (config.isXmlOutputEnabled())
-			xmlWriter.writeXml(config.getTargetDir(), db);
-		if (config.isOrderingOutputEnabled())
-			writeOrderingFiles(config.getTargetDir(), db);
+		//========= schema writing code ============
+		writeFiles(config, db, profile);
 		if (config.isIntializeLogEnabled()) {
 			initializeLog(config);
 		}
 		if (config.isDatabaseOutputEnabled()) {
 			db.setSchema(config.getSchema());
+			phase = profile.startPhase("database output");
 			writeDb(config, db);
+			phase.stop();
+		}
+		finish(config, db, profile);
+	}
+
+	/**
+	 * Write the file outputs requested by the config: html, source control, xml and ordering
+	 */
+	private void writeFiles(Config config, Database db, RunProfile profile) throws Exception {
+		RunProfile.Timer phase;
+		if (config.isHtmlGenerationEnabled()) {
+			phase = profile.startPhase("html output");
+			new HtmlWriter().writeHtml(config, db);
+			phase.stop();
+		}
+		if (config.isSourceControlOutputEnabled()) {
+			phase = profile.startPhase("scm output");
+			if (config.isScmStreamingEnabled())
+				new ScmDbWriter().removeDeleted(config.getTargetDir(), db); // the definitions were written while reading
+			else
+				new ScmDbWriter().writeForSourceControl(config.getTargetDir(), db);
+			phase.stop();
 		}
+		if (config.isXmlOutputEnabled()) {
+			phase = profile.startPhase("xml output");
+			xmlWriter.writeXml(config.getTargetDir(), db);
+			phase.stop();
+		}
+		if (config.isOrderingOutputEnabled()) {
+			phase = profile.startPhase("ordering output");
+			writeOrderingFiles(config.getTargetDir(), db);
+			phase.stop();
+		}
+	}
+
+	/**
+	 * Whether the source control files can be written while the database is being read,
+	 * i.e. nothing else will need the definitions afterwards.
+	 */
+	private boolean canStreamScm(Config config) {
+		return config.isDatabaseInputEnabled()
+				&& config.isSourceControlOutputEnabled()
+				&& config.getSchemas() == null
+				&& !config.isEvaluateAllEnabled()
+				&& !config.isHtmlGenerationEnabled()
+				&& !config.isXmlOutputEnabled()
+				&& !config.isDatabaseOutputEnabled()
+				&& config.getSnapshotOutputFile() == null;
+	}
+
+	private void finish(Config config, Database db, RunProfile profile) throws IOException {
+		if (profile.isEnabled())
+			writeProfile(config, db, profile);
+		if (profile.getJdbcTrace() != null)
+			writeJdbcTrace(config, profile.getJdbcTrace());
 		logger.info("Done.");
 	}
 
+	/**
+	 * Log the slowest JDBC calls of a run with --trace-jdbc, and write
+	 * all of them to the target directory if there is one
+	 */
+	private void writeJdbcTrace(Config config, JdbcTrace trace) throws IOException {
+		trace.logTop(JDBC_TRACE_TOP);
+		File dir = config.getTargetDir() == null ? new File(".") : config.getTargetDir();
+		File traceFile = new File(dir, "jdbcTrace.txt");
+		trace.write(traceFile);
+		logger.info("JDBC trace written to " + traceFile);
+	}
+
+	/**
+	 * Write the report of a run with --profile, to the target directory if there is one
+	 */
+	private void writeProfile(Config config, Database db, RunProfile profile) throws IOException {
+		File dir = config.getTargetDir() == null ? new File(".") : config.getTargetDir();
+		File jsonFile = new File(dir, "runProfile.json");
+		new RunProfileWriter().writeJson(profile, jsonFile);
+		if (config.isHtmlGenerationEnabled() && db != null)
+			new HtmlWriter().writeProfile(config, db, profile);
+		for (ProfilePhase phase : profile.getPhases())
+			logger.info("Profile: " + phase.getName() + " took " + phase.getTotalMillis() + "ms over " + phase.getCalls() + " run(s), "
+					+ phase.getStatements() + " statements, " + phase.getRows() + " rows, " + phase.getBytesWritten() + " bytes written");
+		logger.info("Run profile written to " + jsonFile);
+	}
+
 	/**
 	 * Connect to a database, load schema information into memory,
 	 * return an in-memory representation of the database.
@@ -119,27 +238,85 @@ public class SchemaMapper {
 		return readDb(config);
 	}
 
-	private void processMultipleSchemas(Config config, File outputDir) throws Exception {
-		List<String> schemas = config.getSchemas();
-		if (schemas != null || config.isEvaluateAllEnabled()) {
-			if (schemas != null){
-				//MultipleSchemaAnalyzer.getInstance().analyze(dbName, schemas, args, config.getUser(), outputDir, config.getCharset(), Config.getLoadedFromJar());
-				throw new UnsupportedOperationException("Multi schema support awaiting re-write");
-			} else { //EvaluateAllEnabled
-				String schemaSpec = config.getSchemaSpec();
-				if (schemaSpec == null)
-					schemaSpec = config.getDbType().getProps().getProperty("schemaSpec", ".*");
-				// ConnectionWithMeta connection = getConnection(config);
-				// String dbName = config.getDb();
-				// MultipleSchemaAnalyzer.getInstance().analyze(dbName, meta, schemaSpec, null, args, config.getUser(), outputDir, config.getCharset(), Config.getLoadedFromJar());
-				throw new UnsupportedOperationException("Multi schema support awaiting re-write");
-			}
+	/**
+	 * Load a database previously saved with --snapshot-output
+	 */
+	private Database readSnapshot(Config config) throws Exception {
+		File file = config.getSnapshotInputFile();
+		if (!file.isFile())
+			throw new InvalidConfigurationException("Snapshot file " + file + " not found");
+		logger.info("Reading snapshot from " + file);
+		Database db = new SnapshotReader().read(file).linkForeignKeys();
+		if (config.getSchema() != null)
+			db.setSchema(config.getSchema());
+		return db;
+	}
+
+	/**
+	 * Only outputs written from the schemas that were read are supported for multiple schemas,
+	 * so refuse to run rather than silently skipping the rest of what was asked for.
+	 */
+	private static void checkMultipleSchemaOptions(Config config) {
+		List<String> unsupported = new ArrayList<String>();
+		if (config.isScmInputEnabled())
+			unsupported.add("--scm-input");
+		if (config.getSnapshotInputFile() != null)
+			unsupported.add("--snapshot-input");
+		if (config.getSnapshotOutputFile() != null)
+			unsupported.add("--snapshot-output");
+		if (config.isDatabaseOutputEnabled())
+			unsupported.add("--database-output");
+		if (config.isIntializeLogEnabled())
+			unsupported.add("--initialize-tracking");
+		if (!unsupported.isEmpty())
+			throw new InvalidConfigurationException("Can't use " + unsupported + " with --schemas or --all");
+	}
+
+	/**
+	 * Read all of the schemas requested with --schemas or --all, several at once,
+	 * then write the outputs of each one to its own directory under the target directory.
+	 */
+	private void processMultipleSchemas(Config config, RunProfile profile) throws Exception {
+		ConnectionWithMeta connection = getConnection(config);
+		MultipleSchemaAnalyzer analyzer = MultipleSchemaAnalyzer.getInstance();
+		List<String> schemas = analyzer.getSchemas(config, connection.Metadata);
+		if (schemas.isEmpty()) {
+			logger.warning("No schemas to analyze");
+			return;
+		}
+		// the html formatters look this up through Config.getInstance()
+		config.setOneOfMultipleSchemas(true);
+
+		RunProfile.Timer phase = profile.startPhase("database input");
+		Map<String, Database> databases = analyzer.read(config, schemas, connection.Connection, connection.Metadata, getConnectionFactory(config));
+		phase.stop();
+
+		if (config.isHtmlGenerationEnabled())
+			analyzer.writeIndexPage(config.getDatabase(), schemas, connection.Metadata, config.getTargetDir(), config.getCharset());
+		for (Map.Entry<String, Database> entry : databases.entrySet()) {
+			Config schemaConfig = config.forSchema(entry.getKey(), analyzer.getSchemaDir(config, entry.getKey()));
+			if (schemaConfig.getTargetDir() != null)
+				setupOuputDir(schemaConfig.getTargetDir());
+			logger.info("Writing output of " + entry.getKey());
+			writeFiles(schemaConfig, entry.getValue(), profile);
 		}
 	}
 
-	private Database readDb(Config config)
+	/**
+	 * Opens further connections with the same settings, for reading on several threads
+	 */
+	private ConnectionPool.ConnectionFactory getConnectionFactory(final Config config) {
+		return new ConnectionPool.ConnectionFactory() {
+			public Connection createConnection() throws Exception {
+				return getConnection(config).Connection;
+			}
+		};
+	}
+
+	private Database readDb(final Config config)
 			throws Exception {
 		ConnectionWithMeta connection = getConnection(config);
+		ConnectionPool.ConnectionFactory connectionFactory = getConnectionFactory(config);
 
 		SchemaMeta schemaMeta = config.getMetaDataPath() == null ? null : new SchemaMeta(config.getMetaDataPath(), config.getDatabase(), config.getSchema());
 		if (schemaMeta != null && schemaMeta.getFile() != null) {
@@ -149,7 +326,11 @@ public class SchemaMapper {
 		// create our representation of the database
 		logger.info("Gathering schema details...");
 		DbReader reader = new DbReader();
-		return reader.Read(config, connection.Connection, connection.Metadata, schemaMeta);
+		if (config.isScmStreamingEnabled()) {
+			logger.info("Streaming definitions to " + config.getTargetDir());
+			reader.setDefinitionSink(new ScmStreamWriter(config.getTargetDir()));
+		}
+		return reader.Read(config, connection.Connection, connection.Metadata, connectionFactory, schemaMeta);
 	}
 
 	/**
@@ -202,6 +383,7 @@ public class SchemaMapper {
 			driverPath = config.getDriverPath() + ";" + driverPath;
 
 		connection = getConnection(config, connectionUrl, driverClass, driverPath);
+		connection = RunProfile.getInstance().instrument(connection);
 		DatabaseMetaData meta = connection.getMetaData();
 		logger.info("Connected to " + meta.getDatabaseProductName() + " - " + meta.getDatabaseProductVersion());
 		setSchema(config, meta);
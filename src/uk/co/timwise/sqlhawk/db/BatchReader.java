@@ -0,0 +1,187 @@
+/* This file is a part of the sqlHawk project.
+ * http://timabell.github.com/sqlHawk/
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package uk.co.timwise.sqlhawk.db;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Splits a script into batches on GO like the sql server tools do,
+ * reading it as it goes so that only one batch is in memory at a time.
+ * A batch ends at a line with nothing but GO on it (ignoring whitespace and case)
+ * that isn't inside a comment (<code>--</code> or <code>/* *&#47;</code>, which can be nested),
+ * a quoted string or a quoted or bracketed identifier.
+ * The new line before the GO stays with the batch before it and the new line after
+ * it goes with the batch after it. Batches of nothing but whitespace are skipped.
+ * See https://github.com/timabell/sqlHawk/issues/49
+ */
+public class BatchReader implements Closeable {
+	private enum State {
+		CODE, LINE_COMMENT, BLOCK_COMMENT, SINGLE_QUOTE, DOUBLE_QUOTE, BRACKET
+	}
+
+	private final Reader in;
+	private final char[] buffer = new char[8192];
+	private int position = 0;
+	private int limit = 0;
+	private boolean finished = false;
+	private State state = State.CODE;
+	private int commentDepth = 0;
+	private final StringBuilder line = new StringBuilder();
+	private String pendingLine; // read past the end of the previous batch
+
+	public BatchReader(Reader in) {
+		this.in = in;
+	}
+
+	/**
+	 * @return the next batch, <code>null</code> when there are no more
+	 * @throws IOException
+	 */
+	public String next() throws IOException {
+		StringBuilder batch = new StringBuilder();
+		boolean hasContent = false;
+		String text = pendingLine;
+		pendingLine = null;
+		if (text == null)
+			text = readLine();
+		while (text != null) {
+			if (state == State.CODE && isGo(text)) {
+				pendingLine = lineEnding(text); // goes with the next batch
+				if (hasContent)
+					return batch.toString();
+				batch.setLength(0);
+				text = pendingLine;
+				pendingLine = null;
+				continue;
+			}
+			batch.append(text);
+			hasContent |= text.trim().length() > 0;
+			scan(text);
+			text = readLine();
+		}
+		return hasContent ? batch.toString() : null;
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Follow the comments and quoting through a line of the batch
+	 */
+	private void scan(String text) {
+		int length = text.length();
+		for (int i = 0; i < length; ++i) {
+			char c = text.charAt(i);
+			char next = i + 1 < length ? text.charAt(i + 1) : 0;
+			switch (state) {
+				case CODE:
+					if (c == '-' && next == '-') {
+						state = State.LINE_COMMENT;
+						++i;
+					} else if (c == '/' && next == '*') {
+						state = State.BLOCK_COMMENT;
+						commentDepth = 1;
+						++i;
+					} else if (c == '\'') {
+						state = State.SINGLE_QUOTE;
+					} else if (c == '"') {
+						state = State.DOUBLE_QUOTE;
+					} else if (c == '[') {
+						state = State.BRACKET;
+					}
+					break;
+				case LINE_COMMENT:
+					if (c == '\n' || c == '\r')
+						state = State.CODE;
+					break;
+				case BLOCK_COMMENT:
+					if (c == '/' && next == '*') {
+						++commentDepth;
+						++i;
+					} else if (c == '*' && next == '/') {
+						if (--commentDepth == 0)
+							state = State.CODE;
+						++i;
+					}
+					break;
+				case SINGLE_QUOTE:
+					if (c == '\'')
+						state = State.CODE; // a doubled quote just closes and reopens
+					break;
+				case DOUBLE_QUOTE:
+					if (c == '"')
+						state = State.CODE;
+					break;
+				case BRACKET:
+					if (c == ']')
+						state = State.CODE;
+					break;
+			}
+		}
+	}
+
+	private static boolean isGo(String text) {
+		return text.trim().equalsIgnoreCase("GO");
+	}
+
+	/**
+	 * @return the new line on the end of a line, if it has one
+	 */
+	private static String lineEnding(String text) {
+		int end = text.length();
+		while (end > 0 && (text.charAt(end - 1) == '\n' || text.charAt(end - 1) == '\r'))
+			--end;
+		return end == text.length() ? null : text.substring(end);
+	}
+
+	/**
+	 * @return the next line including its new line (\n, \r\n or \r), <code>null</code> at the end of the script
+	 */
+	private String readLine() throws IOException {
+		line.setLength(0);
+		while (true) {
+			if (position == limit && !fill())
+				return line.length() == 0 ? null : line.toString();
+			char c = buffer[position++];
+			line.append(c);
+			if (c == '\n')
+				return line.toString();
+			if (c == '\r') {
+				if (position < limit || fill()) {
+					if (buffer[position] == '\n')
+						line.append(buffer[position++]);
+				}
+				return line.toString();
+			}
+		}
+	}
+
+	private boolean fill() throws IOException {
+		if (finished)
+			return false;
+		int read = in.read(buffer);
+		if (read == -1) {
+			finished = true;
+			return false;
+		}
+		position = 0;
+		limit = read;
+		return true;
+	}
+}
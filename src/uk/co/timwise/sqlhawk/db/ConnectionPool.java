@@ -0,0 +1,162 @@
+/* This file is a part of the sqlHawk project.
+ * http://timabell.github.com/sqlHawk/
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package uk.co.timwise.sqlhawk.db;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * A small pool of connections to the same database, used to read
+ * metadata on several threads at once without the threads sharing
+ * a connection.<p/>
+ *
+ * The pool always contains the connection it was constructed with.
+ * Further connections are only opened (with the supplied factory) when
+ * all of the existing ones are in use, up to the maximum size.
+ * Only the connections opened by the pool are closed by {@link #close()}.
+ */
+public class ConnectionPool {
+	private final Connection primaryConnection;
+	private final ConnectionFactory factory;
+	private final int maxSize;
+	private final LinkedList<Connection> idle = new LinkedList<Connection>();
+	private final List<Connection> opened = new ArrayList<Connection>();
+	private final Map<Connection, DatabaseMetaData> metadata = new HashMap<Connection, DatabaseMetaData>();
+	private int size = 1;
+	private final Logger logger = Logger.getLogger(getClass().getName());
+
+	/**
+	 * Opens additional connections for the pool
+	 */
+	public interface ConnectionFactory {
+		Connection createConnection() throws Exception;
+	}
+
+	/**
+	 * A pool containing just the one connection.
+	 *
+	 * @param connection
+	 * @param meta
+	 */
+	public ConnectionPool(Connection connection, DatabaseMetaData meta) {
+		this(connection, meta, null, 1);
+	}
+
+	/**
+	 * @param connection the connection the pool starts out with
+	 * @param meta metadata of <code>connection</code>
+	 * @param factory opens further connections, may be <code>null</code> if <code>maxSize</code> is 1
+	 * @param maxSize maximum number of connections in the pool including <code>connection</code>
+	 */
+	public ConnectionPool(Connection connection, DatabaseMetaData meta, ConnectionFactory factory, int maxSize) {
+		this.primaryConnection = connection;
+		this.factory = factory;
+		this.maxSize = factory == null ? 1 : Math.max(1, maxSize);
+		idle.add(connection);
+		metadata.put(connection, meta);
+	}
+
+	/**
+	 * The connection the pool was constructed with.
+	 * Only use this when nothing else can be using the pool.
+	 */
+	public Connection getPrimaryConnection() {
+		return primaryConnection;
+	}
+
+	public DatabaseMetaData getPrimaryMetaData() {
+		return getMetaData(primaryConnection);
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Take a connection out of the pool, opening a new one if they're all
+	 * in use and the pool isn't full, otherwise waiting for one to be released.
+	 * Every call must be matched by a call to {@link #release(Connection)}.
+	 *
+	 * @throws Exception if a new connection couldn't be opened
+	 */
+	public Connection borrow() throws Exception {
+		synchronized (this) {
+			while (idle.isEmpty() && size >= maxSize)
+				wait();
+			if (!idle.isEmpty())
+				return idle.removeFirst();
+			++size; // reserve a slot, then connect outside the lock
+		}
+
+		try {
+			Connection connection = factory.createConnection();
+			DatabaseMetaData meta = connection.getMetaData();
+			synchronized (this) {
+				opened.add(connection);
+				metadata.put(connection, meta);
+			}
+			logger.fine("Opened pooled connection " + size + " of " + maxSize);
+			return connection;
+		} catch (Exception exc) {
+			synchronized (this) {
+				--size;
+				notifyAll();
+			}
+			throw exc;
+		}
+	}
+
+	/**
+	 * Return a connection to the pool
+	 */
+	public synchronized void release(Connection connection) {
+		idle.addLast(connection);
+		notifyAll();
+	}
+
+	/**
+	 * The metadata of a connection from this pool.
+	 * Fetched once per connection as some drivers do a lot of work for it.
+	 */
+	public synchronized DatabaseMetaData getMetaData(Connection connection) {
+		return metadata.get(connection);
+	}
+
+	/**
+	 * Close all of the connections opened by the pool.
+	 * The connection the pool was constructed with is left open.
+	 */
+	public synchronized void close() {
+		for (Connection connection : opened) {
+			try {
+				connection.close();
+			} catch (SQLException exc) {
+				logger.warning("Failed to close pooled connection: " + exc);
+			}
+			idle.remove(connection);
+			metadata.remove(connection);
+		}
+		size -= opened.size();
+		opened.clear();
+	}
+}
@@ -0,0 +1,98 @@
+/* This file is a part of the sqlHawk project.
+ * http://timabell.github.com/sqlHawk/
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package uk.co.timwise.sqlhawk.db;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Streaming version of {@link SqlManagement#ConvertCreateToAlter(String)}.
+ * Replaces the first CREATE found at the start of a line with ALTER as the
+ * text passes through, so that the whole definition never has to be in memory.
+ * Everything after the replacement is passed straight on.
+ */
+public class CreateToAlterWriter extends FilterWriter {
+	private static final String CREATE = "CREATE";
+	private final StringBuilder pending = new StringBuilder(CREATE.length());
+	private boolean lineStart = true;
+	private boolean converted = false;
+
+	public CreateToAlterWriter(Writer out) {
+		super(out);
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		if (converted) {
+			out.write(c);
+			return;
+		}
+		if (lineStart && Character.toUpperCase((char) c) == CREATE.charAt(pending.length())) {
+			pending.append((char) c);
+			if (pending.length() == CREATE.length()) {
+				out.write("ALTER");
+				pending.setLength(0);
+				converted = true;
+			}
+			return;
+		}
+		writePending();
+		out.write(c);
+		lineStart = isLineTerminator((char) c);
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		int end = off + len;
+		while (off < end && !converted)
+			write(cbuf[off++]);
+		if (off < end)
+			out.write(cbuf, off, end - off);
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		int end = off + len;
+		while (off < end && !converted)
+			write(str.charAt(off++));
+		if (off < end)
+			out.write(str, off, end - off);
+	}
+
+	@Override
+	public void close() throws IOException {
+		writePending();
+		super.close();
+	}
+
+	/**
+	 * Pass on the start of a line that looked like it might be CREATE but wasn't
+	 */
+	private void writePending() throws IOException {
+		if (pending.length() > 0) {
+			out.write(pending.toString());
+			pending.setLength(0);
+		}
+	}
+
+	/**
+	 * The characters after which ^ matches in a {@link java.util.regex.Pattern#MULTILINE} pattern
+	 */
+	private static boolean isLineTerminator(char c) {
+		return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+	}
+}
@@ -15,6 +15,10 @@
  *  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
 package uk.co.timwise.sqlhawk.db;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -22,13 +26,6 @@ import java.util.regex.Pattern;
  * Methods for handling / modifying T-SQL statements.
  */
 public class SqlManagement {
-	// Split where GO on its own on a line (ignoring whitespace, case insensitive)
-	// This is a best attempt short of full SQL parsing to establish quoting &
-	// commenting.
-	// see: http://stackoverflow.com/questions/10734824
-	/** The batch splitter. */
-	static Pattern batchSplitter = Pattern.compile("^\\s*GO\\s*$", Pattern.MULTILINE | Pattern.CASE_INSENSITIVE);
-
 	/**
 	 * Change definition from CREATE to ALTER before saving (or vice versa before
 	 * running - this is to make using scm .sql scripts manually easier. A single
@@ -76,13 +73,22 @@ public class SqlManagement {
 	 * Split into batches on GO keyword. Split into batches similar to the sql
 	 * server tools,this makes management of scripts easier as you can include a
 	 * reference to a new table in the same sql file as the create statement.
+	 * Use {@link BatchReader} directly for scripts too big to hold in memory.
 	 *
 	 * @param sql
 	 *          the sql string to split
 	 * @return a string array containing the batches
 	 */
 	public static String[] SplitBatches(String sql) {
-		// TODO: Comment parsing when splitting batches. https://github.com/timabell/sqlHawk/issues/49
-		return batchSplitter.split(sql);
+		List<String> batches = new ArrayList<String>();
+		BatchReader reader = new BatchReader(new StringReader(sql));
+		try {
+			String batch;
+			while ((batch = reader.next()) != null)
+				batches.add(batch);
+		} catch (IOException exc) {
+			throw new RuntimeException(exc); // can't happen reading a string
+		}
+		return batches.toArray(new String[batches.size()]);
 	}
 }
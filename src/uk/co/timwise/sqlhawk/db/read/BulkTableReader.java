@@ -0,0 +1,451 @@
+/* This file is a part of the sqlHawk project.
+ * http://timabell.github.com/sqlHawk/
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package uk.co.timwise.sqlhawk.db.read;
+
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import uk.co.timwise.sqlhawk.model.Table;
+import uk.co.timwise.sqlhawk.model.TableColumn;
+import uk.co.timwise.sqlhawk.util.CaseInsensitiveMap;
+
+/**
+ * Reads the column, primary key, index and foreign key details of every
+ * table in a schema with one query each, instead of a set of queries per table.<p/>
+ *
+ * Column rows are put straight into the table they belong to.
+ * Key and index rows are held against their table until {@link TableReader}
+ * is ready for them, e.g. the primary key flag is set on an index so
+ * primary keys can only be applied after the indexes.
+ */
+public class BulkTableReader {
+	private final Map<String, Table> tables;
+	private final String schema;
+	private final Properties properties;
+	private final DatabaseMetaData meta;
+	private final DbReader dbReader;
+	private final Set<Table> tablesWithColumns = new HashSet<Table>();
+	private final Set<Table> tablesWithAutoIncrementKnown = new HashSet<Table>(); // at least one column reported by the driver
+	private final Set<Table> tablesWithAutoIncrementUnresolved = new HashSet<Table>(); // at least one column the driver didn't know about
+	private Map<String, List<PrimaryKeyColumn>> primaryKeys; // null unless read in bulk
+	private Map<String, List<IndexColumn>> indexes; // null unless read in bulk
+	private Map<String, List<ForeignKeyColumn>> foreignKeys; // null unless read in bulk
+	private final Logger logger = Logger.getLogger(getClass().getName());
+
+	/**
+	 * @param tables the (as yet empty) tables to read details into, keyed by name
+	 * @param schema
+	 * @param properties
+	 * @param meta
+	 * @param dbReader
+	 */
+	public BulkTableReader(Map<String, Table> tables, String schema, Properties properties, DatabaseMetaData meta, DbReader dbReader) {
+		this.tables = tables;
+		this.schema = schema;
+		this.properties = properties;
+		this.meta = meta;
+		this.dbReader = dbReader;
+	}
+
+	/**
+	 * Read the columns of every table in the schema, either with the
+	 * selectAllColumnsSql query from the .properties (which must return the same
+	 * columns as {@link DatabaseMetaData#getColumns(String, String, String, String)})
+	 * or with a single wildcard call to getColumns.
+	 *
+	 * @param excludeIndirectColumns
+	 * @param excludeColumns
+	 * @return <code>false</code> if the columns couldn't be read in bulk
+	 */
+	public boolean readColumns(Pattern excludeIndirectColumns, Pattern excludeColumns) {
+		String sql = properties.getProperty("selectAllColumnsSql");
+		logger.finest("Loaded selectAllColumnsSql:\n" + sql);
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		int rowCount = 0;
+
+		try {
+			if (sql != null) {
+				stmt = dbReader.prepareStatement(sql, null);
+				rs = stmt.executeQuery();
+			} else {
+				rs = meta.getColumns(null, schema, "%", "%");
+			}
+
+			String catalog = sql == null ? meta.getConnection().getCatalog() : null;
+			boolean hasAutoIncrement = TableColumnReader.HasAutoIncrement(rs);
+			while (rs.next()) {
+				if (sql == null && isOtherSchema(rs, "TABLE_", catalog))
+					continue;
+				++rowCount;
+				Table table = tables.get(rs.getString("TABLE_NAME"));
+				if (table == null)
+					continue; // a view or an excluded table
+
+				String columnName = rs.getString("COLUMN_NAME");
+				if (columnName == null || table.getColumn(columnName) != null)
+					continue;
+
+				TableColumn column = TableColumnReader.ReadTableColumn(table, rs, excludeIndirectColumns, excludeColumns);
+				table.getColumnMap().put(column.getName(), column);
+				tablesWithColumns.add(table);
+				if (hasAutoIncrement && TableColumnReader.ReadAutoIncrement(column, rs))
+					tablesWithAutoIncrementKnown.add(table);
+				else
+					tablesWithAutoIncrementUnresolved.add(table);
+			}
+		} catch (SQLException exc) {
+			logger.warning("Unable to read columns for the whole schema, reading them table by table instead: " + exc);
+			discardColumns();
+			return false;
+		} finally {
+			close(rs, stmt);
+		}
+
+		if (rowCount == 0 && sql == null && !tables.isEmpty()) {
+			// most likely a driver that doesn't understand the wildcard
+			logger.info("No columns returned for the whole schema, reading them table by table instead");
+			return false;
+		}
+
+		logger.fine("Read " + rowCount + " columns for the whole schema");
+		return true;
+	}
+
+	/**
+	 * Read the primary keys of every table in the schema, either with the
+	 * selectAllPrimaryKeysSql query from the .properties (which must return
+	 * TABLE_NAME, COLUMN_NAME and PK_NAME) or with a single call to getPrimaryKeys
+	 * without a table name.
+	 *
+	 * @return <code>false</code> if the primary keys couldn't be read in bulk
+	 */
+	public boolean readPrimaryKeys() {
+		String sql = properties.getProperty("selectAllPrimaryKeysSql");
+		logger.finest("Loaded selectAllPrimaryKeysSql:\n" + sql);
+		Map<String, List<PrimaryKeyColumn>> keys = new CaseInsensitiveMap<List<PrimaryKeyColumn>>();
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+
+		try {
+			if (sql != null) {
+				stmt = dbReader.prepareStatement(sql, null);
+				rs = stmt.executeQuery();
+			} else {
+				rs = meta.getPrimaryKeys(null, schema, null);
+			}
+
+			String catalog = sql == null ? meta.getConnection().getCatalog() : null;
+			while (rs.next()) {
+				if (sql == null && isOtherSchema(rs, "TABLE_", catalog))
+					continue;
+				getBucket(keys, rs.getString("TABLE_NAME")).add(
+						new PrimaryKeyColumn(rs.getString("PK_NAME"), rs.getString("COLUMN_NAME")));
+			}
+		} catch (SQLException exc) {
+			logger.warning("Unable to read primary keys for the whole schema, reading them table by table instead: " + exc);
+			return false;
+		} finally {
+			close(rs, stmt);
+		}
+
+		if (keys.isEmpty() && sql == null && !tables.isEmpty()) {
+			// can't tell a schema without keys from a driver that wants a table name
+			logger.info("No primary keys returned for the whole schema, reading them table by table instead");
+			return false;
+		}
+
+		primaryKeys = keys;
+		return true;
+	}
+
+	/**
+	 * Read the indexes of every table in the schema, either with the
+	 * selectAllIndexesSql query from the .properties (which must return TABLE_NAME
+	 * and the same columns as {@link DatabaseMetaData#getIndexInfo(String, String, String, boolean, boolean)})
+	 * or with a single call to getIndexInfo without a table name.<p/>
+	 *
+	 * Database types that supply a per-table selectIndexesSql to avoid getIndexInfo
+	 * (e.g. Oracle) are left to read indexes table by table unless they also
+	 * supply selectAllIndexesSql.
+	 *
+	 * @return <code>false</code> if the indexes couldn't be read in bulk
+	 */
+	public boolean readIndexes() {
+		String sql = properties.getProperty("selectAllIndexesSql");
+		logger.finest("Loaded selectAllIndexesSql:\n" + sql);
+		if (sql == null && properties.getProperty("selectIndexesSql") != null)
+			return false;
+
+		Map<String, List<IndexColumn>> tableIndexes = new CaseInsensitiveMap<List<IndexColumn>>();
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+
+		try {
+			if (sql != null) {
+				stmt = dbReader.prepareStatement(sql, null);
+				rs = stmt.executeQuery();
+			} else {
+				rs = meta.getIndexInfo(null, schema, null, false, true);
+			}
+
+			String catalog = sql == null ? meta.getConnection().getCatalog() : null;
+			while (rs.next()) {
+				if (sql == null && isOtherSchema(rs, "TABLE_", catalog))
+					continue;
+				if (rs.getShort("TYPE") == DatabaseMetaData.tableIndexStatistic)
+					continue;
+				getBucket(tableIndexes, rs.getString("TABLE_NAME")).add(
+						new IndexColumn(rs.getString("INDEX_NAME"), !rs.getBoolean("NON_UNIQUE"),
+								rs.getString("COLUMN_NAME"), rs.getString("ASC_OR_DESC")));
+			}
+		} catch (SQLException exc) {
+			logger.warning("Unable to read indexes for the whole schema, reading them table by table instead: " + exc);
+			return false;
+		} finally {
+			close(rs, stmt);
+		}
+
+		if (tableIndexes.isEmpty() && sql == null && !tables.isEmpty()) {
+			logger.info("No indexes returned for the whole schema, reading them table by table instead");
+			return false;
+		}
+
+		indexes = tableIndexes;
+		return true;
+	}
+
+	/**
+	 * Read the foreign keys of every table in the schema, either with the
+	 * selectAllForeignKeysSql query from the .properties (which must return
+	 * the same columns as {@link DatabaseMetaData#getImportedKeys(String, String, String)})
+	 * or with a single call to getImportedKeys without a table name.
+	 *
+	 * @return <code>false</code> if the foreign keys couldn't be read in bulk
+	 */
+	public boolean readForeignKeys() {
+		String sql = properties.getProperty("selectAllForeignKeysSql");
+		logger.finest("Loaded selectAllForeignKeysSql:\n" + sql);
+		Map<String, List<ForeignKeyColumn>> keys = new CaseInsensitiveMap<List<ForeignKeyColumn>>();
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+
+		try {
+			if (sql != null) {
+				stmt = dbReader.prepareStatement(sql, null);
+				rs = stmt.executeQuery();
+			} else {
+				rs = meta.getImportedKeys(null, schema, null);
+			}
+
+			String catalog = sql == null ? meta.getConnection().getCatalog() : null;
+			while (rs.next()) {
+				if (sql == null && isOtherSchema(rs, "FKTABLE_", catalog))
+					continue;
+				getBucket(keys, rs.getString("FKTABLE_NAME")).add(
+						new ForeignKeyColumn(rs.getString("FK_NAME"), rs.getString("FKCOLUMN_NAME"),
+								rs.getString("PKTABLE_SCHEM"), rs.getString("PKTABLE_NAME"),
+								rs.getString("PKCOLUMN_NAME"),
+								rs.getInt("UPDATE_RULE"), rs.getInt("DELETE_RULE")));
+			}
+		} catch (SQLException exc) {
+			logger.warning("Unable to read foreign keys for the whole schema, reading them table by table instead: " + exc);
+			return false;
+		} finally {
+			close(rs, stmt);
+		}
+
+		if (keys.isEmpty() && sql == null && !tables.isEmpty()) {
+			logger.info("No foreign keys returned for the whole schema, reading them table by table instead");
+			return false;
+		}
+
+		foreignKeys = keys;
+		return true;
+	}
+
+	/**
+	 * The metadata calls are made without a catalog, so drivers where the catalog
+	 * is the database (e.g. MySQL) can return same-named tables from other databases.
+	 *
+	 * @param prefix of the SCHEM and CAT columns, e.g. "TABLE_"
+	 * @param catalog the connection's catalog
+	 * @return <code>true</code> if the row belongs to a schema or catalog other than the one being read
+	 */
+	private boolean isOtherSchema(ResultSet rs, String prefix, String catalog) throws SQLException {
+		if (schema == null)
+			return false;
+		String rowSchema = rs.getString(prefix + "SCHEM");
+		if (rowSchema != null)
+			return !schema.equalsIgnoreCase(rowSchema);
+		String rowCatalog = rs.getString(prefix + "CAT");
+		return rowCatalog != null && !rowCatalog.equalsIgnoreCase(schema) && !rowCatalog.equalsIgnoreCase(catalog);
+	}
+
+	/**
+	 * @return <code>true</code> if the columns of the specified table have been read
+	 */
+	public boolean hasColumns(Table table) {
+		return tablesWithColumns.contains(table);
+	}
+
+	/**
+	 * @return <code>true</code> if the driver reported whether each of the
+	 * specified table's columns is auto incremented along with the columns
+	 */
+	public boolean hasAutoIncrement(Table table) {
+		return tablesWithAutoIncrementKnown.contains(table) && !tablesWithAutoIncrementUnresolved.contains(table);
+	}
+
+	/**
+	 * @return <code>true</code> if the primary keys of all tables have been read
+	 */
+	public boolean hasPrimaryKeys() {
+		return primaryKeys != null;
+	}
+
+	/**
+	 * @return <code>true</code> if the indexes of all tables have been read
+	 */
+	public boolean hasIndexes() {
+		return indexes != null;
+	}
+
+	/**
+	 * @return <code>true</code> if the foreign keys of all tables have been read
+	 */
+	public boolean hasForeignKeys() {
+		return foreignKeys != null;
+	}
+
+	public List<PrimaryKeyColumn> getPrimaryKeys(Table table) {
+		return getRows(primaryKeys, table);
+	}
+
+	public List<IndexColumn> getIndexes(Table table) {
+		return getRows(indexes, table);
+	}
+
+	public List<ForeignKeyColumn> getForeignKeys(Table table) {
+		return getRows(foreignKeys, table);
+	}
+
+	/**
+	 * Read-only lookup as tables are completed on several threads
+	 */
+	private static <T> List<T> getRows(Map<String, List<T>> buckets, Table table) {
+		List<T> rows = buckets.get(table.getName());
+		if (rows == null)
+			return Collections.emptyList();
+		return rows;
+	}
+
+	private static <T> List<T> getBucket(Map<String, List<T>> buckets, String tableName) {
+		List<T> bucket = buckets.get(tableName);
+		if (bucket == null) {
+			bucket = new ArrayList<T>();
+			buckets.put(tableName, bucket);
+		}
+		return bucket;
+	}
+
+	/**
+	 * Throw away the columns from a bulk read that failed part way through
+	 */
+	private void discardColumns() {
+		for (Table table : tablesWithColumns)
+			table.getColumnMap().clear();
+		tablesWithColumns.clear();
+		tablesWithAutoIncrementKnown.clear();
+		tablesWithAutoIncrementUnresolved.clear();
+	}
+
+	private void close(ResultSet rs, PreparedStatement stmt) {
+		try {
+			if (rs != null)
+				rs.close();
+			if (stmt != null)
+				stmt.close();
+		} catch (SQLException exc) {
+			logger.warning("Failed to close bulk metadata query: " + exc);
+		}
+	}
+
+	/**
+	 * A row from a primary key query
+	 */
+	public static class PrimaryKeyColumn {
+		final String pkName;
+		final String columnName;
+
+		PrimaryKeyColumn(String pkName, String columnName) {
+			this.pkName = pkName;
+			this.columnName = columnName;
+		}
+	}
+
+	/**
+	 * A row from an index query
+	 */
+	public static class IndexColumn {
+		final String indexName;
+		final boolean isUnique;
+		final String columnName;
+		final String ascOrDesc;
+
+		IndexColumn(String indexName, boolean isUnique, String columnName, String ascOrDesc) {
+			this.indexName = indexName;
+			this.isUnique = isUnique;
+			this.columnName = columnName;
+			this.ascOrDesc = ascOrDesc;
+		}
+	}
+
+	/**
+	 * A row from a foreign key query
+	 */
+	public static class ForeignKeyColumn {
+		final String fkName;
+		final String fkColumnName;
+		final String pkTableSchema;
+		final String pkTableName;
+		final String pkColumnName;
+		final int updateRule;
+		final int deleteRule;
+
+		ForeignKeyColumn(String fkName, String fkColumnName, String pkTableSchema, String pkTableName,
+				String pkColumnName, int updateRule, int deleteRule) {
+			this.fkName = fkName;
+			this.fkColumnName = fkColumnName;
+			this.pkTableSchema = pkTableSchema;
+			this.pkTableName = pkTableName;
+			this.pkColumnName = pkColumnName;
+			this.updateRule = updateRule;
+			this.deleteRule = deleteRule;
+		}
+	}
+}
@@ -0,0 +1,95 @@
+/* This file is a part of the sqlHawk project.
+ * http://timabell.github.com/sqlHawk/
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package uk.co.timwise.sqlhawk.db.read;
+
+import java.util.Map;
+
+import uk.co.timwise.sqlhawk.snapshot.Snapshot;
+
+/**
+ * The differences between the modification markers saved in a
+ * {@link Snapshot} and the ones just read from the database.
+ * An object is changed if it's new or its marker is different.
+ */
+class ChangeSet {
+	private final Map<String, String> previous;
+	private final Map<String, String> current;
+
+	ChangeSet(Map<String, String> previous, Map<String, String> current) {
+		this.previous = previous;
+		this.current = current;
+	}
+
+	/**
+	 * @param type one of the object types in {@link Snapshot}
+	 * @param name
+	 */
+	boolean isChanged(String type, String name) {
+		String key = Snapshot.GetMarkerKey(type, name);
+		return differs(key, current.get(key));
+	}
+
+	/**
+	 * @return <code>true</code> if any object of the specified type is new, changed or has gone,
+	 * or if there are no markers for that type at all as then there's no telling whether it has changed
+	 */
+	boolean hasChanges(String type) {
+		String prefix = Snapshot.GetMarkerKey(type, "");
+		boolean marked = false;
+		for (Map.Entry<String, String> marker : current.entrySet()) {
+			if (!isOfType(marker.getKey(), prefix))
+				continue;
+			if (differs(marker.getKey(), marker.getValue()))
+				return true;
+			marked = true;
+		}
+		for (String key : previous.keySet()) {
+			if (!isOfType(key, prefix))
+				continue;
+			if (!current.containsKey(key))
+				return true;
+			marked = true;
+		}
+		return !marked;
+	}
+
+	/**
+	 * @return how many objects of the specified type are new or changed
+	 */
+	int countChanged(String type) {
+		String prefix = Snapshot.GetMarkerKey(type, "");
+		int changed = 0;
+		for (Map.Entry<String, String> marker : current.entrySet()) {
+			if (isOfType(marker.getKey(), prefix) && differs(marker.getKey(), marker.getValue()))
+				++changed;
+		}
+		return changed;
+	}
+
+	/**
+	 * A missing marker counts as a change as there's no telling whether it has changed
+	 */
+	private boolean differs(String key, String marker) {
+		return marker == null || !marker.equals(previous.get(key));
+	}
+
+	/**
+	 * Marker maps are usually case insensitive, which upper cases their keys
+	 */
+	private static boolean isOfType(String key, String prefix) {
+		return key.regionMatches(true, 0, prefix, 0, prefix.length());
+	}
+}
@@ -15,7 +15,10 @@
  *  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
 package uk.co.timwise.sqlhawk.db.read;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
@@ -23,6 +26,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -33,24 +37,39 @@ import java.util.MissingResourceException;
 import java.util.Properties;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
 import uk.co.timwise.sqlhawk.config.Config;
 import uk.co.timwise.sqlhawk.config.InvalidConfigurationException;
+import uk.co.timwise.sqlhawk.db.ConnectionPool;
+import uk.co.timwise.sqlhawk.db.CreateToAlterWriter;
 import uk.co.timwise.sqlhawk.db.NameValidator;
 import uk.co.timwise.sqlhawk.db.SqlManagement;
 import uk.co.timwise.sqlhawk.model.Database;
 import uk.co.timwise.sqlhawk.model.ExplicitRemoteTable;
+import uk.co.timwise.sqlhawk.model.ForeignKeyConstraint;
 import uk.co.timwise.sqlhawk.model.Function;
 import uk.co.timwise.sqlhawk.model.Procedure;
 import uk.co.timwise.sqlhawk.model.RemoteTable;
+import uk.co.timwise.sqlhawk.model.RowCountStatus;
 import uk.co.timwise.sqlhawk.model.Table;
 import uk.co.timwise.sqlhawk.model.TableColumn;
 import uk.co.timwise.sqlhawk.model.TableIndex;
 import uk.co.timwise.sqlhawk.model.View;
 import uk.co.timwise.sqlhawk.model.xml.SchemaMeta;
 import uk.co.timwise.sqlhawk.model.xml.TableMeta;
+import uk.co.timwise.sqlhawk.profile.RunProfile;
+import uk.co.timwise.sqlhawk.snapshot.Snapshot;
+import uk.co.timwise.sqlhawk.snapshot.SnapshotReader;
+import uk.co.timwise.sqlhawk.snapshot.SnapshotWriter;
 import uk.co.timwise.sqlhawk.util.CaseInsensitiveMap;
 
 
@@ -59,11 +78,49 @@ public class DbReader {
 	private Connection connection;
 	private DatabaseMetaData meta;
 	private String schema;
+	private BulkTableReader bulkReader; // null unless reading with --bulk-read
+	private ConnectionPool pool;
+	private SchemaRegistry siblings; // null unless reading several schemas at once
+	private DefinitionSink definitionSink; // null unless streaming definitions out with --scm-streaming
+	private Snapshot previous; // from the incremental cache, null if everything is to be read
+	private ChangeSet changes; // what's changed since the previous snapshot, null if everything is to be read
+	private final Map<String, SqlTemplate> sqlTemplates = new ConcurrentHashMap<String, SqlTemplate>();
+	private final ThreadLocal<Connection> phaseConnection = new ThreadLocal<Connection>(); // borrowed by the phase the thread is running
+	private final Map<Connection, Map<String, PreparedStatement>> cachedStatements = new HashMap<Connection, Map<String, PreparedStatement>>();
+	private static final int TABLE_READ_ATTEMPTS = 3;
 	private final Logger logger = Logger.getLogger(getClass().getName());
 
 	public Database Read(Config config, Connection connection, DatabaseMetaData meta, SchemaMeta schemaMeta)
 			throws Exception {
+		return Read(config, connection, meta, null, schemaMeta);
+	}
+
+	/**
+	 * Read the schema, using up to dbThreads / --max-threads connections
+	 * to read table details in parallel.
+	 *
+	 * @param config
+	 * @param connection
+	 * @param meta
+	 * @param connectionFactory opens the extra connections, <code>null</code> to only use <code>connection</code>
+	 * @param schemaMeta
+	 * @return
+	 * @throws Exception
+	 */
+	public Database Read(Config config, Connection connection, DatabaseMetaData meta,
+			ConnectionPool.ConnectionFactory connectionFactory, SchemaMeta schemaMeta) throws Exception {
 		Properties properties = config.getDbType().getProps();
+		pool = new ConnectionPool(connection, meta, connectionFactory, getMaxDbThreads(properties, config));
+		try {
+			return Read(config, properties, connection, meta, schemaMeta);
+		} finally {
+			closeCachedStatements();
+			pool.close();
+		}
+	}
+
+	private Database Read(final Config config, final Properties properties, Connection connection, DatabaseMetaData meta, SchemaMeta schemaMeta)
+			throws Exception {
 		database = new Database(config.getDatabase(), config.getSchema());
 		database.setGeneratedDate(new Date());
 		this.connection = connection;
@@ -72,54 +129,222 @@ public class DbReader {
 		database.setDescription(config.getDescription());
 		database.setDbms(getDatabaseProduct());
 		database.setKeywords(getKeywords(meta));
+		File cacheFile = config.getIncrementalCacheFile();
+		if (cacheFile != null && definitionSink != null) {
+			// the definitions aren't kept, so the cache would be missing them
+			logger.info("Not using the incremental cache as definitions are being streamed");
+			cacheFile = null;
+		}
+		Map<String, String> markers = null;
+		previous = null;
+		changes = null;
+		RunProfile.Timer phase;
+		if (cacheFile != null) {
+			phase = startPhase("modification markers");
+			markers = readModificationMarkers(properties);
+			phase.stop();
+			if (markers != null)
+				previous = loadIncrementalCache(cacheFile, getIncrementalCacheKey(config));
+			if (previous != null)
+				changes = new ChangeSet(previous.getModificationMarkers(), markers);
+		}
 		logger.fine("Reading existing db...");
+		PhaseScheduler scheduler = new PhaseScheduler(pool.getMaxSize());
 		if (config.isTableProcessingEnabled())
-		{
-			logger.fine("Reading tables...");
-			initTables(meta, properties, config);
-			logger.fine("Reading constraints...");
-			initCheckConstraints(properties);
-			logger.fine("Reading table ids...");
-			initTableIds(properties);
-			logger.fine("Reading table indexes...");
-			initIndexIds(properties);
-			logger.fine("Reading table comments...");
-			initTableComments(properties);
-			logger.fine("Reading table column comments...");
-			initTableColumnComments(properties);
-			logger.fine("Reading relationships...");
-			connectTables();
-		}
-		if (config.isViewsEnabled()) {
-			logger.fine("Reading views...");
-			initViews(meta, properties, config);
-			logger.fine("Reading view comments...");
-			initViewComments(properties);
-			logger.fine("Reading view column comments...");
-			initViewColumnComments(properties);
-			logger.fine("Reading view definitions...");
-			initViewSql(properties, config.getDbType().isAlterSupported());
-		}
-		logger.fine("Reading procedures...");
-		initStoredProcedures(properties, config, meta);
-		logger.fine("Reading functions...");
-		initFunctions(properties, config);
+			addTablePhases(scheduler, properties, config);
+		if (config.isViewsEnabled())
+			addViewPhases(scheduler, properties, config);
+		addCommentPhases(scheduler, properties, config);
+		addPhase(scheduler, "procedures", new PhaseScheduler.Phase() {
+			public void run() throws Exception {
+				initStoredProcedures(properties, config, getPhaseMeta());
+			}
+		});
+		addPhase(scheduler, "functions", new PhaseScheduler.Phase() {
+			public void run() throws Exception {
+				initFunctions(properties, config);
+			}
+		});
+		scheduler.run();
+		if (markers != null)
+			saveIncrementalCache(cacheFile, new Snapshot(database, getIncrementalCacheKey(config), markers));
 		updateFromXmlMetadata(schemaMeta);
 		return database;
 	}
 
-	private void initViewSql(Properties properties, boolean isAlterSupported) throws SQLException {
+	/**
+	 * Log and time a phase of reading the schema
+	 *
+	 * @param name what's being read, e.g. "tables"
+	 */
+	private RunProfile.Timer startPhase(String name) {
+		logger.fine("Reading " + name + "...");
+		return RunProfile.getInstance().startPhase("read: " + name);
+	}
+
+	/**
+	 * The phases of reading tables, in an order they can be run in one at a time.
+	 * Everything depends on the tables having been read, but most phases
+	 * fill in different details of them so can run alongside each other.
+	 */
+	private void addTablePhases(PhaseScheduler scheduler, final Properties properties, final Config config) {
+		addPhase(scheduler, "tables", new PhaseScheduler.Phase() {
+			public void run() throws Exception {
+				initTables(getPhaseMeta(), properties, config);
+			}
+		});
+		addPhase(scheduler, "auto increment columns", new PhaseScheduler.Phase() {
+			public void run() throws Exception {
+				initAutoIncrementColumns(properties);
+			}
+		}, "tables");
+		addPhase(scheduler, "row counts", new PhaseScheduler.Phase() {
+			public void run() throws Exception {
+				new RowCountReader(database, properties, getPhaseMeta(), DbReader.this).read(getTablesToRead(), config.getRowCountStrategy(), config.getRowCountTimeout(), config.getRowCountBudget());
+			}
+		}, "tables");
+		addPhase(scheduler, "constraints", new PhaseScheduler.Phase() {
+			public void run() throws Exception {
+				initCheckConstraints(properties);
+			}
+		}, "tables");
+		addPhase(scheduler, "table ids", new PhaseScheduler.Phase() {
+			public void run() throws Exception {
+				initTableIds(properties);
+			}
+		}, "tables");
+		addPhase(scheduler, "table indexes", new PhaseScheduler.Phase() {
+			public void run() throws Exception {
+				initIndexIds(properties);
+			}
+		}, "tables");
+		addPhase(scheduler, "relationships", new PhaseScheduler.Phase() {
+			public void run() throws Exception {
+				connectTables();
+			}
+		}, "tables");
+	}
+
+	private void addViewPhases(PhaseScheduler scheduler, final Properties properties, final Config config) {
+		addPhase(scheduler, "views", new PhaseScheduler.Phase() {
+			public void run() throws Exception {
+				initViews(getPhaseMeta(), properties, config);
+			}
+		});
+		addPhase(scheduler, "view definitions", new PhaseScheduler.Phase() {
+			public void run() throws Exception {
+				initViewSql(properties, config.getDbType().isAlterSupported());
+			}
+		}, "views");
+	}
+
+	/**
+	 * Table comments come after the views as their queries can also return
+	 * the comments of views. View comments are read after those so that
+	 * they win, as they always have.
+	 */
+	private void addCommentPhases(PhaseScheduler scheduler, final Properties properties, Config config) {
+		if (config.isTableProcessingEnabled()) {
+			addPhase(scheduler, "table comments", new PhaseScheduler.Phase() {
+				public void run() throws Exception {
+					initTableComments(properties);
+				}
+			}, "tables", "views");
+			addPhase(scheduler, "table column comments", new PhaseScheduler.Phase() {
+				public void run() throws Exception {
+					initTableColumnComments(properties);
+				}
+			}, "tables", "views");
+		}
+		if (config.isViewsEnabled()) {
+			addPhase(scheduler, "view comments", new PhaseScheduler.Phase() {
+				public void run() throws Exception {
+					initViewComments(properties);
+				}
+			}, "views", "table comments");
+			addPhase(scheduler, "view column comments", new PhaseScheduler.Phase() {
+				public void run() throws Exception {
+					initViewColumnComments(properties);
+				}
+			}, "views", "table column comments");
+		}
+	}
+
+	/**
+	 * Add a phase that reads with a connection of its own from the pool,
+	 * unless only one connection is allowed, in which case the phases run
+	 * one at a time on the connection the read started with.
+	 */
+	private void addPhase(PhaseScheduler scheduler, final String name, final PhaseScheduler.Phase phase, String... dependsOn) {
+		scheduler.add(name, new PhaseScheduler.Phase() {
+			public void run() throws Exception {
+				Connection borrowed = pool.getMaxSize() > 1 ? pool.borrow() : null;
+				phaseConnection.set(borrowed);
+				RunProfile.Timer timer = startPhase(name);
+				try {
+					phase.run();
+				} finally {
+					timer.stop();
+					phaseConnection.remove();
+					if (borrowed != null)
+						pool.release(borrowed);
+				}
+			}
+		}, dependsOn);
+	}
+
+	/**
+	 * The connection that the current thread should read with
+	 */
+	private Connection getPhaseConnection() {
+		Connection borrowed = phaseConnection.get();
+		return borrowed == null ? connection : borrowed;
+	}
+
+	/**
+	 * The metadata of {@link #getPhaseConnection()}
+	 */
+	private DatabaseMetaData getPhaseMeta() {
+		return pool.getMetaData(getPhaseConnection());
+	}
+
+	private void initViewSql(Properties properties, boolean isAlterSupported) throws SQLException, IOException {
+		if (definitionSink != null) {
+			streamViewSql(properties, database.getViews(), isAlterSupported);
+			return;
+		}
+
+		List<View> views = new ArrayList<View>();
+		for (View view : database.getViews()) {
+			View cached = previous == null ? null : previous.getDatabase().getViewMap().get(view.getName());
+			if (cached != null && !changes.isChanged(Snapshot.VIEW, view.getName()))
+				view.setDefinition(cached.getDefinition());
+			else
+				views.add(view);
+		}
+		if (views.isEmpty())
+			return;
+
 		String selectViewSql = properties.getProperty("selectViewSql");
-		if (selectViewSql == null)
+		// when only a few views have changed it's quicker to read them one at a time
+		Map<String, String> definitions = null;
+		if (changes == null || selectViewSql == null)
+			definitions = fetchAllViewSql(properties);
+		if (definitions == null && selectViewSql == null)
 		{
 			logger.warning("selectViewSql missing from properties, couldn't read view definitions");
 			return;
 		}
 		logger.finest("Loaded selectViewSql:\n" + selectViewSql);
-		for(View view : database.getViews())
+		for(View view : views)
 		{
-			logger.finer("getting sql for view " + view.getName());
-			String viewSql = fetchViewSql(view.getName(), selectViewSql);
+			String viewSql;
+			if (definitions != null) {
+				viewSql = definitions.get(view.getName());
+			} else {
+				logger.finer("getting sql for view " + view.getName());
+				viewSql = fetchViewSql(view.getName(), selectViewSql);
+			}
 			if (isAlterSupported) {
 				viewSql = SqlManagement.ConvertCreateToAlter(viewSql);
 			}
@@ -127,11 +352,315 @@ public class DbReader {
 		}
 	}
 
+	/**
+	 * Read the definitions of all the views in the schema with one query,
+	 * using the db type's selectAllViewDefinitionsSql.
+	 * Definitions that are stored in several rows are joined back together
+	 * in the order of the optional sequence column if every row of the view has one,
+	 * or else in the order the rows came back.
+	 *
+	 * @param properties
+	 * @return definitions by view name, <code>null</code> if they couldn't be read this way
+	 */
+	private Map<String, String> fetchAllViewSql(Properties properties) {
+		String sql = properties.getProperty("selectAllViewDefinitionsSql");
+		logger.finest("Loaded selectAllViewDefinitionsSql:\n" + sql);
+		if (sql == null)
+			return null;
+
+		Map<String, ViewChunks> chunks = new CaseInsensitiveMap<ViewChunks>();
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+
+		try {
+			stmt = prepareStatement(sql, null);
+			rs = stmt.executeQuery();
+
+			while (rs.next()) {
+				String viewName = rs.getString("view_name");
+				String text = rs.getString("view_definition");
+				if (viewName == null || text == null)
+					continue;
+				String sequence = getOptionalString(rs, "sequence");
+				ViewChunks viewChunks = chunks.get(viewName);
+				if (viewChunks == null) {
+					viewChunks = new ViewChunks();
+					chunks.put(viewName, viewChunks);
+				}
+				viewChunks.add(sequence == null ? null : Integer.valueOf(sequence.trim()), text);
+			}
+		} catch (SQLException sqlException) {
+			logger.warning("Failed to retrieve view definitions with SQL: " + sql + ", reading them one at a time instead");
+			logger.warning(sqlException.toString());
+			return null;
+		} catch (NumberFormatException badSequence) {
+			logger.warning("Unexpected view definition sequence from SQL: " + sql + ", reading them one at a time instead");
+			logger.warning(badSequence.toString());
+			return null;
+		} finally {
+			try {
+				if (rs != null)
+					rs.close();
+				if (stmt != null)
+					stmt.close();
+			} catch (SQLException exc) {
+				logger.warning("Failed to close statement: " + exc);
+			}
+		}
+
+		Map<String, String> definitions = new CaseInsensitiveMap<String>();
+		for (Map.Entry<String, ViewChunks> viewChunks : chunks.entrySet())
+			definitions.put(viewChunks.getKey(), trimViewSql(viewChunks.getValue().join()));
+		logger.fine("Read " + definitions.size() + " view definitions");
+		return definitions;
+	}
+
+	/**
+	 * The rows of one view's definition from selectAllViewDefinitionsSql
+	 */
+	private static class ViewChunks {
+		private final List<String> inRowOrder = new ArrayList<String>();
+		private final TreeMap<Integer, String> inSequence = new TreeMap<Integer, String>();
+
+		/**
+		 * @param sequence <code>null</code> if the row didn't have one
+		 */
+		void add(Integer sequence, String text) {
+			inRowOrder.add(text);
+			if (sequence != null)
+				inSequence.put(sequence, text);
+		}
+
+		/**
+		 * Join the rows in sequence if they all had a different sequence number,
+		 * otherwise in the order they came back
+		 */
+		String join() {
+			Collection<String> ordered = inSequence.size() == inRowOrder.size() ? inSequence.values() : inRowOrder;
+			StringBuilder viewSql = new StringBuilder();
+			for (String chunk : ordered)
+				viewSql.append(chunk);
+			return viewSql.toString();
+		}
+	}
+
+	/**
+	 * Write the view definitions straight to the definition sink.
+	 * With selectAllViewDefinitionsSql each view is written as its rows come back.
+	 * Views whose rows don't come back together and in sequence are then read
+	 * again one at a time with selectViewSql, as are all of them without selectAllViewDefinitionsSql.
+	 */
+	private void streamViewSql(Properties properties, Collection<View> views, boolean isAlterSupported) throws SQLException, IOException {
+		Map<String, View> unwritten = new CaseInsensitiveMap<View>();
+		for (View view : views) {
+			view.setDefinition(null); // in case selectViewsSql returned it
+			unwritten.put(view.getName(), view);
+		}
+		if (unwritten.isEmpty())
+			return;
+
+		String selectAllSql = properties.getProperty("selectAllViewDefinitionsSql");
+		Set<String> outOfOrder = new HashSet<String>();
+		if (selectAllSql != null)
+			streamAllViewSql(selectAllSql, unwritten, outOfOrder, isAlterSupported);
+		if (unwritten.isEmpty())
+			return;
+
+		String selectViewSql = properties.getProperty("selectViewSql");
+		if (selectViewSql != null) {
+			for (View view : unwritten.values()) {
+				logger.finer("getting sql for view " + view.getName());
+				streamViewSql(view.getName(), selectViewSql, isAlterSupported);
+			}
+			return;
+		}
+		if (selectAllSql == null) {
+			logger.warning("selectViewSql missing from properties, couldn't read view definitions");
+			return;
+		}
+		// last resort for views that couldn't be streamed in order, put them back together in memory
+		Map<String, String> definitions = outOfOrder.isEmpty() ? null : fetchAllViewSql(properties);
+		for (View view : unwritten.values()) {
+			String viewSql = definitions == null ? null : definitions.get(view.getName());
+			Writer out = openDefinition(definitionSink.openView(view.getName()), true, isAlterSupported);
+			try {
+				if (viewSql != null)
+					out.write(viewSql);
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * Stream the definitions of all the views in the schema with one query.
+	 * Views that are written completely are removed from <code>unwritten</code>.
+	 *
+	 * @param sql selectAllViewDefinitionsSql
+	 * @param unwritten the views to write, by name
+	 * @param outOfOrder filled with the upper-cased names of views whose rows didn't come back together and in sequence
+	 * @param isAlterSupported
+	 */
+	private void streamAllViewSql(String sql, Map<String, View> unwritten, Set<String> outOfOrder, boolean isAlterSupported) throws IOException {
+		Set<String> started = new HashSet<String>(); // upper-cased, like the keys of unwritten
+		String current = null;
+		Writer out = null;
+		int lastSequence = Integer.MIN_VALUE;
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+
+		try {
+			stmt = prepareStatement(sql, null);
+			rs = stmt.executeQuery();
+
+			while (rs.next()) {
+				String viewName = rs.getString("view_name");
+				if (viewName == null || !unwritten.containsKey(viewName))
+					continue;
+				String key = viewName.toUpperCase();
+				if (!key.equals(current)) {
+					if (out != null)
+						out.close();
+					out = null;
+					current = null;
+					if (!started.add(key)) {
+						outOfOrder.add(key); // its rows aren't together
+						continue;
+					}
+					out = openDefinition(definitionSink.openView(viewName), true, isAlterSupported);
+					current = key;
+					lastSequence = Integer.MIN_VALUE;
+				} else if (out == null) {
+					continue; // already given up on
+				}
+				String sequence = getOptionalString(rs, "sequence");
+				if (sequence != null) {
+					int seq;
+					try {
+						seq = Integer.parseInt(sequence.trim());
+					} catch (NumberFormatException badSequence) {
+						logger.warning("Unexpected sequence '" + sequence + "' in the definition of view " + viewName);
+						seq = -1;
+						lastSequence = Integer.MAX_VALUE; // can't tell where it goes, so treat it as out of order
+					}
+					if (seq < lastSequence) {
+						outOfOrder.add(key);
+						out.close();
+						out = null;
+						continue;
+					}
+					lastSequence = seq;
+				}
+				appendDefinition(rs, "view_definition", out);
+			}
+		} catch (SQLException sqlException) {
+			logger.warning("Failed to retrieve view definitions with SQL: " + sql + ", reading them one at a time instead");
+			logger.warning(sqlException.toString());
+			if (current != null)
+				outOfOrder.add(current);
+		} finally {
+			try {
+				if (rs != null)
+					rs.close();
+				if (stmt != null)
+					stmt.close();
+			} catch (SQLException exc) {
+				logger.warning("Failed to close statement: " + exc);
+			}
+			if (out != null)
+				out.close();
+		}
+
+		started.removeAll(outOfOrder);
+		for (String viewName : started)
+			unwritten.remove(viewName);
+		logger.fine("Streamed " + started.size() + " view definitions");
+	}
+
+	/**
+	 * Streaming version of {@link #fetchViewSql(String, String)}
+	 */
+	private void streamViewSql(String viewName, String selectViewSql, boolean isAlterSupported) throws SQLException, IOException {
+		Writer out = openDefinition(definitionSink.openView(viewName), true, isAlterSupported);
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			stmt = prepareCachedStatement(getPhaseConnection(), selectViewSql, viewName);
+			rs = stmt.executeQuery();
+			String columnName = "view_definition";
+			while (rs.next()) {
+				try {
+					appendDefinition(rs, columnName, out);
+				} catch (SQLException tryOldName) {
+					if (!columnName.equals("view_definition"))
+						throw tryOldName;
+					columnName = "text";
+					appendDefinition(rs, columnName, out);
+				}
+			}
+		} catch (SQLException exc) {
+			discardCachedStatement(getPhaseConnection(), selectViewSql);
+			throw exc;
+		} finally {
+			try {
+				if (rs != null)
+					rs.close();
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * Put a definition on its way to the definition sink through the streaming
+	 * equivalents of what's done to the definitions that are kept in memory.
+	 *
+	 * @param out from the definition sink
+	 * @param trim as view definitions are
+	 * @param isAlterSupported to turn CREATE into ALTER
+	 */
+	private Writer openDefinition(Writer out, boolean trim, boolean isAlterSupported) {
+		if (isAlterSupported)
+			out = new CreateToAlterWriter(out);
+		if (trim)
+			out = new TrimmingWriter(out); // trim first so CREATE ends up at the start of a line
+		return out;
+	}
+
+	/**
+	 * Copy a definition from a column of the current row a buffer at a time,
+	 * rather than reading it all into a string.
+	 */
+	private static void appendDefinition(ResultSet rs, String columnName, Writer out) throws SQLException, IOException {
+		Reader in = rs.getCharacterStream(columnName);
+		if (in == null)
+			return;
+		try {
+			char[] buffer = new char[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1)
+				out.write(buffer, 0, read);
+		} finally {
+			in.close();
+		}
+	}
+
 	private void initStoredProcedures(Properties properties, final Config config, DatabaseMetaData meta) throws Exception {
 		// See if there is a method of selecting all the proc definitions at once
 		String selectStoredProcsSql = properties.getProperty("selectStoredProcsSql");
 		logger.finest("Loaded selectStoredProcsSql:\n" + selectStoredProcsSql);
 
+		// the procedures are all read with one query, so if any one of them has changed they're all read again.
+		// drivers' getProcedures() can list functions too (postgres does)
+		boolean unchanged = changes != null && !changes.hasChanges(Snapshot.PROCEDURE)
+				&& (selectStoredProcsSql != null || !changes.hasChanges(Snapshot.FUNCTION));
+		if (unchanged) {
+			logger.fine("Procedures unchanged, using cached definitions");
+			for (Procedure proc : previous.getDatabase().getProcs())
+				database.putProc(proc.getName(), proc);
+			return;
+		}
+
 		final Pattern include = config.getProcedureInclusions();
 		final Pattern exclude = config.getProcedureExclusions();
 		NameValidator validator = new NameValidator("procedure", include, exclude, null);
@@ -152,13 +681,20 @@ public class DbReader {
 				if (!validator.isValid(procName))
 					continue;
 				String procDefinition = null;
-				if (selectStoredProcsSql != null) {
+				if (selectStoredProcsSql != null && definitionSink != null) {
+					Writer out = openDefinition(definitionSink.openProcedure(procName), false, config.getDbType().isAlterSupported());
+					try {
+						appendDefinition(rs, "definition", out);
+					} finally {
+						out.close();
+					}
+				} else if (selectStoredProcsSql != null) {
 					procDefinition = rs.getString("definition");
 				} else {
 					// TODO: request procedure definition where no support for getting all at once
 					// Not throwing an exception here as some basic functionality works without the definition set
 				}
-				if (config.getDbType().isAlterSupported()) {
+				if (config.getDbType().isAlterSupported() && definitionSink == null) {
 					procDefinition = SqlManagement.ConvertCreateToAlter(procDefinition);
 				}
 				Procedure proc = new Procedure(schema, procName, procDefinition);
@@ -183,6 +719,14 @@ public class DbReader {
 		if (sql == null)
 			return; 
 
+		// like procedures, all or none of the functions are read again
+		if (changes != null && !changes.hasChanges(Snapshot.FUNCTION)) {
+			logger.fine("Functions unchanged, using cached definitions");
+			for (Function function : previous.getDatabase().getFunctions())
+				database.putFunction(function.getName(), function);
+			return;
+		}
+
 		final Pattern include = config.getProcedureInclusions();
 		final Pattern exclude = config.getProcedureExclusions();
 		NameValidator validator = new NameValidator("function", include, exclude, null);
@@ -198,9 +742,19 @@ public class DbReader {
 				String functionName = rs.getString("name");
 				if (!validator.isValid(functionName))
 					continue;
-				String functionDefinition = rs.getString("definition");
-				if (config.getDbType().isAlterSupported()) {
-					functionDefinition = SqlManagement.ConvertCreateToAlter(functionDefinition);
+				String functionDefinition = null;
+				if (definitionSink != null) {
+					Writer out = openDefinition(definitionSink.openFunction(functionName), false, config.getDbType().isAlterSupported());
+					try {
+						appendDefinition(rs, "definition", out);
+					} finally {
+						out.close();
+					}
+				} else {
+					functionDefinition = rs.getString("definition");
+					if (config.getDbType().isAlterSupported()) {
+						functionDefinition = SqlManagement.ConvertCreateToAlter(functionDefinition);
+					}
 				}
 				Function proc = new Function(schema, functionName, functionDefinition);
 				logger.fine("Read function definition '" + functionName + "'");
@@ -238,7 +792,6 @@ public class DbReader {
 			final Config config) throws Exception {
 		final Pattern include = config.getTableInclusions();
 		final Pattern exclude = config.getTableExclusions();
-		final int maxThreads = getMaxDbThreads(properties, config);
 
 		String[] types = getTypes("tableTypes", "TABLE", properties);
 		NameValidator validator = new NameValidator("table", include, exclude, types);
@@ -246,42 +799,95 @@ public class DbReader {
 
 		final Map<String, Table> tables = new CaseInsensitiveMap<Table>();
 
-		TableCreator creator;
-		if (maxThreads == 1) {
-			creator = new TableCreator(tables);
-		} else {
-			// creating tables takes a LONG time (based on JProbe analysis),
-			// so attempt to speed it up by doing several in parallel.
-			// note that it's actually DatabaseMetaData.getIndexInfo() that's expensive
+		List<Table> cachedTables = new ArrayList<Table>();
+		if (changes != null) {
+			List<BasicTableMeta> changedEntries = new ArrayList<BasicTableMeta>();
+			for (BasicTableMeta entry : entries) {
+				if (!validator.isValid(entry.name, entry.type))
+					continue;
+				Table cached = previous.getDatabase().getTablesByName().get(entry.name);
+				if (cached != null && !changes.isChanged(Snapshot.TABLE, entry.name))
+					cachedTables.add(cached);
+				else
+					changedEntries.add(entry);
+			}
+			logger.info("Using " + cachedTables.size() + " cached tables, reading " + changedEntries.size() + " new or changed tables");
+			entries = changedEntries;
+		}
 
-			creator = new ThreadedTableCreator(tables, maxThreads);
+		bulkReader = null;
+		if (config.isBulkReadEnabled() && !entries.isEmpty())
+			bulkReader = readTablesInBulk(entries, validator, tables, properties, config);
 
-			// "prime the pump" so if there's a database problem we'll probably see it now
-			// and not in a secondary thread
-			while (!entries.isEmpty()) {
-				BasicTableMeta entry = entries.remove(0);
+		List<TableReadTask> tasks = new ArrayList<TableReadTask>();
+		for (BasicTableMeta entry : entries) {
+			if (validator.isValid(entry.name, entry.type))
+				tasks.add(new TableReadTask(entry, tables.get(entry.name), properties, config));
+		}
+		for (Table table : cachedTables)
+			tables.put(table.getName(), table);
+		if (tasks.isEmpty()) {
+			database.setTables(tables);
+			return;
+		}
+
+		// creating tables takes a LONG time (based on JProbe analysis),
+		// so attempt to speed it up by doing several in parallel, each with its own connection.
+		// note that it's actually DatabaseMetaData.getIndexInfo() that's expensive
+		int threads = Math.min(pool.getMaxSize(), tasks.size());
+		logger.fine("Reading " + tasks.size() + " tables with " + threads + " thread(s)");
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Table>> results = new ArrayList<Future<Table>>();
+			for (TableReadTask task : tasks)
+				results.add(executor.submit(task));
 
-				if (validator.isValid(entry.name, entry.type)) {
-					new TableCreator(tables).create(database, entry, properties, this);
-					break;
+			for (int i = 0; i < results.size(); ++i) {
+				Table table;
+				try {
+					table = results.get(i).get();
+				} catch (ExecutionException failure) {
+					throw new Exception("Failed to read details of table '" + tasks.get(i).entry.name + "'", failure.getCause());
 				}
+				tables.put(table.getName(), table);
 			}
+		} finally {
+			executor.shutdownNow();
 		}
 
-		// kick off the secondary threads to do the creation in parallel
+		database.setTables(tables);
+	}
+
+	/**
+	 * Create all the valid tables up front and read their columns, primary keys
+	 * and indexes for the whole schema in one go, rather than table by table.
+	 * Anything that can't be read in bulk is left for the {@link TableReadTask}s.
+	 *
+	 * @return the reader holding the bulk-read details
+	 */
+	private BulkTableReader readTablesInBulk(List<BasicTableMeta> entries, NameValidator validator,
+			Map<String, Table> tables, Properties properties, Config config) {
 		for (BasicTableMeta entry : entries) {
 			if (validator.isValid(entry.name, entry.type)) {
-				creator.create(database, entry, properties, this);
+				Table table = new TableReader().CreateTable(database, entry.schema, entry.name, entry.remarks, properties, getPhaseMeta());
+				tables.put(table.getName(), table);
 			}
 		}
 
-		// wait for everyone to finish
-		creator.join();
-
-		database.setTables(creator.getTables());
+		BulkTableReader reader = new BulkTableReader(tables, schema, properties, getPhaseMeta(), this);
+		logger.fine("Reading columns for the whole schema...");
+		reader.readColumns(config.getIndirectColumnExclusions(), config.getColumnExclusions());
+		logger.fine("Reading primary keys for the whole schema...");
+		reader.readPrimaryKeys();
+		logger.fine("Reading indexes for the whole schema...");
+		reader.readIndexes();
+		return reader;
 	}
 
-	private int getMaxDbThreads(Properties properties, Config config) {
+	/**
+	 * The most connections to read with at once, from --max-threads or else the db type's dbThreads
+	 */
+	public static int getMaxDbThreads(Properties properties, Config config) {
 		int max = 1;
 		String threads = properties.getProperty("dbThreads");
 		if (threads == null)
@@ -290,11 +896,11 @@ public class DbReader {
 			max = Integer.parseInt(threads);
 		if(config.getMaxDbThreads() != null)
 			max = config.getMaxDbThreads();
-		if (max < 0) //-1 means no limit
-			max = Integer.MAX_VALUE;
+		if (max < 0) //-1 means as many as the machine can keep busy
+			max = Runtime.getRuntime().availableProcessors() * 2;
 		else if (max == 0)
 			max = 1;
-		return new Integer(max);
+		return max;
 	}
 
 	/**
@@ -491,6 +1097,51 @@ public class DbReader {
 		}
 	}
 
+	/**
+	 * Mark the auto incremented columns of every table using the db type's
+	 * selectAutoIncrementColumnsSql, which saves probing each table in turn.
+	 * If the query fails then fall back to probing.
+	 *
+	 * @param properties
+	 * @throws SQLException
+	 */
+	private void initAutoIncrementColumns(Properties properties) throws SQLException {
+		String sql = properties.getProperty("selectAutoIncrementColumnsSql");
+		logger.finest("Loaded selectAutoIncrementColumnsSql:\n" + sql);
+		if (sql == null)
+			return; // already probed when the tables were read
+
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+
+		try {
+			stmt = prepareStatement(sql, null);
+			rs = stmt.executeQuery();
+
+			while (rs.next()) {
+				Table table = database.getTablesByName().get(rs.getString("table_name"));
+				if (table == null)
+					continue;
+				TableColumn column = table.getColumn(rs.getString("column_name"));
+				if (column != null)
+					column.setIsAutoUpdated(true);
+			}
+			return;
+		} catch (SQLException sqlException) {
+			logger.warning("Failed to retrieve auto increment columns, probing each table instead: " + sqlException);
+		} finally {
+			if (rs != null)
+				rs.close();
+			if (stmt != null)
+				stmt.close();
+		}
+
+		for (Table table : database.getTables()) {
+			if (!table.isRemote())
+				new TableReader().ReadAutoIncrement(table, database, getPhaseMeta());
+		}
+	}
+
 	private void initTableIds(Properties properties) throws SQLException {
 		String sql = properties.getProperty("selectTableIdsSql");
 		logger.finest("Loaded selectTableIdsSql:\n" + sql);
@@ -718,22 +1369,170 @@ public class DbReader {
 	 * @return PreparedStatement
 	 */
 	PreparedStatement prepareStatement(String sql, String tableName) throws SQLException {
-		StringBuilder sqlBuf = new StringBuilder(sql);
-		List<String> sqlParams = getSqlParams(sqlBuf, tableName); // modifies sqlBuf
-		PreparedStatement stmt = connection.prepareStatement(sqlBuf.toString());
+		return prepareStatement(getPhaseConnection(), sql, tableName);
+	}
+
+	/**
+	 * Same as {@link #prepareStatement(String, String)} but on the specified
+	 * connection, e.g. the one a table is being read with.
+	 *
+	 * @param connection
+	 * @param sql String - SQL without question marks
+	 * @param tableName String - <code>null</code> if the statement doesn't deal with <code>Table</code>-level details.
+	 * @throws SQLException
+	 * @return PreparedStatement
+	 */
+	PreparedStatement prepareStatement(Connection connection, String sql, String tableName) throws SQLException {
+		SqlTemplate template = getSqlTemplate(sql);
+		PreparedStatement stmt = connection.prepareStatement(template.getPositionalSql());
 
 		try {
-			for (int i = 0; i < sqlParams.size(); ++i) {
-				stmt.setString(i + 1, sqlParams.get(i).toString());
-			}
+			template.bind(stmt, getSchemaParam(), tableName);
 		} catch (SQLException exc) {
 			stmt.close();
 			throw exc;
+		} catch (RuntimeException exc) {
+			stmt.close();
+			throw exc;
 		}
 
 		return stmt;
 	}
 
+	/**
+	 * Same as {@link #prepareStatement(Connection, String, String)} but reuses the
+	 * statement each time the same SQL is run on the same connection, only rebinding
+	 * the parameters. For queries that are run once per table.<p/>
+	 *
+	 * The statement belongs to the cache so callers must <b>not</b> close it,
+	 * only its result set. If it fails then call {@link #discardCachedStatement(Connection, String)}
+	 * so that it isn't reused.
+	 *
+	 * @param connection
+	 * @param sql String - SQL without question marks
+	 * @param tableName String - <code>null</code> if the statement doesn't deal with <code>Table</code>-level details.
+	 * @throws SQLException
+	 * @return PreparedStatement
+	 */
+	PreparedStatement prepareCachedStatement(Connection connection, String sql, String tableName) throws SQLException {
+		SqlTemplate template = getSqlTemplate(sql);
+		Map<String, PreparedStatement> statements;
+		synchronized (cachedStatements) {
+			statements = cachedStatements.get(connection);
+			if (statements == null) {
+				statements = new HashMap<String, PreparedStatement>();
+				cachedStatements.put(connection, statements);
+			}
+		}
+
+		// a connection is only used by one thread at a time so its own statements don't need locking
+		PreparedStatement stmt = statements.get(sql);
+		boolean isNew = stmt == null;
+		if (isNew)
+			stmt = connection.prepareStatement(template.getPositionalSql());
+		boolean bound = false;
+		try {
+			template.bind(stmt, getSchemaParam(), tableName);
+			bound = true;
+		} finally {
+			// don't leave a half bound statement for the next caller
+			if (!bound && isNew)
+				closeQuietly(stmt);
+			else if (!bound)
+				discardCachedStatement(connection, sql);
+		}
+		if (isNew)
+			statements.put(sql, stmt);
+		return stmt;
+	}
+
+	/**
+	 * Close and forget the cached statement for the specified SQL,
+	 * e.g. because it failed and the connection might not like it any more.
+	 */
+	void discardCachedStatement(Connection connection, String sql) {
+		PreparedStatement stmt = null;
+		synchronized (cachedStatements) {
+			Map<String, PreparedStatement> statements = cachedStatements.get(connection);
+			if (statements != null)
+				stmt = statements.remove(sql);
+		}
+		if (stmt != null)
+			closeQuietly(stmt);
+	}
+
+	private void closeQuietly(PreparedStatement stmt) {
+		try {
+			stmt.close();
+		} catch (SQLException exc) {
+			logger.warning("Failed to close cached statement: " + exc);
+		}
+	}
+
+	/**
+	 * Close all the statements created by {@link #prepareCachedStatement(Connection, String, String)}
+	 */
+	private void closeCachedStatements() {
+		synchronized (cachedStatements) {
+			for (Map<String, PreparedStatement> statements : cachedStatements.values()) {
+				for (PreparedStatement stmt : statements.values()) {
+					try {
+						stmt.close();
+					} catch (SQLException exc) {
+						logger.warning("Failed to close cached statement: " + exc);
+					}
+				}
+			}
+			cachedStatements.clear();
+		}
+	}
+
+	/**
+	 * The parsed form of some SQL from the properties, parsing it the first time it's used.
+	 */
+	private SqlTemplate getSqlTemplate(String sql) {
+		SqlTemplate template = sqlTemplates.get(sql);
+		if (template == null) {
+			template = new SqlTemplate(sql);
+			sqlTemplates.put(sql, template);
+		}
+		return template;
+	}
+
+	/**
+	 * @return the value of :schema / :owner
+	 */
+	private String getSchemaParam() {
+		String schema = database.getSchema();
+		if (schema == null)
+			schema = database.getName(); // some 'schema-less' db's treat the db name like a schema (unusual case)
+		return schema;
+	}
+
+	/**
+	 * When reading several schemas at once, fill in tables of the other
+	 * schemas from what's already been read of them where possible.
+	 */
+	public void setSchemaRegistry(SchemaRegistry siblings) {
+		this.siblings = siblings;
+	}
+
+	/**
+	 * Write the definitions of procedures, functions and views to <code>sink</code>
+	 * as they're read instead of keeping them in the {@link Database},
+	 * so that however many there are only one is in memory at a time.
+	 */
+	public void setDefinitionSink(DefinitionSink sink) {
+		this.definitionSink = sink;
+	}
+
+	/**
+	 * @return the schema being read
+	 */
+	String getSchema() {
+		return schema;
+	}
+
 	public Table addRemoteTable(String remoteSchema, String remoteTableName, String baseSchema, Properties properties, Pattern excludeIndirectColumns, Pattern excludeColumns) throws SQLException {
 		String fullName = remoteSchema + "." + remoteTableName;
 		Table remoteTable = database.getRemoteTableMap().get(fullName);
@@ -745,48 +1544,80 @@ public class DbReader {
 
 			logger.fine("Adding remote table " + fullName);
 			database.getRemoteTableMap().put(fullName, remoteTable);
-			RemoteTableReader remoteTableReader = new RemoteTableReader();
-			remoteTableReader.connectForeignKeys(remoteTable, database.getTablesByName(), excludeIndirectColumns, excludeColumns, this);
+			Table sibling = getSiblingTable(remoteSchema, remoteTableName);
+			if (sibling != null) {
+				copySiblingTable(sibling, remoteTable, baseSchema);
+			} else {
+				RemoteTableReader remoteTableReader = new RemoteTableReader();
+				remoteTableReader.setMeta(getPhaseMeta());
+				remoteTableReader.connectForeignKeys(remoteTable, database.getTablesByName(), excludeIndirectColumns, excludeColumns, this);
+			}
 		}
 
 		return remoteTable;
 	}
 
 	/**
-	 * Replaces named parameters in <code>sql</code> with question marks and
-	 * returns appropriate matching values in the returned <code>List</code> of <code>String</code>s.
-	 *
-	 * @param sql StringBuffer input SQL with named parameters, output named params are replaced with ?'s.
-	 * @param tableName String
-	 * @return List of Strings
-	 *
-	 * @see #prepareStatement(String, String)
+	 * @return the table as already read as part of another schema, <code>null</code> if it isn't available
 	 */
-	private List<String> getSqlParams(StringBuilder sql, String tableName) {
-		Map<String, String> namedParams = new HashMap<String, String>();
-		String schema = database.getSchema();
-		if (schema == null)
-			schema = database.getName(); // some 'schema-less' db's treat the db name like a schema (unusual case)
-		namedParams.put(":schema", schema);
-		namedParams.put(":owner", schema); // alias for :schema
-		if (tableName != null) {
-			namedParams.put(":table", tableName);
-			namedParams.put(":view", tableName); // alias for :table
-		}
-
-		List<String> sqlParams = new ArrayList<String>();
-		int nextColon = sql.indexOf(":");
-		while (nextColon != -1) {
-			String paramName = new StringTokenizer(sql.substring(nextColon), " ,\"')").nextToken();
-			String paramValue = namedParams.get(paramName);
-			if (paramValue == null)
-				throw new InvalidConfigurationException("Unexpected named parameter '" + paramName + "' found in SQL '" + sql + "'");
-			sqlParams.add(paramValue);
-			sql.replace(nextColon, nextColon + paramName.length(), "?"); // replace with a ?
-			nextColon = sql.indexOf(":", nextColon);
-		}
-
-		return sqlParams;
+	private Table getSiblingTable(String remoteSchema, String remoteTableName) {
+		if (siblings == null)
+			return null;
+		try {
+			return siblings.getTable(remoteSchema, remoteTableName, schema);
+		} catch (InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * Fill in a remote table from the same table read as part of its own schema:
+	 * its columns, primary key, and the foreign keys from it to tables in this schema.
+	 * Only the names and details are copied, the sibling's objects aren't shared.
+	 */
+	private void copySiblingTable(Table sibling, Table remoteTable, String baseSchema) {
+		logger.finer("Using " + sibling.getSchema() + "." + sibling.getName() + " as already read");
+		for (TableColumn siblingColumn : sibling.getColumns()) {
+			TableColumn column = new TableColumn(remoteTable, siblingColumn.getName(), siblingColumn.getComments());
+			if (siblingColumn.getId() instanceof Integer)
+				column.setId((Integer)siblingColumn.getId());
+			column.setType(siblingColumn.getType());
+			column.setDecimalDigits(siblingColumn.getDecimalDigits());
+			column.setDetailedSize(siblingColumn.getDetailedSize());
+			column.setNullable(siblingColumn.isNullable());
+			column.setIsAutoUpdated(siblingColumn.isAutoUpdated());
+			Object defaultValue = siblingColumn.getDefaultValue();
+			column.setDefaultValue(defaultValue == null ? null : defaultValue.toString());
+			remoteTable.getColumnMap().put(column.getName(), column);
+		}
+		for (TableColumn primaryColumn : sibling.getPrimaryColumns())
+			remoteTable.setPrimaryColumn(remoteTable.getColumn(primaryColumn.getName()));
+
+		for (ForeignKeyConstraint siblingKey : sibling.getForeignKeys()) {
+			Table siblingParent = siblingKey.getParentTable();
+			if (siblingParent == null || baseSchema == null || !baseSchema.equals(siblingParent.getSchema()))
+				continue;
+			Table parent = database.getTablesByName().get(siblingParent.getName());
+			if (parent == null)
+				continue;
+
+			ForeignKeyConstraint foreignKey = new ForeignKeyConstraint(remoteTable, siblingKey.getName(), siblingKey.getUpdateRule(), siblingKey.getDeleteRule());
+			List<TableColumn> siblingChildren = siblingKey.getChildColumns();
+			List<TableColumn> siblingParents = siblingKey.getParentColumns();
+			for (int i = 0; i < siblingChildren.size() && i < siblingParents.size(); ++i) {
+				TableColumn childColumn = remoteTable.getColumn(siblingChildren.get(i).getName());
+				TableColumn parentColumn = parent.getColumn(siblingParents.get(i).getName());
+				if (childColumn == null || parentColumn == null)
+					continue;
+				foreignKey.addChildColumn(childColumn);
+				foreignKey.addParentColumn(parentColumn);
+				childColumn.addParent(parentColumn, foreignKey);
+				parentColumn.addChild(childColumn, foreignKey);
+			}
+			if (!foreignKey.getChildColumns().isEmpty())
+				remoteTable.addForeignKey(foreignKey.getName(), foreignKey);
+		}
 	}
 
 	/**
@@ -854,131 +1685,222 @@ public class DbReader {
 		Pattern excludeColumns = Config.getInstance().getColumnExclusions();
 		Pattern excludeIndirectColumns = Config.getInstance().getIndirectColumnExclusions();
 
+		if (previous != null)
+			database.getRemoteTableMap().putAll(previous.getDatabase().getRemoteTableMap());
+
 		TableReader tableReader = new TableReader();
-		tableReader.setMeta(meta);
-		for (Table table : database.getTablesByName().values()) {
-			logger.finer("Connecting keys for table " + table.getName());
-			tableReader.connectForeignKeys(table, database.getTablesByName(), excludeIndirectColumns, excludeColumns, this);
+		tableReader.setMeta(getPhaseMeta());
+		if (bulkReader != null && bulkReader.readForeignKeys()) {
+			for (Table table : getTablesToRead()) {
+				logger.finer("Connecting keys for table " + table.getName());
+				tableReader.connectForeignKeys(table, bulkReader.getForeignKeys(table), database.getTablesByName(), excludeIndirectColumns, excludeColumns, this);
+			}
+		} else {
+			for (Table table : getTablesToRead()) {
+				logger.finer("Connecting keys for table " + table.getName());
+				tableReader.connectForeignKeys(table, database.getTablesByName(), excludeIndirectColumns, excludeColumns, this);
+			}
 		}
+
+		if (previous != null)
+			connectCachedTables();
 	}
 
 	/**
-	 * Single-threaded implementation of a class that creates tables
+	 * Link up the foreign keys of the tables that came from the incremental cache,
+	 * which includes those from any tables that were read again to the cached ones.
+	 * Then drop any cached remote tables that are no longer referenced.
 	 */
-	private class TableCreator {
-		private final Pattern excludeColumns = Config.getInstance().getColumnExclusions();
-		private final Pattern excludeIndirectColumns = Config.getInstance().getIndirectColumnExclusions();
-		private final Map<String, Table> tables;
+	private void connectCachedTables() {
+		for (Snapshot.ForeignKeyDefinition foreignKey : previous.getForeignKeys()) {
+			if (foreignKey.isChildRemote() || !changes.isChanged(Snapshot.TABLE, foreignKey.getChildTable()))
+				foreignKey.link(database);
+		}
 
-		public TableCreator(Map<String, Table> tables){
-			this.tables = tables;
+		Iterator<Table> remoteTables = database.getRemoteTableMap().values().iterator();
+		while (remoteTables.hasNext()) {
+			Table remoteTable = remoteTables.next();
+			if (remoteTable.getNumParents() == 0 && remoteTable.getNumChildren() == 0) {
+				logger.fine("Dropping remote table " + remoteTable.getName() + " as it's no longer referenced");
+				remoteTables.remove();
+			}
 		}
+	}
 
-		public Map<String, Table> getTables(){
-			return this.tables;
+	/**
+	 * The tables that have been read from the database in this run,
+	 * rather than from the incremental cache.
+	 */
+	private List<Table> getTablesToRead() {
+		List<Table> tables = new ArrayList<Table>();
+		for (Table table : database.getTablesByName().values()) {
+			if (changes == null || changes.isChanged(Snapshot.TABLE, table.getName()))
+				tables.add(table);
 		}
+		return tables;
+	}
 
-		/**
-		 * Create a table and put it into <code>tables</code>
-		 */
-		void create(Database db, BasicTableMeta tableMeta, Properties properties, DbReader dbReader) throws SQLException {
-			createImpl(db, tableMeta, properties, dbReader);
+	/**
+	 * Read a marker for every table, view, procedure and function in the schema
+	 * that changes whenever the object is changed, using the db type's selectModifiedObjectsSql.
+	 *
+	 * @param properties
+	 * @return markers keyed by {@link Snapshot#GetMarkerKey(String, String)},
+	 * <code>null</code> if the db type doesn't support this or it failed
+	 */
+	private Map<String, String> readModificationMarkers(Properties properties) {
+		String sql = properties.getProperty("selectModifiedObjectsSql");
+		logger.finest("Loaded selectModifiedObjectsSql:\n" + sql);
+		if (sql == null) {
+			logger.warning("selectModifiedObjectsSql missing from properties, reading everything instead of using the incremental cache");
+			return null;
 		}
 
-		protected void createImpl(Database db, BasicTableMeta tableMeta, Properties properties, DbReader dbReader) throws SQLException {
-			TableReader reader = new TableReader();
-			Table table = reader.ReadTable(db, tableMeta.schema, tableMeta.name, tableMeta.remarks, properties, excludeIndirectColumns, excludeColumns, meta, dbReader);
+		Map<String, String> markers = new CaseInsensitiveMap<String>();
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
 
-			if (tableMeta.numRows != -1) {
-				table.setNumRows(tableMeta.numRows);
-			}
+		try {
+			stmt = prepareStatement(sql, null);
+			rs = stmt.executeQuery();
 
-			synchronized (tables) {
-				tables.put(table.getName(), table);
+			while (rs.next()) {
+				String type = rs.getString("object_type");
+				String name = rs.getString("object_name");
+				if (type != null && name != null)
+					markers.put(Snapshot.GetMarkerKey(type.trim().toLowerCase(), name), rs.getString("modified"));
 			}
+			return markers;
+		} catch (SQLException sqlException) {
+			logger.warning("Failed to retrieve modification markers, reading everything instead of using the incremental cache: " + sqlException);
+			return null;
+		} catch (InvalidConfigurationException badSql) {
+			logger.warning("Invalid selectModifiedObjectsSql, reading everything instead of using the incremental cache: " + badSql.getMessage());
+			return null;
+		} finally {
+			try {
+				if (rs != null)
+					rs.close();
+				if (stmt != null)
+					stmt.close();
+			} catch (SQLException exc) {
+				logger.warning("Failed to close statement: " + exc);
+			}
+		}
+	}
 
-			logger.finer("Found details of table " + table.getName());
+	/**
+	 * Identifies what's being read and how, so that a cache written with
+	 * different settings isn't used.
+	 */
+	private String getIncrementalCacheKey(Config config) {
+		return config.getDbTypeName() + "|" + config.getDatabase() + "|" + config.getSchema()
+				+ "|" + config.getTableInclusions() + "|" + config.getTableExclusions()
+				+ "|" + config.getColumnExclusions() + "|" + config.getIndirectColumnExclusions()
+				+ "|" + config.getProcedureInclusions() + "|" + config.getProcedureExclusions()
+				+ "|" + config.isTableProcessingEnabled() + "|" + config.isViewsEnabled();
+	}
+
+	/**
+	 * @return <code>null</code> if there's no cache, it can't be read or it was written with different settings
+	 */
+	private Snapshot loadIncrementalCache(File file, String key) {
+		if (!file.exists()) {
+			logger.info("No incremental cache at " + file + " yet, reading everything");
+			return null;
 		}
+		try {
+			Snapshot snapshot = new SnapshotReader().read(file);
+			if (!key.equals(snapshot.getKey())) {
+				logger.info("Incremental cache " + file + " was written with different settings, reading everything");
+				return null;
+			}
+			logger.info("Using incremental cache " + file);
+			return snapshot;
+		} catch (IOException exc) {
+			logger.warning("Failed to read incremental cache " + file + ", reading everything: " + exc);
+			return null;
+		}
+	}
 
-		/**
-		 * Wait for all of the tables to be created.
-		 * By default this does nothing since this implementation isn't threaded.
-		 */
-		void join() {
+	private void saveIncrementalCache(File file, Snapshot snapshot) {
+		try {
+			new SnapshotWriter().write(snapshot, file);
+		} catch (IOException exc) {
+			logger.warning("Failed to write incremental cache " + file + ": " + exc);
 		}
 	}
 
 	/**
-	 * Multi-threaded implementation of a class that creates tables
+	 * Reads the details of a single table with a connection from the pool.
+	 * Failed reads are retried a few times, each time with a fresh table
+	 * and whichever connection is free, before giving up.
 	 */
-	private class ThreadedTableCreator extends TableCreator {
-		private final Set<Thread> threads = new HashSet<Thread>();
-		private final int maxThreads;
-
-		ThreadedTableCreator(Map<String, Table> tables, int maxThreads) {
-			super(tables);
-			this.maxThreads = maxThreads;
+	private class TableReadTask implements Callable<Table> {
+		private final BasicTableMeta entry;
+		private final Table bulkTable; // already partly read by the bulk reader, null if none
+		private final Properties properties;
+		private final Pattern excludeColumns;
+		private final Pattern excludeIndirectColumns;
+
+		TableReadTask(BasicTableMeta entry, Table bulkTable, Properties properties, Config config) {
+			this.entry = entry;
+			this.bulkTable = bulkTable;
+			this.properties = properties;
+			this.excludeColumns = config.getColumnExclusions();
+			this.excludeIndirectColumns = config.getIndirectColumnExclusions();
 		}
 
-		@Override
-		void create(final Database db, final BasicTableMeta tableMeta, final Properties properties, final DbReader dbReader) throws SQLException {
-			Thread runner = new Thread() {
-				@Override
-				public void run() {
+		public Table call() throws Exception {
+			SQLException failure = null;
+			RunProfile.Timer timer = RunProfile.getInstance().startPhase("read: table");
+			try {
+				for (int attempt = 1; attempt <= TABLE_READ_ATTEMPTS; ++attempt) {
+					Connection connection = pool.borrow();
+					phaseConnection.set(connection);
 					try {
-						createImpl(db, tableMeta, properties, dbReader);
+						Table table = read(pool.getMetaData(connection), attempt == 1);
+						logger.finer("Found details of table " + table.getName());
+						return table;
 					} catch (SQLException exc) {
-						exc.printStackTrace(); // nobody above us in call stack...dump it here
+						failure = exc;
+						logger.warning("Attempt " + attempt + " of " + TABLE_READ_ATTEMPTS + " to read table '" + entry.name + "' failed: " + exc);
 					} finally {
-						synchronized (threads) {
-							threads.remove(this);
-							threads.notify();
-						}
-					}
-				}
-			};
-
-			synchronized (threads) {
-				// wait for enough 'room'
-				while (threads.size() >= maxThreads) {
-					try {
-						threads.wait();
-					} catch (InterruptedException interrupted) {
+						phaseConnection.remove();
+						pool.release(connection);
 					}
 				}
-
-				threads.add(runner);
+			} finally {
+				timer.stop(entry.name);
 			}
-
-			runner.start();
+			throw failure;
 		}
 
 		/**
-		 * Wait for all of the started threads to complete
+		 * @param tableMeta metadata of the connection to read with
+		 * @param useBulkTable false to ignore anything the bulk reader did, as a failed attempt may have left the table half read
 		 */
-		@Override
-		public void join() {
-			while (true) {
-				Thread thread;
-
-				synchronized (threads) {
-					Iterator<Thread> iter = threads.iterator();
-					if (!iter.hasNext())
-						break;
-
-					thread = iter.next();
-				}
+		private Table read(DatabaseMetaData tableMeta, boolean useBulkTable) throws SQLException {
+			TableReader reader = new TableReader();
+			Table table;
+			if (bulkTable != null && useBulkTable) {
+				table = bulkTable;
+				reader.ReadTableDetails(table, database, properties, tableMeta, bulkReader, excludeIndirectColumns, excludeColumns, DbReader.this);
+			} else {
+				table = reader.ReadTable(database, entry.schema, entry.name, entry.remarks, properties, excludeIndirectColumns, excludeColumns, tableMeta, DbReader.this);
+			}
 
-				try {
-					thread.join();
-				} catch (InterruptedException exc) {
-				}
+			if (entry.numRows != -1) {
+				table.setNumRows(entry.numRows);
+				table.setRowCountStatus(RowCountStatus.ESTIMATED);
 			}
+			return table;
 		}
 	}
 
 	/**
-	 * Extract the SQL that describes this view from the database
+	 * Extract the SQL that describes this view from the database.
+	 * Joins together all the rows returned in case it's stored in chunks, e.g. in syscomments.
 	 *
 	 * @return
 	 * @throws SQLException
@@ -986,24 +1908,43 @@ public class DbReader {
 	public String fetchViewSql(String viewName, String selectViewSql) throws SQLException {
 		PreparedStatement stmt = null;
 		ResultSet rs = null;
-		String viewSql;
+		StringBuilder viewSql = new StringBuilder();
+		boolean found = false;
 		try {
-			stmt = prepareStatement(selectViewSql, viewName);
+			stmt = prepareCachedStatement(getPhaseConnection(), selectViewSql, viewName);
 			rs = stmt.executeQuery();
-			rs.next();
-			try {
-				viewSql = rs.getString("view_definition");
-			} catch (SQLException tryOldName) {
-				viewSql = rs.getString("text");
-			}   
+			String columnName = "view_definition";
+			while (rs.next()) {
+				String chunk;
+				try {
+					chunk = rs.getString(columnName);
+				} catch (SQLException tryOldName) {
+					if (!columnName.equals("view_definition"))
+						throw tryOldName;
+					columnName = "text";
+					chunk = rs.getString(columnName);
+				}
+				if (chunk != null) {
+					viewSql.append(chunk);
+					found = true;
+				}
+			}
+		} catch (SQLException exc) {
+			discardCachedStatement(getPhaseConnection(), selectViewSql);
+			throw exc;
 		} finally {
 			if (rs != null)
 				rs.close();
-			if (stmt != null)
-				stmt.close();
 		}
-		if (viewSql==null)
+		if (!found)
 			return null;
+		return trimViewSql(viewSql.toString());
+	}
+
+	/**
+	 * @return the trimmed sql, <code>null</code> if there's nothing left
+	 */
+	static String trimViewSql(String viewSql) {
 		viewSql = viewSql.trim();
 		if (viewSql.length()==0)
 			return null;
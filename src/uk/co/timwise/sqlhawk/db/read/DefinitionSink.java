@@ -0,0 +1,33 @@
+/* This file is a part of the sqlHawk project.
+ * http://timabell.github.com/sqlHawk/
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package uk.co.timwise.sqlhawk.db.read;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Somewhere for {@link DbReader} to write the definitions of procedures,
+ * functions and views to as they're read, rather than keeping them in the {@link uk.co.timwise.sqlhawk.model.Database}.
+ * The writers returned are closed by the reader once the definition has been written,
+ * which may be from several threads at once.
+ */
+public interface DefinitionSink {
+	Writer openProcedure(String name) throws IOException;
+
+	Writer openFunction(String name) throws IOException;
+
+	Writer openView(String name) throws IOException;
+}
@@ -0,0 +1,186 @@
+/* This file is a part of the sqlHawk project.
+ * http://timabell.github.com/sqlHawk/
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package uk.co.timwise.sqlhawk.db.read;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import uk.co.timwise.sqlhawk.config.Config;
+import uk.co.timwise.sqlhawk.db.NameValidator;
+import uk.co.timwise.sqlhawk.db.SqlManagement;
+import uk.co.timwise.sqlhawk.model.Database;
+import uk.co.timwise.sqlhawk.model.Function;
+import uk.co.timwise.sqlhawk.model.ISqlObject;
+import uk.co.timwise.sqlhawk.model.Procedure;
+import uk.co.timwise.sqlhawk.model.View;
+import uk.co.timwise.sqlhawk.profile.RunProfile;
+
+/**
+ * Reads the procedures, views and functions that are already in the database
+ * before writing new definitions of them, doing as little work as it can.<p/>
+ *
+ * With the db type's selectObjectHashesSql only the names and a hash of each
+ * definition are read. Where the hash matches the definition that's about to be written
+ * that definition is used as is, so it's seen to be up to date without reading it.
+ * Only the definitions that differ, or that are about to be dropped,
+ * are read in full with selectObjectDefinitionSql.
+ * The hashes are SHA-1 of the definition as UTF-16LE, as HASHBYTES gives for nvarchar.
+ * View definitions are trimmed, both when hashed and when read.<p/>
+ *
+ * Without those queries, or if they fail, everything apart from the tables
+ * is read with a {@link DbReader} instead.
+ */
+public class ExistingObjectReader {
+	private final Logger logger = Logger.getLogger(getClass().getName());
+
+	/**
+	 * @param config
+	 * @param connection
+	 * @param meta
+	 * @param updated the definitions that are about to be written
+	 * @return the procedures, views and functions in the database
+	 * @throws Exception
+	 */
+	public Database read(Config config, Connection connection, DatabaseMetaData meta, Database updated) throws Exception {
+		RunProfile.Timer phase = RunProfile.getInstance().startPhase("read: existing objects");
+		try {
+			Properties properties = config.getDbType().getProps();
+			String hashesSql = properties.getProperty("selectObjectHashesSql");
+			String definitionSql = properties.getProperty("selectObjectDefinitionSql");
+			if (hashesSql != null && definitionSql != null) {
+				try {
+					return readByHash(config, connection, updated, new SqlTemplate(hashesSql), new SqlTemplate(definitionSql));
+				} catch (SQLException exc) {
+					logger.warning("Failed to compare existing definitions by hash, reading them all instead: " + exc);
+				}
+			}
+			return new DbReader().Read(config.withoutTables(), connection, meta, null);
+		} finally {
+			phase.stop();
+		}
+	}
+
+	private Database readByHash(Config config, Connection connection, Database updated,
+			SqlTemplate hashesSql, SqlTemplate definitionSql) throws SQLException, IOException {
+		String schema = config.getSchema();
+		boolean isAlterSupported = config.getDbType().isAlterSupported();
+		NameValidator procValidator = new NameValidator("procedure", config.getProcedureInclusions(), config.getProcedureExclusions(), null);
+		NameValidator functionValidator = new NameValidator("function", config.getProcedureInclusions(), config.getProcedureExclusions(), null);
+		NameValidator viewValidator = new NameValidator("view", config.getTableInclusions(), config.getTableExclusions(), null);
+		Database existing = new Database(config.getDatabase(), schema);
+		int unchanged = 0;
+		int changed = 0;
+
+		PreparedStatement hashes = connection.prepareStatement(hashesSql.getPositionalSql());
+		PreparedStatement definitions = null;
+		ResultSet rs = null;
+		try {
+			hashesSql.bind(hashes, schema, null);
+			rs = hashes.executeQuery();
+			while (rs.next()) {
+				String name = rs.getString("name");
+				String type = rs.getString("type").trim();
+				byte[] hash = rs.getBytes("definition_hash");
+
+				Map<String, ? extends ISqlObject> updatedObjects;
+				if (type.equals("P") && procValidator.isValid(name))
+					updatedObjects = updated.getProcMap();
+				else if (type.equals("V") && viewValidator.isValid(name))
+					updatedObjects = updated.getViewMap();
+				else if ((type.equals("FN") || type.equals("IF")) && functionValidator.isValid(name))
+					updatedObjects = updated.getFunctionMap();
+				else
+					continue;
+
+				String definition;
+				ISqlObject updatedObject = updatedObjects.get(name);
+				if (updatedObject != null && updatedObject.getDefinition() != null
+						&& hash != null && matches(hash, updatedObject.getDefinition())) {
+					definition = updatedObject.getDefinition();
+					++unchanged;
+				} else {
+					// changed, or going to be dropped, in which case it's needed to work out the drop order
+					if (definitions == null)
+						definitions = connection.prepareStatement(definitionSql.getPositionalSql());
+					definition = readDefinition(definitions, definitionSql, schema, name);
+					if (type.equals("V") && definition != null)
+						definition = DbReader.trimViewSql(definition); // as DbReader does
+					if (isAlterSupported && definition != null)
+						definition = SqlManagement.ConvertCreateToAlter(definition);
+					++changed;
+				}
+
+				if (type.equals("P"))
+					existing.putProc(name, new Procedure(schema, name, definition));
+				else if (type.equals("V"))
+					existing.putViews(name, new View(schema, name, null, definition));
+				else
+					existing.putFunction(name, new Function(schema, name, definition));
+			}
+		} finally {
+			if (rs != null)
+				rs.close();
+			hashes.close();
+			if (definitions != null)
+				definitions.close();
+		}
+		logger.fine("Existing objects: " + unchanged + " matched by hash, " + changed + " read in full");
+		return existing;
+	}
+
+	private String readDefinition(PreparedStatement stmt, SqlTemplate sql, String schema, String name) throws SQLException {
+		sql.bind(stmt, schema, name);
+		ResultSet rs = stmt.executeQuery();
+		try {
+			return rs.next() ? rs.getString(1) : null;
+		} finally {
+			rs.close();
+		}
+	}
+
+	/**
+	 * Whether the hash is of the definition as it's about to be written. Allows for
+	 * the definition having been turned into an ALTER when it was read,
+	 * which the database won't have stored.
+	 */
+	private boolean matches(byte[] hash, String definition) {
+		String asCreate = SqlManagement.ConvertAlterToCreate(definition);
+		if (Arrays.equals(hash, hash(asCreate)))
+			return true;
+		return !asCreate.equals(definition) && Arrays.equals(hash, hash(definition));
+	}
+
+	private static byte[] hash(String definition) {
+		try {
+			return MessageDigest.getInstance("SHA-1").digest(definition.getBytes("UTF-16LE"));
+		} catch (NoSuchAlgorithmException exc) {
+			throw new RuntimeException(exc); // every JRE has SHA-1
+		} catch (UnsupportedEncodingException exc) {
+			throw new RuntimeException(exc); // and UTF-16LE
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/* This file is a part of the sqlHawk project.
+ * http://timabell.github.com/sqlHawk/
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package uk.co.timwise.sqlhawk.db.read;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * Runs phases of reading a schema, each phase as soon as the phases it
+ * depends on have finished, so that independent phases (e.g. reading procedures
+ * and reading tables) run at the same time.<p/>
+ *
+ * Phases must be added after the phases they depend on, which means the order
+ * they're added in is always a safe order to run them one at a time.
+ * Dependencies on phases that haven't been added are ignored, so that a phase
+ * doesn't have to know whether e.g. views are being read at all.
+ */
+class PhaseScheduler {
+	private final int threads;
+	private final Map<String, Phase> phases = new LinkedHashMap<String, Phase>();
+	private final Map<String, List<String>> dependencies = new HashMap<String, List<String>>();
+	private final Logger logger = Logger.getLogger(getClass().getName());
+
+	/**
+	 * A phase of reading
+	 */
+	interface Phase {
+		void run() throws Exception;
+	}
+
+	/**
+	 * @param threads the most phases to run at once, 1 to run them in the order they're added
+	 */
+	PhaseScheduler(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * @param name unique name of the phase
+	 * @param phase
+	 * @param dependsOn names of the phases that must finish first
+	 */
+	void add(String name, Phase phase, String... dependsOn) {
+		if (phases.containsKey(name))
+			throw new IllegalArgumentException("Phase '" + name + "' has already been added");
+		List<String> added = new ArrayList<String>();
+		for (String dependency : dependsOn) {
+			if (phases.containsKey(dependency))
+				added.add(dependency);
+		}
+		phases.put(name, phase);
+		dependencies.put(name, added);
+	}
+
+	/**
+	 * Run all the phases, stopping at the first to fail
+	 *
+	 * @throws Exception the failure of the first phase to fail
+	 */
+	void run() throws Exception {
+		if (threads == 1 || phases.size() <= 1) {
+			for (Phase phase : phases.values())
+				phase.run();
+			return;
+		}
+
+		Map<String, Integer> waitingOn = new HashMap<String, Integer>();
+		Map<String, List<String>> dependents = new HashMap<String, List<String>>();
+		for (String name : phases.keySet()) {
+			waitingOn.put(name, dependencies.get(name).size());
+			for (String dependency : dependencies.get(name)) {
+				List<String> names = dependents.get(dependency);
+				if (names == null) {
+					names = new ArrayList<String>();
+					dependents.put(dependency, names);
+				}
+				names.add(name);
+			}
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, phases.size()));
+		CompletionService<String> completion = new ExecutorCompletionService<String>(executor);
+		try {
+			int running = 0;
+			for (String name : phases.keySet()) {
+				if (waitingOn.get(name) == 0) {
+					submit(completion, name);
+					++running;
+				}
+			}
+
+			while (running > 0) {
+				Future<String> finished = completion.take();
+				--running;
+				String name;
+				try {
+					name = finished.get();
+				} catch (ExecutionException failure) {
+					Throwable cause = failure.getCause();
+					if (cause instanceof Exception)
+						throw (Exception)cause;
+					throw (Error)cause;
+				}
+				logger.finer("Finished reading " + name);
+
+				List<String> names = dependents.get(name);
+				if (names == null)
+					continue;
+				for (String dependent : names) {
+					int remaining = waitingOn.get(dependent) - 1;
+					waitingOn.put(dependent, remaining);
+					if (remaining == 0) {
+						submit(completion, dependent);
+						++running;
+					}
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private void submit(CompletionService<String> completion, final String name) {
+		final Phase phase = phases.get(name);
+		completion.submit(new Callable<String>() {
+			public String call() throws Exception {
+				phase.run();
+				return name;
+			}
+		});
+	}
+}
@@ -0,0 +1,150 @@
+/* This file is a part of the sqlHawk project.
+ * http://timabell.github.com/sqlHawk/
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package uk.co.timwise.sqlhawk.db.read;
+
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import uk.co.timwise.sqlhawk.config.RowCountStrategy;
+import uk.co.timwise.sqlhawk.model.Database;
+import uk.co.timwise.sqlhawk.model.RowCountStatus;
+import uk.co.timwise.sqlhawk.model.Table;
+
+/**
+ * Finds the number of rows in each table according to a {@link RowCountStrategy}.<p/>
+ *
+ * Estimates come from the db type's selectRowCountsSql, or from the table_rows
+ * column of selectTablesSql. Exact counts are limited by a per table timeout and
+ * an overall budget so that a few huge tables can't hold up the whole run.
+ * A table that isn't counted in time keeps its estimate, if it has one.
+ */
+public class RowCountReader {
+	/**
+	 * Tables estimated to have no more rows than this are counted exactly by {@link RowCountStrategy#SAMPLED}
+	 */
+	static final long SAMPLED_EXACT_LIMIT = 100000;
+
+	private final Database db;
+	private final Properties properties;
+	private final DatabaseMetaData meta;
+	private final DbReader dbReader;
+	private final Logger logger = Logger.getLogger(getClass().getName());
+
+	public RowCountReader(Database db, Properties properties, DatabaseMetaData meta, DbReader dbReader) {
+		this.db = db;
+		this.properties = properties;
+		this.meta = meta;
+		this.dbReader = dbReader;
+	}
+
+	/**
+	 * Set the number of rows and {@link RowCountStatus} of the specified tables.
+	 *
+	 * @param tables the tables to find the number of rows of, estimates are updated for all tables
+	 * @param strategy
+	 * @param timeout seconds each exact count may take, 0 for no limit
+	 * @param budget seconds all the exact counts may take, 0 for no limit
+	 */
+	public void read(Collection<Table> tables, RowCountStrategy strategy, int timeout, int budget) {
+		if (strategy != RowCountStrategy.OFF)
+			readEstimates(db.getTablesByName());
+
+		if (strategy == RowCountStrategy.EXACT || strategy == RowCountStrategy.SAMPLED) {
+			long deadline = budget > 0 ? System.currentTimeMillis() + budget * 1000L : Long.MAX_VALUE;
+			int counted = 0;
+			for (Table table : tables) {
+				if (strategy == RowCountStrategy.SAMPLED && !isSmall(table))
+					continue;
+
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					logger.warning("Row count budget of " + budget + "s used up after counting " + counted + " tables, using estimates for the rest");
+					break;
+				}
+				int tableTimeout = timeout;
+				if (budget > 0) {
+					int remainingSeconds = (int)Math.max(1, remaining / 1000);
+					tableTimeout = timeout > 0 ? Math.min(timeout, remainingSeconds) : remainingSeconds;
+				}
+
+				long numRows = new TableReader().ReadRowCount(table, db, properties, meta, tableTimeout, dbReader);
+				if (numRows != -1) {
+					table.setNumRows(numRows);
+					table.setRowCountStatus(RowCountStatus.EXACT);
+					++counted;
+				}
+			}
+		}
+
+		for (Table table : tables) {
+			if (table.getRowCountStatus() == null)
+				table.setRowCountStatus(RowCountStatus.SKIPPED);
+		}
+	}
+
+	private boolean isSmall(Table table) {
+		return table.getRowCountStatus() == RowCountStatus.ESTIMATED && table.getNumRows() <= SAMPLED_EXACT_LIMIT;
+	}
+
+	/**
+	 * Read the catalog's estimate of the number of rows in each table
+	 * with the db type's selectRowCountsSql, if it has one.
+	 * Failing to read them isn't fatal, the tables just won't have estimates.
+	 */
+	private void readEstimates(Map<String, Table> tables) {
+		String sql = properties.getProperty("selectRowCountsSql");
+		logger.finest("Loaded selectRowCountsSql:\n" + sql);
+		if (sql == null)
+			return;
+
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+
+		try {
+			stmt = dbReader.prepareStatement(sql, null);
+			rs = stmt.executeQuery();
+
+			while (rs.next()) {
+				Table table = tables.get(rs.getString("table_name"));
+				if (table == null)
+					continue;
+				long numRows = rs.getLong("row_count");
+				if (rs.wasNull() || numRows < 0)
+					continue;
+				table.setNumRows(numRows);
+				table.setRowCountStatus(RowCountStatus.ESTIMATED);
+			}
+		} catch (SQLException sqlException) {
+			logger.warning("Failed to retrieve row count estimates with SQL: " + sql);
+			logger.warning(sqlException.toString());
+		} finally {
+			try {
+				if (rs != null)
+					rs.close();
+				if (stmt != null)
+					stmt.close();
+			} catch (SQLException exc) {
+				logger.warning("Failed to close statement: " + exc);
+			}
+		}
+	}
+}
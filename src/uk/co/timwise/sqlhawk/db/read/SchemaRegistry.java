@@ -0,0 +1,88 @@
+/* This file is a part of the sqlHawk project.
+ * http://timabell.github.com/sqlHawk/
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package uk.co.timwise.sqlhawk.db.read;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import uk.co.timwise.sqlhawk.model.Database;
+import uk.co.timwise.sqlhawk.model.Table;
+
+/**
+ * The schemas being analysed together in one run, so that a schema's references
+ * to tables in its siblings can be filled in from what has already been read
+ * instead of querying the database again.<p/>
+ *
+ * To keep the output the same from run to run however the reads are scheduled,
+ * a schema only ever looks at the schemas before it in the list, waiting for them
+ * to finish if need be. As schemas are started in the order of the list this can't
+ * deadlock. References to later schemas are read from the database as usual.
+ */
+public class SchemaRegistry {
+	private final List<String> schemas;
+	private final Map<String, CountDownLatch> finished = new ConcurrentHashMap<String, CountDownLatch>();
+	private final Map<String, Database> databases = new ConcurrentHashMap<String, Database>();
+
+	/**
+	 * @param schemas the schemas in the order their reads will be started
+	 */
+	public SchemaRegistry(List<String> schemas) {
+		this.schemas = new ArrayList<String>(schemas);
+		for (String schema : schemas)
+			finished.put(schema, new CountDownLatch(1));
+	}
+
+	/**
+	 * Record that a schema has been read
+	 *
+	 * @param schema
+	 * @param database <code>null</code> if it couldn't be read
+	 */
+	public void finished(String schema, Database database) {
+		if (database != null)
+			databases.put(schema, database);
+		CountDownLatch latch = finished.get(schema);
+		if (latch != null)
+			latch.countDown();
+	}
+
+	/**
+	 * Find a table (or view) of a sibling schema
+	 *
+	 * @param schema the schema of the table
+	 * @param tableName
+	 * @param fromSchema the schema that refers to it
+	 * @return <code>null</code> if the table isn't available from an earlier schema
+	 * @throws InterruptedException
+	 */
+	Table getTable(String schema, String tableName, String fromSchema) throws InterruptedException {
+		int index = schemas.indexOf(schema);
+		if (index == -1 || index >= schemas.indexOf(fromSchema))
+			return null;
+
+		finished.get(schema).await();
+		Database database = databases.get(schema);
+		if (database == null)
+			return null;
+		Table table = database.getTablesByName().get(tableName);
+		if (table == null)
+			table = database.getViewMap().get(tableName);
+		return table;
+	}
+}
@@ -0,0 +1,105 @@
+/* This file is a part of the sqlHawk project.
+ * http://timabell.github.com/sqlHawk/
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package uk.co.timwise.sqlhawk.db.read;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import uk.co.timwise.sqlhawk.config.InvalidConfigurationException;
+
+/**
+ * SQL from a db type's properties with its named parameters replaced
+ * by question marks, so that it only has to be parsed once however many
+ * tables it is run for. The named parameters are:
+ * <ol>
+ * <li>:schema - the name of the schema
+ * <li>:owner - alias for :schema
+ * <li>:table - the name of the table
+ * <li>:view - alias for :table
+ * </ol>
+ * Immutable, so can be shared between threads.
+ */
+public class SqlTemplate {
+	private final String sql;
+	private final String positionalSql;
+	private final List<String> paramNames;
+	private final boolean usesTable;
+
+	/**
+	 * @param sql SQL with named parameters but <b>no</b> question marks
+	 * @throws InvalidConfigurationException if the SQL contains an unknown named parameter
+	 */
+	public SqlTemplate(String sql) {
+		this.sql = sql;
+		StringBuilder positional = new StringBuilder(sql);
+		List<String> names = new ArrayList<String>();
+		boolean table = false;
+
+		int nextColon = positional.indexOf(":");
+		while (nextColon != -1) {
+			String paramName = new StringTokenizer(positional.substring(nextColon), " ,\"')").nextToken();
+			if (paramName.equals(":table") || paramName.equals(":view"))
+				table = true;
+			else if (!paramName.equals(":schema") && !paramName.equals(":owner"))
+				throw new InvalidConfigurationException("Unexpected named parameter '" + paramName + "' found in SQL '" + sql + "'");
+			names.add(paramName);
+			positional.replace(nextColon, nextColon + paramName.length(), "?");
+			nextColon = positional.indexOf(":", nextColon);
+		}
+
+		this.positionalSql = positional.toString();
+		this.paramNames = Collections.unmodifiableList(names);
+		this.usesTable = table;
+	}
+
+	/**
+	 * @return the SQL with question marks in place of the named parameters
+	 */
+	public String getPositionalSql() {
+		return positionalSql;
+	}
+
+	/**
+	 * @return the named parameters in the order of their question marks
+	 */
+	public List<String> getParamNames() {
+		return paramNames;
+	}
+
+	/**
+	 * Set the parameters of a statement prepared from {@link #getPositionalSql()}.
+	 *
+	 * @param stmt
+	 * @param schema
+	 * @param tableName <code>null</code> if the statement doesn't deal with <code>Table</code>-level details.
+	 * @throws SQLException
+	 * @throws InvalidConfigurationException if the SQL needs a table and there isn't one
+	 */
+	public void bind(PreparedStatement stmt, String schema, String tableName) throws SQLException {
+		if (usesTable && tableName == null)
+			throw new InvalidConfigurationException("Unexpected named parameter ':table' found in SQL '" + sql + "'");
+
+		for (int i = 0; i < paramNames.size(); ++i) {
+			String paramName = paramNames.get(i);
+			boolean isTable = paramName.equals(":table") || paramName.equals(":view");
+			stmt.setString(i + 1, isTable ? tableName : schema);
+		}
+	}
+}
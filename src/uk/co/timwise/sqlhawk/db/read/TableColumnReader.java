@@ -17,6 +17,7 @@ package uk.co.timwise.sqlhawk.db.read;
 
 import java.sql.DatabaseMetaData;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -75,6 +76,48 @@ public class TableColumnReader {
 		return tableColumn;
 	}
 
+	/**
+	 * Whether the result set includes the JDBC 4.1 IS_AUTOINCREMENT column.
+	 * Checked once per result set rather than per row as older drivers throw
+	 * when asked for a column they don't have.
+	 *
+	 * @param rs ResultSet returned from {@link DatabaseMetaData#getColumns(String, String, String, String)}
+	 */
+	public static boolean HasAutoIncrement(ResultSet rs) {
+		try {
+			ResultSetMetaData rsMeta = rs.getMetaData();
+			for (int i = rsMeta.getColumnCount(); i > 0; --i) {
+				if ("IS_AUTOINCREMENT".equalsIgnoreCase(rsMeta.getColumnLabel(i)))
+					return true;
+			}
+		} catch (SQLException exc) {
+			logger.fine("Unable to check for IS_AUTOINCREMENT: " + exc);
+		}
+		return false;
+	}
+
+	/**
+	 * Set whether the column is auto incremented from the IS_AUTOINCREMENT column.
+	 * Only call this if {@link #HasAutoIncrement(ResultSet)} is true.
+	 *
+	 * @param tableColumn
+	 * @param rs ResultSet returned from {@link DatabaseMetaData#getColumns(String, String, String, String)}
+	 * @return <code>false</code> if the driver didn't know
+	 * @throws SQLException
+	 */
+	public static boolean ReadAutoIncrement(TableColumn tableColumn, ResultSet rs) throws SQLException {
+		String autoIncrement = rs.getString("IS_AUTOINCREMENT");
+		if ("YES".equalsIgnoreCase(autoIncrement)) {
+			tableColumn.setIsAutoUpdated(true);
+			return true;
+		}
+		if ("NO".equalsIgnoreCase(autoIncrement)) {
+			tableColumn.setIsAutoUpdated(false);
+			return true;
+		}
+		return false;
+	}
+
 	/**
 	 * Update the state of this column with the supplied {@link TableColumnMeta}.
 	 * Intended to be used with instances created by {@link #TableColumn(Table, TableColumnMeta)}.
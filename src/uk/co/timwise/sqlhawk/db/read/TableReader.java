@@ -15,18 +15,19 @@
  *  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
 package uk.co.timwise.sqlhawk.db.read;
 
+import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import uk.co.timwise.sqlhawk.config.Config;
 import uk.co.timwise.sqlhawk.model.Database;
 import uk.co.timwise.sqlhawk.model.ForeignKeyConstraint;
 import uk.co.timwise.sqlhawk.model.Table;
@@ -44,6 +45,7 @@ public class TableReader {
 	private DatabaseMetaData meta;
 	private final static Logger logger = Logger.getLogger(TableReader.class.getName());
 	private Pattern invalidIdentifierPattern;
+	private int queryTimeout; // seconds, 0 for none. only applied to row counts
 
 	/**
 	 * Construct a table that knows everything about the database table's metadata
@@ -59,18 +61,74 @@ public class TableReader {
 	 * @throws SQLException
 	 */
 	public Table ReadTable(Database db, String schema, String name, String comments, Properties properties, Pattern excludeIndirectColumns, Pattern excludeColumns, DatabaseMetaData meta, DbReader dbReader) throws SQLException {
+		CreateTable(db, schema, name, comments, properties, meta);
+		logger.fine("Processing table " + ((schema == null) ? name : (schema + '.' + name)));
+		initColumns(excludeIndirectColumns, excludeColumns);
+		initIndexes(dbReader);
+		initPrimaryKeys(meta);
+		return table;
+	}
+
+	/**
+	 * Construct a table without reading any of its details from the database.
+	 * Used when details are read for the whole schema at once by {@link BulkTableReader},
+	 * followed by a call to {@link #ReadTableDetails(Table, Database, Properties, DatabaseMetaData, BulkTableReader, Pattern, Pattern, DbReader)}.
+	 *
+	 * @param db
+	 * @param schema
+	 * @param name
+	 * @param comments
+	 * @param properties
+	 * @param meta
+	 */
+	public Table CreateTable(Database db, String schema, String name, String comments, Properties properties, DatabaseMetaData meta) {
 		this.table = new Table(schema, name, comments);
 		this.db = db;
 		this.properties = properties;
 		this.meta = meta;
-		logger.fine("Processing table " + ((schema == null) ? name : (schema + '.' + name)));
 		setComments(comments);
-		initColumns(excludeIndirectColumns, excludeColumns);
-		initIndexes(dbReader);
-		initPrimaryKeys(meta);
 		return table;
 	}
 
+	/**
+	 * Read whatever details of a table created by
+	 * {@link #CreateTable(Database, String, String, String, Properties, DatabaseMetaData)}
+	 * weren't supplied by the bulk reader.
+	 *
+	 * @param table
+	 * @param db
+	 * @param properties
+	 * @param meta
+	 * @param bulkReader
+	 * @param excludeIndirectColumns
+	 * @param excludeColumns
+	 * @param dbReader
+	 * @throws SQLException
+	 */
+	public void ReadTableDetails(Table table, Database db, Properties properties, DatabaseMetaData meta, BulkTableReader bulkReader, Pattern excludeIndirectColumns, Pattern excludeColumns, DbReader dbReader) throws SQLException {
+		this.table = table;
+		this.db = db;
+		this.properties = properties;
+		this.meta = meta;
+		logger.fine("Processing table " + ((table.getSchema() == null) ? table.getName() : (table.getSchema() + '.' + table.getName())));
+		if (!bulkReader.hasColumns(table))
+			initColumns(excludeIndirectColumns, excludeColumns);
+		else if (!bulkReader.hasAutoIncrement(table))
+			initColumnAutoUpdate();
+		if (bulkReader.hasIndexes()) {
+			for (BulkTableReader.IndexColumn indexColumn : bulkReader.getIndexes(table))
+				addIndex(indexColumn.indexName, indexColumn.isUnique, indexColumn.columnName, indexColumn.ascOrDesc);
+		} else {
+			initIndexes(dbReader);
+		}
+		if (bulkReader.hasPrimaryKeys()) {
+			for (BulkTableReader.PrimaryKeyColumn primaryKey : bulkReader.getPrimaryKeys(table))
+				setPrimaryColumn(primaryKey.pkName, primaryKey.columnName);
+		} else {
+			initPrimaryKeys(meta);
+		}
+	}
+
 	public void setMeta(DatabaseMetaData meta){
 		this.meta = meta;
 	}
@@ -104,6 +162,28 @@ public class TableReader {
 		}
 	}
 
+	/**
+	 * Same as {@link #connectForeignKeys(Table, Map, Pattern, Pattern, DbReader)},
+	 * but using the table's foreign keys as already read for the whole schema.
+	 *
+	 * @param table
+	 * @param foreignKeys
+	 * @param tables
+	 * @param excludeIndirectColumns
+	 * @param excludeColumns
+	 * @throws SQLException
+	 */
+	public void connectForeignKeys(Table table, List<BulkTableReader.ForeignKeyColumn> foreignKeys, Map<String, Table> tables, Pattern excludeIndirectColumns, Pattern excludeColumns, DbReader dbReader) throws SQLException {
+		this.table = table;
+		for (BulkTableReader.ForeignKeyColumn fk : foreignKeys) {
+			logger.finest("Adding foreign key " + fk.fkName);
+			addForeignKey(fk.fkName, fk.fkColumnName,
+					fk.pkTableSchema, fk.pkTableName, fk.pkColumnName,
+					fk.updateRule, fk.deleteRule,
+					tables, excludeIndirectColumns, excludeColumns, dbReader);
+		}
+	}
+
 	/**
 	 * "Connect" this table's exported keys to their referenced primary keys.
 	 * Will load tables from other schema.
@@ -167,7 +247,7 @@ public class TableReader {
 
 			Table parentTable = tables.get(pkTableName);
 			String parentSchema = pkTableSchema;
-			String baseSchema = Config.getInstance().getSchema();
+			String baseSchema = dbReader.getSchema();
 
 			// if named table doesn't exist in this schema
 			// or exists here but really referencing same named table in another schema
@@ -225,7 +305,14 @@ public class TableReader {
 	 * @throws SQLException
 	 */
 	private void setPrimaryColumn(ResultSet rs) throws SQLException {
-		String pkName = rs.getString("PK_NAME");
+		setPrimaryColumn(rs.getString("PK_NAME"), rs.getString("COLUMN_NAME"));
+	}
+
+	/**
+	 * @param pkName
+	 * @param columnName
+	 */
+	private void setPrimaryColumn(String pkName, String columnName) {
 		if (pkName == null)
 			return;
 
@@ -234,8 +321,6 @@ public class TableReader {
 			index.setIsPrimaryKey(true);
 		}
 
-		String columnName = rs.getString("COLUMN_NAME");
-
 		table.setPrimaryColumn(table.getColumn(columnName));
 	}
 
@@ -246,32 +331,67 @@ public class TableReader {
 	 */
 	private void initColumns(Pattern excludeIndirectColumns, Pattern excludeColumns) throws SQLException {
 		ResultSet rs = null;
+		boolean autoIncrementKnown;
 
-		synchronized (Table.class) {
-			try {
-				rs = meta.getColumns(null, table.getSchema(), table.getName(), "%");
+		try {
+			rs = meta.getColumns(null, table.getSchema(), table.getName(), "%");
+			boolean hasAutoIncrement = TableColumnReader.HasAutoIncrement(rs);
+			autoIncrementKnown = hasAutoIncrement;
 
-				while (rs.next())
-					addColumn(rs, excludeIndirectColumns, excludeColumns);
-			} catch (SQLException exc) {
-				class ColumnInitializationFailure extends SQLException {
-					private static final long serialVersionUID = 1L;
+			while (rs.next()) {
+				TableColumn column = addColumn(rs, excludeIndirectColumns, excludeColumns);
+				if (column != null && hasAutoIncrement && !TableColumnReader.ReadAutoIncrement(column, rs))
+					autoIncrementKnown = false;
+			}
+		} catch (SQLException exc) {
+			class ColumnInitializationFailure extends SQLException {
+				private static final long serialVersionUID = 1L;
 
-					public ColumnInitializationFailure(SQLException failure) {
-						super("Failed to collect column details for " + (table.isView() ? "view" : "table") + " '" + table.getName() + "' in schema '" + table.getSchema() + "'");
-						initCause(failure);
-					}
+				public ColumnInitializationFailure(SQLException failure) {
+					super("Failed to collect column details for " + (table.isView() ? "view" : "table") + " '" + table.getName() + "' in schema '" + table.getSchema() + "'");
+					initCause(failure);
 				}
-
-				throw new ColumnInitializationFailure(exc);
-			} finally {
-				if (rs != null)
-					rs.close();
 			}
+
+			throw new ColumnInitializationFailure(exc);
+		} finally {
+			if (rs != null)
+				rs.close();
 		}
 
-		if (!table.isView() && !table.isRemote())
-			initColumnAutoUpdate(false);
+		if (!autoIncrementKnown)
+			initColumnAutoUpdate();
+	}
+
+	/**
+	 * Probe the table to see which columns are auto incremented,
+	 * unless the db type has SQL to read them for the whole schema
+	 * (in which case DbReader does that once all the tables are read).
+	 *
+	 * @throws SQLException
+	 */
+	private void initColumnAutoUpdate() throws SQLException {
+		if (table.isView() || table.isRemote())
+			return;
+		if (properties != null && properties.getProperty("selectAutoIncrementColumnsSql") != null)
+			return;
+		initColumnAutoUpdate(false);
+	}
+
+	/**
+	 * Probe the specified table to see which columns are auto incremented.
+	 * Last resort for when they couldn't be read any other way.
+	 *
+	 * @param table
+	 * @param db
+	 * @param meta
+	 * @throws SQLException
+	 */
+	public void ReadAutoIncrement(Table table, Database db, DatabaseMetaData meta) throws SQLException {
+		this.table = table;
+		this.db = db;
+		this.meta = meta;
+		initColumnAutoUpdate(false);
 	}
 
 	/**
@@ -328,18 +448,21 @@ public class TableReader {
 	 * @param rs - from {@link DatabaseMetaData#getColumns(String, String, String, String)}
 	 * @param excludeIndirectColumns
 	 * @param excludeColumns
+	 * @return the new column, <code>null</code> if there wasn't one
 	 * @throws SQLException
 	 */
-	protected void addColumn(ResultSet rs, Pattern excludeIndirectColumns, Pattern excludeColumns) throws SQLException {
+	protected TableColumn addColumn(ResultSet rs, Pattern excludeIndirectColumns, Pattern excludeColumns) throws SQLException {
 		String columnName = rs.getString("COLUMN_NAME");
 
 		if (columnName == null)
-			return;
+			return null;
 
 		if (table.getColumn(columnName) == null) {
 			TableColumn column = TableColumnReader.ReadTableColumn(table, rs, excludeIndirectColumns, excludeColumns);
 			table.getColumnMap().put(column.getName(), column);
+			return column;
 		}
+		return null;
 	}
 
 	/**
@@ -404,8 +527,10 @@ public class TableReader {
 		PreparedStatement stmt = null;
 		ResultSet rs = null;
 
+		Connection connection = null;
 		try {
-			stmt = dbReader.prepareStatement(selectIndexesSql, table.getName());
+			connection = meta.getConnection();
+			stmt = dbReader.prepareCachedStatement(connection, selectIndexesSql, table.getName());
 			rs = stmt.executeQuery();
 
 			while (rs.next()) {
@@ -415,6 +540,8 @@ public class TableReader {
 		} catch (SQLException sqlException) {
 			logger.warning("Failed to query index information with SQL: " + selectIndexesSql);
 			logger.warning(sqlException.toString());
+			if (stmt != null)
+				dbReader.discardCachedStatement(connection, selectIndexesSql);
 		} finally {
 			if (rs != null) {
 				try {
@@ -423,13 +550,6 @@ public class TableReader {
 					exc.printStackTrace();
 				}
 			}
-			if (stmt != null)  {
-				try {
-					stmt.close();
-				} catch (Exception exc) {
-					exc.printStackTrace();
-				}
-			}
 		}
 	}
 
@@ -453,6 +573,26 @@ public class TableReader {
 		index.addColumn(table.getColumn(rs.getString("COLUMN_NAME")), rs.getString("ASC_OR_DESC"));
 	}
 
+	/**
+	 * @param indexName
+	 * @param isUnique
+	 * @param columnName
+	 * @param ascOrDesc
+	 */
+	private void addIndex(String indexName, boolean isUnique, String columnName, String ascOrDesc) {
+		if (indexName == null)
+			return;
+
+		TableIndex index = table.getIndex(indexName);
+
+		if (index == null) {
+			index = new TableIndex(indexName, isUnique);
+			table.addIndex(index.getName(), index);
+		}
+
+		index.addColumn(table.getColumn(columnName), ascOrDesc);
+	}
+
 	/**
 	 * Sets the comments that are associated with this table
 	 *
@@ -478,6 +618,26 @@ public class TableReader {
 		table.setComments(cmts);
 	}
 
+	/**
+	 * Count the rows in the specified table.
+	 *
+	 * @param table
+	 * @param db
+	 * @param properties
+	 * @param meta
+	 * @param timeout seconds to let each query run for, 0 for no limit
+	 * @param dbReader
+	 * @return the number of rows, -1 if they couldn't be counted (or not in time)
+	 */
+	public long ReadRowCount(Table table, Database db, Properties properties, DatabaseMetaData meta, int timeout, DbReader dbReader) {
+		this.table = table;
+		this.db = db;
+		this.properties = properties;
+		this.meta = meta;
+		this.queryTimeout = timeout;
+		return fetchNumRows(dbReader);
+	}
+
 	/**
 	 * Fetch the number of rows contained in this table.
 	 *
@@ -498,8 +658,12 @@ public class TableReader {
 			PreparedStatement stmt = null;
 			ResultSet rs = null;
 
+			Connection connection = null;
+			long started = System.currentTimeMillis();
 			try {
-				stmt = dbReader.prepareStatement(sql, table.getName());
+				connection = meta.getConnection();
+				stmt = dbReader.prepareCachedStatement(connection, sql, table.getName());
+				stmt.setQueryTimeout(queryTimeout);
 				rs = stmt.executeQuery();
 
 				while (rs.next()) {
@@ -508,25 +672,31 @@ public class TableReader {
 			} catch (SQLException sqlException) {
 				// don't die just because this failed
 				originalFailure = sqlException;
+				if (stmt != null)
+					dbReader.discardCachedStatement(connection, sql);
+				if (isTimedOut(started)) {
+					logger.warning("Timed out counting the rows of table " + table.getName());
+					return -1;
+				}
 			} finally {
 				if (rs != null) {
 					try {
 						rs.close();
 					} catch (SQLException exc) {}
 				}
-				if (stmt != null) {
-					try {
-						stmt.close();
-					} catch (SQLException exc) {}
-				}
 			}
 		}
 
 		// if we get here then we either didn't have custom SQL or it didn't work
+		long started = System.currentTimeMillis();
 		try {
 			// '*' should work best for the majority of cases
 			return fetchNumRows("count(*)", false, dbReader);
 		} catch (SQLException try2Exception) {
+			if (isTimedOut(started)) {
+				logger.warning("Timed out counting the rows of table " + table.getName());
+				return -1;
+			}
 			try {
 				// except nested tables...try using '1' instead
 				return fetchNumRows("count(1)", false, dbReader);
@@ -558,8 +728,10 @@ public class TableReader {
 		} else
 			sql.append(getQuotedIdentifier(table.getName()));
 
+		long started = System.currentTimeMillis();
 		try {
-			stmt = dbReader.prepareStatement(sql.toString(), null);
+			stmt = dbReader.prepareStatement(meta.getConnection(), sql.toString(), null);
+			stmt.setQueryTimeout(queryTimeout);
 			rs = stmt.executeQuery();
 			while (rs.next()) {
 				return rs.getLong(1);
@@ -568,6 +740,8 @@ public class TableReader {
 		} catch (SQLException exc) {
 			if (forceQuotes) // we tried with and w/o quotes...fail this attempt
 				throw exc;
+			if (isTimedOut(started)) // no point trying again
+				throw exc;
 
 			return fetchNumRows(clause, true, dbReader);
 		} finally {
@@ -578,6 +752,14 @@ public class TableReader {
 		}
 	}
 
+	/**
+	 * Whether a query started at the specified time failed because it ran out of time,
+	 * which drivers don't report in a standard way.
+	 */
+	private boolean isTimedOut(long started) {
+		return queryTimeout > 0 && System.currentTimeMillis() - started >= queryTimeout * 1000L;
+	}
+
 	/**
 	 * Update the table with the specified XML-derived metadata
 	 *
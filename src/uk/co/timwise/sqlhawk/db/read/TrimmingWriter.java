@@ -0,0 +1,73 @@
+/* This file is a part of the sqlHawk project.
+ * http://timabell.github.com/sqlHawk/
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package uk.co.timwise.sqlhawk.db.read;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Streaming version of {@link String#trim()}.
+ * Leading whitespace is dropped, whitespace after that is held back
+ * until something else follows it, and whatever is still held back
+ * when the writer is closed is dropped.
+ */
+public class TrimmingWriter extends FilterWriter {
+	private final StringBuilder whitespace = new StringBuilder();
+	private boolean started = false;
+
+	public TrimmingWriter(Writer out) {
+		super(out);
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		write(new char[] {(char) c}, 0, 1);
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		int end = off + len;
+		int runStart = -1; // start of the characters that can be passed on as they are
+		for (int i = off; i < end; ++i) {
+			char c = cbuf[i];
+			if (c <= ' ') {
+				if (runStart != -1) {
+					out.write(cbuf, runStart, i - runStart);
+					runStart = -1;
+				}
+				if (started)
+					whitespace.append(c);
+			} else if (runStart == -1) {
+				started = true;
+				if (whitespace.length() > 0) {
+					out.write(whitespace.toString());
+					whitespace.setLength(0);
+				}
+				runStart = i;
+			}
+		}
+		if (runStart != -1)
+			out.write(cbuf, runStart, end - runStart);
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		char[] chars = new char[len];
+		str.getChars(off, off + len, chars, 0);
+		write(chars, 0, len);
+	}
+}
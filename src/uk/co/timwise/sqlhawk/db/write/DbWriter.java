@@ -16,32 +16,29 @@
 package uk.co.timwise.sqlhawk.db.write;
 
 import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.List;
-import java.util.Map;
 import java.util.Properties;
 import java.util.logging.Logger;
 
 import uk.co.timwise.sqlhawk.config.Config;
 import uk.co.timwise.sqlhawk.config.InvalidConfigurationException;
-import uk.co.timwise.sqlhawk.db.SqlManagement;
-import uk.co.timwise.sqlhawk.db.read.DbReader;
+import uk.co.timwise.sqlhawk.db.BatchReader;
+import uk.co.timwise.sqlhawk.db.read.ExistingObjectReader;
 import uk.co.timwise.sqlhawk.db.read.TableReader;
 import uk.co.timwise.sqlhawk.model.Database;
-import uk.co.timwise.sqlhawk.model.ISqlObject;
 import uk.co.timwise.sqlhawk.scm.read.UpgradeScriptReader;
-import uk.co.timwise.sqlhawk.util.FileHandling;
 
 
 public class DbWriter {
 	private final static Logger logger = Logger.getLogger(DbWriter.class.getName());
-	private String upgradeLogInsertSql;
-	private String upgradeLogFindSql;
 
 	public void write(Config config, Connection connection,
 			DatabaseMetaData meta, Database db) throws Exception {
@@ -60,12 +57,13 @@ public class DbWriter {
 			runUpgradeScripts(config, connection, meta);
 
 			logger.fine("Gathering update schema details before applying proc/view/function changes...");
-			DbReader reader = new DbReader();
-			Database existingDb = reader.Read(config, connection, meta, null);
+			Database existingDb = new ExistingObjectReader().read(config, connection, meta, db);
 
-			createUpdateDrop(config, connection, db.getProcMap(), existingDb.getProcMap(), "procedure");
-			createUpdateDrop(config, connection, db.getViewMap(), existingDb.getViewMap(), "view");
-			createUpdateDrop(config, connection, db.getFunctionMap(), existingDb.getFunctionMap(), "function");
+			DeploymentPlanner planner = new DeploymentPlanner(config);
+			planner.add(db.getProcMap(), existingDb.getProcMap(), "procedure");
+			planner.add(db.getViewMap(), existingDb.getViewMap(), "view");
+			planner.add(db.getFunctionMap(), existingDb.getFunctionMap(), "function");
+			deploy(config, connection, meta, planner);
 			if (useTransactions) {
 				logger.fine("Committing database write transaction...");
 				connection.commit();
@@ -82,69 +80,69 @@ public class DbWriter {
 	}
 
 	/**
-	 * Update views/functions/procs in target db to match contents of "updatedObjects".
-	 * Note that exclusion patterns are expeccted to have already
-	 * been applied to existingObjects data to avoid accidentally
-	 * dropping excluded objects. */
-	private <TSqlObject extends ISqlObject> void createUpdateDrop(Config config, Connection connection,
-			Map<String, TSqlObject> updatedObjects, Map<String, TSqlObject> existingObjects, String typeName)
-				throws Exception, SQLException {
-		logger.fine("Synchronising " + typeName + "s...");
-		for (TSqlObject updatedObject : updatedObjects.values()){
-			String name = updatedObject.getName();
-			logger.finest("Processing " + typeName + " " + name);
-			String updatedDefinition = updatedObject.getDefinition();
-			if (existingObjects.containsKey(name)) {
-				//check if definitions match
-				if (updatedDefinition.equals(existingObjects.get(name).getDefinition())) {
-					if (!config.isForceEnabled()) {
-						logger.fine("Existing " + typeName + " " + name + " already up to date");
-						continue; //already up to date, move on to next object.
-					} else {
-						logger.fine("Forcing update of up to date " + typeName + " " + name);
-					}
-				}
-				logger.info("Updating existing " + typeName + " " + name);
-				if (config.getDbType().isAlterSupported()) {
-					// Change definition from CREATE to ALTER and run.
-					// This allows users to use either CREATE or ALTER in their scm scripts.
-					updatedDefinition = SqlManagement.ConvertCreateToAlter(updatedDefinition);
-				}
-				try {
-					if (!config.isDryRun()) {
-						if (!config.getDbType().isAlterSupported()) {
-							connection.prepareStatement("DROP " + typeName + " " + name).execute();
-						}
-						connection.prepareStatement(updatedDefinition).execute();
+	 * Run the planned changes to views/functions/procs a wave at a time.
+	 * Each wave is sent as one batch if enabled and the driver supports it. */
+	private void deploy(Config config, Connection connection, DatabaseMetaData meta,
+			DeploymentPlanner planner) throws Exception {
+		List<List<DeploymentPlanner.Step>> waves = planner.getWaves();
+		if (config.isDryRun()) {
+			planner.logPlan(waves);
+			return;
+		}
+		boolean batch = config.isDeployBatchEnabled() && meta.supportsBatchUpdates();
+		Statement stmt = connection.createStatement();
+		try {
+			for (List<DeploymentPlanner.Step> wave : waves) {
+				if (batch && DeploymentPlanner.countStatements(wave) > 1)
+					runBatch(stmt, wave);
+				else
+					runEach(stmt, wave);
+			}
+		} finally {
+			stmt.close();
+		}
+	}
+
+	private void runEach(Statement stmt, List<DeploymentPlanner.Step> wave) throws Exception {
+		for (DeploymentPlanner.Step step : wave) {
+			try {
+				for (String sql : step.getStatements())
+					stmt.execute(sql);
+			} catch (SQLException ex) {
+				//rethrow with information on which object failed.
+				throw new Exception("Error " + step.getDescription(), ex);
+			}
+		}
+	}
+
+	private void runBatch(Statement stmt, List<DeploymentPlanner.Step> wave) throws Exception {
+		logger.fine("Running batch of " + DeploymentPlanner.countStatements(wave) + " statements...");
+		for (DeploymentPlanner.Step step : wave) {
+			for (String sql : step.getStatements())
+				stmt.addBatch(sql);
+		}
+		try {
+			stmt.executeBatch();
+		} catch (BatchUpdateException ex) {
+			//find the object of the first statement that failed from the counts of the ones that ran.
+			int[] counts = ex.getUpdateCounts();
+			int failed = counts == null ? 0 : counts.length;
+			if (counts != null) {
+				for (int i = 0; i < counts.length; ++i) {
+					if (counts[i] == Statement.EXECUTE_FAILED) {
+						failed = i;
+						break;
 					}
-				} catch (SQLException ex){
-					//rethrow with information on which object failed.
-					throw new Exception("Error updating " + typeName + " " + name, ex);
-				}
-			} else { //new object
-				logger.info("Adding new " + typeName + " " + name);
-				if (config.getDbType().isAlterSupported()) {
-					// convert the ALTER that is the preferred storage back to CREATE
-					updatedDefinition = SqlManagement.ConvertAlterToCreate(updatedDefinition);
-				}
-				try {
-					if (!config.isDryRun())
-						connection.prepareStatement(updatedDefinition).execute();
-				} catch (SQLException ex){
-					//rethrow with information on which object failed.
-					throw new Exception("Error adding new " + typeName + " " + name, ex);
 				}
 			}
-		}
-		logger.fine("Deleting unwanted " + typeName + "s...");
-		for (TSqlObject existingView : existingObjects.values()){
-			String objectName = existingView.getName();
-			logger.finest("Checking if " + typeName + " " + objectName + " needs dropping...");
-			if (!updatedObjects.containsKey(objectName)){
-				logger.info("Dropping unwanted " + typeName + " " + objectName);
-				if (!config.isDryRun())
-					connection.prepareStatement("DROP " + typeName + " " + objectName).execute(); //TODO: move syntax to property files
+			for (DeploymentPlanner.Step step : wave) {
+				failed -= step.getStatements().size();
+				if (failed < 0)
+					throw new Exception("Error " + step.getDescription(), ex);
 			}
+			throw new Exception("Error running batch of changes", ex);
+		} finally {
+			stmt.clearBatch();
 		}
 	}
 
@@ -176,11 +174,23 @@ public class DbWriter {
 			return;
 		}
 		String upgradeBatch = config.getUpgradeBatch();
-		Properties properties = config.getDbType().getProps();
-		upgradeLogInsertSql = properties.getProperty("upgradeLogInsert");
-		upgradeLogFindSql = properties.getProperty("upgradeLogFind");
+		UpgradeLog log = new UpgradeLog(connection, config.getDbType().getProps(), meta.supportsBatchUpdates());
 		int strip = scriptFolder.toString().length() + 1; // remove base path + trailing slash
-		runScriptDirectory(config, connection, scriptFolder, upgradeBatch, strip);
+		try {
+			log.load();
+			runScriptDirectory(config, connection, scriptFolder, upgradeBatch, strip, log);
+			log.flush();
+		} catch (Exception ex) {
+			// record the scripts that did run before whatever went wrong
+			try {
+				log.flush();
+			} catch (Exception flushFailure) {
+				logger.warning("Failed to record scripts that were run: " + flushFailure);
+			}
+			throw ex;
+		} finally {
+			log.close();
+		}
 	}
 
 	/**
@@ -191,36 +201,21 @@ public class DbWriter {
 	 * @param scriptFolder the script folder
 	 * @param upgradeBatch string to tie all the scripts together with in the upgrade log table
 	 * @param strip number of chars to remove from paths when logging
+	 * @param log the upgrade log table, to check and record the scripts in
 	 * @return whether any scripts were run
 	 * @throws IOException Signals that an I/O exception has occurred.
 	 * @throws Exception the exception
 	 */
-	private void runScriptDirectory(Config config, Connection connection, File scriptFolder, String upgradeBatch, int strip) throws IOException,
-			Exception {
+	private void runScriptDirectory(Config config, Connection connection, File scriptFolder, String upgradeBatch, int strip,
+			UpgradeLog log) throws IOException, Exception {
 		List<String> scripts = UpgradeScriptReader.getUpgradeScripts(scriptFolder);
 		for(String script : scripts){
-			try {
-				PreparedStatement log = connection.prepareStatement(upgradeLogFindSql);
-				log.setString(1, script);
-				log.execute();
-				ResultSet resultSet = log.getResultSet();
-				if (resultSet.next()) { // existing record of this script found in log
-					int upgradeId = resultSet.getInt(1);
-					logger.fine("Script '" + script + "' already run. UpgradeId " + upgradeId);
-					continue;
-				}
-			} catch (Exception ex) {
-				throw new Exception("Reading table SqlHawk_UpgradeLog failed, use --initialize-tracking before first run.", ex);
+			if (log.contains(script)) {
+				logger.fine("Script '" + script + "' already run.");
+				continue;
 			}
 			runSqlScriptFile(connection, scriptFolder, script, config.isDryRun());
-			try {
-				PreparedStatement log = connection.prepareStatement(upgradeLogInsertSql);
-				log.setString(1, upgradeBatch);
-				log.setString(2, script);
-				log.execute();
-			} catch (Exception ex) {
-				throw new Exception("INSERT INTO SqlHawk_UpgradeLog failed.", ex);
-			}
+			log.add(upgradeBatch, script);
 		}
 	}
 
@@ -236,16 +231,27 @@ public class DbWriter {
 			throws Exception {
 		try {
 			logger.info("Running script '" + script + "'...");
-			String definition = FileHandling.readFile(new File(scriptFolder, script));
 			// Split into batches similar to the sql server tools,this makes
 			// management of scripts easier as you can include a reference to a
 			// new table in the same sql file as the create statement.
-			String[] splitSql = SqlManagement.SplitBatches(definition);
-			for (String sql : splitSql) {
-				logger.finest("Running script batch\n" + sql);
-				if (!dryRun) {
-					connection.prepareStatement(sql).execute();
+			// Each batch is run as soon as it's been read so that big scripts
+			// don't have to fit in memory.
+			BatchReader batches = new BatchReader(new FileReader(new File(scriptFolder, script)));
+			try {
+				String sql;
+				while ((sql = batches.next()) != null) {
+					logger.finest("Running script batch\n" + sql);
+					if (!dryRun) {
+						PreparedStatement stmt = connection.prepareStatement(sql);
+						try {
+							stmt.execute();
+						} finally {
+							stmt.close();
+						}
+					}
 				}
+			} finally {
+				batches.close();
 			}
 		} catch (Exception ex) {
 			throw new Exception("Failed to run script '" + script + "'.", ex);
@@ -0,0 +1,280 @@
+/* This file is a part of the sqlHawk project.
+ * http://timabell.github.com/sqlHawk/
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package uk.co.timwise.sqlhawk.db.write;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import uk.co.timwise.sqlhawk.config.Config;
+import uk.co.timwise.sqlhawk.db.SqlManagement;
+import uk.co.timwise.sqlhawk.model.ISqlObject;
+
+/**
+ * Works out what has to be run to bring the procedures, views and functions
+ * of a database in line with the ones being written, and in what order.<p/>
+ *
+ * The names each definition refers to are picked out of it, ignoring comments
+ * and string literals, to find which of the objects being written depend on which.
+ * The changes are then split into waves, each of which only depends on the waves
+ * before it, so a view is always written after the views it selects from.
+ * Drops come first, in the reverse order so an object goes before the objects it uses,
+ * which also frees the name of an object that's being replaced by one of another type.
+ * Objects that refer to each other in a circle go in one wave in the order they were added.
+ */
+public class DeploymentPlanner {
+	private final Config config;
+	private final List<Step> changes = new ArrayList<Step>();
+	private final List<Step> drops = new ArrayList<Step>();
+	private final Logger logger = Logger.getLogger(getClass().getName());
+
+	/**
+	 * One object's worth of the deployment
+	 */
+	public static class Step {
+		private final String description;
+		private final String name;
+		private final String definition;
+		private final List<String> statements = new ArrayList<String>();
+
+		public Step(String description, String name, String definition) {
+			this.description = description;
+			this.name = name;
+			this.definition = definition;
+		}
+
+		/**
+		 * @return e.g. "updating view Foo", used in logging and errors
+		 */
+		public String getDescription() {
+			return description;
+		}
+
+		public List<String> getStatements() {
+			return statements;
+		}
+	}
+
+	public DeploymentPlanner(Config config) {
+		this.config = config;
+	}
+
+	/**
+	 * Plan the changes to the objects of one type.
+	 * Note that exclusion patterns are expected to have already
+	 * been applied to existingObjects data to avoid accidentally
+	 * dropping excluded objects.
+	 *
+	 * @param updatedObjects what the objects should be
+	 * @param existingObjects what they are now
+	 * @param typeName e.g. "view"
+	 */
+	public <TSqlObject extends ISqlObject> void add(Map<String, TSqlObject> updatedObjects,
+			Map<String, TSqlObject> existingObjects, String typeName) throws IOException {
+		logger.fine("Synchronising " + typeName + "s...");
+		boolean isAlterSupported = config.getDbType().isAlterSupported();
+		for (TSqlObject updatedObject : sortByName(updatedObjects.values())) {
+			String name = updatedObject.getName();
+			logger.finest("Processing " + typeName + " " + name);
+			String updatedDefinition = updatedObject.getDefinition();
+			if (existingObjects.containsKey(name)) {
+				//check if definitions match
+				if (updatedDefinition.equals(existingObjects.get(name).getDefinition())) {
+					if (!config.isForceEnabled()) {
+						logger.fine("Existing " + typeName + " " + name + " already up to date");
+						continue; //already up to date, move on to next object.
+					} else {
+						logger.fine("Forcing update of up to date " + typeName + " " + name);
+					}
+				}
+				logger.info("Updating existing " + typeName + " " + name);
+				Step step = new Step("updating " + typeName + " " + name, name, updatedDefinition);
+				if (isAlterSupported) {
+					// Change definition from CREATE to ALTER and run.
+					// This allows users to use either CREATE or ALTER in their scm scripts.
+					step.statements.add(SqlManagement.ConvertCreateToAlter(updatedDefinition));
+				} else {
+					step.statements.add("DROP " + typeName + " " + name);
+					step.statements.add(updatedDefinition);
+				}
+				changes.add(step);
+			} else { //new object
+				logger.info("Adding new " + typeName + " " + name);
+				Step step = new Step("adding new " + typeName + " " + name, name, updatedDefinition);
+				// convert the ALTER that is the preferred storage back to CREATE
+				step.statements.add(isAlterSupported ? SqlManagement.ConvertAlterToCreate(updatedDefinition) : updatedDefinition);
+				changes.add(step);
+			}
+		}
+		logger.fine("Deleting unwanted " + typeName + "s...");
+		for (TSqlObject existingObject : sortByName(existingObjects.values())) {
+			String objectName = existingObject.getName();
+			logger.finest("Checking if " + typeName + " " + objectName + " needs dropping...");
+			if (!updatedObjects.containsKey(objectName)) {
+				logger.info("Dropping unwanted " + typeName + " " + objectName);
+				Step step = new Step("dropping " + typeName + " " + objectName, objectName, existingObject.getDefinition());
+				step.statements.add("DROP " + typeName + " " + objectName); //TODO: move syntax to property files
+				drops.add(step);
+			}
+		}
+	}
+
+	/**
+	 * @return the steps in the order they have to be run, one list per wave
+	 */
+	public List<List<Step>> getWaves() {
+		List<List<Step>> waves = order(drops);
+		Collections.reverse(waves);
+		waves.addAll(order(changes));
+		return waves;
+	}
+
+	/**
+	 * Log the waves and what's in them, for dry runs
+	 */
+	void logPlan(List<List<Step>> waves) {
+		int statements = 0;
+		for (List<Step> wave : waves)
+			statements += countStatements(wave);
+		logger.info("Deployment plan: " + statements + " statements in " + waves.size() + " waves");
+		for (int i = 0; i < waves.size(); ++i) {
+			StringBuilder steps = new StringBuilder();
+			for (Step step : waves.get(i)) {
+				if (steps.length() > 0)
+					steps.append(", ");
+				steps.append(step.getDescription());
+			}
+			logger.info(" wave " + (i + 1) + ": " + countStatements(waves.get(i)) + " statements - " + steps);
+		}
+	}
+
+	static int countStatements(List<Step> wave) {
+		int statements = 0;
+		for (Step step : wave)
+			statements += step.getStatements().size();
+		return statements;
+	}
+
+	/**
+	 * Split the steps into waves, each only depending on those before it
+	 */
+	public List<List<Step>> order(List<Step> steps) {
+		Map<String, Step> byName = new HashMap<String, Step>();
+		for (Step step : steps)
+			byName.put(step.name.toUpperCase(), step);
+		Map<Step, Set<Step>> dependencies = new HashMap<Step, Set<Step>>();
+		for (Step step : steps) {
+			Set<Step> uses = new HashSet<Step>();
+			for (String reference : getReferences(step.definition)) {
+				Step used = byName.get(reference);
+				if (used != null && used != step)
+					uses.add(used);
+			}
+			dependencies.put(step, uses);
+		}
+
+		List<List<Step>> waves = new ArrayList<List<Step>>();
+		List<Step> remaining = new ArrayList<Step>(steps);
+		Set<Step> done = new HashSet<Step>();
+		while (!remaining.isEmpty()) {
+			List<Step> wave = new ArrayList<Step>();
+			for (Step step : remaining) {
+				if (done.containsAll(dependencies.get(step)))
+					wave.add(step);
+			}
+			if (wave.isEmpty()) {
+				logger.warning("Couldn't find an order for " + remaining.size() + " objects that refer to each other in a circle, running them in the usual order");
+				wave = remaining;
+				remaining = new ArrayList<Step>();
+			} else {
+				remaining.removeAll(wave);
+			}
+			done.addAll(wave);
+			waves.add(wave);
+		}
+		return waves;
+	}
+
+	/**
+	 * The names that a definition refers to, upper-cased, leaving out comments,
+	 * string literals and variables. Every part of a dotted name is included
+	 * as objects are matched by name alone.
+	 */
+	public static Set<String> getReferences(String definition) {
+		Set<String> references = new HashSet<String>();
+		if (definition == null)
+			return references;
+		int length = definition.length();
+		int i = 0;
+		while (i < length) {
+			char c = definition.charAt(i);
+			char next = i + 1 < length ? definition.charAt(i + 1) : 0;
+			if (c == '-' && next == '-') {
+				while (i < length && definition.charAt(i) != '\n' && definition.charAt(i) != '\r')
+					++i;
+			} else if (c == '/' && next == '*') {
+				int depth = 0;
+				do {
+					if (definition.startsWith("/*", i)) {
+						++depth;
+						i += 2;
+					} else if (definition.startsWith("*/", i)) {
+						--depth;
+						i += 2;
+					} else {
+						++i;
+					}
+				} while (depth > 0 && i < length);
+			} else if (c == '\'') {
+				i = definition.indexOf('\'', i + 1); // a doubled quote just closes and reopens
+				i = i == -1 ? length : i + 1;
+			} else if (c == '[' || c == '"') {
+				int end = definition.indexOf(c == '[' ? ']' : '"', i + 1);
+				if (end == -1)
+					end = length;
+				references.add(definition.substring(i + 1, end).toUpperCase());
+				i = end + 1;
+			} else if (Character.isLetter(c) || c == '_' || c == '@' || c == '#') {
+				int start = i;
+				while (i < length && isIdentifierPart(definition.charAt(i)))
+					++i;
+				if (c != '@')
+					references.add(definition.substring(start, i).toUpperCase());
+			} else {
+				++i;
+			}
+		}
+		return references;
+	}
+
+	private static boolean isIdentifierPart(char c) {
+		return Character.isLetterOrDigit(c) || c == '_' || c == '@' || c == '#' || c == '$';
+	}
+
+	private static <TSqlObject extends ISqlObject> List<TSqlObject> sortByName(Iterable<TSqlObject> objects) {
+		Map<String, TSqlObject> sorted = new TreeMap<String, TSqlObject>(String.CASE_INSENSITIVE_ORDER);
+		for (TSqlObject object : objects)
+			sorted.put(object.getName(), object);
+		return new ArrayList<TSqlObject>(sorted.values());
+	}
+}
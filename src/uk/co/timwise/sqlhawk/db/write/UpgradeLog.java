@@ -0,0 +1,167 @@
+/* This file is a part of the sqlHawk project.
+ * http://timabell.github.com/sqlHawk/
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package uk.co.timwise.sqlhawk.db.write;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * The SqlHawk_UpgradeLog table of the upgrade scripts that have been run.<p/>
+ *
+ * Where the db type has upgradeLogFindAll the whole log is loaded with that
+ * one query, so checking a script doesn't need a round trip, otherwise each
+ * script is looked up with upgradeLogFind. Paths are compared ignoring case
+ * as the log table's collation usually does.<p/>
+ *
+ * New entries are sent in batches where the driver supports it,
+ * so {@link #flush()} must be called once the scripts have been run.
+ */
+class UpgradeLog {
+	private static final int INSERT_BATCH_SIZE = 100;
+	private static final String NOT_INITIALIZED = "Reading table SqlHawk_UpgradeLog failed, use --initialize-tracking before first run.";
+	private final Connection connection;
+	private final String findSql;
+	private final String findAllSql;
+	private final String insertSql;
+	private final boolean batchInserts;
+	private Set<String> scripts; // upper-cased, null unless loaded with upgradeLogFindAll
+	private PreparedStatement find;
+	private PreparedStatement insert;
+	private int pendingInserts = 0;
+	private final Logger logger = Logger.getLogger(getClass().getName());
+
+	/**
+	 * @param connection
+	 * @param properties of the db type
+	 * @param batchInserts whether the driver supports batch updates
+	 */
+	UpgradeLog(Connection connection, Properties properties, boolean batchInserts) {
+		this.connection = connection;
+		this.findSql = properties.getProperty("upgradeLogFind");
+		this.findAllSql = properties.getProperty("upgradeLogFindAll");
+		this.insertSql = properties.getProperty("upgradeLogInsert");
+		this.batchInserts = batchInserts;
+	}
+
+	/**
+	 * Read the whole log if the db type can
+	 */
+	void load() throws Exception {
+		if (findAllSql == null)
+			return;
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		try {
+			stmt = connection.prepareStatement(findAllSql);
+			rs = stmt.executeQuery();
+			Set<String> loaded = new HashSet<String>();
+			while (rs.next()) {
+				String script = rs.getString(1);
+				if (script != null)
+					loaded.add(script.toUpperCase());
+			}
+			scripts = loaded;
+			logger.fine("Loaded " + scripts.size() + " entries from SqlHawk_UpgradeLog");
+		} catch (SQLException ex) {
+			throw new Exception(NOT_INITIALIZED, ex);
+		} finally {
+			if (rs != null)
+				rs.close();
+			if (stmt != null)
+				stmt.close();
+		}
+	}
+
+	/**
+	 * @return whether the log says the script has been run
+	 */
+	boolean contains(String script) throws Exception {
+		if (scripts != null)
+			return scripts.contains(script.toUpperCase());
+		try {
+			if (find == null)
+				find = connection.prepareStatement(findSql);
+			find.setString(1, script);
+			ResultSet resultSet = find.executeQuery();
+			try {
+				return resultSet.next(); // existing record of this script found in log
+			} finally {
+				resultSet.close();
+			}
+		} catch (SQLException ex) {
+			throw new Exception(NOT_INITIALIZED, ex);
+		}
+	}
+
+	/**
+	 * Record that a script has been run
+	 *
+	 * @param upgradeBatch to tie the scripts of a run together
+	 * @param script
+	 */
+	void add(String upgradeBatch, String script) throws Exception {
+		try {
+			if (insert == null)
+				insert = connection.prepareStatement(insertSql);
+			insert.setString(1, upgradeBatch);
+			insert.setString(2, script);
+			if (!batchInserts) {
+				insert.executeUpdate();
+				return;
+			}
+			insert.addBatch();
+			if (++pendingInserts >= INSERT_BATCH_SIZE)
+				flush();
+		} catch (SQLException ex) {
+			throw new Exception("INSERT INTO SqlHawk_UpgradeLog failed.", ex);
+		}
+	}
+
+	/**
+	 * Send any entries that are waiting to go in a batch
+	 */
+	void flush() throws Exception {
+		if (pendingInserts == 0)
+			return;
+		try {
+			insert.executeBatch();
+			logger.fine("Recorded " + pendingInserts + " scripts in SqlHawk_UpgradeLog");
+			pendingInserts = 0;
+		} catch (SQLException ex) {
+			throw new Exception("INSERT INTO SqlHawk_UpgradeLog failed.", ex);
+		}
+	}
+
+	/**
+	 * Close the statements, without flushing
+	 */
+	void close() {
+		for (PreparedStatement stmt : new PreparedStatement[] {find, insert}) {
+			try {
+				if (stmt != null)
+					stmt.close();
+			} catch (SQLException exc) {
+				logger.warning("Failed to close statement: " + exc);
+			}
+		}
+	}
+}
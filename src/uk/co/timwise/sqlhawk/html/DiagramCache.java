@@ -0,0 +1,213 @@
+/* This file is a part of the sqlHawk project.
+ * http://timabell.github.com/sqlHawk/
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package uk.co.timwise.sqlhawk.html;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import uk.co.timwise.sqlhawk.util.FileHandling;
+
+/**
+ * A directory of diagrams rendered on previous runs, so that a diagram
+ * whose .dot file hasn't changed is copied rather than laid out again.<p/>
+ *
+ * Entries are named after a SHA-1 of the .dot file along with the format,
+ * renderer and version of dot that drew them, and hold the image and its image map.
+ * Using an entry marks it as recently used, and once the directory grows
+ * past its limit the least recently used entries are deleted.
+ */
+public class DiagramCache {
+	private static final String MAP_EXTENSION = ".cmapx";
+	private final File dir;
+	private final long maxBytes;
+	private long size;
+	private final AtomicInteger hits = new AtomicInteger();
+	private final AtomicInteger misses = new AtomicInteger();
+	private final Logger logger = Logger.getLogger(getClass().getName());
+
+	/**
+	 * @param dir where to keep the diagrams, created if it doesn't exist
+	 * @param maxBytes how big the directory can get before entries are evicted
+	 */
+	public DiagramCache(File dir, long maxBytes) {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		dir.mkdirs();
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files)
+				size += file.length();
+		}
+	}
+
+	/**
+	 * The name of the entry for a diagram
+	 */
+	public String getKey(File dotFile, Dot dot) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException exc) {
+			throw new RuntimeException(exc); // every JRE has SHA-1
+		}
+		digest.update(FileHandling.readBytes(dotFile));
+		digest.update(("\n" + dot.getFormat() + "\n" + dot.getRenderer() + "\n" + dot.getVersion()).getBytes("UTF-8"));
+		StringBuilder key = new StringBuilder(40);
+		for (byte b : digest.digest())
+			key.append(String.format("%02x", b));
+		return key.toString();
+	}
+
+	/**
+	 * Copy a diagram out of the cache.
+	 *
+	 * @return the diagram's image map, <code>null</code> if it isn't in the cache
+	 */
+	public String get(String key, Dot dot, File diagramFile) {
+		File image = new File(dir, key + "." + dot.getFormat());
+		File map = new File(dir, key + MAP_EXTENSION);
+		try {
+			if (!image.isFile() || !map.isFile()) {
+				misses.incrementAndGet();
+				return null;
+			}
+			String imageMap = FileHandling.readFile(map, "UTF-8");
+			copy(image, diagramFile);
+			long now = System.currentTimeMillis();
+			image.setLastModified(now);
+			map.setLastModified(now);
+			hits.incrementAndGet();
+			return imageMap;
+		} catch (IOException exc) {
+			// e.g. evicted part way through, it'll just be drawn again
+			logger.fine("Couldn't use cached diagram " + key + ": " + exc);
+			misses.incrementAndGet();
+			return null;
+		}
+	}
+
+	/**
+	 * Keep a copy of a diagram that has just been rendered.
+	 * Failures are logged rather than thrown as the diagram itself is fine.
+	 */
+	public void put(String key, Dot dot, File diagramFile, String imageMap) {
+		File image = new File(dir, key + "." + dot.getFormat());
+		File map = new File(dir, key + MAP_EXTENSION);
+		try {
+			// written under temporary names so that a half written entry is never used
+			File tempImage = File.createTempFile(key, ".tmp", dir);
+			File tempMap = File.createTempFile(key, ".tmp", dir);
+			try {
+				copy(diagramFile, tempImage);
+				FileOutputStream out = new FileOutputStream(tempMap);
+				try {
+					out.write(imageMap.getBytes("UTF-8"));
+				} finally {
+					out.close();
+				}
+				map.delete();
+				image.delete();
+				if (!tempImage.renameTo(image) || !tempMap.renameTo(map))
+					throw new IOException("couldn't rename into place");
+			} finally {
+				tempImage.delete();
+				tempMap.delete();
+			}
+			added(image.length() + map.length());
+		} catch (IOException exc) {
+			logger.warning("Failed to add " + diagramFile.getName() + " to the diagram cache: " + exc);
+		}
+	}
+
+	/**
+	 * Log how many diagrams came from the cache
+	 */
+	public void logUsage() {
+		logger.info("Diagram cache: " + hits.get() + " reused, " + misses.get() + " rendered");
+	}
+
+	private synchronized void added(long bytes) {
+		size += bytes;
+		if (size > maxBytes)
+			evict();
+	}
+
+	/**
+	 * Delete the least recently used files until the cache is back down to
+	 * three quarters of its limit, so that it isn't evicting on every put.
+	 */
+	private void evict() {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		List<File> oldestFirst = new ArrayList<File>(Arrays.asList(files));
+		final Map<File, Long> lastUsed = new HashMap<File, Long>();
+		size = 0;
+		for (File file : oldestFirst) {
+			lastUsed.put(file, file.lastModified());
+			size += file.length();
+		}
+		Collections.sort(oldestFirst, new Comparator<File>() {
+			public int compare(File a, File b) {
+				return lastUsed.get(a).compareTo(lastUsed.get(b));
+			}
+		});
+		long target = maxBytes / 4 * 3;
+		int evicted = 0;
+		for (File file : oldestFirst) {
+			if (size <= target)
+				break;
+			long length = file.length();
+			if (file.delete()) {
+				size -= length;
+				++evicted;
+			}
+		}
+		logger.fine("Evicted " + evicted + " files from the diagram cache");
+	}
+
+	private static void copy(File from, File to) throws IOException {
+		FileInputStream in = new FileInputStream(from);
+		try {
+			FileOutputStream out = new FileOutputStream(to);
+			try {
+				FileChannel source = in.getChannel();
+				long size = source.size();
+				long position = 0;
+				while (position < size)
+					position += source.transferTo(position, size - position, out.getChannel());
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
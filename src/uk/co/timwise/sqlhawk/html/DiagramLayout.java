@@ -0,0 +1,591 @@
+/* This file is a part of the sqlHawk project.
+ * http://timabell.github.com/sqlHawk/
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package uk.co.timwise.sqlhawk.html;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import uk.co.timwise.sqlhawk.model.Table;
+import uk.co.timwise.sqlhawk.model.TableColumn;
+
+/**
+ * Lays out a {@link DotGraph} in layers the way dot does (Sugiyama's method),
+ * but quickly enough to do in process for every diagram:
+ * <ol>
+ * <li>cycles are broken by turning round the connectors that close them
+ * <li>tables are put in layers with their parents to the left of them (dot's rankdir=RL)
+ * <li>connectors that cross more than one layer are given a point in each layer they cross
+ * <li>the order within each layer is swept by barycenter to reduce crossings
+ * <li>tables are lined up vertically with what they're connected to
+ * </ol>
+ * The sizes of the tables are estimated from the length of their text
+ * as there's nothing to measure fonts with.
+ * Coordinates are in pixels.
+ */
+public class DiagramLayout {
+	static final int MARGIN = 8;
+	private static final double PIXELS_PER_POINT = 96 / 72.0;
+	private static final int NODE_SEPARATION = (int)Math.round(0.18 * 96); // dot's nodesep
+	private static final int RANK_SEPARATION = (int)Math.round(0.46 * 96); // dot's ranksep
+	private static final int ORDERING_SWEEPS = 12;
+	private static final int ALIGNMENT_SWEEPS = 4;
+
+	private final int fontSize;
+	private final int rowHeight;
+	private final int padding;
+	private final List<Box> boxes = new ArrayList<Box>();
+	private final List<Route> routes = new ArrayList<Route>();
+	private final List<List<Box>> layers = new ArrayList<List<Box>>();
+	private int width;
+	private int height;
+
+	/**
+	 * A table, or a point that a connector passes through a layer at
+	 */
+	public static class Box {
+		final DotNode node;
+		final List<TableColumn> columns;
+		final boolean elipses;
+		int x;
+		int y;
+		int width;
+		int height;
+		int detailsWidth;
+		int parentsWidth;
+		int childrenWidth;
+		private int layer;
+		private final List<Box> left = new ArrayList<Box>();
+		private final List<Box> right = new ArrayList<Box>();
+
+		private Box(DotNode node) {
+			this.node = node;
+			this.columns = node == null ? Collections.<TableColumn>emptyList() : node.getShownColumns();
+			this.elipses = node != null && node.hasElipses();
+		}
+
+		/**
+		 * The row a connector's port is in: 0 for the table's name,
+		 * then a row for each column and one for the elipses if there are any.
+		 */
+		int getRow(String port) {
+			for (int i = 0; i < columns.size(); ++i) {
+				String name = columns.get(i).getName();
+				if (port.equals(name) || port.equals(name + ".type"))
+					return i + 1;
+			}
+			return elipses ? columns.size() + 1 : 0;
+		}
+
+		int getCenterY() {
+			return y + height / 2;
+		}
+
+		/**
+		 * @return the table, or <code>null</code> for a point a connector passes through
+		 */
+		public DotNode getNode() {
+			return node;
+		}
+
+		public int getX() {
+			return x;
+		}
+
+		public int getY() {
+			return y;
+		}
+
+		public int getWidth() {
+			return width;
+		}
+
+		public int getHeight() {
+			return height;
+		}
+	}
+
+	/**
+	 * The line a connector is drawn along, from the child to the parent
+	 */
+	public static class Route {
+		final DotConnector connector;
+		final Box child;
+		final Box parent;
+		private final List<Box> via = new ArrayList<Box>();
+		int[] xs;
+		int[] ys;
+
+		private Route(DotConnector connector, Box child, Box parent) {
+			this.connector = connector;
+			this.child = child;
+			this.parent = parent;
+		}
+
+		public int[] getXs() {
+			return xs;
+		}
+
+		public int[] getYs() {
+			return ys;
+		}
+
+		public boolean isLoop() {
+			return child == parent;
+		}
+
+		/**
+		 * Which way the connector leaves the child: -1 to the left, 1 to the right
+		 */
+		int getDirection() {
+			return !isLoop() && child.layer > parent.layer ? -1 : 1;
+		}
+	}
+
+	public DiagramLayout(DotGraph graph, int fontSize) {
+		this.fontSize = (int)Math.round(fontSize * PIXELS_PER_POINT);
+		this.rowHeight = (int)Math.ceil(this.fontSize * 1.25) + 4;
+		this.padding = Math.max(4, this.fontSize / 3);
+
+		Map<Table, Box> boxesByTable = new HashMap<Table, Box>();
+		for (DotNode node : graph.getNodes()) {
+			Box box = new Box(node);
+			measure(box);
+			boxes.add(box);
+			boxesByTable.put(node.getTable(), box);
+		}
+		for (DotConnector connector : graph.getConnectors()) {
+			Box child = boxesByTable.get(connector.getChildTable());
+			Box parent = boxesByTable.get(connector.getParentTable());
+			if (child != null && parent != null)
+				routes.add(new Route(connector, child, parent));
+		}
+
+		assignLayers();
+		addPointsOfLongRoutes();
+		orderLayers();
+		placeBoxes();
+		placeRoutes();
+	}
+
+	int getFontSize() {
+		return fontSize;
+	}
+
+	int getRowHeight() {
+		return rowHeight;
+	}
+
+	/**
+	 * Space between the text of a cell and its sides
+	 */
+	int getPadding() {
+		return padding;
+	}
+
+	/**
+	 * The tables, in the order they're in the graph
+	 */
+	public List<Box> getBoxes() {
+		return boxes;
+	}
+
+	public List<Route> getRoutes() {
+		return routes;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Estimate how wide some text is.
+	 * Based on the proportions of Helvetica, which most of the fonts used are close enough to.
+	 */
+	int getTextWidth(String text) {
+		double ems = 0;
+		for (int i = 0; i < text.length(); ++i) {
+			char ch = text.charAt(i);
+			if ("iljI.,:;'|!()[] ".indexOf(ch) != -1)
+				ems += 0.28;
+			else if ("ft".indexOf(ch) != -1)
+				ems += 0.33;
+			else if ("mwMW".indexOf(ch) != -1)
+				ems += 0.86;
+			else if (Character.isUpperCase(ch))
+				ems += 0.68;
+			else
+				ems += 0.56;
+		}
+		return (int)Math.ceil(ems * fontSize);
+	}
+
+	private void measure(Box box) {
+		DotNode node = box.node;
+		int cell = 2 * padding;
+		int nameWidth = getTextWidth(node.getFullName()) + cell;
+		int columnsWidth = 0;
+		for (TableColumn column : box.columns) {
+			columnsWidth = Math.max(columnsWidth, getTextWidth(column.getName()) + cell);
+			if (node.isShowColumnDetails())
+				box.detailsWidth = Math.max(box.detailsWidth, getTextWidth(DotNode.getColumnDetails(column)) + cell);
+		}
+		if (box.elipses)
+			columnsWidth = Math.max(columnsWidth, getTextWidth("...") + cell);
+		box.parentsWidth = getTextWidth(getText(node.getParentsText())) + cell;
+		box.childrenWidth = getTextWidth(getText(node.getChildrenText())) + cell;
+		int countsWidth = box.parentsWidth + getTextWidth(getText(node.getRowsText())) + cell + box.childrenWidth;
+
+		box.width = Math.max(Math.max(nameWidth, columnsWidth + box.detailsWidth), countsWidth);
+		int rows = 2 + box.columns.size() + (box.elipses ? 1 : 0);
+		box.height = rows * rowHeight;
+	}
+
+	/**
+	 * @return what's shown for some optional text
+	 */
+	static String getText(String text) {
+		return text == null ? "" : text;
+	}
+
+	/**
+	 * Put each table in a layer to the right of all of its parents.
+	 * Tables that are in cycles are split where depth first search first comes back round to them.
+	 */
+	private void assignLayers() {
+		Map<Box, List<Box>> successors = new IdentityHashMap<Box, List<Box>>();
+		for (Box box : boxes)
+			successors.put(box, new ArrayList<Box>());
+		for (Route route : routes) {
+			if (!route.isLoop())
+				successors.get(route.parent).add(route.child);
+		}
+
+		// drop the connectors that go back to a table still being searched from
+		Set<Box> visited = new HashSet<Box>();
+		Set<Box> searching = new HashSet<Box>();
+		for (Box box : boxes)
+			breakCycles(box, successors, visited, searching);
+
+		Map<Box, Integer> numPredecessors = new IdentityHashMap<Box, Integer>();
+		for (Box box : boxes)
+			numPredecessors.put(box, 0);
+		for (List<Box> children : successors.values()) {
+			for (Box child : children)
+				numPredecessors.put(child, numPredecessors.get(child) + 1);
+		}
+
+		// longest path from the tables without parents
+		LinkedList<Box> ready = new LinkedList<Box>();
+		for (Box box : boxes) {
+			if (numPredecessors.get(box) == 0)
+				ready.add(box);
+		}
+		while (!ready.isEmpty()) {
+			Box box = ready.removeFirst();
+			for (Box child : successors.get(box)) {
+				child.layer = Math.max(child.layer, box.layer + 1);
+				int remaining = numPredecessors.get(child) - 1;
+				numPredecessors.put(child, remaining);
+				if (remaining == 0)
+					ready.add(child);
+			}
+		}
+
+		// pull the tables without parents over to their nearest child,
+		// otherwise they'd all be left in the first layer
+		Set<Box> hasParents = new HashSet<Box>();
+		for (List<Box> children : successors.values())
+			hasParents.addAll(children);
+		for (Box box : boxes) {
+			if (!hasParents.contains(box) && !successors.get(box).isEmpty()) {
+				int nearest = Integer.MAX_VALUE;
+				for (Box child : successors.get(box))
+					nearest = Math.min(nearest, child.layer);
+				box.layer = nearest - 1;
+			}
+		}
+
+		for (Box box : boxes)
+			getLayer(box.layer).add(box);
+	}
+
+	private void breakCycles(Box box, Map<Box, List<Box>> successors, Set<Box> visited, Set<Box> searching) {
+		if (!visited.add(box))
+			return;
+		searching.add(box);
+		List<Box> children = successors.get(box);
+		for (Box child : new ArrayList<Box>(children)) {
+			if (searching.contains(child))
+				children.remove(child);
+			else
+				breakCycles(child, successors, visited, searching);
+		}
+		searching.remove(box);
+	}
+
+	private List<Box> getLayer(int layer) {
+		while (layers.size() <= layer)
+			layers.add(new ArrayList<Box>());
+		return layers.get(layer);
+	}
+
+	/**
+	 * Link each connector's tables together through a point in each layer between them
+	 */
+	private void addPointsOfLongRoutes() {
+		for (Route route : routes) {
+			if (route.isLoop())
+				continue;
+			Box from = route.child.layer < route.parent.layer ? route.child : route.parent;
+			Box to = from == route.child ? route.parent : route.child;
+			Box previous = from;
+			for (int layer = from.layer + 1; layer < to.layer; ++layer) {
+				Box point = new Box(null);
+				point.layer = layer;
+				point.height = rowHeight / 2;
+				getLayer(layer).add(point);
+				route.via.add(point);
+				link(previous, point);
+				previous = point;
+			}
+			link(previous, to);
+		}
+	}
+
+	private void link(Box from, Box to) {
+		from.right.add(to);
+		to.left.add(from);
+	}
+
+	/**
+	 * Sweep back and forth across the layers, sorting each by the average position
+	 * of what it's connected to in the layer before, keeping the order with the fewest crossings.
+	 */
+	private void orderLayers() {
+		List<List<Box>> best = copyLayers();
+		int fewestCrossings = countCrossings();
+		for (int sweep = 0; sweep < ORDERING_SWEEPS && fewestCrossings > 0; ++sweep) {
+			boolean rightwards = sweep % 2 == 0;
+			if (rightwards) {
+				for (int layer = 1; layer < layers.size(); ++layer)
+					sortByBarycenter(layers.get(layer), layers.get(layer - 1), true);
+			} else {
+				for (int layer = layers.size() - 2; layer >= 0; --layer)
+					sortByBarycenter(layers.get(layer), layers.get(layer + 1), false);
+			}
+			int crossings = countCrossings();
+			if (crossings < fewestCrossings) {
+				fewestCrossings = crossings;
+				best = copyLayers();
+			}
+		}
+		layers.clear();
+		layers.addAll(best);
+	}
+
+	private void sortByBarycenter(List<Box> layer, List<Box> fixed, boolean fromLeft) {
+		final Map<Box, Double> barycenters = new IdentityHashMap<Box, Double>();
+		Map<Box, Integer> positions = getPositions(fixed);
+		for (int i = 0; i < layer.size(); ++i) {
+			Box box = layer.get(i);
+			List<Box> neighbours = fromLeft ? box.left : box.right;
+			double barycenter = i;
+			if (!neighbours.isEmpty()) {
+				double total = 0;
+				for (Box neighbour : neighbours)
+					total += positions.get(neighbour);
+				// scaled so that unconnected boxes roughly keep their place
+				barycenter = total / neighbours.size() * layer.size() / Math.max(1, fixed.size());
+			}
+			barycenters.put(box, barycenter);
+		}
+		Collections.sort(layer, new Comparator<Box>() {
+			public int compare(Box box1, Box box2) {
+				return barycenters.get(box1).compareTo(barycenters.get(box2));
+			}
+		});
+	}
+
+	private static Map<Box, Integer> getPositions(List<Box> layer) {
+		Map<Box, Integer> positions = new IdentityHashMap<Box, Integer>();
+		for (int i = 0; i < layer.size(); ++i)
+			positions.put(layer.get(i), i);
+		return positions;
+	}
+
+	private int countCrossings() {
+		int crossings = 0;
+		for (int layer = 0; layer + 1 < layers.size(); ++layer) {
+			Map<Box, Integer> positions = getPositions(layers.get(layer + 1));
+			List<int[]> edges = new ArrayList<int[]>();
+			List<Box> boxesInLayer = layers.get(layer);
+			for (int i = 0; i < boxesInLayer.size(); ++i) {
+				for (Box neighbour : boxesInLayer.get(i).right)
+					edges.add(new int[] {i, positions.get(neighbour)});
+			}
+			for (int i = 0; i < edges.size(); ++i) {
+				int[] edge1 = edges.get(i);
+				for (int j = i + 1; j < edges.size(); ++j) {
+					int[] edge2 = edges.get(j);
+					if ((edge1[0] - edge2[0]) * (edge1[1] - edge2[1]) < 0)
+						++crossings;
+				}
+			}
+		}
+		return crossings;
+	}
+
+	private List<List<Box>> copyLayers() {
+		List<List<Box>> copy = new ArrayList<List<Box>>();
+		for (List<Box> layer : layers)
+			copy.add(new ArrayList<Box>(layer));
+		return copy;
+	}
+
+	/**
+	 * Line the layers up from left to right and stack the boxes in each one,
+	 * moving them towards the middle of what they're connected to.
+	 */
+	private void placeBoxes() {
+		int x = MARGIN;
+		for (List<Box> layer : layers) {
+			if (layer.isEmpty())
+				continue; // its tables were all pulled over to their children
+			int layerWidth = 0;
+			for (Box box : layer)
+				layerWidth = Math.max(layerWidth, box.width);
+			int y = 0;
+			for (Box box : layer) {
+				if (box.node == null) {
+					box.x = x;
+					box.width = layerWidth;
+				} else {
+					box.x = x + (layerWidth - box.width) / 2;
+				}
+				box.y = y;
+				y += box.height + NODE_SEPARATION;
+			}
+			x += layerWidth + RANK_SEPARATION;
+		}
+
+		for (int sweep = 0; sweep < ALIGNMENT_SWEEPS; ++sweep) {
+			if (sweep % 2 == 0) {
+				for (int layer = 0; layer < layers.size(); ++layer)
+					align(layers.get(layer));
+			} else {
+				for (int layer = layers.size() - 1; layer >= 0; --layer)
+					align(layers.get(layer));
+			}
+		}
+
+		int top = Integer.MAX_VALUE;
+		int right = MARGIN;
+		int bottom = 0;
+		for (List<Box> layer : layers) {
+			for (Box box : layer)
+				top = Math.min(top, box.y);
+		}
+		for (List<Box> layer : layers) {
+			for (Box box : layer) {
+				box.y += MARGIN - top;
+				right = Math.max(right, box.x + box.width);
+				bottom = Math.max(bottom, box.y + box.height);
+			}
+		}
+		width = right + MARGIN;
+		height = Math.max(bottom, MARGIN) + MARGIN;
+	}
+
+	/**
+	 * Move the boxes of a layer towards the middle of their neighbours,
+	 * keeping them in order and apart
+	 */
+	private void align(List<Box> layer) {
+		if (layer.isEmpty())
+			return;
+		int[] wanted = new int[layer.size()];
+		for (int i = 0; i < layer.size(); ++i) {
+			Box box = layer.get(i);
+			int total = 0;
+			int count = 0;
+			for (Box neighbour : box.left) {
+				total += neighbour.getCenterY();
+				++count;
+			}
+			for (Box neighbour : box.right) {
+				total += neighbour.getCenterY();
+				++count;
+			}
+			wanted[i] = (count == 0 ? box.getCenterY() : total / count) - box.height / 2;
+		}
+
+		// push down to keep them apart, then shift back up by the average overshoot
+		long overshoot = 0;
+		int next = Integer.MIN_VALUE;
+		for (int i = 0; i < layer.size(); ++i) {
+			Box box = layer.get(i);
+			box.y = Math.max(wanted[i], next);
+			overshoot += box.y - wanted[i];
+			next = box.y + box.height + NODE_SEPARATION;
+		}
+		int shift = (int)(overshoot / layer.size());
+		for (Box box : layer)
+			box.y -= shift;
+	}
+
+	/**
+	 * Work out the points that each connector goes through, from the side of the child
+	 * facing its parent, across the layers in between, to the side of the parent facing the child.
+	 */
+	private void placeRoutes() {
+		for (Route route : routes) {
+			int childY = route.child.y + route.child.getRow(route.connector.getChildPort()) * rowHeight + rowHeight / 2;
+			int parentY = route.parent.y + route.parent.getRow(route.connector.getParentPort()) * rowHeight + rowHeight / 2;
+			int points = 2 + 2 * route.via.size();
+			route.xs = new int[points];
+			route.ys = new int[points];
+
+			boolean leftwards = route.getDirection() < 0;
+			List<Box> via = new ArrayList<Box>(route.via);
+			if (leftwards)
+				Collections.reverse(via);
+			route.xs[0] = leftwards ? route.child.x : route.child.x + route.child.width;
+			route.ys[0] = childY;
+			int point = 1;
+			for (Box box : via) {
+				int y = box.getCenterY();
+				route.xs[point] = leftwards ? box.x + box.width : box.x;
+				route.ys[point++] = y;
+				route.xs[point] = leftwards ? box.x : box.x + box.width;
+				route.ys[point++] = y;
+			}
+			route.xs[point] = leftwards || route.isLoop() ? route.parent.x + route.parent.width : route.parent.x;
+			route.ys[point] = parentY;
+		}
+	}
+}
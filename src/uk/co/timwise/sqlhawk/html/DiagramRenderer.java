@@ -0,0 +1,304 @@
+/* This file is a part of the sqlHawk project.
+ * http://timabell.github.com/sqlHawk/
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package uk.co.timwise.sqlhawk.html;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+/**
+ * Turns .dot files into images in the background, running a limited number
+ * of dot processes at once.<p/>
+ *
+ * Jobs are queued with {@link #render(File, File, DotGraph)}, which returns straight away,
+ * so pages can carry on being written while their diagrams are laid out and only
+ * wait for the image maps when they need them.
+ * Dot is killed if a job runs for longer than the timeout.
+ * Diagrams that are in the {@link DiagramCache}, if there is one, are copied from there instead.<p/>
+ *
+ * Small diagrams queued with {@link #renderSmall(File, File, DotGraph)} can be batched up
+ * so that one dot process draws many of them. A batch is started once it's full
+ * or as soon as one of its diagrams is waited for.<p/>
+ *
+ * Alternatively the diagrams can be drawn as svg by {@link SvgDiagramWriter}
+ * without running dot at all, in which case the "image map" of each diagram is its svg.
+ */
+public class DiagramRenderer {
+	private final Dot dot;
+	private final long timeoutMillis;
+	private final ExecutorService executor;
+	private final ScheduledExecutorService watchdog;
+	private final DiagramCache cache;
+	private final int batchSize;
+	private final SvgDiagramWriter svgWriter;
+	private final List<Job> batch = new ArrayList<Job>();
+	private final Logger logger = Logger.getLogger(getClass().getName());
+
+	/**
+	 * @param dot
+	 * @param threads the most dot processes to run at once, -1 for one per processor
+	 * @param timeoutSeconds how long each dot process can run for, 0 for no limit
+	 * @param cache diagrams from previous runs, may be <code>null</code>
+	 * @param batchSize most small diagrams to draw with one dot process, 1 to draw them all separately
+	 */
+	public DiagramRenderer(Dot dot, int threads, int timeoutSeconds, DiagramCache cache, int batchSize) {
+		if (threads < 0) //-1 means one per processor
+			threads = Runtime.getRuntime().availableProcessors();
+		this.dot = dot;
+		this.timeoutMillis = timeoutSeconds * 1000L;
+		this.executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		this.watchdog = timeoutMillis > 0 ? Executors.newSingleThreadScheduledExecutor() : null;
+		this.cache = cache;
+		// the images can only be split back up if they're png
+		this.batchSize = "png".equals(dot.getFormat()) ? Math.max(1, batchSize) : 1;
+		this.svgWriter = null;
+		logger.fine("Rendering diagrams with up to " + Math.max(1, threads) + " dot processes");
+	}
+
+	/**
+	 * Draw the diagrams as svg instead of running dot
+	 *
+	 * @param svgWriter
+	 * @param threads the most diagrams to draw at once, -1 for one per processor
+	 */
+	public DiagramRenderer(SvgDiagramWriter svgWriter, int threads) {
+		if (threads < 0) //-1 means one per processor
+			threads = Runtime.getRuntime().availableProcessors();
+		this.dot = null;
+		this.timeoutMillis = 0;
+		this.executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		this.watchdog = null;
+		this.cache = null;
+		this.batchSize = 1;
+		this.svgWriter = svgWriter;
+		logger.fine("Drawing svg diagrams on up to " + Math.max(1, threads) + " threads");
+	}
+
+	/**
+	 * Whether diagrams are drawn as svg, which has the links built in,
+	 * rather than as an image with an image map
+	 */
+	public boolean isSvg() {
+		return svgWriter != null;
+	}
+
+	/**
+	 * Queue a diagram to be generated.
+	 *
+	 * @param dotFile the .dot file written from <code>graph</code>
+	 * @param diagramFile the image to generate, not written when drawing svg
+	 * @param graph
+	 * @return the diagram's image map (or svg), or a {@link Dot.DotFailure} from {@link Future#get()}
+	 */
+	public Future<String> render(final File dotFile, final File diagramFile, final DotGraph graph) {
+		return executor.submit(new Callable<String>() {
+			public String call() throws Exception {
+				if (svgWriter != null)
+					return svgWriter.write(graph);
+				return renderOne(dotFile, diagramFile, true);
+			}
+		});
+	}
+
+	/**
+	 * Queue a diagram that's expected to be quick to lay out, which may be
+	 * drawn by the same dot process as others.
+	 *
+	 * @return the diagram's image map (or svg), or a {@link Dot.DotFailure} from {@link Future#get()}
+	 */
+	public Future<String> renderSmall(File dotFile, File diagramFile, DotGraph graph) {
+		if (batchSize == 1)
+			return render(dotFile, diagramFile, graph);
+		Job job = new Job(dotFile, diagramFile);
+		List<Job> full = null;
+		synchronized (batch) {
+			batch.add(job);
+			if (batch.size() >= batchSize)
+				full = takeBatch();
+		}
+		if (full != null)
+			submit(full);
+		return job;
+	}
+
+	private String renderOne(File dotFile, File diagramFile, boolean checkCache) throws IOException {
+		if (cache == null)
+			return dot.generateDiagram(dotFile, diagramFile, watchdog, timeoutMillis);
+		String key = cache.getKey(dotFile, dot);
+		String map = checkCache ? cache.get(key, dot, diagramFile) : null;
+		if (map == null) {
+			map = dot.generateDiagram(dotFile, diagramFile, watchdog, timeoutMillis);
+			cache.put(key, dot, diagramFile, map);
+		}
+		return map;
+	}
+
+	/**
+	 * A small diagram waiting to be drawn along with others
+	 */
+	private class Job extends FutureTask<String> {
+		private final File dotFile;
+		private final File diagramFile;
+
+		Job(final File dotFile, final File diagramFile) {
+			// run on its own if the batch it's in fails
+			super(new Callable<String>() {
+				public String call() throws Exception {
+					return renderOne(dotFile, diagramFile, false);
+				}
+			});
+			this.dotFile = dotFile;
+			this.diagramFile = diagramFile;
+		}
+
+		@Override
+		public String get() throws InterruptedException, ExecutionException {
+			startBatch(this);
+			return super.get();
+		}
+
+		@Override
+		public String get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			startBatch(this);
+			return super.get(timeout, unit);
+		}
+
+		void drawn(String map) {
+			set(map);
+		}
+
+		void failed(Throwable failure) {
+			setException(failure);
+		}
+	}
+
+	private List<Job> takeBatch() {
+		List<Job> full = new ArrayList<Job>(batch);
+		batch.clear();
+		return full;
+	}
+
+	/**
+	 * Start the batch that a job is in, if it hasn't been already
+	 */
+	private void startBatch(Job job) {
+		List<Job> started;
+		synchronized (batch) {
+			if (!batch.contains(job))
+				return;
+			started = takeBatch();
+		}
+		submit(started);
+	}
+
+	private void submit(final List<Job> jobs) {
+		executor.submit(new Runnable() {
+			public void run() {
+				try {
+					renderBatch(jobs);
+				} catch (RuntimeException exc) {
+					// don't leave anything waiting for a job that'll never be drawn
+					for (Job job : jobs)
+						job.failed(exc);
+				}
+			}
+		});
+	}
+
+	private void renderBatch(List<Job> jobs) {
+		List<Job> toDraw = new ArrayList<Job>();
+		List<String> keys = new ArrayList<String>();
+		for (Job job : jobs) {
+			if (cache == null) {
+				toDraw.add(job);
+				continue;
+			}
+			try {
+				String key = cache.getKey(job.dotFile, dot);
+				String map = cache.get(key, dot, job.diagramFile);
+				if (map != null) {
+					job.drawn(map);
+				} else {
+					toDraw.add(job);
+					keys.add(key);
+				}
+			} catch (IOException exc) {
+				job.failed(exc);
+			}
+		}
+
+		if (toDraw.size() > 1) {
+			List<File> dotFiles = new ArrayList<File>();
+			List<File> diagramFiles = new ArrayList<File>();
+			for (Job job : toDraw) {
+				dotFiles.add(job.dotFile);
+				diagramFiles.add(job.diagramFile);
+			}
+			try {
+				List<String> maps = dot.generateDiagrams(dotFiles, diagramFiles, watchdog, timeoutMillis * toDraw.size());
+				for (int i = 0; i < toDraw.size(); ++i) {
+					if (cache != null)
+						cache.put(keys.get(i), dot, diagramFiles.get(i), maps.get(i));
+					toDraw.get(i).drawn(maps.get(i));
+				}
+				return;
+			} catch (Dot.DotFailure failure) {
+				logger.fine("Failed to draw " + toDraw.size() + " diagrams together, drawing them separately: " + failure);
+			}
+		}
+		for (Job job : toDraw)
+			job.run();
+	}
+
+	/**
+	 * Wait for an image map, passing on any failure to render it.
+	 *
+	 * @param map from {@link #render(File, File, DotGraph)}
+	 */
+	public static String getMap(Future<String> map) throws IOException {
+		try {
+			return map.get();
+		} catch (InterruptedException interrupted) {
+			throw new RuntimeException(interrupted);
+		} catch (ExecutionException failure) {
+			if (failure.getCause() instanceof IOException)
+				throw (IOException)failure.getCause();
+			throw new RuntimeException(failure.getCause());
+		}
+	}
+
+	/**
+	 * Stop rendering, abandoning any diagrams that haven't been started
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+		if (watchdog != null)
+			watchdog.shutdownNow();
+		if (cache != null)
+			cache.logUsage();
+	}
+}
@@ -17,17 +17,28 @@ package uk.co.timwise.sqlhawk.html;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import uk.co.timwise.sqlhawk.config.Config;
+import uk.co.timwise.sqlhawk.config.DiagramEngine;
+import uk.co.timwise.sqlhawk.profile.RunProfile;
+import uk.co.timwise.sqlhawk.util.FileHandling;
 
 public class Dot {
 	private static Dot instance = new Dot();
@@ -35,6 +46,7 @@ public class Dot {
 	private final Version supportedVersion = new Version("2.2.1");
 	private final Version badVersion = new Version("2.4");
 	private final String lineSeparator = System.getProperty("line.separator");
+	private static final int PNG_SIGNATURE_LENGTH = 8;
 	private String dotExe;
 	private String format = "png";
 	private String renderer;
@@ -60,13 +72,13 @@ public class Dot {
 			if (matcher.find()) {
 				versionText = matcher.group();
 			} else {
-				if (Config.getInstance().isHtmlGenerationEnabled()) {
+				if (isNeeded()) {
 					logger.warning("Invalid dot configuration detected.  '" +
 							getDisplayableCommand(dotCommand) + "' returned:\n   " + versionLine);
 				}
 			}
 		} catch (Exception validDotDoesntExist) {
-			if (Config.getInstance().isHtmlGenerationEnabled()) {
+			if (isNeeded()) {
 				logger.warning("Failed to query Graphviz version information  with: "
 						+ getDisplayableCommand(dotCommand) + "\n  " + validDotDoesntExist);
 			}
@@ -75,6 +87,14 @@ public class Dot {
 		version = new Version(versionText);
 	}
 
+	/**
+	 * Whether diagrams are going to be drawn with dot, so it's worth warning that it can't be run
+	 */
+	private static boolean isNeeded() {
+		Config config = Config.getInstance();
+		return config.isHtmlGenerationEnabled() && config.getDiagramEngine() == DiagramEngine.GRAPHVIZ;
+	}
+
 	public static Dot getInstance() {
 		return instance;
 	}
@@ -243,54 +263,225 @@ public class Dot {
 	 * Using the specified .dot file generates an image returning the image's image map.
 	 */
 	public String generateDiagram(File dotFile, File diagramFile) throws DotFailure {
-		StringBuilder mapBuffer = new StringBuilder(1024);
+		return generateDiagram(dotFile, diagramFile, null, 0);
+	}
 
-		BufferedReader mapReader = null;
+	/**
+	 * Using the specified .dot file generates an image returning the image's image map.<p/>
+	 *
+	 * The image map is written to a file next to the image then read back and deleted,
+	 * so that dot's output and errors can be merged and read on the calling thread
+	 * without a thread of their own.
+	 *
+	 * @param watchdog used to kill dot if it takes too long, may be <code>null</code> if there's no timeout
+	 * @param timeoutMillis how long dot can run for, 0 for no limit
+	 */
+	public String generateDiagram(File dotFile, File diagramFile, ScheduledExecutorService watchdog, long timeoutMillis) throws DotFailure {
+		File mapFile = new File(diagramFile.getPath() + ".cmapx");
 		// this one is for executing.  it can (hopefully) deal with funky things in filenames.
-		String[] dotCommand = new String[] {
+		String[] dotCommand = getCommand(dotFile, diagramFile, mapFile);
+		// this one is for display purposes ONLY.
+		String commandLine = getDisplayableCommand(dotCommand);
+
+		RunProfile.Timer timer = RunProfile.getInstance().startPhase("html: dot");
+		try {
+			run(dotCommand, commandLine, watchdog, timeoutMillis);
+			if (!diagramFile.exists())
+				throw new DotFailure("'" + commandLine + "' failed to create output file");
+			RunProfile.getInstance().addBytesWritten(diagramFile.length());
+			return readMaps(mapFile, false).get(0);
+		} catch (DotFailure failed) {
+			diagramFile.delete();
+			throw failed;
+		} catch (IOException failed) {
+			diagramFile.delete();
+			throw new DotFailure("'" + commandLine + "' failed with exception " + failed);
+		} finally {
+			mapFile.delete();
+			timer.stop(diagramFile.getName());
+		}
+	}
+
+	/**
+	 * Generate several png images with one run of dot, returning their image maps.<p/>
+	 *
+	 * The .dot files are joined together, dot writes the images one after another to a single
+	 * file and the image maps likewise, and these are split back up at the end of each png
+	 * and each map. Worthwhile for small diagrams that take dot longer to start than to lay out.
+	 *
+	 * @param watchdog used to kill dot if it takes too long, may be <code>null</code> if there's no timeout
+	 * @param timeoutMillis how long dot can run for, 0 for no limit
+	 * @throws DotFailure if any of the diagrams couldn't be generated, in which case none of them have been
+	 */
+	public List<String> generateDiagrams(List<File> dotFiles, List<File> diagramFiles, ScheduledExecutorService watchdog, long timeoutMillis) throws DotFailure {
+		if (!"png".equals(getFormat()))
+			throw new IllegalStateException("Only png diagrams can be generated together");
+		File dir = diagramFiles.get(0).getParentFile();
+		File dotFile = null;
+		File diagramFile = null;
+		File mapFile = null;
+		String commandLine = null;
+
+		RunProfile.Timer timer = RunProfile.getInstance().startPhase("html: dot");
+		try {
+			dotFile = File.createTempFile("sqlHawk", ".dot", dir);
+			diagramFile = File.createTempFile("sqlHawk", ".png", dir);
+			mapFile = File.createTempFile("sqlHawk", ".cmapx", dir);
+			OutputStream dot = new FileOutputStream(dotFile);
+			try {
+				for (File file : dotFiles) {
+					dot.write(FileHandling.readBytes(file));
+					dot.write('\n');
+				}
+			} finally {
+				dot.close();
+			}
+
+			String[] dotCommand = getCommand(dotFile, diagramFile, mapFile);
+			commandLine = getDisplayableCommand(dotCommand) + " (" + dotFiles.size() + " diagrams)";
+			run(dotCommand, commandLine, watchdog, timeoutMillis);
+
+			List<byte[]> images = splitPngs(FileHandling.readBytes(diagramFile));
+			List<String> maps = readMaps(mapFile, true);
+			if (images.size() != dotFiles.size() || maps.size() != dotFiles.size())
+				throw new DotFailure("'" + commandLine + "' generated " + images.size() + " images and " + maps.size() + " maps");
+			for (int i = 0; i < images.size(); ++i) {
+				OutputStream out = new FileOutputStream(diagramFiles.get(i));
+				try {
+					out.write(images.get(i));
+				} finally {
+					out.close();
+				}
+				RunProfile.getInstance().addBytesWritten(images.get(i).length);
+			}
+			return maps;
+		} catch (DotFailure failed) {
+			throw failed;
+		} catch (IOException failed) {
+			for (File file : diagramFiles)
+				file.delete();
+			throw new DotFailure("'" + commandLine + "' failed with exception " + failed);
+		} finally {
+			if (dotFile != null)
+				dotFile.delete();
+			if (diagramFile != null)
+				diagramFile.delete();
+			if (mapFile != null)
+				mapFile.delete();
+			timer.stop(dotFiles.size() + " diagrams");
+		}
+	}
+
+	private String[] getCommand(File dotFile, File diagramFile, File mapFile) {
+		return new String[] {
 				getExe(),
 				"-T" + getFormat() + getRenderer(),
 				dotFile.toString(),
 				"-o" + diagramFile,
-				"-Tcmapx"
+				"-Tcmapx",
+				"-o" + mapFile
 		};
-		// this one is for display purposes ONLY.
-		String commandLine = getDisplayableCommand(dotCommand);
+	}
 
+	/**
+	 * Run dot, logging what it has to say and killing it if it runs for too long
+	 */
+	private void run(String[] dotCommand, String commandLine, ScheduledExecutorService watchdog, long timeoutMillis) throws IOException {
+		BufferedReader outputReader = null;
+		ScheduledFuture<?> kill = null;
 		try {
-			Process process = Runtime.getRuntime().exec(dotCommand);
-			new ProcessOutputReader(commandLine, process.getErrorStream()).start();
-			mapReader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+			final Process process = new ProcessBuilder(dotCommand).redirectErrorStream(true).start();
+			final AtomicBoolean killed = new AtomicBoolean();
+			if (timeoutMillis > 0) {
+				kill = watchdog.schedule(new Runnable() {
+					public void run() {
+						killed.set(true);
+						process.destroy();
+					}
+				}, timeoutMillis, TimeUnit.MILLISECONDS);
+			}
+			process.getOutputStream().close();
+			outputReader = new BufferedReader(new InputStreamReader(process.getInputStream()));
 			String line;
-			while ((line = mapReader.readLine()) != null) {
-				mapBuffer.append(line);
-				mapBuffer.append(lineSeparator);
+			while ((line = outputReader.readLine()) != null) {
+				// don't report port id unrecognized or unrecognized port
+				if (line.indexOf("unrecognized") == -1 && line.indexOf("port") == -1)
+					logger.fine(commandLine + ": " + line);
 			}
 			int rc = process.waitFor();
+			if (killed.get())
+				throw new DotFailure("'" + commandLine + "' was killed after running for more than " + timeoutMillis / 1000 + " seconds");
 			if (rc != 0)
 				throw new DotFailure("'" + commandLine + "' failed with return code " + rc);
-			if (!diagramFile.exists())
-				throw new DotFailure("'" + commandLine + "' failed to create output file");
-
-			// dot generates post-HTML 4.0.1 output...convert trailing />'s to >'s
-			return mapBuffer.toString().replace("/>", ">");
 		} catch (InterruptedException interrupted) {
 			throw new RuntimeException(interrupted);
-		} catch (DotFailure failed) {
-			diagramFile.delete();
-			throw failed;
-		} catch (IOException failed) {
-			diagramFile.delete();
-			throw new DotFailure("'" + commandLine + "' failed with exception " + failed);
 		} finally {
-			if (mapReader != null) {
+			if (kill != null)
+				kill.cancel(false);
+			if (outputReader != null) {
 				try {
-					mapReader.close();
+					outputReader.close();
 				} catch (IOException ignore) {}
 			}
 		}
 	}
 
+	/**
+	 * Read the image maps that dot wrote.
+	 *
+	 * @param split <code>true</code> to return each map separately, otherwise the whole file is one map
+	 */
+	public List<String> readMaps(File mapFile, boolean split) throws IOException {
+		List<String> maps = new ArrayList<String>();
+		StringBuilder mapBuffer = new StringBuilder(1024);
+		BufferedReader mapReader = new BufferedReader(new InputStreamReader(new FileInputStream(mapFile)));
+		try {
+			String line;
+			while ((line = mapReader.readLine()) != null) {
+				mapBuffer.append(line);
+				mapBuffer.append(lineSeparator);
+				if (split && line.trim().equals("</map>")) {
+					// dot generates post-HTML 4.0.1 output...convert trailing />'s to >'s
+					maps.add(mapBuffer.toString().replace("/>", ">"));
+					mapBuffer.setLength(0);
+				}
+			}
+		} finally {
+			mapReader.close();
+		}
+		if (!split)
+			maps.add(mapBuffer.toString().replace("/>", ">"));
+		return maps;
+	}
+
+	/**
+	 * Split pngs that have been written one after another by walking their chunks,
+	 * each png ending with its IEND chunk.
+	 */
+	public List<byte[]> splitPngs(byte[] pngs) throws DotFailure {
+		List<byte[]> images = new ArrayList<byte[]>();
+		int start = 0;
+		while (start < pngs.length) {
+			int position = start + PNG_SIGNATURE_LENGTH;
+			boolean ended = false;
+			while (!ended) {
+				if (position + 8 > pngs.length)
+					throw new DotFailure("Truncated png after " + images.size() + " images");
+				int length = ((pngs[position] & 0xff) << 24) | ((pngs[position + 1] & 0xff) << 16)
+						| ((pngs[position + 2] & 0xff) << 8) | (pngs[position + 3] & 0xff);
+				ended = pngs[position + 4] == 'I' && pngs[position + 5] == 'E' && pngs[position + 6] == 'N' && pngs[position + 7] == 'D';
+				if (length < 0 || length > pngs.length - position - 12)
+					throw new DotFailure("Truncated png after " + images.size() + " images");
+				position += 12 + length; // length, type, data and crc
+			}
+			byte[] image = new byte[position - start];
+			System.arraycopy(pngs, start, image, 0, image.length);
+			images.add(image);
+			start = position;
+		}
+		return images;
+	}
+
 	public class DotFailure extends IOException {
 		private static final long serialVersionUID = 3833743270181351987L;
 
@@ -308,36 +499,4 @@ public class Dot {
 		}
 		return displayable.toString();
 	}
-
-	private static class ProcessOutputReader extends Thread {
-		private final BufferedReader processReader;
-		private final String command;
-		private final Logger logger = Logger.getLogger(getClass().getName());
-
-		ProcessOutputReader(String command, InputStream processStream) {
-			processReader = new BufferedReader(new InputStreamReader(processStream));
-			this.command = command;
-			setDaemon(true);
-		}
-
-		@Override
-		public void run() {
-			try {
-				String line;
-				while ((line = processReader.readLine()) != null) {
-					// don't report port id unrecognized or unrecognized port
-					if (line.indexOf("unrecognized") == -1 && line.indexOf("port") == -1)
-						logger.fine(command + ": " + line);
-				}
-			} catch (IOException ioException) {
-				ioException.printStackTrace();
-			} finally {
-				try {
-					processReader.close();
-				} catch (Exception exc) {
-					logger.severe("Error closing processReader in exception handler:\n  " + exc);
-				}
-			}
-		}
-	}
 }
\ No newline at end of file
@@ -186,4 +186,19 @@ public class DotConnector implements Comparable<DotConnector> {
 	public Table getChildTable() {
 		return childTable;
 	}
+
+	/**
+	 * The cell of the parent that the connector goes to: a column name,
+	 * column name + ".type" or "elipses"
+	 */
+	public String getParentPort() {
+		return parentPort;
+	}
+
+	/**
+	 * The cell of the child that the connector comes from: a column name or "elipses"
+	 */
+	public String getChildPort() {
+		return childPort;
+	}
 }
@@ -18,6 +18,7 @@ package uk.co.timwise.sqlhawk.html;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -39,13 +40,15 @@ import uk.co.timwise.sqlhawk.util.LineWriter;
  */
 public class DotFormatter {
 	private static DotFormatter instance;
-	private int fontSize;
+	private final Config config;
+	private final int fontSize;
 
 	/**
 	 * Singleton - prevent creation
 	 */
-	private DotFormatter() {
-		Integer configuredFontSize = Config.getInstance().getFontSize();
+	private DotFormatter(Config config) {
+		this.config = config;
+		Integer configuredFontSize = config.getFontSize();
 		if (configuredFontSize == null) {
 			fontSize = 11;
 		} else {
@@ -53,38 +56,45 @@ public class DotFormatter {
 		}
 	}
 
-	public static DotFormatter getInstance() {
-		instance = new DotFormatter();
+	/**
+	 * Singleton accessor, only made again when the config has been replaced.
+	 * The formatter has no state of its own so can be used by several threads.
+	 */
+	public static synchronized DotFormatter getInstance() {
+		Config config = Config.getInstance();
+		if (instance == null || instance.config != config)
+			instance = new DotFormatter(config);
 		return instance;
 	}
 
 	/**
-	 * Write real relationships (excluding implied) associated with the given table.<p>
-	 * Returns a set of the implied constraints that could have been included but weren't.
+	 * Write real relationships (excluding implied) associated with the given table.
+	 *
+	 * @return the graph that was written
 	 */
-	public void writeRealRelationships(Table table, boolean twoDegreesOfSeparation, Set<TableColumn> excludedColumns, LineWriter dot) throws IOException {
-		writeRelationships(table, twoDegreesOfSeparation, excludedColumns, false, dot);
+	public DotGraph writeRealRelationships(Table table, boolean twoDegreesOfSeparation, Set<TableColumn> excludedColumns, LineWriter dot) throws IOException {
+		return writeRelationships(table, twoDegreesOfSeparation, excludedColumns, false, dot);
 	}
 
 	/**
 	 * Write implied relationships associated with the given table
+	 *
+	 * @return the graph that was written
 	 */
-	public void writeAllRelationships(Table table, boolean twoDegreesOfSeparation, Set<TableColumn> excludedColumns, LineWriter dot) throws IOException {
-		writeRelationships(table, twoDegreesOfSeparation, excludedColumns, true, dot);
+	public DotGraph writeAllRelationships(Table table, boolean twoDegreesOfSeparation, Set<TableColumn> excludedColumns, LineWriter dot) throws IOException {
+		return writeRelationships(table, twoDegreesOfSeparation, excludedColumns, true, dot);
 	}
 
 	/**
-	 * Write relationships associated with the given table.<p>
-	 * Returns a set of the implied constraints that could have been included but weren't.
+	 * Write relationships associated with the given table.
 	 */
-	private void writeRelationships(Table table, boolean twoDegreesOfSeparation, Set<TableColumn> excludedColumns, boolean includeImplied, LineWriter dot) throws IOException {
+	private DotGraph writeRelationships(Table table, boolean twoDegreesOfSeparation, Set<TableColumn> excludedColumns, boolean includeImplied, LineWriter dot) throws IOException {
 		Set<Table> tablesWritten = new HashSet<Table>();
 		Set<ForeignKeyConstraint> skippedImpliedConstraints = new HashSet<ForeignKeyConstraint>();
 
 		DotConnectorFinder finder = DotConnectorFinder.getInstance();
 
 		String diagramName = includeImplied ? "impliedTwoDegreesRelationshipsDiagram" : (twoDegreesOfSeparation ? "twoDegreesRelationshipsDiagram" : "oneDegreeRelationshipsDiagram");
-		writeHeader(diagramName, true, dot);
 
 		Set<Table> relatedTables = getImmediateRelatives(table, true, includeImplied, skippedImpliedConstraints);
 
@@ -172,15 +182,21 @@ public class DotFormatter {
 				if (node != null)
 					node.setShowImplied(true);
 			}
+		}
+
+		DotGraph graph = new DotGraph(diagramName, true, nodes.values(), connectors);
+		writeHeader(diagramName, true, dot);
+		for (DotConnector connector : graph.getConnectors()) {
 			dot.writeln(connector.toString());
 		}
 
-		for (DotNode node : nodes.values()) {
+		for (DotNode node : graph.getNodes()) {
 			dot.writeln(node.toString());
 		}
 
 		dot.writeln("}");
-}
+		return graph;
+	}
 
 	private Set<Table> getImmediateRelatives(Table table, boolean includeExcluded, boolean includeImplied, Set<ForeignKeyConstraint> skippedImpliedConstraints) {
 		Set<TableColumn> relatedColumns = new HashSet<TableColumn>();
@@ -229,7 +245,7 @@ public class DotFormatter {
 		dot.writeln("// sqlHawk version " + DotFormatter.class.getPackage().getImplementationVersion());
 		dot.writeln("digraph \"" + diagramName + "\" {");
 		dot.writeln("  graph [");
-		boolean rankdirbug = Config.getInstance().isRankDirBugEnabled();
+		boolean rankdirbug = config.isRankDirBugEnabled();
 		if (!rankdirbug)
 			dot.writeln("    rankdir=\"RL\"");
 		dot.writeln("    bgcolor=\"" + StyleSheet.getInstance().getBodyBackground() + "\"");
@@ -242,15 +258,15 @@ public class DotFormatter {
 		}
 		dot.writeln("    nodesep=\"0.18\"");
 		dot.writeln("    ranksep=\"0.46\"");
-		String font = Config.getInstance().getFont();
+		String font = config.getFont();
 		if (font == null){
 			font = "Helvetica";
 		}
-		dot.writeln("    fontname=\"" + Config.getInstance().getFont() + "\"");
+		dot.writeln("    fontname=\"" + config.getFont() + "\"");
 		dot.writeln("    fontsize=\"" + fontSize + "\"");
 		dot.writeln("  ];");
 		dot.writeln("  node [");
-		dot.writeln("    fontname=\"" + Config.getInstance().getFont() + "\"");
+		dot.writeln("    fontname=\"" + config.getFont() + "\"");
 		dot.writeln("    fontsize=\"" + fontSize + "\"");
 		dot.writeln("    shape=\"plaintext\"");
 		dot.writeln("  ];");
@@ -259,18 +275,20 @@ public class DotFormatter {
 		dot.writeln("  ];");
 	}
 
-	public void writeRealRelationships(Database db, Collection<Table> tables, boolean compact, boolean showColumns, Set<TableColumn> excludedColumns, LineWriter dot) throws IOException {
-		writeRelationships(db, tables, compact, showColumns, false, excludedColumns, dot);
+	public DotGraph writeRealRelationships(Database db, Collection<Table> tables, boolean compact, boolean showColumns, Set<TableColumn> excludedColumns, LineWriter dot) throws IOException {
+		return writeRelationships(db, tables, compact, showColumns, false, excludedColumns, dot);
 	}
 
 	/**
-	 * Returns <code>true</code> if it wrote any implied relationships
+	 * Write the relationships between all of the tables, including implied ones
+	 *
+	 * @return the graph that was written
 	 */
-	public void writeAllRelationships(Database db, Collection<Table> tables, boolean compact, boolean showColumns, Set<TableColumn> excludedColumns, LineWriter dot) throws IOException {
-		writeRelationships(db, tables, compact, showColumns, true, excludedColumns, dot);
+	public DotGraph writeAllRelationships(Database db, Collection<Table> tables, boolean compact, boolean showColumns, Set<TableColumn> excludedColumns, LineWriter dot) throws IOException {
+		return writeRelationships(db, tables, compact, showColumns, true, excludedColumns, dot);
 	}
 
-	private void writeRelationships(Database db, Collection<Table> tables, boolean compact, boolean showColumns, boolean includeImplied, Set<TableColumn> excludedColumns, LineWriter dot) throws IOException {
+	private DotGraph writeRelationships(Database db, Collection<Table> tables, boolean compact, boolean showColumns, boolean includeImplied, Set<TableColumn> excludedColumns, LineWriter dot) throws IOException {
 		DotConnectorFinder finder = DotConnectorFinder.getInstance();
 		DotNodeConfig nodeConfig = showColumns ? new DotNodeConfig(!compact, false) : new DotNodeConfig();
 
@@ -286,7 +304,6 @@ public class DotFormatter {
 			else
 				diagramName = "largeRelationshipsDiagram";
 		}
-		writeHeader(diagramName, true, dot);
 
 		Map<Table, DotNode> nodes = new TreeMap<Table, DotNode>();
 
@@ -308,16 +325,19 @@ public class DotFormatter {
 
 		markExcludedColumns(nodes, excludedColumns);
 
-		for (DotNode node : nodes.values()) {
+		DotGraph graph = new DotGraph(diagramName, true, nodes.values(), connectors);
+		writeHeader(diagramName, true, dot);
+		for (DotNode node : graph.getNodes()) {
 			dot.writeln(node.toString());
 		}
 
-		for (DotConnector connector : connectors) {
+		for (DotConnector connector : graph.getConnectors()) {
 			dot.writeln(connector.toString());
 		}
 
 		dot.writeln("}");
-}
+		return graph;
+	}
 
 	private void markExcludedColumns(Map<Table, DotNode> nodes, Set<TableColumn> excludedColumns) {
 		for (TableColumn column : excludedColumns) {
@@ -328,9 +348,11 @@ public class DotFormatter {
 		}
 	}
 
-	public void writeOrphan(Table table, LineWriter dot) throws IOException {
+	public DotGraph writeOrphan(Table table, LineWriter dot) throws IOException {
+		DotNode node = new DotNode(table, true, "tables/");
 		writeHeader(table.getName(), false, dot);
-		dot.writeln(new DotNode(table, true, "tables/").toString());
+		dot.writeln(node.toString());
 		dot.writeln("}");
+		return new DotGraph(table.getName(), false, Collections.singletonList(node), Collections.<DotConnector>emptyList());
 	}
 }
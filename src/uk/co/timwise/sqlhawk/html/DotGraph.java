@@ -0,0 +1,61 @@
+/* This file is a part of the sqlHawk project.
+ * http://timabell.github.com/sqlHawk/
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package uk.co.timwise.sqlhawk.html;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The nodes and connectors of a diagram, as written to its .dot file,
+ * so that it can also be laid out without Graphviz.
+ */
+public class DotGraph {
+	private final String name;
+	private final boolean showLabel;
+	private final List<DotNode> nodes;
+	private final List<DotConnector> connectors;
+
+	public DotGraph(String name, boolean showLabel, Collection<DotNode> nodes, Collection<DotConnector> connectors) {
+		this.name = name;
+		this.showLabel = showLabel;
+		this.nodes = Collections.unmodifiableList(new ArrayList<DotNode>(nodes));
+		this.connectors = Collections.unmodifiableList(new ArrayList<DotConnector>(connectors));
+	}
+
+	/**
+	 * The name of the graph, which is also the name of its image map
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Whether the diagram is labelled with what generated it
+	 */
+	public boolean isShowLabel() {
+		return showLabel;
+	}
+
+	public List<DotNode> getNodes() {
+		return nodes;
+	}
+
+	public List<DotConnector> getConnectors() {
+		return connectors;
+	}
+}
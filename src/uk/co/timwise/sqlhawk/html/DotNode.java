@@ -16,6 +16,7 @@
 package uk.co.timwise.sqlhawk.html;
 
 import java.text.NumberFormat;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -75,13 +76,110 @@ public class DotNode {
 		excludedColumns.add(column);
 	}
 
+	/**
+	 * The table's name, prefixed with its schema if it's in another one
+	 */
+	public String getFullName() {
+		return (table.isRemote() ? table.getSchema() + "." : "") + table.getName();
+	}
+
+	/**
+	 * Whether the details (type and size) of the columns are shown
+	 */
+	public boolean isShowColumnDetails() {
+		return config.showColumnDetails;
+	}
+
+	/**
+	 * The columns that are shown, in order
+	 */
+	public List<TableColumn> getShownColumns() {
+		List<TableColumn> shown = new ArrayList<TableColumn>();
+		if (config.showColumns) {
+			Set<TableColumn> indexColumns = getIndexColumns();
+			for (TableColumn column : table.getColumns()) {
+				if (config.showTrivialColumns || config.showColumnDetails || column.isPrimary() || column.isForeignKey() || indexColumns.contains(column))
+					shown.add(column);
+			}
+		}
+		return shown;
+	}
+
+	/**
+	 * Whether there's a row of "..." standing in for the columns that aren't shown
+	 */
+	public boolean hasElipses() {
+		return !config.showColumns || getShownColumns().size() < table.getColumns().size();
+	}
+
+	/**
+	 * @return the background of a shown column, <code>null</code> for the table's background
+	 */
+	public String getColumnBackground(TableColumn column) {
+		StyleSheet css = StyleSheet.getInstance();
+		if (excludedColumns.contains(column))
+			return css.getExcludedColumnBackgroundColor();
+		if (table.getPrimaryColumns().contains(column))
+			return css.getPrimaryKeyBackground();
+		if (getIndexColumns().contains(column))
+			return css.getIndexedColumnBackground();
+		return null;
+	}
+
+	private Set<TableColumn> getIndexColumns() {
+		Set<TableColumn> indexColumns = new HashSet<TableColumn>();
+		for (TableIndex index : table.getIndexes()) {
+			indexColumns.addAll(index.getColumns());
+		}
+		indexColumns.removeAll(table.getPrimaryColumns());
+		return indexColumns;
+	}
+
+	/**
+	 * @return e.g. "< 2", <code>null</code> if there's nothing to show
+	 */
+	public String getParentsText() {
+		int numParents = config.showImpliedRelationships ? table.getNumParents() : table.getNumNonImpliedParents();
+		return numParents > 0 || config.showColumnDetails ? "< " + numParents : null;
+	}
+
+	/**
+	 * @return "view", the number of rows, or <code>null</code> if there's nothing to show
+	 */
+	public String getRowsText() {
+		if (table.isView())
+			return "view";
+		final long numRows = table.getNumRows();
+		if (displayNumRows && numRows != -1)
+			return NumberFormat.getInstance().format(numRows) + " row" + (numRows != 1 ? "s" : "");
+		return null;
+	}
+
+	/**
+	 * @return e.g. "2 >", <code>null</code> if there's nothing to show
+	 */
+	public String getChildrenText() {
+		int numChildren = config.showImpliedRelationships ? table.getNumChildren() : table.getNumNonImpliedChildren();
+		return numChildren > 0 || config.showColumnDetails ? numChildren + " >" : null;
+	}
+
+	/**
+	 * @return the page of the table relative to the page the diagram is in,
+	 * 	<code>null</code> if it isn't part of the output
+	 */
+	public String getUrl() {
+		if (!table.isRemote() || Config.getInstance().isOneOfMultipleSchemas())
+			return path + table.getName() + ".html";
+		return null;
+	}
+
 	@Override
 	public String toString() {
 		StyleSheet css = StyleSheet.getInstance();
 		StringBuilder buf = new StringBuilder();
 		String tableName = table.getName();
 		// fully qualified table name (optionally prefixed with schema)
-		String fqTableName = (table.isRemote() ? table.getSchema() + "." : "") + tableName;
+		String fqTableName = getFullName();
 		String colspan = config.showColumnDetails ? "COLSPAN=\"2\" " : "COLSPAN=\"3\" ";
 
 		buf.append("  \"" + fqTableName + "\" [" + lineSeparator);
@@ -91,83 +189,45 @@ public class DotNode {
 		buf.append("<TD COLSPAN=\"3\" BGCOLOR=\"" + css.getTableHeadBackground() + "\" ALIGN=\"CENTER\">" + fqTableName + "</TD>");
 		buf.append("</TR>" + lineSeparator);
 
-		boolean skippedTrivial = false;
-
-		if (config.showColumns) {
-			List<TableColumn> primaryColumns = table.getPrimaryColumns();
-			Set<TableColumn> indexColumns = new HashSet<TableColumn>();
-
-			for (TableIndex index : table.getIndexes()) {
-				indexColumns.addAll(index.getColumns());
-			}
-			indexColumns.removeAll(primaryColumns);
-
-			for (TableColumn column : table.getColumns()) {
-				if (config.showTrivialColumns || config.showColumnDetails || column.isPrimary() || column.isForeignKey() || indexColumns.contains(column)) {
-					buf.append("      <TR>");
-					buf.append("<TD PORT=\"" + column.getName() + "\" " + colspan);
-					if (excludedColumns.contains(column))
-						buf.append("BGCOLOR=\"" + css.getExcludedColumnBackgroundColor() + "\" ");
-					else if (primaryColumns.contains(column))
-						buf.append("BGCOLOR=\"" + css.getPrimaryKeyBackground() + "\" ");
-					else if (indexColumns.contains(column))
-						buf.append("BGCOLOR=\"" + css.getIndexedColumnBackground() + "\" ");
-					buf.append("ALIGN=\"LEFT\">");
-					buf.append(column.getName());
-					buf.append("</TD>");
-					if (config.showColumnDetails) {
-						buf.append("<TD PORT=\"");
-						buf.append(column.getName());
-						buf.append(".type\" ALIGN=\"LEFT\">");
-						buf.append(column.getType().toLowerCase());
-						buf.append("[");
-						buf.append(column.getDetailedSize());
-						buf.append("]</TD>");
-					}
-					buf.append("</TR>" + lineSeparator);
-				} else {
-					skippedTrivial = true;
-				}
+		for (TableColumn column : getShownColumns()) {
+			buf.append("      <TR>");
+			buf.append("<TD PORT=\"" + column.getName() + "\" " + colspan);
+			String background = getColumnBackground(column);
+			if (background != null)
+				buf.append("BGCOLOR=\"" + background + "\" ");
+			buf.append("ALIGN=\"LEFT\">");
+			buf.append(column.getName());
+			buf.append("</TD>");
+			if (config.showColumnDetails) {
+				buf.append("<TD PORT=\"");
+				buf.append(column.getName());
+				buf.append(".type\" ALIGN=\"LEFT\">");
+				buf.append(getColumnDetails(column));
+				buf.append("</TD>");
 			}
+			buf.append("</TR>" + lineSeparator);
 		}
 
-		if (skippedTrivial || !config.showColumns) {
+		if (hasElipses()) {
 			buf.append("      <TR><TD PORT=\"elipses\" COLSPAN=\"3\" ALIGN=\"LEFT\">...</TD></TR>" + lineSeparator);
 		}
 
 		buf.append("      <TR>");
 		buf.append("<TD ALIGN=\"LEFT\" BGCOLOR=\"" + css.getBodyBackground() + "\">");
-		int numParents = config.showImpliedRelationships ? table.getNumParents() : table.getNumNonImpliedParents();
-		if (numParents > 0 || config.showColumnDetails)
-			buf.append("&lt; " + numParents);
-		else
-			buf.append("  ");
+		String parents = getParentsText();
+		buf.append(parents == null ? "  " : parents.replace("<", "&lt;"));
 		buf.append("</TD>");
 		buf.append("<TD ALIGN=\"RIGHT\" BGCOLOR=\"" + css.getBodyBackground() + "\">");
-		if (table.isView())
-			buf.append("view");
-		else {
-			final long numRows = table.getNumRows();
-			if (displayNumRows && numRows != -1) {
-				buf.append(NumberFormat.getInstance().format(numRows));
-				buf.append(" row");
-				if (numRows != 1)
-					buf.append('s');
-			} else {
-				buf.append("  ");
-			}
-		}
+		String rows = getRowsText();
+		buf.append(rows == null ? "  " : rows);
 		buf.append("</TD>");
 		buf.append("<TD ALIGN=\"RIGHT\" BGCOLOR=\"" + css.getBodyBackground() + "\">");
-		int numChildren = config.showImpliedRelationships ? table.getNumChildren() : table.getNumNonImpliedChildren();
-		if (numChildren > 0 || config.showColumnDetails)
-			buf.append(numChildren + " &gt;");
-		else
-			buf.append("  ");
+		String children = getChildrenText();
+		buf.append(children == null ? "  " : children.replace(">", "&gt;"));
 		buf.append("</TD></TR>" + lineSeparator);
 
 		buf.append("    </TABLE>>" + lineSeparator);
-		if (!table.isRemote() || Config.getInstance().isOneOfMultipleSchemas())
+		if (getUrl() != null)
 			buf.append("    URL=\"" + path + toNCR(tableName) + ".html\"" + lineSeparator);
 		buf.append("    tooltip=\"" + toNCR(fqTableName) + "\"" + lineSeparator);
 		buf.append("  ];");
@@ -175,6 +235,13 @@ public class DotNode {
 		return buf.toString();
 	}
 
+	/**
+	 * The type and size of a column, shown when column details are
+	 */
+	public static String getColumnDetails(TableColumn column) {
+		return column.getType().toLowerCase() + "[" + column.getDetailedSize() + "]";
+	}
+
 	/**
 	 * Translates specified string to Numeric Character Reference (NCR).
 	 * This (hopefully) allows Unicode languages to be displayed correctly.<p>
@@ -124,8 +124,9 @@ public class HtmlColumnsPage extends HtmlFormatter {
 
 		HtmlTablePage formatter = HtmlTablePage.getInstance();
 
+		int row = 0;
 		for (TableColumn column : columns) {
-			formatter.writeColumn(column, column.getTable().getName(), primaryColumns, indexedColumns, true, false, html);
+			formatter.writeColumn(column, column.getTable().getName(), primaryColumns, indexedColumns, true, false, row++ % 2 == 0, html);
 		}
 
 		writeFooter(html);
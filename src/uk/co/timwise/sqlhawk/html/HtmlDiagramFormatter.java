@@ -54,4 +54,32 @@ public class HtmlDiagramFormatter extends HtmlFormatter {
 
 		return dot;
 	}
+
+	/**
+	 * Whether diagrams can be drawn, warning (once) if they can't
+	 */
+	protected boolean canDraw(DiagramRenderer renderer) {
+		return renderer.isSvg() || getDot() != null;
+	}
+
+	/**
+	 * The image map to write before a diagram's image.
+	 * Nothing for svg, which has its links built in.
+	 */
+	protected String getImageMap(String map, DiagramRenderer renderer) {
+		return renderer.isSvg() ? "" : map;
+	}
+
+	/**
+	 * The element that shows a diagram: <code>img</code> for images drawn by dot,
+	 * otherwise the svg that was drawn, given <code>svgAttributes</code>
+	 * (e.g. the id and class that the <code>img</code> would've had).
+	 *
+	 * @param map from {@link DiagramRenderer#getMap(java.util.concurrent.Future)}
+	 */
+	protected String getImage(String map, String img, String svgAttributes, DiagramRenderer renderer) {
+		if (!renderer.isSvg())
+			return img;
+		return "<svg " + svgAttributes + map.substring("<svg".length());
+	}
 }
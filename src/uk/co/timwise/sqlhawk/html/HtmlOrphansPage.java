@@ -18,8 +18,11 @@ package uk.co.timwise.sqlhawk.html;
 import java.io.File;
 import java.io.IOException;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import uk.co.timwise.sqlhawk.model.Database;
@@ -48,10 +51,9 @@ public class HtmlOrphansPage extends HtmlDiagramFormatter {
 		return instance;
 	}
 
-	public void write(Database db, List<Table> orphanTables, File diagramDir, LineWriter html, String charset) throws IOException {
-		Dot dot = getDot();
-		if (dot == null) {
-			return; // getDot() will already have warned user so just pass
+	public void write(Database db, List<Table> orphanTables, File diagramDir, DiagramRenderer renderer, LineWriter html, String charset) throws IOException {
+		if (!canDraw(renderer)) {
+			return; // canDraw() will already have warned user so just pass
 		}
 
 		Set<Table> orphansWithImpliedRelationships = new HashSet<Table>();
@@ -68,6 +70,8 @@ public class HtmlOrphansPage extends HtmlDiagramFormatter {
 		try {
 			StringBuilder maps = new StringBuilder(64 * 1024);
 
+			// write all the .dot files and queue them up before waiting for any of them
+			Map<Table, Future<String>> orphanMaps = new LinkedHashMap<Table, Future<String>>();
 			for (Table table : orphanTables) {
 				String dotBaseFilespec = table.getName();
 
@@ -75,19 +79,28 @@ public class HtmlOrphansPage extends HtmlDiagramFormatter {
 				File imgFile = new File(diagramDir, dotBaseFilespec + ".1degree.png");
 
 				LineWriter dotOut = new LineWriter(dotFile, "UTF-8");
-				DotFormatter.getInstance().writeOrphan(table, dotOut);
+				DotGraph graph = DotFormatter.getInstance().writeOrphan(table, dotOut);
 				dotOut.close();
+				orphanMaps.put(table, renderer.renderSmall(dotFile, imgFile, graph));
+			}
+
+			for (Map.Entry<Table, Future<String>> orphanMap : orphanMaps.entrySet()) {
+				Table table = orphanMap.getKey();
+				File imgFile = new File(diagramDir, table.getName() + ".1degree.png");
+				String map;
 				try {
-					maps.append(dot.generateDiagram(dotFile, imgFile));
+					map = DiagramRenderer.getMap(orphanMap.getValue());
+					maps.append(getImageMap(map, renderer));
 				} catch (Dot.DotFailure dotFailure) {
 					logger.warning("Error generating diagram:\n  " + dotFailure);
+					for (Future<String> unwanted : orphanMaps.values())
+						unwanted.cancel(false);
 					return;
 				}
 
-				html.write("  <img src='diagrams/summary/" + imgFile.getName() + "' usemap='#" + table + "' border='0' alt='' align='top'");
-				if (orphansWithImpliedRelationships.contains(table))
-					html.write(" class='impliedNotOrphan'");
-				html.writeln(">");
+				String impliedClass = orphansWithImpliedRelationships.contains(table) ? " class='impliedNotOrphan'" : "";
+				html.writeln("  " + getImage(map, "<img src='diagrams/summary/" + imgFile.getName() + "' usemap='#" + table + "' border='0' alt='' align='top'" + impliedClass + ">",
+						"style='vertical-align: top'" + impliedClass, renderer));
 			}
 
 			html.write(maps.toString());
@@ -0,0 +1,102 @@
+/* This file is a part of the sqlHawk project.
+ * http://timabell.github.com/sqlHawk/
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package uk.co.timwise.sqlhawk.html;
+
+import java.io.IOException;
+import java.text.NumberFormat;
+
+import uk.co.timwise.sqlhawk.model.Database;
+import uk.co.timwise.sqlhawk.profile.ProfilePhase;
+import uk.co.timwise.sqlhawk.profile.RunProfile;
+import uk.co.timwise.sqlhawk.util.LineWriter;
+
+/**
+ * Summary of where the time of the run went, written when --profile is specified
+ */
+public class HtmlProfilePage extends HtmlFormatter {
+	private static HtmlProfilePage instance = new HtmlProfilePage();
+	private final NumberFormat integerFormatter = NumberFormat.getIntegerInstance();
+
+	/**
+	 * Singleton: Don't allow instantiation
+	 */
+	private HtmlProfilePage() {
+	}
+
+	/**
+	 * Singleton accessor
+	 *
+	 * @return the singleton instance
+	 */
+	public static HtmlProfilePage getInstance() {
+		return instance;
+	}
+
+	public void write(Database db, RunProfile profile, boolean hasOrphans, LineWriter html, String charset) throws IOException {
+		writeHeader(db, null, "Run Profile", hasOrphans, html, charset);
+		html.writeln("<table width='100%'>");
+		html.writeln("  <tr><td class='container'><b>Run took " + formatMillis(profile.getElapsedMillis())
+				+ ", running " + integerFormatter.format(profile.getStatementCount()) + " statements that returned "
+				+ integerFormatter.format(profile.getRowCount()) + " rows and writing "
+				+ integerFormatter.format(profile.getBytesWritten()) + " bytes.</b></td></tr>");
+		html.writeln("  <tr><td class='container'>Counts are of everything that happened while a phase was running, so phases that ran inside or alongside others include their work.</td></tr>");
+		html.writeln("</table>");
+
+		html.writeln("<table class='dataTable' border='1' rules='groups'>");
+		html.writeln("<colgroup>");
+		html.writeln("<colgroup>");
+		html.writeln("<colgroup>");
+		html.writeln("<colgroup>");
+		html.writeln("<colgroup>");
+		html.writeln("<colgroup>");
+		html.writeln("<colgroup>");
+		html.writeln("<thead align='left'>");
+		html.writeln("<tr>");
+		html.writeln("  <th>Phase</th>");
+		html.writeln("  <th>Runs</th>");
+		html.writeln("  <th>Total time</th>");
+		html.writeln("  <th>Slowest</th>");
+		html.writeln("  <th>Statements</th>");
+		html.writeln("  <th>Rows</th>");
+		html.writeln("  <th>Bytes written</th>");
+		html.writeln("</tr>");
+		html.writeln("</thead>");
+		html.writeln("<tbody>");
+		for (ProfilePhase phase : profile.getPhases()) {
+			html.writeln(" <tr>");
+			html.writeln("  <td class='detail'>" + HtmlEncoder.encodeString(phase.getName()) + "</td>");
+			html.writeln("  <td class='detail' align='right'>" + integerFormatter.format(phase.getCalls()) + "</td>");
+			html.writeln("  <td class='detail' align='right'>" + formatMillis(phase.getTotalMillis()) + "</td>");
+			html.write("  <td class='detail'>" + formatMillis(phase.getMaxMillis()));
+			if (phase.getCalls() > 1 && phase.getSlowestItem() != null)
+				html.write(" (" + HtmlEncoder.encodeString(phase.getSlowestItem()) + ")");
+			html.writeln("</td>");
+			html.writeln("  <td class='detail' align='right'>" + integerFormatter.format(phase.getStatements()) + "</td>");
+			html.writeln("  <td class='detail' align='right'>" + integerFormatter.format(phase.getRows()) + "</td>");
+			html.writeln("  <td class='detail' align='right'>" + integerFormatter.format(phase.getBytesWritten()) + "</td>");
+			html.writeln(" </tr>");
+		}
+		html.writeln("</tbody>");
+		html.writeln("</table>");
+		writeFooter(html);
+	}
+
+	private String formatMillis(long millis) {
+		if (millis < 10000)
+			return integerFormatter.format(millis) + " ms";
+		return integerFormatter.format(millis / 1000) + " s";
+	}
+}
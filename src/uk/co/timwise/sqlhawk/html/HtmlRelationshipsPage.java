@@ -17,7 +17,10 @@ package uk.co.timwise.sqlhawk.html;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Future;
+
 import uk.co.timwise.sqlhawk.model.Database;
 import uk.co.timwise.sqlhawk.model.TableColumn;
 import uk.co.timwise.sqlhawk.util.LineWriter;
@@ -43,7 +46,10 @@ public class HtmlRelationshipsPage extends HtmlDiagramFormatter {
 		return instance;
 	}
 
-	public void write(Database db, File diagramDir, String dotBaseFilespec, boolean hasOrphans, boolean hasRealRelationships, boolean hasImpliedRelationships, Set<TableColumn> excludedColumns, LineWriter html, String charset) {
+	/**
+	 * @param graphs the graphs that were written to the .dot files, by file
+	 */
+	public void write(Database db, File diagramDir, String dotBaseFilespec, boolean hasOrphans, boolean hasRealRelationships, boolean hasImpliedRelationships, Set<TableColumn> excludedColumns, Map<File, DotGraph> graphs, DiagramRenderer renderer, LineWriter html, String charset) {
 		File compactRelationshipsDotFile = new File(diagramDir, dotBaseFilespec + ".real.compact.dot");
 		File compactRelationshipsDiagramFile = new File(diagramDir, dotBaseFilespec + ".real.compact.png");
 		File largeRelationshipsDotFile = new File(diagramDir, dotBaseFilespec + ".real.large.dot");
@@ -54,8 +60,7 @@ public class HtmlRelationshipsPage extends HtmlDiagramFormatter {
 		File largeImpliedDiagramFile = new File(diagramDir, dotBaseFilespec + ".implied.large.png");
 
 		try {
-			Dot dot = getDot();
-			if (dot == null) {
+			if (!canDraw(renderer)) {
 				writeHeader(db, null, "All Relationships", hasOrphans, html, charset);
 				html.writeln("<div class='content'>");
 				writeInvalidGraphvizInstallation(html);
@@ -64,19 +69,37 @@ public class HtmlRelationshipsPage extends HtmlDiagramFormatter {
 				return;
 			}
 
+			// get all of the diagrams going before waiting for any of them
+			Future<String> compactRelationshipsMap = null;
+			Future<String> largeRelationshipsMap = null;
+			Future<String> compactImpliedMap = null;
+			Future<String> largeImpliedMap = null;
+			if (hasRealRelationships) {
+				compactRelationshipsMap = renderer.render(compactRelationshipsDotFile, compactRelationshipsDiagramFile, graphs.get(compactRelationshipsDotFile));
+				largeRelationshipsMap = renderer.render(largeRelationshipsDotFile, largeRelationshipsDiagramFile, graphs.get(largeRelationshipsDotFile));
+			}
+			if (hasImpliedRelationships) {
+				compactImpliedMap = renderer.render(compactImpliedDotFile, compactImpliedDiagramFile, graphs.get(compactImpliedDotFile));
+				largeImpliedMap = renderer.render(largeImpliedDotFile, largeImpliedDiagramFile, graphs.get(largeImpliedDotFile));
+			}
+
 			writeHeader(db, "All Relationships", hasOrphans, hasRealRelationships, hasImpliedRelationships, html, charset);
 			html.writeln("<table width=\"100%\"><tr><td class=\"container\">");
 
 			if (hasRealRelationships) {
-				html.writeln(dot.generateDiagram(compactRelationshipsDotFile, compactRelationshipsDiagramFile));
-				html.writeln("  <a name='diagram'><img id='realCompactImg' src='diagrams/summary/" + compactRelationshipsDiagramFile.getName() + "' usemap='#compactRelationshipsDiagram' class='diagram' border='0' alt=''></a>");
+				String map = DiagramRenderer.getMap(compactRelationshipsMap);
+				html.writeln(getImageMap(map, renderer));
+				html.writeln("  <a name='diagram'>" + getImage(map, "<img id='realCompactImg' src='diagrams/summary/" + compactRelationshipsDiagramFile.getName() + "' usemap='#compactRelationshipsDiagram' class='diagram' border='0' alt=''>",
+						"id='realCompactImg' class='diagram'", renderer) + "</a>");
 
 				// we've run into instances where the first diagrams get generated, but then
 				// dot fails on the second one...try to recover from that scenario 'somewhat'
 				// gracefully
 				try {
-					html.writeln(dot.generateDiagram(largeRelationshipsDotFile, largeRelationshipsDiagramFile));
-					html.writeln("  <a name='diagram'><img id='realLargeImg' src='diagrams/summary/" + largeRelationshipsDiagramFile.getName() + "' usemap='#largeRelationshipsDiagram' class='diagram' border='0' alt=''></a>");
+					map = DiagramRenderer.getMap(largeRelationshipsMap);
+					html.writeln(getImageMap(map, renderer));
+					html.writeln("  <a name='diagram'>" + getImage(map, "<img id='realLargeImg' src='diagrams/summary/" + largeRelationshipsDiagramFile.getName() + "' usemap='#largeRelationshipsDiagram' class='diagram' border='0' alt=''>",
+							"id='realLargeImg' class='diagram'", renderer) + "</a>");
 				} catch (Dot.DotFailure dotFailure) {
 					logger.warning("dot failed to generate all of the relationships diagrams:\n"
 							+ dotFailure + "\nThe relationships page may still be usable.");
@@ -85,11 +108,15 @@ public class HtmlRelationshipsPage extends HtmlDiagramFormatter {
 
 			try {
 				if (hasImpliedRelationships) {
-					html.writeln(dot.generateDiagram(compactImpliedDotFile, compactImpliedDiagramFile));
-					html.writeln("  <a name='diagram'><img id='impliedCompactImg' src='diagrams/summary/" + compactImpliedDiagramFile.getName() + "' usemap='#compactImpliedRelationshipsDiagram' class='diagram' border='0' alt=''></a>");
-
-					html.writeln(dot.generateDiagram(largeImpliedDotFile, largeImpliedDiagramFile));
-					html.writeln("  <a name='diagram'><img id='impliedLargeImg' src='diagrams/summary/" + largeImpliedDiagramFile.getName() + "' usemap='#largeImpliedRelationshipsDiagram' class='diagram' border='0' alt=''></a>");
+					String map = DiagramRenderer.getMap(compactImpliedMap);
+					html.writeln(getImageMap(map, renderer));
+					html.writeln("  <a name='diagram'>" + getImage(map, "<img id='impliedCompactImg' src='diagrams/summary/" + compactImpliedDiagramFile.getName() + "' usemap='#compactImpliedRelationshipsDiagram' class='diagram' border='0' alt=''>",
+							"id='impliedCompactImg' class='diagram'", renderer) + "</a>");
+
+					map = DiagramRenderer.getMap(largeImpliedMap);
+					html.writeln(getImageMap(map, renderer));
+					html.writeln("  <a name='diagram'>" + getImage(map, "<img id='impliedLargeImg' src='diagrams/summary/" + largeImpliedDiagramFile.getName() + "' usemap='#largeImpliedRelationshipsDiagram' class='diagram' border='0' alt=''>",
+							"id='impliedLargeImg' class='diagram'", renderer) + "</a>");
 				}
 			} catch (Dot.DotFailure dotFailure) {
 				logger.warning("dot failed to generate all of the relationships diagrams:\n"
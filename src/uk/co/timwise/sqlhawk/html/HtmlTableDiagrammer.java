@@ -17,6 +17,8 @@ package uk.co.timwise.sqlhawk.html;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Future;
 
 import uk.co.timwise.sqlhawk.model.Table;
 import uk.co.timwise.sqlhawk.util.LineWriter;
@@ -31,7 +33,38 @@ public class HtmlTableDiagrammer extends HtmlDiagramFormatter {
 		return instance;
 	}
 
-	public void write(Table table, File diagramDir, LineWriter html) {
+	/**
+	 * The diagrams of a table that are being rendered
+	 */
+	public static class Diagrams {
+		private final File oneDegreeDiagramFile;
+		private final File twoDegreesDiagramFile;
+		private final File impliedDiagramFile;
+		private final Future<String> oneDegreeMap;
+		private final Future<String> twoDegreesMap;
+		private final Future<String> impliedMap;
+		private final DiagramRenderer renderer;
+
+		private Diagrams(File oneDegreeDiagramFile, File twoDegreesDiagramFile, File impliedDiagramFile,
+				Future<String> oneDegreeMap, Future<String> twoDegreesMap, Future<String> impliedMap, DiagramRenderer renderer) {
+			this.oneDegreeDiagramFile = oneDegreeDiagramFile;
+			this.twoDegreesDiagramFile = twoDegreesDiagramFile;
+			this.impliedDiagramFile = impliedDiagramFile;
+			this.oneDegreeMap = oneDegreeMap;
+			this.twoDegreesMap = twoDegreesMap;
+			this.impliedMap = impliedMap;
+			this.renderer = renderer;
+		}
+	}
+
+	/**
+	 * Start rendering the diagrams of a table from the .dot files that have been written for it.
+	 * The .dot files (and old images) of diagrams that aren't wanted are deleted.
+	 *
+	 * @param graphs the graphs that were written, by .dot file
+	 * @return <code>null</code> if the diagrams can't be drawn
+	 */
+	public Diagrams render(Table table, File diagramDir, Map<File, DotGraph> graphs, DiagramRenderer renderer) {
 		File oneDegreeDotFile = new File(diagramDir, table.getName() + ".1degree.dot");
 		File oneDegreeDiagramFile = new File(diagramDir, table.getName() + ".1degree.png");
 		File twoDegreesDotFile = new File(diagramDir, table.getName() + ".2degrees.dot");
@@ -39,16 +72,43 @@ public class HtmlTableDiagrammer extends HtmlDiagramFormatter {
 		File impliedDotFile = new File(diagramDir, table.getName() + ".implied2degrees.dot");
 		File impliedDiagramFile = new File(diagramDir, table.getName() + ".implied2degrees.png");
 
-		try {
-			Dot dot = getDot();
-			if (dot == null) {
-				return; // getDot() will already have warned user so just pass
-			}
+		if (!canDraw(renderer)) {
+			return null; // canDraw() will already have warned user so just pass
+		}
 
-			String map = dot.generateDiagram(oneDegreeDotFile, oneDegreeDiagramFile);
+		Future<String> oneDegreeMap = renderer.renderSmall(oneDegreeDotFile, oneDegreeDiagramFile, graphs.get(oneDegreeDotFile));
+		Future<String> impliedMap = null;
+		if (impliedDotFile.exists()) {
+			impliedMap = renderer.renderSmall(impliedDotFile, impliedDiagramFile, graphs.get(impliedDotFile));
+		} else {
+			impliedDotFile.delete();
+			impliedDiagramFile.delete();
+		}
+		Future<String> twoDegreesMap = null;
+		if (twoDegreesDotFile.exists()) {
+			twoDegreesMap = renderer.renderSmall(twoDegreesDotFile, twoDegreesDiagramFile, graphs.get(twoDegreesDotFile));
+		} else {
+			twoDegreesDotFile.delete();
+			twoDegreesDiagramFile.delete();
+		}
+		return new Diagrams(oneDegreeDiagramFile, twoDegreesDiagramFile, impliedDiagramFile, oneDegreeMap, twoDegreesMap, impliedMap, renderer);
+	}
+
+	/**
+	 * Write the diagrams of a table, waiting for any that are still being rendered
+	 *
+	 * @param diagrams from {@link #render(Table, File, Map, DiagramRenderer)}, may be <code>null</code>
+	 */
+	public void write(Table table, Diagrams diagrams, LineWriter html) {
+		if (diagrams == null)
+			return;
+
+		DiagramRenderer renderer = diagrams.renderer;
+		try {
+			String map = DiagramRenderer.getMap(diagrams.oneDegreeMap);
 
 			html.write("<br><form action='get'><b>Close relationships");
-			if (twoDegreesDotFile.exists()) {
+			if (diagrams.twoDegreesMap != null) {
 				html.writeln("</b><span class='degrees' id='degrees' title='Detail diminishes with increased separation from " + table.getName() + "'>");
 				html.write("&nbsp;within <label for='oneDegree'><input type='radio' name='degrees' id='oneDegree' checked>one</label>");
 				html.write("  <label for='twoDegrees'><input type='radio' name='degrees' id='twoDegrees'>two degrees</label> of separation");
@@ -57,23 +117,22 @@ public class HtmlTableDiagrammer extends HtmlDiagramFormatter {
 			} else {
 				html.write(":</b></form>");
 			}
-			html.write(map);
+			html.write(getImageMap(map, renderer));
+			html.writeln("  <a name='diagram'>" + getImage(map, "<img id='oneDegreeImg' src='../diagrams/" + diagrams.oneDegreeDiagramFile.getName() + "' usemap='#oneDegreeRelationshipsDiagram' class='diagram' border='0' alt='' align='left'>",
+					"id='oneDegreeImg' class='diagram' style='float: left'", renderer) + "</a>");
 			map = null;
-			html.writeln("  <a name='diagram'><img id='oneDegreeImg' src='../diagrams/" + oneDegreeDiagramFile.getName() + "' usemap='#oneDegreeRelationshipsDiagram' class='diagram' border='0' alt='' align='left'></a>");
 
-			if (impliedDotFile.exists()) {
-				html.writeln(dot.generateDiagram(impliedDotFile, impliedDiagramFile));
-				html.writeln("  <a name='diagram'><img id='impliedTwoDegreesImg' src='../diagrams/" + impliedDiagramFile.getName() + "' usemap='#impliedTwoDegreesRelationshipsDiagram' class='diagram' border='0' alt='' align='left'></a>");
-			} else {
-				impliedDotFile.delete();
-				impliedDiagramFile.delete();
+			if (diagrams.impliedMap != null) {
+				map = DiagramRenderer.getMap(diagrams.impliedMap);
+				html.writeln(getImageMap(map, renderer));
+				html.writeln("  <a name='diagram'>" + getImage(map, "<img id='impliedTwoDegreesImg' src='../diagrams/" + diagrams.impliedDiagramFile.getName() + "' usemap='#impliedTwoDegreesRelationshipsDiagram' class='diagram' border='0' alt='' align='left'>",
+						"id='impliedTwoDegreesImg' class='diagram' style='float: left'", renderer) + "</a>");
 			}
-			if (twoDegreesDotFile.exists()) {
-				html.writeln(dot.generateDiagram(twoDegreesDotFile, twoDegreesDiagramFile));
-				html.writeln("  <a name='diagram'><img id='twoDegreesImg' src='../diagrams/" + twoDegreesDiagramFile.getName() + "' usemap='#twoDegreesRelationshipsDiagram' class='diagram' border='0' alt='' align='left'></a>");
-			} else {
-				twoDegreesDotFile.delete();
-				twoDegreesDiagramFile.delete();
+			if (diagrams.twoDegreesMap != null) {
+				map = DiagramRenderer.getMap(diagrams.twoDegreesMap);
+				html.writeln(getImageMap(map, renderer));
+				html.writeln("  <a name='diagram'>" + getImage(map, "<img id='twoDegreesImg' src='../diagrams/" + diagrams.twoDegreesDiagramFile.getName() + "' usemap='#twoDegreesRelationshipsDiagram' class='diagram' border='0' alt='' align='left'>",
+						"id='twoDegreesImg' class='diagram' style='float: left'", renderer) + "</a>");
 			}
 		} catch (Dot.DotFailure dotFailure) {
 			logger.warning("Dot error while writing html" + dotFailure);
@@ -30,6 +30,7 @@ import uk.co.timwise.sqlhawk.config.Config;
 import uk.co.timwise.sqlhawk.html.implied.ImpliedForeignKeyConstraint;
 import uk.co.timwise.sqlhawk.model.Database;
 import uk.co.timwise.sqlhawk.model.ForeignKeyConstraint;
+import uk.co.timwise.sqlhawk.model.RowCountStatus;
 import uk.co.timwise.sqlhawk.model.Table;
 import uk.co.timwise.sqlhawk.model.TableColumn;
 import uk.co.timwise.sqlhawk.model.TableIndex;
@@ -38,11 +39,11 @@ import uk.co.timwise.sqlhawk.util.CaseInsensitiveMap;
 import uk.co.timwise.sqlhawk.util.LineWriter;
 
 /**
- * The page that contains the details of a specific table or view
+ * The page that contains the details of a specific table or view.
+ * Keeps no state between pages, so several can be written at once.
  */
 public class HtmlTablePage extends HtmlFormatter {
 	private static final HtmlTablePage instance = new HtmlTablePage();
-	private int columnCounter = 0;
 
 	private final Map<String, String> defaultValueAliases = new HashMap<String, String>();
 	{
@@ -68,9 +69,16 @@ public class HtmlTablePage extends HtmlFormatter {
 		return instance;
 	}
 
-	public void write(Database db, Table table, boolean hasOrphans, boolean hasImplied, File outputDir, Set<TableColumn> excludedColumns, List<ImpliedForeignKeyConstraint> impliedConstraints, LineWriter out, String charset) throws IOException {
+	/**
+	 * Write the page of a table. Its diagrams are rendered by <code>renderer</code>
+	 * while the rest of the page is written.
+	 */
+	public void write(Database db, Table table, boolean hasOrphans, boolean hasImplied, File outputDir, Set<TableColumn> excludedColumns, List<ImpliedForeignKeyConstraint> impliedConstraints, DiagramRenderer renderer, LineWriter out, String charset) throws IOException {
 		File diagramsDir = new File(outputDir, "diagrams");
-		generateDots(table, diagramsDir, excludedColumns, impliedConstraints);
+		Map<File, DotGraph> graphs = generateDots(table, diagramsDir, excludedColumns, impliedConstraints);
+		HtmlTableDiagrammer.Diagrams diagrams = null;
+		if (table.getMaxChildren() + table.getMaxParents() > 0)
+			diagrams = HtmlTableDiagrammer.getInstance().render(table, diagramsDir, graphs, renderer);
 
 		writeHeader(db, table, null, hasOrphans, out, charset);
 		out.writeln("<table width='100%' border='0'>");
@@ -86,7 +94,7 @@ public class HtmlTablePage extends HtmlFormatter {
 		writeIndexes(table, out);
 		if (table.isView())
 			writeView((View)table, db, out);
-		writeDiagram(table, excludedColumns, diagramsDir, out);
+		writeDiagram(table, excludedColumns, diagrams, out);
 		writeFooter(out);
 	}
 
@@ -126,15 +134,15 @@ public class HtmlTablePage extends HtmlFormatter {
 		}
 
 		boolean showIds = table.getId() != null;
+		int row = 0;
 		for (TableColumn column : table.getColumns()) {
-			writeColumn(column, null, primaries, indexedColumns, false, showIds, out);
+			writeColumn(column, null, primaries, indexedColumns, false, showIds, row++ % 2 == 0, out);
 		}
 		out.writeln("</tbody>");
 		out.writeln("</table>");
 	}
 
-	public void writeColumn(TableColumn column, String tableName, Set<TableColumn> primaries, Set<TableColumn> indexedColumns, boolean slim, boolean showIds, LineWriter out) throws IOException {
-		boolean even = columnCounter++ % 2 == 0;
+	public void writeColumn(TableColumn column, String tableName, Set<TableColumn> primaries, Set<TableColumn> indexedColumns, boolean slim, boolean showIds, boolean even, LineWriter out) throws IOException {
 		if (even)
 			out.writeln("<tr class='even'>");
 		else
@@ -283,7 +291,11 @@ public class HtmlTablePage extends HtmlFormatter {
 
 	private void writeNumRows(Database db, Table table, LineWriter out) throws IOException {
 		out.write("<p title='" + table.getColumns().size() + " columns'>");
-		if (displayNumRows && !table.isView()) {
+		if (displayNumRows && !table.isView() && table.getRowCountStatus() == RowCountStatus.SKIPPED) {
+			out.write("Number of rows not read, analyzed at ");
+		} else if (displayNumRows && !table.isView() && table.getRowCountStatus() == RowCountStatus.ESTIMATED) {
+			out.write("Table contained about " + NumberFormat.getIntegerInstance().format(table.getNumRows()) + " rows (estimated) at ");
+		} else if (displayNumRows && !table.isView()) {
 			out.write("Table contained " + NumberFormat.getIntegerInstance().format(table.getNumRows()) + " rows at ");
 		} else {
 			out.write("Analyzed at ");
@@ -455,10 +467,9 @@ public class HtmlTablePage extends HtmlFormatter {
 	 * @param table Table
 	 * @param diagramsDir File
 	 * @throws IOException
-	 * @return boolean <code>true</code> if the table has implied relatives within two
-	 *                 degrees of separation.
+	 * @return the graphs that were written, by .dot file
 	 */
-	private void generateDots(Table table, File diagramDir, Set<TableColumn> excludedColumns, List<ImpliedForeignKeyConstraint> impliedConstraints) throws IOException {
+	private Map<File, DotGraph> generateDots(Table table, File diagramDir, Set<TableColumn> excludedColumns, List<ImpliedForeignKeyConstraint> impliedConstraints) throws IOException {
 		File oneDegreeDotFile = new File(diagramDir, table.getName() + ".1degree.dot");
 		File oneDegreeDiagramFile = new File(diagramDir, table.getName() + ".1degree.png");
 		File twoDegreesDotFile = new File(diagramDir, table.getName() + ".2degrees.dot");
@@ -475,14 +486,15 @@ public class HtmlTablePage extends HtmlFormatter {
 		impliedDotFile.delete();
 		impliedDiagramFile.delete();
 
+		Map<File, DotGraph> graphs = new HashMap<File, DotGraph>();
 		if (table.getMaxChildren() + table.getMaxParents() > 0) {
 			DotFormatter formatter = DotFormatter.getInstance();
 			LineWriter dotOut = new LineWriter(oneDegreeDotFile, "UTF-8");
-			formatter.writeRealRelationships(table, false, excludedColumns, dotOut);
+			graphs.put(oneDegreeDotFile, formatter.writeRealRelationships(table, false, excludedColumns, dotOut));
 			dotOut.close();
 
 			dotOut = new LineWriter(twoDegreesDotFile, "UTF-8");
-			formatter.writeRealRelationships(table, true, excludedColumns, dotOut);
+			graphs.put(twoDegreesDotFile, formatter.writeRealRelationships(table, true, excludedColumns, dotOut));
 			dotOut.close();
 
 			if (false) {
@@ -494,16 +506,17 @@ public class HtmlTablePage extends HtmlFormatter {
 
 			if (!impliedConstraints.isEmpty()) {
 				dotOut = new LineWriter(impliedDotFile, "UTF-8");
-				formatter.writeAllRelationships(table, true, excludedColumns, dotOut);
+				graphs.put(impliedDotFile, formatter.writeAllRelationships(table, true, excludedColumns, dotOut));
 				dotOut.close();
 			}
 		}
+		return graphs;
 	}
 
-	private void writeDiagram(Table table, Set<TableColumn> excludedColumns, File diagramsDir, LineWriter html) throws IOException {
+	private void writeDiagram(Table table, Set<TableColumn> excludedColumns, HtmlTableDiagrammer.Diagrams diagrams, LineWriter html) throws IOException {
 		if (table.getMaxChildren() + table.getMaxParents() > 0) {
 			html.writeln("<table width='100%' border='0'><tr><td class='container'>");
-			HtmlTableDiagrammer.getInstance().write(table, diagramsDir, html);
+			HtmlTableDiagrammer.getInstance().write(table, diagrams, html);
 			html.writeln("</td></tr></table>");
 			writeExcludedColumns(excludedColumns, table, html);
 		}
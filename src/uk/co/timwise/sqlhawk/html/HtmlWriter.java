@@ -16,20 +16,31 @@
 package uk.co.timwise.sqlhawk.html;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import uk.co.timwise.sqlhawk.config.Config;
+import uk.co.timwise.sqlhawk.config.DiagramEngine;
 import uk.co.timwise.sqlhawk.html.implied.ImpliedConstraintFinder;
 import uk.co.timwise.sqlhawk.html.implied.ImpliedForeignKeyConstraint;
 import uk.co.timwise.sqlhawk.model.Database;
 import uk.co.timwise.sqlhawk.model.ForeignKeyConstraint;
 import uk.co.timwise.sqlhawk.model.Table;
 import uk.co.timwise.sqlhawk.model.TableColumn;
+import uk.co.timwise.sqlhawk.profile.RunProfile;
 import uk.co.timwise.sqlhawk.rails.RailsConstraints;
 import uk.co.timwise.sqlhawk.util.LineWriter;
 
@@ -78,37 +89,43 @@ public class HtmlWriter {
 
 		// generate the compact form of the relationships .dot file
 		String dotBaseFilespec = "relationships";
-		out = new LineWriter(new File(diagramsDir, dotBaseFilespec + ".real.compact.dot"), "UTF-8");
-		DotFormatter.getInstance().writeRealRelationships(db, tablesAndViews, true, showDetailedTables, excludedColumns, out);
+		Map<File, DotGraph> summaryGraphs = new HashMap<File, DotGraph>();
+		File dotFile = new File(diagramsDir, dotBaseFilespec + ".real.compact.dot");
+		out = new LineWriter(dotFile, "UTF-8");
+		summaryGraphs.put(dotFile, DotFormatter.getInstance().writeRealRelationships(db, tablesAndViews, true, showDetailedTables, excludedColumns, out));
 		out.close();
 
 		if (hasRealRelationships) {
 			// real relationships exist so generate the 'big' form of the relationships .dot file
-			out = new LineWriter(new File(diagramsDir, dotBaseFilespec + ".real.large.dot"), "UTF-8");
-			DotFormatter.getInstance().writeRealRelationships(db, tablesAndViews, false, showDetailedTables, excludedColumns, out);
+			dotFile = new File(diagramsDir, dotBaseFilespec + ".real.large.dot");
+			out = new LineWriter(dotFile, "UTF-8");
+			summaryGraphs.put(dotFile, DotFormatter.getInstance().writeRealRelationships(db, tablesAndViews, false, showDetailedTables, excludedColumns, out));
 			out.close();
 		}
 
 		// getting implied constraints has a side-effect of associating the parent/child tables, so don't do it
 		// here unless they want that behavior
 		List<ImpliedForeignKeyConstraint> impliedConstraints = null;
-		if (includeImpliedConstraints)
+		if (includeImpliedConstraints) {
+			RunProfile.Timer impliedTimer = RunProfile.getInstance().startPhase("html: implied constraints");
 			impliedConstraints = ImpliedConstraintFinder.getImpliedConstraints(tablesAndViews);
-		else
+			impliedTimer.stop();
+		} else {
 			impliedConstraints = new ArrayList<ImpliedForeignKeyConstraint>();
+		}
 
 		List<Table> orphans = getOrphans(tablesAndViews);
-		boolean hasOrphans = !orphans.isEmpty() && Dot.getInstance().isValid();
+		boolean hasOrphans = !orphans.isEmpty() && canDrawDiagrams(config);
 
 		File impliedDotFile = new File(diagramsDir, dotBaseFilespec + ".implied.compact.dot");
 		out = new LineWriter(impliedDotFile, "UTF-8");
-		DotFormatter.getInstance().writeAllRelationships(db, tablesAndViews, true, showDetailedTables, excludedColumns, out);
+		summaryGraphs.put(impliedDotFile, DotFormatter.getInstance().writeAllRelationships(db, tablesAndViews, true, showDetailedTables, excludedColumns, out));
 		out.close();
 
 		if (hasImplied) {
 			impliedDotFile = new File(diagramsDir, dotBaseFilespec + ".implied.large.dot");
 			out = new LineWriter(impliedDotFile, "UTF-8");
-			DotFormatter.getInstance().writeAllRelationships(db, tablesAndViews, false, showDetailedTables, excludedColumns, out);
+			summaryGraphs.put(impliedDotFile, DotFormatter.getInstance().writeAllRelationships(db, tablesAndViews, false, showDetailedTables, excludedColumns, out));
 			out.close();
 		} else {
 			impliedDotFile.delete();
@@ -118,47 +135,56 @@ public class HtmlWriter {
 		if (charset == null){
 			charset = "ISO-8859-1";
 		}
-		out = new LineWriter(new File(outputDir, dotBaseFilespec + ".html"), charset);
-		HtmlRelationshipsPage.getInstance().write(db, diagramsDir, dotBaseFilespec, hasOrphans, hasRealRelationships, hasImplied, excludedColumns, out, charset);
-		out.close();
-
-		dotBaseFilespec = "utilities";
-		out = new LineWriter(new File(outputDir, dotBaseFilespec + ".html"), charset);
-		HtmlOrphansPage.getInstance().write(db, orphans, diagramsDir, out, charset);
-		out.close();
+		// diagrams are rendered in the background while pages are written
+		DiagramRenderer renderer;
+		if (config.getDiagramEngine() == DiagramEngine.JAVA) {
+			renderer = new DiagramRenderer(new SvgDiagramWriter(config), config.getDotThreads());
+		} else {
+			DiagramCache diagramCache = null;
+			if (config.getDiagramCacheDir() != null)
+				diagramCache = new DiagramCache(config.getDiagramCacheDir(), config.getDiagramCacheSize() * 1024L * 1024L);
+			renderer = new DiagramRenderer(Dot.getInstance(), config.getDotThreads(), config.getDotTimeout(), diagramCache, config.getDotBatchSize());
+		}
+		try {
+			RunProfile.Timer summaryTimer = RunProfile.getInstance().startPhase("html: summary pages");
+			out = new LineWriter(new File(outputDir, dotBaseFilespec + ".html"), charset);
+			HtmlRelationshipsPage.getInstance().write(db, diagramsDir, dotBaseFilespec, hasOrphans, hasRealRelationships, hasImplied, excludedColumns, summaryGraphs, renderer, out, charset);
+			out.close();
 
-		out = new LineWriter(new File(outputDir, "index.html"), 64 * 1024, charset);
-		HtmlMainIndexPage.getInstance().write(db, tablesAndViews, hasOrphans, out, charset);
-		out.close();
+			dotBaseFilespec = "utilities";
+			out = new LineWriter(new File(outputDir, dotBaseFilespec + ".html"), charset);
+			HtmlOrphansPage.getInstance().write(db, orphans, diagramsDir, renderer, out, charset);
+			out.close();
 
-		List<ForeignKeyConstraint> constraints = getForeignKeyConstraints(tablesAndViews);
-		out = new LineWriter(new File(outputDir, "constraints.html"), 256 * 1024, charset);
-		HtmlConstraintsPage constraintIndexFormatter = HtmlConstraintsPage.getInstance();
-		constraintIndexFormatter.write(db, constraints, tablesAndViews, hasOrphans, out, charset);
-		out.close();
+			out = new LineWriter(new File(outputDir, "index.html"), 64 * 1024, charset);
+			HtmlMainIndexPage.getInstance().write(db, tablesAndViews, hasOrphans, out, charset);
+			out.close();
 
-		out = new LineWriter(new File(outputDir, "anomalies.html"), 16 * 1024, charset);
-		HtmlAnomaliesPage.getInstance().write(db, tablesAndViews, impliedConstraints, hasOrphans, out, charset);
-		out.close();
+			List<ForeignKeyConstraint> constraints = getForeignKeyConstraints(tablesAndViews);
+			out = new LineWriter(new File(outputDir, "constraints.html"), 256 * 1024, charset);
+			HtmlConstraintsPage constraintIndexFormatter = HtmlConstraintsPage.getInstance();
+			constraintIndexFormatter.write(db, constraints, tablesAndViews, hasOrphans, out, charset);
+			out.close();
 
-		for (HtmlColumnsPage.ColumnInfo columnInfo : HtmlColumnsPage.getInstance().getColumnInfos()) {
-			out = new LineWriter(new File(outputDir, columnInfo.getLocation()), 16 * 1024, charset);
-			HtmlColumnsPage.getInstance().write(db, tablesAndViews, columnInfo, hasOrphans, out, charset);
+			out = new LineWriter(new File(outputDir, "anomalies.html"), 16 * 1024, charset);
+			HtmlAnomaliesPage.getInstance().write(db, tablesAndViews, impliedConstraints, hasOrphans, out, charset);
 			out.close();
-		}
 
-		// create detailed diagrams
+			for (HtmlColumnsPage.ColumnInfo columnInfo : HtmlColumnsPage.getInstance().getColumnInfos()) {
+				out = new LineWriter(new File(outputDir, columnInfo.getLocation()), 16 * 1024, charset);
+				HtmlColumnsPage.getInstance().write(db, tablesAndViews, columnInfo, hasOrphans, out, charset);
+				out.close();
+			}
+			summaryTimer.stop();
 
-		logger.info("Completed summary");
-		logger.info("Writing/diagramming details...");
+			// create detailed diagrams
 
-		HtmlTablePage tableFormatter = HtmlTablePage.getInstance();
-		for (Table table : tablesAndViews) {
-			logger.fine("Writing details of " + table.getName());
+			logger.info("Completed summary");
+			logger.info("Writing/diagramming details...");
 
-			out = new LineWriter(new File(outputDir, "tables/" + table.getName() + ".html"), 24 * 1024, charset);
-			tableFormatter.write(db, table, hasOrphans, hasImplied, outputDir, excludedColumns, impliedConstraints, out, charset);
-			out.close();
+			writeTablePages(config, db, tablesAndViews, hasOrphans, hasImplied, excludedColumns, impliedConstraints, renderer, charset);
+		} finally {
+			renderer.shutdown();
 		}
 
 		out = new LineWriter(new File(outputDir, "sqlHawk.css"), charset);
@@ -166,6 +192,77 @@ public class HtmlWriter {
 		out.close();
 	}
 
+	/**
+	 * Write the page (and diagrams) of each table, on as many threads as configured.
+	 * Each page is written on its own so the output is the same however many threads there are.
+	 */
+	private void writeTablePages(Config config, final Database db, Collection<Table> tablesAndViews, final boolean hasOrphans,
+			final boolean hasImplied, final Set<TableColumn> excludedColumns, final List<ImpliedForeignKeyConstraint> impliedConstraints,
+			final DiagramRenderer renderer, final String charset) throws Exception {
+		final File outputDir = config.getTargetDir();
+		final HtmlTablePage tableFormatter = HtmlTablePage.getInstance();
+		int threads = config.getHtmlThreads();
+		if (threads < 0) //-1 means one per processor
+			threads = Runtime.getRuntime().availableProcessors();
+		threads = Math.max(1, Math.min(threads, tablesAndViews.size()));
+		logger.fine("Writing " + tablesAndViews.size() + " table pages with " + threads + " thread(s)");
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			Map<String, Future<Void>> results = new LinkedHashMap<String, Future<Void>>();
+			for (final Table table : tablesAndViews) {
+				results.put(table.getName(), executor.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						logger.fine("Writing details of " + table.getName());
+						RunProfile.Timer tableTimer = RunProfile.getInstance().startPhase("html: table pages");
+						LineWriter out = new LineWriter(new File(outputDir, "tables/" + table.getName() + ".html"), 24 * 1024, charset);
+						try {
+							tableFormatter.write(db, table, hasOrphans, hasImplied, outputDir, excludedColumns, impliedConstraints, renderer, out, charset);
+						} finally {
+							out.close();
+						}
+						tableTimer.stop(table.getName());
+						return null;
+					}
+				}));
+			}
+
+			for (Map.Entry<String, Future<Void>> result : results.entrySet()) {
+				try {
+					result.getValue().get();
+				} catch (ExecutionException failure) {
+					throw new Exception("Failed to write the page of table '" + result.getKey() + "'", failure.getCause());
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Write the summary of a run that was profiled with --profile
+	 */
+	public void writeProfile(Config config, Database db, RunProfile profile) throws IOException {
+		String charset = config.getCharset();
+		if (charset == null){
+			charset = "ISO-8859-1";
+		}
+		boolean hasOrphans = !getOrphans(db.getTablesAndViews()).isEmpty() && canDrawDiagrams(config);
+		LineWriter out = new LineWriter(new File(config.getTargetDir(), "profile.html"), charset);
+		try {
+			HtmlProfilePage.getInstance().write(db, profile, hasOrphans, out, charset);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Whether there's anything to draw the diagrams with
+	 */
+	private static boolean canDrawDiagrams(Config config) {
+		return config.getDiagramEngine() == DiagramEngine.JAVA || Dot.getInstance().isValid();
+	}
+
 	private static List<Table> getOrphans(Collection<Table> tables) {
 		List<Table> orphans = new ArrayList<Table>();
 	
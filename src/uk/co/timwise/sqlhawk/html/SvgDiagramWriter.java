@@ -0,0 +1,184 @@
+/* This file is a part of the sqlHawk project.
+ * http://timabell.github.com/sqlHawk/
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package uk.co.timwise.sqlhawk.html;
+
+import uk.co.timwise.sqlhawk.config.Config;
+import uk.co.timwise.sqlhawk.model.TableColumn;
+
+/**
+ * Draws a {@link DotGraph} as svg, laid out by {@link DiagramLayout}, to be put
+ * straight into a page. Each table links to its page the same way the image maps
+ * of dot's diagrams do, so there's no image map to go with it.<p/>
+ *
+ * Has no state of its own so can be used by several threads.
+ */
+public class SvgDiagramWriter {
+	private final String font;
+	private final int fontSize;
+
+	public SvgDiagramWriter(Config config) {
+		font = config.getFont() == null ? "Helvetica" : config.getFont();
+		fontSize = config.getFontSize() == null ? 11 : config.getFontSize().intValue();
+	}
+
+	/**
+	 * @return an svg element, starting with <code>&lt;svg </code> so that more attributes can be added
+	 */
+	public String write(DotGraph graph) {
+		DiagramLayout layout = new DiagramLayout(graph, fontSize);
+		StyleSheet css = StyleSheet.getInstance();
+		int width = layout.getWidth();
+		int height = layout.getHeight();
+		int labelHeight = graph.isShowLabel() ? 2 * layout.getRowHeight() : 0;
+		if (graph.isShowLabel())
+			width = Math.max(width, layout.getTextWidth("Generated by sqlHawk") + 2 * DiagramLayout.MARGIN);
+
+		StringBuilder svg = new StringBuilder(4096);
+		svg.append("<svg width='" + width + "' height='" + (height + labelHeight) + "'");
+		svg.append(" xmlns='http://www.w3.org/2000/svg' xmlns:xlink='http://www.w3.org/1999/xlink'");
+		svg.append(" font-family='" + escape(font) + "' font-size='" + layout.getFontSize() + "'>\n");
+		svg.append("<rect width='100%' height='100%' fill='" + css.getBodyBackground() + "'/>\n");
+
+		for (DiagramLayout.Route route : layout.getRoutes())
+			writeRoute(route, css, svg);
+		for (DiagramLayout.Box box : layout.getBoxes())
+			writeBox(box, layout, css, svg);
+
+		if (graph.isShowLabel())
+			svg.append("<text x='" + DiagramLayout.MARGIN + "' y='" + (height + labelHeight - DiagramLayout.MARGIN) + "'>Generated by sqlHawk</text>\n");
+		svg.append("</svg>");
+		return svg.toString();
+	}
+
+	private void writeRoute(DiagramLayout.Route route, StyleSheet css, StringBuilder svg) {
+		int[] xs = route.xs;
+		int[] ys = route.ys;
+		int direction = route.getDirection();
+		svg.append("<path fill='none' stroke='black'");
+		if (route.connector.isImplied())
+			svg.append(" stroke-dasharray='5,2'");
+		svg.append(" d='M" + xs[0] + "," + ys[0]);
+		if (route.isLoop()) {
+			int out = xs[0] + 3 * DiagramLayout.MARGIN;
+			int endY = ys[1] == ys[0] ? ys[1] + 1 : ys[1];
+			svg.append(" C" + out + "," + ys[0] + " " + out + "," + endY + " " + xs[1] + "," + endY);
+		} else {
+			// curves that leave and arrive level, like dot's splines between ranks
+			for (int i = 1; i < xs.length; ++i) {
+				int middle = (xs[i - 1] + xs[i]) / 2;
+				svg.append(" C" + middle + "," + ys[i - 1] + " " + middle + "," + ys[i] + " " + xs[i] + "," + ys[i]);
+			}
+		}
+		svg.append("'/>\n");
+
+		// the many end: crow's foot (or a tee if the child column is unique) then an open dot
+		int x = xs[0];
+		int y = ys[0];
+		int spread = 4;
+		if (route.connector.getChildColumn().isUnique()) {
+			int teeX = x + direction * 3;
+			svg.append("<path stroke='black' d='M" + teeX + "," + (y - spread) + " L" + teeX + "," + (y + spread) + "'/>\n");
+		} else {
+			int toeX = x + direction * 9;
+			svg.append("<path fill='none' stroke='black' d='M" + x + "," + (y - spread) + " L" + toeX + "," + y + " L" + x + "," + (y + spread) + "'/>\n");
+		}
+		svg.append("<circle cx='" + (x + direction * 13) + "' cy='" + y + "' r='3' fill='" + css.getBodyBackground() + "' stroke='black'/>\n");
+	}
+
+	private void writeBox(DiagramLayout.Box box, DiagramLayout layout, StyleSheet css, StringBuilder svg) {
+		DotNode node = box.node;
+		int rowHeight = layout.getRowHeight();
+		int padding = layout.getPadding();
+		String url = node.getUrl();
+		if (url != null)
+			svg.append("<a xlink:href='" + escape(url) + "'>");
+		else
+			svg.append("<g>");
+		svg.append("<title>" + escape(node.getFullName()) + "</title>\n");
+
+		int x = box.x;
+		int y = box.y;
+		int right = box.x + box.width;
+		writeCell(x, y, box.width, rowHeight, css.getTableHeadBackground(), svg);
+		writeText(node.getFullName(), x + box.width / 2, y, rowHeight, "middle", layout, svg);
+		y += rowHeight;
+
+		for (TableColumn column : box.columns) {
+			String background = node.getColumnBackground(column);
+			int nameWidth = box.width - box.detailsWidth;
+			writeCell(x, y, nameWidth, rowHeight, background == null ? css.getTableBackground() : background, svg);
+			writeText(column.getName(), x + padding, y, rowHeight, null, layout, svg);
+			if (box.detailsWidth > 0) {
+				writeCell(x + nameWidth, y, box.detailsWidth, rowHeight, css.getTableBackground(), svg);
+				writeText(DotNode.getColumnDetails(column), x + nameWidth + padding, y, rowHeight, null, layout, svg);
+			}
+			y += rowHeight;
+		}
+
+		if (box.elipses) {
+			writeCell(x, y, box.width, rowHeight, css.getTableBackground(), svg);
+			writeText("...", x + padding, y, rowHeight, null, layout, svg);
+			y += rowHeight;
+		}
+
+		int rowsWidth = box.width - box.parentsWidth - box.childrenWidth;
+		writeCell(x, y, box.parentsWidth, rowHeight, css.getBodyBackground(), svg);
+		writeCell(x + box.parentsWidth, y, rowsWidth, rowHeight, css.getBodyBackground(), svg);
+		writeCell(right - box.childrenWidth, y, box.childrenWidth, rowHeight, css.getBodyBackground(), svg);
+		writeText(DiagramLayout.getText(node.getParentsText()), x + padding, y, rowHeight, null, layout, svg);
+		writeText(DiagramLayout.getText(node.getRowsText()), right - box.childrenWidth - padding, y, rowHeight, "end", layout, svg);
+		writeText(DiagramLayout.getText(node.getChildrenText()), right - padding, y, rowHeight, "end", layout, svg);
+
+		if (node.isShowColumnDetails())
+			svg.append("<rect x='" + x + "' y='" + box.y + "' width='" + box.width + "' height='" + box.height + "' fill='none' stroke='black' stroke-width='2'/>\n");
+		svg.append(url != null ? "</a>\n" : "</g>\n");
+	}
+
+	private void writeCell(int x, int y, int width, int height, String background, StringBuilder svg) {
+		svg.append("<rect x='" + x + "' y='" + y + "' width='" + width + "' height='" + height + "' fill='" + background + "' stroke='black'/>\n");
+	}
+
+	/**
+	 * @param anchor where <code>x</code> is relative to the text: <code>middle</code>,
+	 * 	<code>end</code> or <code>null</code> for the start
+	 */
+	private void writeText(String text, int x, int rowY, int rowHeight, String anchor, DiagramLayout layout, StringBuilder svg) {
+		if (text.length() == 0)
+			return;
+		// baseline is roughly a third of the font size below the middle of the row
+		int baseline = rowY + rowHeight / 2 + layout.getFontSize() / 3;
+		svg.append("<text x='" + x + "' y='" + baseline + "'");
+		if (anchor != null)
+			svg.append(" text-anchor='" + anchor + "'");
+		svg.append(">" + escape(text) + "</text>\n");
+	}
+
+	private static String escape(String text) {
+		StringBuilder escaped = new StringBuilder(text.length());
+		for (int i = 0; i < text.length(); ++i) {
+			char ch = text.charAt(i);
+			switch (ch) {
+				case '&': escaped.append("&amp;"); break;
+				case '<': escaped.append("&lt;"); break;
+				case '>': escaped.append("&gt;"); break;
+				case '\'': escaped.append("&#39;"); break;
+				case '"': escaped.append("&quot;"); break;
+				default: escaped.append(ch);
+			}
+		}
+		return escaped.toString();
+	}
+}
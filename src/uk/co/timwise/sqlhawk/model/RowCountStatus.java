@@ -0,0 +1,35 @@
+/* This file is a part of the sqlHawk project.
+ * http://timabell.github.com/sqlHawk/
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package uk.co.timwise.sqlhawk.model;
+
+/**
+ * How much the number of rows of a table can be trusted.
+ */
+public enum RowCountStatus {
+	/**
+	 * The rows were counted
+	 */
+	EXACT,
+	/**
+	 * Estimated from the database's statistics,
+	 * e.g. because counting was too slow or wasn't asked for
+	 */
+	ESTIMATED,
+	/**
+	 * Not known at all
+	 */
+	SKIPPED
+}
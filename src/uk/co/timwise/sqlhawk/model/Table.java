@@ -43,6 +43,7 @@ public class Table implements Comparable<Table> {
 	private       Object id;
 	private final Map<String, String> checkConstraints = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
 	private Long numRows;
+	private RowCountStatus rowCountStatus;
 	private String comments;
 	private int maxChildren;
 	private int maxParents;
@@ -497,6 +498,19 @@ public class Table implements Comparable<Table> {
 		this.numRows = numRows;
 	}
 
+	/**
+	 * Whether {@link #getNumRows()} is an exact count, an estimate or not known.
+	 *
+	 * @return <code>null</code> if row counts weren't read for this table
+	 */
+	public RowCountStatus getRowCountStatus() {
+		return rowCountStatus;
+	}
+
+	public void setRowCountStatus(RowCountStatus rowCountStatus) {
+		this.rowCountStatus = rowCountStatus;
+	}
+
 	@Override
 	public String toString() {
 		return getName();
@@ -451,7 +451,7 @@ public class TableColumn {
 		this.defaultValue = defaultValue;
 	}
 
-	public void setId(Integer id) {
+	public void setId(Object id) {
 		this.id = id;
 	}
 
@@ -0,0 +1,46 @@
+/* This file is a part of the sqlHawk project.
+ * http://timabell.github.com/sqlHawk/
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package uk.co.timwise.sqlhawk.profile;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Adds the number of bytes written through it to a shared total
+ */
+class CountingOutputStream extends FilterOutputStream {
+	private final AtomicLong total;
+
+	CountingOutputStream(OutputStream out, AtomicLong total) {
+		super(out);
+		this.total = total;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		out.write(b);
+		total.incrementAndGet();
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		// FilterOutputStream would write the bytes one at a time
+		out.write(b, off, len);
+		total.addAndGet(len);
+	}
+}
@@ -0,0 +1,91 @@
+/* This file is a part of the sqlHawk project.
+ * http://timabell.github.com/sqlHawk/
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package uk.co.timwise.sqlhawk.profile;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+/**
+ * Wraps a JDBC object so that the statements run and rows fetched through it,
+ * and through the statements, metadata and result sets it hands out,
+ * are counted by a {@link RunProfile}.<p/>
+ *
+ * Calls to {@link DatabaseMetaData} that return a result set count as statements
+ * as most drivers run a query for them.
+ */
+class JdbcCounter implements InvocationHandler {
+	private final Object target;
+	private final RunProfile profile;
+	private Connection connection; // the counting connection everything came from
+
+	private JdbcCounter(Object target, RunProfile profile, Connection connection) {
+		this.target = target;
+		this.profile = profile;
+		this.connection = connection;
+	}
+
+	static Connection wrap(Connection connection, RunProfile profile) {
+		JdbcCounter handler = new JdbcCounter(connection, profile, null);
+		handler.connection = (Connection)Proxy.newProxyInstance(JdbcCounter.class.getClassLoader(), new Class<?>[] {Connection.class}, handler);
+		return handler.connection;
+	}
+
+	private Object wrap(Object target, Class<?> type) {
+		return Proxy.newProxyInstance(JdbcCounter.class.getClassLoader(), new Class<?>[] {type}, new JdbcCounter(target, profile, connection));
+	}
+
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		// proxies are used as map keys, e.g. by the connection pool, so must only equal themselves
+		if (method.getName().equals("equals") && method.getParameterTypes().length == 1)
+			return Boolean.valueOf(proxy == args[0]);
+		if (method.getName().equals("hashCode") && method.getParameterTypes().length == 0)
+			return Integer.valueOf(System.identityHashCode(proxy));
+
+		Object result;
+		try {
+			result = method.invoke(target, args);
+		} catch (InvocationTargetException exc) {
+			throw exc.getCause();
+		}
+
+		if (target instanceof Statement && method.getName().startsWith("execute"))
+			profile.addStatement();
+		else if (target instanceof DatabaseMetaData && result instanceof ResultSet)
+			profile.addStatement();
+		else if (target instanceof ResultSet && method.getName().equals("next") && Boolean.TRUE.equals(result))
+			profile.addRow();
+
+		if (result == null)
+			return null;
+		Class<?> returnType = method.getReturnType();
+		if (returnType == Statement.class || returnType == PreparedStatement.class
+				|| returnType == CallableStatement.class || returnType == DatabaseMetaData.class
+				|| returnType == ResultSet.class)
+			return wrap(result, returnType);
+		// e.g. DatabaseMetaData.getConnection(), so that statements prepared on it are counted too
+		if (returnType == Connection.class)
+			return connection;
+		return result;
+	}
+}
@@ -0,0 +1,185 @@
+/* This file is a part of the sqlHawk project.
+ * http://timabell.github.com/sqlHawk/
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package uk.co.timwise.sqlhawk.profile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import uk.co.timwise.sqlhawk.util.LineWriter;
+
+/**
+ * Timings of JDBC calls collected by {@link JdbcTracer}, by method, and by SQL for
+ * statements, so that slow metadata calls and queries run once per table stand out.
+ */
+public class JdbcTrace {
+	/**
+	 * Upper bounds in milliseconds of the histogram buckets, the last bucket holds everything slower
+	 */
+	static final long[] BUCKET_LIMITS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000 };
+	private static final int MAX_SQL_LENGTH = 200;
+	private final ConcurrentMap<String, CallStats> calls = new ConcurrentHashMap<String, CallStats>();
+	private final Logger logger = Logger.getLogger(getClass().getName());
+
+	/**
+	 * Totals of the calls to one method, or of one SQL statement
+	 */
+	public static class CallStats {
+		private final String name;
+		private long count;
+		private long totalNanos;
+		private long maxNanos;
+		private long rows;
+		private long fetchNanos;
+		private final long[] histogram = new long[BUCKET_LIMITS.length + 1];
+
+		CallStats(String name) {
+			this.name = name;
+		}
+
+		synchronized void addCall(long nanos) {
+			++count;
+			totalNanos += nanos;
+			maxNanos = Math.max(maxNanos, nanos);
+			long millis = nanos / 1000000;
+			int bucket = 0;
+			while (bucket < BUCKET_LIMITS.length && millis >= BUCKET_LIMITS[bucket])
+				++bucket;
+			++histogram[bucket];
+		}
+
+		synchronized void addFetch(long nanos, boolean gotRow) {
+			fetchNanos += nanos;
+			if (gotRow)
+				++rows;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public synchronized long getCount() {
+			return count;
+		}
+
+		/**
+		 * Time spent in the calls themselves plus iterating any result sets they returned
+		 */
+		public synchronized long getTotalMillis() {
+			return (totalNanos + fetchNanos) / 1000000;
+		}
+
+		public synchronized long getMaxMillis() {
+			return maxNanos / 1000000;
+		}
+
+		public synchronized long getRows() {
+			return rows;
+		}
+
+		public synchronized long getFetchMillis() {
+			return fetchNanos / 1000000;
+		}
+
+		public synchronized long[] getHistogram() {
+			return histogram.clone();
+		}
+	}
+
+	CallStats getStats(String name) {
+		CallStats stats = calls.get(name);
+		if (stats == null) {
+			CallStats created = new CallStats(name);
+			stats = calls.putIfAbsent(name, created);
+			if (stats == null)
+				stats = created;
+		}
+		return stats;
+	}
+
+	/**
+	 * @param sql
+	 * @return the sql on one line and shortened if needed, for grouping and reporting
+	 */
+	static String normalizeSql(String sql) {
+		if (sql == null)
+			return "(no sql)";
+		String normalized = sql.trim().replaceAll("\\s+", " ");
+		if (normalized.length() > MAX_SQL_LENGTH)
+			normalized = normalized.substring(0, MAX_SQL_LENGTH) + "...";
+		return normalized;
+	}
+
+	/**
+	 * @return all the calls, slowest in total first
+	 */
+	public List<CallStats> getCalls() {
+		List<CallStats> sorted = new ArrayList<CallStats>(calls.values());
+		Collections.sort(sorted, new Comparator<CallStats>() {
+			public int compare(CallStats first, CallStats second) {
+				long difference = second.getTotalMillis() - first.getTotalMillis();
+				if (difference != 0)
+					return difference > 0 ? 1 : -1;
+				return first.getName().compareTo(second.getName());
+			}
+		});
+		return sorted;
+	}
+
+	/**
+	 * Log the calls that took longest in total
+	 *
+	 * @param top how many to log
+	 */
+	public void logTop(int top) {
+		List<CallStats> sorted = getCalls();
+		logger.info("Slowest " + Math.min(top, sorted.size()) + " of " + sorted.size() + " traced JDBC calls:");
+		for (CallStats stats : sorted.subList(0, Math.min(top, sorted.size())))
+			logger.info(String.format("%8dms %7d calls %9d rows  %s",
+					Long.valueOf(stats.getTotalMillis()), Long.valueOf(stats.getCount()), Long.valueOf(stats.getRows()), stats.getName()));
+	}
+
+	/**
+	 * Write all of the calls with their latency histograms
+	 */
+	public void write(File file) throws IOException {
+		LineWriter out = new LineWriter(file, "UTF-8");
+		try {
+			out.write("total ms\tcalls\tmax ms\trows\tfetch ms");
+			long lower = 0;
+			for (long limit : BUCKET_LIMITS) {
+				out.write("\t" + lower + "-" + limit + "ms");
+				lower = limit;
+			}
+			out.writeln("\t" + lower + "ms+\tcall");
+			for (CallStats stats : getCalls()) {
+				out.write(stats.getTotalMillis() + "\t" + stats.getCount() + "\t" + stats.getMaxMillis()
+						+ "\t" + stats.getRows() + "\t" + stats.getFetchMillis());
+				for (long bucket : stats.getHistogram())
+					out.write("\t" + bucket);
+				out.writeln("\t" + stats.getName());
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
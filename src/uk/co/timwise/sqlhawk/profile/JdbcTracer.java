@@ -0,0 +1,125 @@
+/* This file is a part of the sqlHawk project.
+ * http://timabell.github.com/sqlHawk/
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package uk.co.timwise.sqlhawk.profile;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+/**
+ * Wraps a JDBC object so that calls to it, and to the statements, metadata and
+ * result sets it hands out, are timed into a {@link JdbcTrace}.<p/>
+ *
+ * Calls to a statement are recorded against its SQL, so the same query run for
+ * every table adds up in one place. Rows read from a result set, and the time
+ * taken reading them, are recorded against the call that returned it.
+ */
+class JdbcTracer implements InvocationHandler {
+	private final Object target;
+	private final String prefix;
+	private final JdbcTrace trace;
+	private final JdbcTrace.CallStats source; // for result sets, the call that returned it
+	private Connection connection; // the traced connection everything came from
+
+	private JdbcTracer(Object target, String prefix, JdbcTrace trace, JdbcTrace.CallStats source, Connection connection) {
+		this.target = target;
+		this.prefix = prefix;
+		this.trace = trace;
+		this.source = source;
+		this.connection = connection;
+	}
+
+	static Connection wrap(Connection connection, JdbcTrace trace) {
+		JdbcTracer handler = new JdbcTracer(connection, "Connection.", trace, null, null);
+		handler.connection = (Connection)Proxy.newProxyInstance(JdbcTracer.class.getClassLoader(), new Class<?>[] {Connection.class}, handler);
+		return handler.connection;
+	}
+
+	private Object wrap(Object target, Class<?> type, String prefix, JdbcTrace.CallStats source) {
+		return Proxy.newProxyInstance(JdbcTracer.class.getClassLoader(), new Class<?>[] {type}, new JdbcTracer(target, prefix, trace, source, connection));
+	}
+
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		String methodName = method.getName();
+		// proxies are used as map keys, e.g. by the connection pool, so must only equal themselves
+		if (methodName.equals("equals") && method.getParameterTypes().length == 1)
+			return Boolean.valueOf(proxy == args[0]);
+		if (methodName.equals("hashCode") && method.getParameterTypes().length == 0)
+			return Integer.valueOf(System.identityHashCode(proxy));
+
+		long started = System.nanoTime();
+		Object result;
+		try {
+			result = method.invoke(target, args);
+		} catch (InvocationTargetException exc) {
+			throw exc.getCause();
+		} finally {
+			long elapsed = System.nanoTime() - started;
+			if (target instanceof ResultSet) {
+				if (methodName.equals("next") && source != null)
+					source.addFetch(elapsed, false);
+			} else if (isTraced(methodName)) {
+				trace.getStats(getCallName(methodName, args)).addCall(elapsed);
+			}
+		}
+
+		if (target instanceof ResultSet && methodName.equals("next") && Boolean.TRUE.equals(result) && source != null)
+			source.addFetch(0, true);
+
+		if (result == null)
+			return null;
+		Class<?> returnType = method.getReturnType();
+		if (returnType == Statement.class || returnType == PreparedStatement.class || returnType == CallableStatement.class) {
+			// prepared statements are traced by their sql, plain ones by the sql passed to execute
+			String statementPrefix = returnType == Statement.class ? "Statement." : returnType.getSimpleName() + "[" + JdbcTrace.normalizeSql((String)args[0]) + "].";
+			return wrap(result, returnType, statementPrefix, null);
+		}
+		if (returnType == DatabaseMetaData.class)
+			return wrap(result, returnType, "DatabaseMetaData.", null);
+		if (returnType == ResultSet.class)
+			return wrap(result, returnType, "ResultSet.", trace.getStats(getCallName(methodName, args)));
+		// e.g. DatabaseMetaData.getConnection(), so that statements prepared on it are traced too
+		if (returnType == Connection.class)
+			return connection;
+		return result;
+	}
+
+	/**
+	 * Getters of simple values and so on aren't worth recording
+	 */
+	private boolean isTraced(String methodName) {
+		if (target instanceof DatabaseMetaData)
+			return methodName.startsWith("get") || methodName.startsWith("supports");
+		if (target instanceof Statement)
+			return methodName.startsWith("execute");
+		if (target instanceof Connection)
+			return methodName.startsWith("prepare") || methodName.equals("createStatement") || methodName.equals("getMetaData");
+		return false;
+	}
+
+	private String getCallName(String methodName, Object[] args) {
+		if (prefix.equals("Statement.") && args != null && args.length > 0 && args[0] instanceof String)
+			return "Statement." + methodName + "[" + JdbcTrace.normalizeSql((String)args[0]) + "]";
+		return prefix + methodName;
+	}
+}
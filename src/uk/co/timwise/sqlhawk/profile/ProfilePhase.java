@@ -0,0 +1,89 @@
+/* This file is a part of the sqlHawk project.
+ * http://timabell.github.com/sqlHawk/
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package uk.co.timwise.sqlhawk.profile;
+
+/**
+ * The totals for all the runs of one phase of a {@link RunProfile}
+ */
+public class ProfilePhase {
+	private final String name;
+	private int calls;
+	private long totalNanos;
+	private long maxNanos;
+	private String slowestItem;
+	private long statements;
+	private long rows;
+	private long bytesWritten;
+
+	ProfilePhase(String name) {
+		this.name = name;
+	}
+
+	synchronized void add(String item, long nanos, long statements, long rows, long bytesWritten) {
+		++calls;
+		totalNanos += nanos;
+		if (nanos >= maxNanos) {
+			maxNanos = nanos;
+			slowestItem = item;
+		}
+		this.statements += statements;
+		this.rows += rows;
+		this.bytesWritten += bytesWritten;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Number of times the phase has run
+	 */
+	public synchronized int getCalls() {
+		return calls;
+	}
+
+	public synchronized long getTotalMillis() {
+		return totalNanos / 1000000;
+	}
+
+	/**
+	 * Time taken by the slowest run of the phase
+	 */
+	public synchronized long getMaxMillis() {
+		return maxNanos / 1000000;
+	}
+
+	/**
+	 * What the slowest run of the phase dealt with
+	 *
+	 * @return <code>null</code> if not known
+	 */
+	public synchronized String getSlowestItem() {
+		return slowestItem;
+	}
+
+	public synchronized long getStatements() {
+		return statements;
+	}
+
+	public synchronized long getRows() {
+		return rows;
+	}
+
+	public synchronized long getBytesWritten() {
+		return bytesWritten;
+	}
+}
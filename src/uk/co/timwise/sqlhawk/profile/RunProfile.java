@@ -0,0 +1,218 @@
+/* This file is a part of the sqlHawk project.
+ * http://timabell.github.com/sqlHawk/
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package uk.co.timwise.sqlhawk.profile;
+
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records where the time of a run goes: how long each phase took, and how
+ * many JDBC statements were run, rows fetched and bytes written while it was running.<p/>
+ *
+ * Phases with the same name are added together, so a phase can be anything from
+ * reading all the tables once to writing one of many html pages.
+ * Counts are of everything that happened while a phase was running, so phases
+ * that run inside or alongside each other each include the others' work.<p/>
+ *
+ * JDBC calls can also be traced in more detail with a {@link JdbcTrace}.<p/>
+ *
+ * When profiling and tracing are disabled (the default) nothing is recorded and
+ * connections and streams are left as they are.
+ */
+public class RunProfile {
+	private static RunProfile instance = new RunProfile(false, false);
+	private final boolean enabled;
+	private final JdbcTrace jdbcTrace;
+	private final long started = System.nanoTime();
+	private final Map<String, ProfilePhase> phases = new LinkedHashMap<String, ProfilePhase>();
+	private final AtomicLong statements = new AtomicLong();
+	private final AtomicLong rows = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+
+	private static final Timer DISABLED_TIMER = new Timer(null, null) {
+		@Override
+		public void stop(String item) {
+		}
+	};
+
+	private RunProfile(boolean enabled, boolean traceJdbc) {
+		this.enabled = enabled;
+		this.jdbcTrace = traceJdbc ? new JdbcTrace() : null;
+	}
+
+	/**
+	 * Start profiling a new run, replacing the profile of any previous one.
+	 *
+	 * @param enabled <code>false</code> to record no phases
+	 * @param traceJdbc <code>true</code> to time JDBC calls
+	 * @return the new profile, also available from {@link #getInstance()}
+	 */
+	public static RunProfile start(boolean enabled, boolean traceJdbc) {
+		instance = new RunProfile(enabled, traceJdbc);
+		return instance;
+	}
+
+	/**
+	 * The profile of the current run
+	 */
+	public static RunProfile getInstance() {
+		return instance;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Start timing a phase. The returned timer must be stopped for the phase to be recorded.
+	 *
+	 * @param name the name of the phase, e.g. "read: tables"
+	 */
+	public Timer startPhase(String name) {
+		if (!enabled)
+			return DISABLED_TIMER;
+		return new Timer(this, name);
+	}
+
+	/**
+	 * The timings of JDBC calls
+	 *
+	 * @return <code>null</code> if JDBC calls aren't being traced
+	 */
+	public JdbcTrace getJdbcTrace() {
+		return jdbcTrace;
+	}
+
+	/**
+	 * Count JDBC statements and rows fetched through this connection,
+	 * and trace its calls if enabled
+	 *
+	 * @return a connection that records, or <code>connection</code> itself when
+	 * 	profiling and tracing are disabled
+	 */
+	public Connection instrument(Connection connection) {
+		if (jdbcTrace != null)
+			connection = JdbcTracer.wrap(connection, jdbcTrace);
+		if (enabled)
+			connection = JdbcCounter.wrap(connection, this);
+		return connection;
+	}
+
+	/**
+	 * Count bytes written to this stream
+	 *
+	 * @return a stream that counts, or <code>out</code> itself when profiling is disabled
+	 */
+	public OutputStream countBytes(OutputStream out) {
+		if (!enabled)
+			return out;
+		return new CountingOutputStream(out, bytesWritten);
+	}
+
+	/**
+	 * Count bytes written other than through {@link #countBytes(OutputStream)},
+	 * e.g. by an external program
+	 */
+	public void addBytesWritten(long bytes) {
+		if (enabled)
+			bytesWritten.addAndGet(bytes);
+	}
+
+	void addStatement() {
+		statements.incrementAndGet();
+	}
+
+	void addRow() {
+		rows.incrementAndGet();
+	}
+
+	public long getElapsedMillis() {
+		return (System.nanoTime() - started) / 1000000;
+	}
+
+	public long getStatementCount() {
+		return statements.get();
+	}
+
+	public long getRowCount() {
+		return rows.get();
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	/**
+	 * @return the phases in the order they first started
+	 */
+	public List<ProfilePhase> getPhases() {
+		synchronized (phases) {
+			return new ArrayList<ProfilePhase>(phases.values());
+		}
+	}
+
+	private ProfilePhase getPhase(String name) {
+		synchronized (phases) {
+			ProfilePhase phase = phases.get(name);
+			if (phase == null) {
+				phase = new ProfilePhase(name);
+				phases.put(name, phase);
+			}
+			return phase;
+		}
+	}
+
+	/**
+	 * Times one run of a phase
+	 */
+	public static class Timer {
+		private final RunProfile profile;
+		private final ProfilePhase phase;
+		private final long started;
+		private final long statementsAtStart;
+		private final long rowsAtStart;
+		private final long bytesAtStart;
+
+		private Timer(RunProfile profile, String name) {
+			this.profile = profile;
+			this.phase = profile == null ? null : profile.getPhase(name);
+			this.statementsAtStart = profile == null ? 0 : profile.getStatementCount();
+			this.rowsAtStart = profile == null ? 0 : profile.getRowCount();
+			this.bytesAtStart = profile == null ? 0 : profile.getBytesWritten();
+			this.started = System.nanoTime();
+		}
+
+		public void stop() {
+			stop(null);
+		}
+
+		/**
+		 * @param item what this run of the phase dealt with, e.g. a table name,
+		 * 	reported if it was the slowest run of the phase
+		 */
+		public void stop(String item) {
+			phase.add(item, System.nanoTime() - started,
+					profile.getStatementCount() - statementsAtStart,
+					profile.getRowCount() - rowsAtStart,
+					profile.getBytesWritten() - bytesAtStart);
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/* This file is a part of the sqlHawk project.
+ * http://timabell.github.com/sqlHawk/
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package uk.co.timwise.sqlhawk.profile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+
+import uk.co.timwise.sqlhawk.util.LineWriter;
+
+/**
+ * Writes a {@link RunProfile} as json, for comparing runs with other tools.
+ */
+public class RunProfileWriter {
+
+	public void writeJson(RunProfile profile, File file) throws IOException {
+		LineWriter out = new LineWriter(file, "UTF-8");
+		try {
+			out.writeln("{");
+			out.writeln("  \"generated\": " + new Date().getTime() + ",");
+			out.writeln("  \"elapsedMillis\": " + profile.getElapsedMillis() + ",");
+			out.writeln("  \"statements\": " + profile.getStatementCount() + ",");
+			out.writeln("  \"rows\": " + profile.getRowCount() + ",");
+			out.writeln("  \"bytesWritten\": " + profile.getBytesWritten() + ",");
+			out.writeln("  \"phases\": [");
+			List<ProfilePhase> phases = profile.getPhases();
+			for (int i = 0; i < phases.size(); ++i) {
+				ProfilePhase phase = phases.get(i);
+				out.write("    {\"name\": " + quote(phase.getName()));
+				out.write(", \"calls\": " + phase.getCalls());
+				out.write(", \"totalMillis\": " + phase.getTotalMillis());
+				out.write(", \"maxMillis\": " + phase.getMaxMillis());
+				out.write(", \"slowest\": " + quote(phase.getSlowestItem()));
+				out.write(", \"statements\": " + phase.getStatements());
+				out.write(", \"rows\": " + phase.getRows());
+				out.write(", \"bytesWritten\": " + phase.getBytesWritten());
+				out.writeln(i < phases.size() - 1 ? "}," : "}");
+			}
+			out.writeln("  ]");
+			out.writeln("}");
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String quote(String value) {
+		if (value == null)
+			return "null";
+		StringBuilder quoted = new StringBuilder(value.length() + 2);
+		quoted.append('"');
+		for (int i = 0; i < value.length(); ++i) {
+			char c = value.charAt(i);
+			switch (c) {
+				case '"':
+					quoted.append("\\\"");
+					break;
+				case '\\':
+					quoted.append("\\\\");
+					break;
+				case '\n':
+					quoted.append("\\n");
+					break;
+				case '\r':
+					quoted.append("\\r");
+					break;
+				case '\t':
+					quoted.append("\\t");
+					break;
+				default:
+					if (c < ' ')
+						quoted.append(String.format("\\u%04x", Integer.valueOf(c)));
+					else
+						quoted.append(c);
+			}
+		}
+		quoted.append('"');
+		return quoted.toString();
+	}
+}
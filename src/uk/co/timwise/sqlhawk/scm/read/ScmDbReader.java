@@ -16,7 +16,14 @@
 package uk.co.timwise.sqlhawk.scm.read;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import uk.co.timwise.sqlhawk.config.Config;
@@ -29,7 +36,13 @@ import uk.co.timwise.sqlhawk.util.CaseInsensitiveMap;
 import uk.co.timwise.sqlhawk.util.FileHandling;
 
 
+/**
+ * Loads the definitions written by {@link uk.co.timwise.sqlhawk.scm.write.ScmDbWriter},
+ * reading several files at once.
+ */
 public class ScmDbReader {
+	private static final String CHARSET = "UTF-8"; // as written by ScmDbWriter
+	private static final int READ_THREADS = 4;
 	private final Logger logger = Logger.getLogger(getClass().getName());
 
 	public Database Load(Config config) throws Exception {
@@ -39,37 +52,89 @@ public class ScmDbReader {
 			throw new Exception("specified scm input folder not found: " + inputDir);
 		}
 		Database db = new Database(null, null);
-		db.setProcs(readSqlObjects(new File(inputDir, "Procedures"), Procedure.class));
-		db.setViews(readSqlObjects(new File(inputDir, "Views"), View.class));
-		db.setFunctions(readSqlObjects(new File(inputDir, "Functions"), Function.class));
+		ExecutorService executor = Executors.newFixedThreadPool(READ_THREADS);
+		try {
+			List<Future<Void>> reads = new ArrayList<Future<Void>>();
+			Map<String, Procedure> procs = readSqlObjects(new File(inputDir, "Procedures"), Procedure.class, executor, reads);
+			Map<String, View> views = readSqlObjects(new File(inputDir, "Views"), View.class, executor, reads);
+			Map<String, Function> functions = readSqlObjects(new File(inputDir, "Functions"), Function.class, executor, reads);
+			for (Future<Void> read : reads)
+				waitFor(read);
+			db.setProcs(procs);
+			db.setViews(views);
+			db.setFunctions(functions);
+		} finally {
+			executor.shutdownNow();
+		}
 		return db;
 	}
 
+	/**
+	 * Queue up the loading of the .sql files in a folder
+	 *
+	 * @param inputDir
+	 * @param clazz the type of object the files define
+	 * @param executor
+	 * @param reads gets the loading of each file
+	 * @return the objects by name, filled in as the files are loaded
+	 */
 	private <TSqlObject extends ISqlObject>
-				Map<String, TSqlObject> readSqlObjects(File inputDir, Class<TSqlObject> clazz)
-			throws Exception{
+				Map<String, TSqlObject> readSqlObjects(File inputDir, final Class<TSqlObject> clazz,
+						ExecutorService executor, List<Future<Void>> reads) {
 		logger.fine("Loading scm files from " + inputDir);
-		Map<String, TSqlObject> sqlObjects = new CaseInsensitiveMap<TSqlObject>();
+		final Map<String, TSqlObject> sqlObjects = new CaseInsensitiveMap<TSqlObject>();
 		if (!inputDir.isDirectory()) {
 			logger.warning(inputDir + " not found");
 			return sqlObjects; //nothing to do
 		}
 		File[] files = inputDir.listFiles();
-		for(File file : files){
+		for(final File file : files){
 			if (!file.getName().endsWith(".sql")) {
 				//skip non sql files
 				logger.finest("Ignoring non .sql file " + file);
 				continue;
 			}
-			logger.fine("Loading " + file);
-			String name = file.getName();
-			name = name.substring(0, name.length()-4);// trim extension from filename
-			String definition = FileHandling.readFile(file);
-			TSqlObject sqlObject = clazz.newInstance();//.Create(name, definition);
-			sqlObject.setName(name);
-			sqlObject.setDefinition(definition);
-			sqlObjects.put(name, sqlObject);
+			reads.add(executor.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					logger.fine("Loading " + file);
+					String name = file.getName();
+					name = name.substring(0, name.length()-4);// trim extension from filename
+					String definition = removeFinalNewLine(FileHandling.readFile(file, CHARSET));
+					TSqlObject sqlObject = clazz.newInstance();
+					sqlObject.setName(name);
+					sqlObject.setDefinition(definition);
+					synchronized (sqlObjects) {
+						sqlObjects.put(name, sqlObject);
+					}
+					return null;
+				}
+			}));
 		}
 		return sqlObjects;
 	}
+
+	/**
+	 * ScmDbWriter puts a new line on the end of every file. Take it off again
+	 * so that definitions read back in match the ones they were written from.
+	 */
+	private static String removeFinalNewLine(String definition) {
+		if (definition.endsWith("\r\n"))
+			return definition.substring(0, definition.length() - 2);
+		if (definition.endsWith("\n") || definition.endsWith("\r"))
+			return definition.substring(0, definition.length() - 1);
+		return definition;
+	}
+
+	/**
+	 * Wait for a file to be loaded, passing on whatever went wrong with it
+	 */
+	private static void waitFor(Future<Void> read) throws Exception {
+		try {
+			read.get();
+		} catch (ExecutionException exc) {
+			if (exc.getCause() instanceof Exception)
+				throw (Exception) exc.getCause();
+			throw (Error) exc.getCause();
+		}
+	}
 }
@@ -16,62 +16,222 @@
 package uk.co.timwise.sqlhawk.scm.write;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import uk.co.timwise.sqlhawk.model.Database;
 import uk.co.timwise.sqlhawk.model.Function;
 import uk.co.timwise.sqlhawk.model.Procedure;
 import uk.co.timwise.sqlhawk.model.View;
-import uk.co.timwise.sqlhawk.util.LineWriter;
+import uk.co.timwise.sqlhawk.profile.RunProfile;
 
 
+/**
+ * Writes a file for each procedure, function and view.
+ * Files that already have the right content are left alone so that their
+ * modification times don't change, and files of objects that no longer
+ * exist are removed.
+ */
 public class ScmDbWriter {
+	static final String PROCEDURES_FOLDER = "Procedures";
+	static final String FUNCTIONS_FOLDER = "Functions";
+	static final String VIEWS_FOLDER = "Views";
+	private static final String FILE_EXTENSION = ".sql";
+	private static final int WRITE_THREADS = 4;
 	private final Logger logger = Logger.getLogger(getClass().getName());
 
 	public void writeForSourceControl(File outputDir, Database db) throws IOException {
-		writeProcs(outputDir, db.getProcs());
-		writeFunctions(outputDir, db.getFunctions());
-		writeViews(outputDir, db.getViews());
-	}
+		Map<String, String> procs = new LinkedHashMap<String, String>();
+		for (Procedure proc : db.getProcs())
+			procs.put(proc.getName(), proc.getDefinition());
+		Map<String, String> functions = new LinkedHashMap<String, String>();
+		for (Function function : db.getFunctions())
+			functions.put(function.getName(), function.getDefinition());
+		Map<String, String> views = new LinkedHashMap<String, String>();
+		for (View view : db.getViews())
+			views.put(view.getName(), view.getDefinition());
 
-	private void writeProcs(File outputDir, Collection<Procedure> procs) throws IOException {		
-		File procFolder = new File(outputDir, "Procedures");
-		ensureFolder(procFolder);
-		for (Procedure proc : procs) {
-			LineWriter out = new LineWriter(new File(procFolder, proc.getName() + ".sql"), "UTF-8");
-			out.writeln(proc.getDefinition()); //writeln() in preference to write() in order to make patches for sql files cleaner (\n on every line so new lines at end don't affect original last line)
-			out.close();		
+		ExecutorService executor = Executors.newFixedThreadPool(WRITE_THREADS);
+		try {
+			List<Future<Boolean>> writes = new ArrayList<Future<Boolean>>();
+			int removed = writeFolder(new File(outputDir, PROCEDURES_FOLDER), "procedure", procs, executor, writes)
+					+ writeFolder(new File(outputDir, FUNCTIONS_FOLDER), "function", functions, executor, writes)
+					+ writeFolder(new File(outputDir, VIEWS_FOLDER), "view", views, executor, writes);
+			int written = 0;
+			for (Future<Boolean> write : writes) {
+				if (getResult(write))
+					++written;
+			}
+			logger.info("Source control files: " + written + " written, " + (writes.size() - written) + " unchanged, " + removed + " removed");
+		} finally {
+			executor.shutdown();
 		}
 	}
 
-	private void writeFunctions(File outputDir, Collection<Function> functions) throws IOException {		
-		File functionFolder = new File(outputDir, "Functions");
-		ensureFolder(functionFolder);
-		for (Function function : functions) {
-			LineWriter out = new LineWriter(new File(functionFolder, function.getName() + ".sql"), "UTF-8");
-			out.writeln(function.getDefinition()); //writeln() in preference to write() in order to make patches for sql files cleaner (\n on every line so new lines at end don't affect original last line)
-			out.close();		
-		}
+	/**
+	 * Remove the files of objects that are no longer in the database,
+	 * for when the definitions have already been written with {@link ScmStreamWriter}.
+	 */
+	public void removeDeleted(File outputDir, Database db) throws IOException {
+		List<String> procs = new ArrayList<String>();
+		for (Procedure proc : db.getProcs())
+			procs.add(proc.getName());
+		List<String> functions = new ArrayList<String>();
+		for (Function function : db.getFunctions())
+			functions.add(function.getName());
+		List<String> views = new ArrayList<String>();
+		for (View view : db.getViews())
+			views.add(view.getName());
+
+		int removed = removeDeleted(new File(outputDir, PROCEDURES_FOLDER), procs)
+				+ removeDeleted(new File(outputDir, FUNCTIONS_FOLDER), functions)
+				+ removeDeleted(new File(outputDir, VIEWS_FOLDER), views);
+		logger.info("Source control files: " + removed + " removed");
 	}
 
-	private void writeViews(File outputDir, Collection<View> views) throws IOException {		
-		File viewFolder = new File(outputDir, "Views");
-		ensureFolder(viewFolder);
-		for (View view : views) {
-			String viewSql = view.getDefinition();
-			if (viewSql==null) {
-				logger.warning("No definition found for view " + view.getName());
+	/**
+	 * Queue up the writing of the definitions for one type of object,
+	 * and remove the files of any that have gone.
+	 *
+	 * @param folder
+	 * @param type for messages
+	 * @param definitions by object name. Where a definition is <code>null</code>
+	 *         it couldn't be read, so the file is neither written nor removed.
+	 * @param executor
+	 * @param writes gets the result of each write, true if the file was written
+	 * @return the number of files removed
+	 * @throws IOException
+	 */
+	private int writeFolder(File folder, String type, Map<String, String> definitions,
+			ExecutorService executor, List<Future<Boolean>> writes) throws IOException {
+		ensureFolder(folder);
+		for (Map.Entry<String, String> entry : definitions.entrySet()) {
+			final String definition = entry.getValue();
+			if (definition == null) {
+				logger.warning("No definition found for " + type + " " + entry.getKey());
 				continue; //don't write empty file.
 			}
-			LineWriter out = new LineWriter(new File(viewFolder, view.getName() + ".sql"), "UTF-8");
-			out.writeln(viewSql); //writeln() in preference to write() in order to make patches for sql files cleaner (\n on every line so new lines at end don't affect original last line)
-			out.close();		
+			final File file = new File(folder, entry.getKey() + FILE_EXTENSION);
+			writes.add(executor.submit(new Callable<Boolean>() {
+				public Boolean call() throws IOException {
+					return writeIfChanged(file, definition);
+				}
+			}));
+		}
+		return removeDeleted(folder, definitions.keySet());
+	}
+
+	/**
+	 * Write the definition unless the file already contains it
+	 *
+	 * @return true if the file was written
+	 */
+	private boolean writeIfChanged(File file, String definition) throws IOException {
+		// new line on the end in order to make patches for sql files cleaner (\n on every line so new lines at end don't affect original last line)
+		byte[] content = (definition + System.getProperty("line.separator")).getBytes("UTF-8");
+		if (file.isFile() && file.length() == content.length && Arrays.equals(hash(content), hash(file))) {
+			logger.finest("Unchanged " + file);
+			return false;
+		}
+		OutputStream out = RunProfile.getInstance().countBytes(new FileOutputStream(file));
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+		return true;
+	}
+
+	/**
+	 * Remove the .sql files in the folder that don't belong to any of the named objects.
+	 * Names are matched ignoring case in case the file system does.
+	 *
+	 * @return the number of files removed
+	 */
+	private int removeDeleted(File folder, Collection<String> names) throws IOException {
+		File[] files = folder.listFiles();
+		if (files == null)
+			return 0;
+		Set<String> current = new HashSet<String>();
+		for (String name : names)
+			current.add((name + FILE_EXTENSION).toUpperCase());
+
+		int removed = 0;
+		for (File file : files) {
+			if (!file.isFile() || !file.getName().toLowerCase().endsWith(FILE_EXTENSION) || current.contains(file.getName().toUpperCase()))
+				continue;
+			if (!file.delete())
+				throw new IOException("Failed to remove '" + file + "'");
+			logger.fine("Removed " + file);
+			++removed;
+		}
+		return removed;
+	}
+
+	private static byte[] hash(byte[] content) {
+		MessageDigest digest = getDigest();
+		return digest.digest(content);
+	}
+
+	static byte[] hash(File file) throws IOException {
+		MessageDigest digest = getDigest();
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1)
+				digest.update(buffer, 0, read);
+		} finally {
+			in.close();
+		}
+		return digest.digest();
+	}
+
+	private static MessageDigest getDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException exc) {
+			throw new RuntimeException(exc); // every JRE has SHA-1
+		}
+	}
+
+	/**
+	 * Wait for a write, passing on whatever went wrong with it
+	 */
+	private static boolean getResult(Future<Boolean> write) throws IOException {
+		try {
+			return write.get();
+		} catch (InterruptedException exc) {
+			IOException interrupted = new IOException("Interrupted while writing source control files");
+			interrupted.initCause(exc);
+			throw interrupted;
+		} catch (ExecutionException exc) {
+			if (exc.getCause() instanceof IOException)
+				throw (IOException) exc.getCause();
+			throw new RuntimeException(exc.getCause());
 		}
 	}
 
-	private void ensureFolder(File target) throws IOException {
+	static void ensureFolder(File target) throws IOException {
 		if (!target.isDirectory()) {
 			if (!target.mkdirs()) {
 				throw new IOException("Failed to create directory '" + target + "'");
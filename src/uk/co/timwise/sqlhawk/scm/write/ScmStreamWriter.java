@@ -0,0 +1,115 @@
+/* This file is a part of the sqlHawk project.
+ * http://timabell.github.com/sqlHawk/
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package uk.co.timwise.sqlhawk.scm.write;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import uk.co.timwise.sqlhawk.db.read.DefinitionSink;
+import uk.co.timwise.sqlhawk.util.LineWriter;
+
+/**
+ * Writes definitions to the same files as {@link ScmDbWriter} as they're
+ * read from the database, so that only a buffer's worth of each one is in memory at a time.
+ * Each definition goes to a temporary file first, which only replaces the
+ * real one if the content is different.
+ */
+public class ScmStreamWriter implements DefinitionSink {
+	private final Logger logger = Logger.getLogger(getClass().getName());
+	private final File procFolder;
+	private final File functionFolder;
+	private final File viewFolder;
+
+	public ScmStreamWriter(File outputDir) throws IOException {
+		procFolder = new File(outputDir, ScmDbWriter.PROCEDURES_FOLDER);
+		functionFolder = new File(outputDir, ScmDbWriter.FUNCTIONS_FOLDER);
+		viewFolder = new File(outputDir, ScmDbWriter.VIEWS_FOLDER);
+		ScmDbWriter.ensureFolder(procFolder);
+		ScmDbWriter.ensureFolder(functionFolder);
+		ScmDbWriter.ensureFolder(viewFolder);
+	}
+
+	public Writer openProcedure(String name) {
+		return new DefinitionWriter("procedure", name, new File(procFolder, name + ".sql"));
+	}
+
+	public Writer openFunction(String name) {
+		return new DefinitionWriter("function", name, new File(functionFolder, name + ".sql"));
+	}
+
+	public Writer openView(String name) {
+		return new DefinitionWriter("view", name, new File(viewFolder, name + ".sql"));
+	}
+
+	/**
+	 * Only creates the file once there's something to put in it,
+	 * so that empty definitions don't leave empty files behind.
+	 * Ends the file with a new line like {@link ScmDbWriter} does.
+	 */
+	private class DefinitionWriter extends Writer {
+		private final String type;
+		private final String name;
+		private final File file;
+		private final File tempFile;
+		private LineWriter out;
+
+		DefinitionWriter(String type, String name, File file) {
+			this.type = type;
+			this.name = name;
+			this.file = file;
+			this.tempFile = new File(file.getPath() + ".tmp");
+		}
+
+		@Override
+		public void write(char[] cbuf, int off, int len) throws IOException {
+			if (len == 0)
+				return;
+			if (out == null)
+				out = new LineWriter(tempFile, "UTF-8");
+			out.write(cbuf, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (out != null)
+				out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (out == null) {
+				logger.warning("No definition found for " + type + " " + name);
+				return;
+			}
+			out.writeln();
+			out.close();
+			if (file.isFile() && file.length() == tempFile.length()
+					&& Arrays.equals(ScmDbWriter.hash(tempFile), ScmDbWriter.hash(file))) {
+				logger.finest("Unchanged " + file);
+				if (!tempFile.delete())
+					throw new IOException("Failed to remove '" + tempFile + "'");
+				return;
+			}
+			if (file.exists() && !file.delete())
+				throw new IOException("Failed to replace '" + file + "'");
+			if (!tempFile.renameTo(file))
+				throw new IOException("Failed to rename '" + tempFile + "' to '" + file + "'");
+		}
+	}
+}
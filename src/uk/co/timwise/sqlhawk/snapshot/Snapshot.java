@@ -0,0 +1,267 @@
+/* This file is a part of the sqlHawk project.
+ * http://timabell.github.com/sqlHawk/
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package uk.co.timwise.sqlhawk.snapshot;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import uk.co.timwise.sqlhawk.model.Database;
+import uk.co.timwise.sqlhawk.model.ForeignKeyConstraint;
+import uk.co.timwise.sqlhawk.model.Table;
+import uk.co.timwise.sqlhawk.model.TableColumn;
+
+/**
+ * A saved copy of a schema as read from the database, along with the
+ * modification markers of its objects at the time it was read.
+ * Used to only re-read the objects that have changed since the last run.<p/>
+ *
+ * Foreign keys are held by name rather than linked into the model so that
+ * the tables they join can be swapped for freshly read ones before linking
+ * them with {@link ForeignKeyDefinition#link(Database)}.
+ */
+public class Snapshot {
+	public static final String TABLE = "table";
+	public static final String VIEW = "view";
+	public static final String PROCEDURE = "procedure";
+	public static final String FUNCTION = "function";
+
+	private final Database database;
+	private final String key;
+	private final Map<String, String> modificationMarkers;
+	private final List<ForeignKeyDefinition> foreignKeys;
+
+	/**
+	 * Take a snapshot of a database that has been read.
+	 *
+	 * @param database
+	 * @param key identifies what was read and how, a snapshot with a different key can't be reused
+	 * @param modificationMarkers see {@link #getModificationMarkers()}
+	 */
+	public Snapshot(Database database, String key, Map<String, String> modificationMarkers) {
+		this(database, key, modificationMarkers, DescribeForeignKeys(database));
+	}
+
+	Snapshot(Database database, String key, Map<String, String> modificationMarkers, List<ForeignKeyDefinition> foreignKeys) {
+		this.database = database;
+		this.key = key;
+		this.modificationMarkers = modificationMarkers;
+		this.foreignKeys = foreignKeys;
+	}
+
+	/**
+	 * The saved schema. Its foreign keys are only linked if the snapshot
+	 * was taken in this run, see {@link #getForeignKeys()}.
+	 */
+	public Database getDatabase() {
+		return database;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * A value for each object that changes whenever the object does,
+	 * e.g. a modification date, keyed by {@link #GetMarkerKey(String, String)}
+	 */
+	public Map<String, String> getModificationMarkers() {
+		return modificationMarkers;
+	}
+
+	/**
+	 * The real (not implied) foreign keys of the database's tables and remote tables.
+	 */
+	public List<ForeignKeyDefinition> getForeignKeys() {
+		return Collections.unmodifiableList(foreignKeys);
+	}
+
+	/**
+	 * Link all of the foreign keys into the snapshot's database,
+	 * e.g. once it has been loaded to be used in place of reading the database.
+	 *
+	 * @return the database
+	 */
+	public Database linkForeignKeys() {
+		for (ForeignKeyDefinition foreignKey : foreignKeys)
+			foreignKey.link(database);
+		return database;
+	}
+
+	/**
+	 * @param type {@link #TABLE}, {@link #VIEW}, {@link #PROCEDURE} or {@link #FUNCTION}
+	 * @param name
+	 */
+	public static String GetMarkerKey(String type, String name) {
+		return type + ':' + name;
+	}
+
+	private static List<ForeignKeyDefinition> DescribeForeignKeys(Database database) {
+		List<ForeignKeyDefinition> definitions = new ArrayList<ForeignKeyDefinition>();
+		DescribeForeignKeys(database.getTables(), definitions);
+		DescribeForeignKeys(database.getRemoteTables(), definitions);
+		return definitions;
+	}
+
+	private static void DescribeForeignKeys(Collection<Table> tables, List<ForeignKeyDefinition> definitions) {
+		for (Table table : tables) {
+			for (ForeignKeyConstraint foreignKey : table.getForeignKeys()) {
+				if (!foreignKey.isReal() || foreignKey.getParentTable() == null)
+					continue;
+				ForeignKeyDefinition definition = new ForeignKeyDefinition(foreignKey.getName(), false,
+						table.getSchema(), table.getName(), table.isRemote(),
+						foreignKey.getParentTable().getSchema(), foreignKey.getParentTable().getName(), foreignKey.getParentTable().isRemote(),
+						foreignKey.getUpdateRule(), foreignKey.getDeleteRule());
+				for (TableColumn column : foreignKey.getChildColumns())
+					definition.childColumns.add(column.getName());
+				for (TableColumn column : foreignKey.getParentColumns())
+					definition.parentColumns.add(column.getName());
+				definitions.add(definition);
+			}
+
+			// relationships defined in the xml metadata aren't held by the table, only by its columns
+			for (TableColumn column : table.getColumns()) {
+				for (TableColumn parentColumn : column.getParents()) {
+					ForeignKeyConstraint foreignKey = column.getParentConstraint(parentColumn);
+					if (foreignKey.isImplied() || (foreignKey.getName() != null && table.getForeignKey(foreignKey.getName()) == foreignKey))
+						continue;
+					Table parent = parentColumn.getTable();
+					ForeignKeyDefinition definition = new ForeignKeyDefinition(foreignKey.getName(), true,
+							table.getSchema(), table.getName(), table.isRemote(),
+							parent.getSchema(), parent.getName(), parent.isRemote(),
+							foreignKey.getUpdateRule(), foreignKey.getDeleteRule());
+					definition.childColumns.add(column.getName());
+					definition.parentColumns.add(parentColumn.getName());
+					definitions.add(definition);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A foreign key identified by the names of the tables and columns it joins.
+	 */
+	public static class ForeignKeyDefinition {
+		final String name;
+		final boolean isUnheld; // only linked through its columns, like those from the xml metadata
+		final String childSchema;
+		final String childTable;
+		final boolean isChildRemote;
+		final String parentSchema;
+		final String parentTable;
+		final boolean isParentRemote;
+		final int updateRule;
+		final int deleteRule;
+		final List<String> childColumns = new ArrayList<String>();
+		final List<String> parentColumns = new ArrayList<String>();
+		private final static Logger logger = Logger.getLogger(ForeignKeyDefinition.class.getName());
+
+		ForeignKeyDefinition(String name, boolean isUnheld, String childSchema, String childTable, boolean isChildRemote,
+				String parentSchema, String parentTable, boolean isParentRemote, int updateRule, int deleteRule) {
+			this.name = name;
+			this.isUnheld = isUnheld;
+			this.childSchema = childSchema;
+			this.childTable = childTable;
+			this.isChildRemote = isChildRemote;
+			this.parentSchema = parentSchema;
+			this.parentTable = parentTable;
+			this.isParentRemote = isParentRemote;
+			this.updateRule = updateRule;
+			this.deleteRule = deleteRule;
+		}
+
+		/**
+		 * Name of the table the foreign key belongs to
+		 */
+		public String getChildTable() {
+			return childTable;
+		}
+
+		public boolean isChildRemote() {
+			return isChildRemote;
+		}
+
+		/**
+		 * Join up the columns of the specified database's tables
+		 * in the same way as {@link uk.co.timwise.sqlhawk.db.read.TableReader} does.
+		 *
+		 * @param database
+		 * @return <code>false</code> if either table or any of the columns no longer exist
+		 */
+		public boolean link(Database database) {
+			Table child = find(database, childSchema, childTable, isChildRemote);
+			Table parent = find(database, parentSchema, parentTable, isParentRemote);
+			if (child == null || parent == null) {
+				logger.fine("Not linking foreign key '" + name + "', table '" + (child == null ? childTable : parentTable) + "' has gone");
+				return false;
+			}
+
+			if (isUnheld)
+				return linkUnheld(child, parent);
+
+			ForeignKeyConstraint foreignKey = child.getForeignKey(name);
+			if (foreignKey == null) {
+				foreignKey = new ForeignKeyConstraint(child, name, updateRule, deleteRule);
+				child.addForeignKey(name, foreignKey);
+			}
+
+			boolean linked = true;
+			for (int i = 0; i < childColumns.size() && i < parentColumns.size(); ++i) {
+				TableColumn childColumn = child.getColumn(childColumns.get(i));
+				TableColumn parentColumn = parent.getColumn(parentColumns.get(i));
+				if (childColumn == null || parentColumn == null) {
+					logger.warning("Couldn't link FK '" + name + "' - column '" + childColumns.get(i) + "' or '" + parentColumns.get(i) + "' doesn't exist");
+					linked = false;
+					continue;
+				}
+				foreignKey.addChildColumn(childColumn);
+				foreignKey.addParentColumn(parentColumn);
+				childColumn.addParent(parentColumn, foreignKey);
+				parentColumn.addChild(childColumn, foreignKey);
+			}
+			return linked;
+		}
+
+		private boolean linkUnheld(Table child, Table parent) {
+			TableColumn childColumn = child.getColumn(childColumns.get(0));
+			TableColumn parentColumn = parent.getColumn(parentColumns.get(0));
+			if (childColumn == null || parentColumn == null) {
+				logger.warning("Couldn't link '" + name + "' - column '" + childColumns.get(0) + "' or '" + parentColumns.get(0) + "' doesn't exist");
+				return false;
+			}
+			/**
+			 * Merely instantiating a foreign key constraint ties it
+			 * into its parent and child columns (& therefore their tables)
+			 */
+			new ForeignKeyConstraint(parentColumn, childColumn, updateRule, deleteRule) {
+				@Override
+				public String getName() {
+					return name;
+				}
+			};
+			return true;
+		}
+
+		private static Table find(Database database, String schema, String name, boolean isRemote) {
+			if (isRemote)
+				return database.getRemoteTableMap().get(schema + "." + name);
+			return database.getTablesByName().get(name);
+		}
+	}
+}
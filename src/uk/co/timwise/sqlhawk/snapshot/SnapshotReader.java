@@ -0,0 +1,241 @@
+/* This file is a part of the sqlHawk project.
+ * http://timabell.github.com/sqlHawk/
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package uk.co.timwise.sqlhawk.snapshot;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import uk.co.timwise.sqlhawk.model.Database;
+import uk.co.timwise.sqlhawk.model.ExplicitRemoteTable;
+import uk.co.timwise.sqlhawk.model.Function;
+import uk.co.timwise.sqlhawk.model.Procedure;
+import uk.co.timwise.sqlhawk.model.RemoteTable;
+import uk.co.timwise.sqlhawk.model.RowCountStatus;
+import uk.co.timwise.sqlhawk.model.Table;
+import uk.co.timwise.sqlhawk.model.TableColumn;
+import uk.co.timwise.sqlhawk.model.TableIndex;
+import uk.co.timwise.sqlhawk.model.View;
+import uk.co.timwise.sqlhawk.util.CaseInsensitiveMap;
+
+/**
+ * Loads a {@link Snapshot} saved by {@link SnapshotWriter}.
+ * The foreign keys are <b>not</b> linked into the loaded database,
+ * see {@link Snapshot.ForeignKeyDefinition#link(Database)}.
+ */
+public class SnapshotReader {
+	private DataInputStream in;
+	private String[] strings; // the pool that the strings in the file refer to
+
+	/**
+	 * @param file
+	 * @return
+	 * @throws IOException if the file can't be read or isn't a snapshot this version understands
+	 */
+	public Snapshot read(File file) throws IOException {
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+		try {
+			if (!SnapshotWriter.MAGIC.equals(in.readUTF()))
+				throw new IOException(file + " is not a sqlHawk snapshot");
+			int version = in.readInt();
+			if (version != SnapshotWriter.VERSION)
+				throw new IOException("Snapshot " + file + " is version " + version + ", expected " + SnapshotWriter.VERSION);
+
+			strings = new String[readNumber()];
+			for (int i = 0; i < strings.length; ++i) {
+				byte[] bytes = new byte[readNumber()];
+				in.readFully(bytes);
+				strings[i] = new String(bytes, "UTF-8");
+			}
+
+			String key = readString();
+			Map<String, String> markers = readMarkers();
+			Database db = readDatabase();
+			List<Snapshot.ForeignKeyDefinition> foreignKeys = readForeignKeys();
+			return new Snapshot(db, key, markers, foreignKeys);
+		} finally {
+			in.close();
+			in = null;
+			strings = null;
+		}
+	}
+
+	private Map<String, String> readMarkers() throws IOException {
+		Map<String, String> markers = new CaseInsensitiveMap<String>();
+		for (int i = readNumber(); i > 0; --i)
+			markers.put(readString(), readString());
+		return markers;
+	}
+
+	private Database readDatabase() throws IOException {
+		Database db = new Database(readString(), readString());
+		db.setDescription(readString());
+		db.setDbms(readString());
+		long generatedDate = in.readLong();
+		if (generatedDate != -1)
+			db.setGeneratedDate(new Date(generatedDate));
+		int numKeywords = readNumber();
+		if (numKeywords != -1) {
+			Set<String> keywords = new HashSet<String>();
+			for (int i = 0; i < numKeywords; ++i)
+				keywords.add(readString());
+			db.setKeywords(keywords);
+		}
+
+		Map<String, Table> tables = new CaseInsensitiveMap<Table>();
+		for (int i = readNumber(); i > 0; --i) {
+			Table table = readTable(new Table(readString(), readString(), null));
+			tables.put(table.getName(), table);
+		}
+		db.setTables(tables);
+
+		for (int i = readNumber(); i > 0; --i) {
+			View view = (View)readTable(new View(readString(), readString(), null, null));
+			view.setDefinition(readString());
+			db.putViews(view.getName(), view);
+		}
+
+		for (int i = readNumber(); i > 0; --i) {
+			boolean isExplicit = in.readBoolean();
+			String schema = readString();
+			String name = readString();
+			Table table = isExplicit ? new ExplicitRemoteTable(schema, name, null) : new RemoteTable(schema, name, null);
+			readTable(table);
+			db.getRemoteTableMap().put(schema + "." + name, table);
+		}
+
+		for (int i = readNumber(); i > 0; --i) {
+			Procedure proc = new Procedure(readString(), readString(), readString());
+			db.putProc(proc.getName(), proc);
+		}
+		for (int i = readNumber(); i > 0; --i) {
+			Function function = new Function(readString(), readString(), readString());
+			db.putFunction(function.getName(), function);
+		}
+		return db;
+	}
+
+	/**
+	 * Read the details of a table whose schema and name have already been read
+	 */
+	private Table readTable(Table table) throws IOException {
+		table.setComments(readString());
+		table.setId(readString());
+		table.setNumRows(in.readLong());
+		String rowCountStatus = readString();
+		if (rowCountStatus != null)
+			table.setRowCountStatus(RowCountStatus.valueOf(rowCountStatus));
+
+		for (int i = readNumber(); i > 0; --i)
+			table.addCheckConstraint(readString(), readString());
+
+		for (int i = readNumber(); i > 0; --i) {
+			TableColumn column = new TableColumn(table, readString(), null);
+			boolean isNumericId = in.readBoolean();
+			String id = readString();
+			if (id != null)
+				column.setId(isNumericId ? readNumericId(id) : id);
+			column.setType(readString());
+			column.setDecimalDigits(readNumber());
+			column.setDetailedSize(readString());
+			column.setNullable(in.readBoolean());
+			column.setIsAutoUpdated(in.readBoolean());
+			column.setDefaultValue(readString());
+			column.setComments(readString());
+			column.setAllExcluded(in.readBoolean());
+			column.setExcluded(in.readBoolean());
+			column.setAllowsImpliedParents(in.readBoolean());
+			column.setAllowsImpliedChildren(in.readBoolean());
+			table.getColumnMap().put(column.getName(), column);
+		}
+
+		for (int i = readNumber(); i > 0; --i)
+			table.setPrimaryColumn(table.getColumn(readString()));
+
+		for (int i = readNumber(); i > 0; --i) {
+			TableIndex index = new TableIndex(readString(), in.readBoolean());
+			index.setId(readString());
+			index.setIsPrimaryKey(in.readBoolean());
+			for (int j = readNumber(); j > 0; --j) {
+				TableColumn column = table.getColumn(readString());
+				index.addColumn(column, in.readBoolean() ? "A" : "D");
+			}
+			table.addIndex(index.getName(), index);
+		}
+		return table;
+	}
+
+	/**
+	 * Column ids that were numbers are read back as Integers, as the columns are sorted by them
+	 */
+	private static Object readNumericId(String id) {
+		try {
+			return Integer.valueOf(id);
+		} catch (NumberFormatException tooBig) {
+			return id;
+		}
+	}
+
+	private List<Snapshot.ForeignKeyDefinition> readForeignKeys() throws IOException {
+		List<Snapshot.ForeignKeyDefinition> foreignKeys = new ArrayList<Snapshot.ForeignKeyDefinition>();
+		for (int i = readNumber(); i > 0; --i) {
+			Snapshot.ForeignKeyDefinition foreignKey = new Snapshot.ForeignKeyDefinition(readString(), in.readBoolean(),
+					readString(), readString(), in.readBoolean(),
+					readString(), readString(), in.readBoolean(),
+					readNumber(), readNumber());
+			for (int j = readNumber(); j > 0; --j) {
+				foreignKey.childColumns.add(readString());
+				foreignKey.parentColumns.add(readString());
+			}
+			foreignKeys.add(foreignKey);
+		}
+		return foreignKeys;
+	}
+
+	private String readString() throws IOException {
+		int index = readNumber();
+		if (index == -1)
+			return null;
+		if (index >= strings.length)
+			throw new IOException("Corrupt snapshot, string " + index + " isn't in the pool");
+		return strings[index];
+	}
+
+	/**
+	 * @see SnapshotWriter#writeNumber(int)
+	 */
+	private int readNumber() throws IOException {
+		int value = 0;
+		int shift = 0;
+		int b;
+		do {
+			if (shift > 28)
+				throw new IOException("Corrupt snapshot, number too long");
+			b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value - 1;
+	}
+}
@@ -0,0 +1,252 @@
+/* This file is a part of the sqlHawk project.
+ * http://timabell.github.com/sqlHawk/
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>. */
+package uk.co.timwise.sqlhawk.snapshot;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import uk.co.timwise.sqlhawk.model.Database;
+import uk.co.timwise.sqlhawk.model.ExplicitRemoteTable;
+import uk.co.timwise.sqlhawk.model.Function;
+import uk.co.timwise.sqlhawk.model.Procedure;
+import uk.co.timwise.sqlhawk.model.Table;
+import uk.co.timwise.sqlhawk.model.TableColumn;
+import uk.co.timwise.sqlhawk.model.TableIndex;
+import uk.co.timwise.sqlhawk.model.View;
+
+/**
+ * Saves a {@link Snapshot} in a compact binary form for {@link SnapshotReader},
+ * either to reuse as the incremental cache or to produce output from later
+ * without connecting to the database again.
+ * The file is written alongside the target and then renamed over it,
+ * so an interrupted run doesn't leave a truncated snapshot behind.
+ */
+public class SnapshotWriter {
+	static final String MAGIC = "sqlHawk snapshot";
+	static final int VERSION = 3;
+
+	private DataOutputStream out;
+	private final Map<String, Integer> stringPool = new HashMap<String, Integer>();
+	private final List<String> strings = new ArrayList<String>();
+	private final Logger logger = Logger.getLogger(getClass().getName());
+
+	/**
+	 * The model is written first to a buffer, referring to each string by its
+	 * position in a pool as names, types and so on are repeated a lot.
+	 * The file then holds the pool followed by the buffer.
+	 */
+	public void write(Snapshot snapshot, File file) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream(1024 * 1024);
+		stringPool.clear();
+		strings.clear();
+		out = new DataOutputStream(body);
+		writeString(snapshot.getKey());
+		writeMarkers(snapshot.getModificationMarkers());
+		writeDatabase(snapshot.getDatabase());
+		writeForeignKeys(snapshot);
+		out.close();
+
+		File tempFile = new File(file.getPath() + ".tmp");
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 64 * 1024));
+		try {
+			out.writeUTF(MAGIC);
+			out.writeInt(VERSION);
+			writeNumber(strings.size());
+			for (String value : strings) {
+				byte[] bytes = value.getBytes("UTF-8");
+				writeNumber(bytes.length);
+				out.write(bytes);
+			}
+			body.writeTo(out);
+		} finally {
+			out.close();
+			out = null;
+		}
+
+		if (file.exists() && !file.delete())
+			throw new IOException("Failed to replace snapshot " + file);
+		if (!tempFile.renameTo(file))
+			throw new IOException("Failed to rename " + tempFile + " to " + file);
+		logger.fine("Wrote snapshot " + file + " (" + file.length() + " bytes, " + strings.size() + " distinct strings)");
+	}
+
+	private void writeMarkers(Map<String, String> markers) throws IOException {
+		writeNumber(markers.size());
+		for (Map.Entry<String, String> marker : markers.entrySet()) {
+			writeString(marker.getKey());
+			writeString(marker.getValue());
+		}
+	}
+
+	private void writeDatabase(Database db) throws IOException {
+		writeString(db.getName());
+		writeString(db.getSchema());
+		writeString(db.getDescription());
+		writeString(db.getDbms());
+		out.writeLong(db.getGeneratedDate() == null ? -1 : db.getGeneratedDate().getTime());
+		Set<String> keywords = db.getKeywords();
+		writeNumber(keywords == null ? -1 : keywords.size());
+		if (keywords != null) {
+			for (String keyword : keywords)
+				writeString(keyword);
+		}
+
+		writeTables(db.getTables());
+		writeNumber(db.getViews().size());
+		for (View view : db.getViews()) {
+			writeTable(view);
+			writeString(view.getDefinition());
+		}
+		writeNumber(db.getRemoteTables().size());
+		for (Table table : db.getRemoteTables()) {
+			out.writeBoolean(table instanceof ExplicitRemoteTable);
+			writeTable(table);
+		}
+
+		writeNumber(db.getProcs().size());
+		for (Procedure proc : db.getProcs()) {
+			writeString(proc.getSchema());
+			writeString(proc.getName());
+			writeString(proc.getDefinition());
+		}
+		writeNumber(db.getFunctions().size());
+		for (Function function : db.getFunctions()) {
+			writeString(function.getSchema());
+			writeString(function.getName());
+			writeString(function.getDefinition());
+		}
+	}
+
+	private void writeTables(Collection<Table> tables) throws IOException {
+		writeNumber(tables.size());
+		for (Table table : tables)
+			writeTable(table);
+	}
+
+	private void writeTable(Table table) throws IOException {
+		writeString(table.getSchema());
+		writeString(table.getName());
+		writeString(table.getComments());
+		writeString(table.getId() == null ? null : table.getId().toString());
+		out.writeLong(table.getNumRows());
+		writeString(table.getRowCountStatus() == null ? null : table.getRowCountStatus().name());
+
+		Map<String, String> checkConstraints = table.getCheckConstraints();
+		writeNumber(checkConstraints.size());
+		for (Map.Entry<String, String> checkConstraint : checkConstraints.entrySet()) {
+			writeString(checkConstraint.getKey());
+			writeString(checkConstraint.getValue());
+		}
+
+		writeNumber(table.getColumns().size());
+		for (TableColumn column : table.getColumns()) {
+			writeString(column.getName());
+			out.writeBoolean(column.getId() instanceof Number); // numeric ids sort as numbers
+			writeString(column.getId() == null ? null : column.getId().toString());
+			writeString(column.getType());
+			writeNumber(column.getDecimalDigits());
+			writeString(column.getDetailedSize());
+			out.writeBoolean(column.isNullable());
+			out.writeBoolean(column.isAutoUpdated());
+			writeString(column.getDefaultValue() == null ? null : column.getDefaultValue().toString());
+			writeString(column.getComments());
+			out.writeBoolean(column.isAllExcluded());
+			out.writeBoolean(column.isExcluded());
+			out.writeBoolean(column.allowsImpliedParents());
+			out.writeBoolean(column.allowsImpliedChildren());
+		}
+
+		writeNumber(table.getPrimaryColumns().size());
+		for (TableColumn column : table.getPrimaryColumns())
+			writeString(column.getName());
+
+		writeNumber(table.getIndexes().size());
+		for (TableIndex index : table.getIndexes()) {
+			writeString(index.getName());
+			out.writeBoolean(index.isUnique());
+			writeString(index.getId() == null ? null : index.getId().toString());
+			out.writeBoolean(index.isPrimaryKey());
+			writeNumber(index.getColumns().size());
+			for (TableColumn column : index.getColumns()) {
+				writeString(column.getName());
+				out.writeBoolean(index.isAscending(column));
+			}
+		}
+	}
+
+	private void writeForeignKeys(Snapshot snapshot) throws IOException {
+		writeNumber(snapshot.getForeignKeys().size());
+		for (Snapshot.ForeignKeyDefinition foreignKey : snapshot.getForeignKeys()) {
+			writeString(foreignKey.name);
+			out.writeBoolean(foreignKey.isUnheld);
+			writeString(foreignKey.childSchema);
+			writeString(foreignKey.childTable);
+			out.writeBoolean(foreignKey.isChildRemote);
+			writeString(foreignKey.parentSchema);
+			writeString(foreignKey.parentTable);
+			out.writeBoolean(foreignKey.isParentRemote);
+			writeNumber(foreignKey.updateRule);
+			writeNumber(foreignKey.deleteRule);
+			int numColumns = Math.min(foreignKey.childColumns.size(), foreignKey.parentColumns.size());
+			writeNumber(numColumns);
+			for (int i = 0; i < numColumns; ++i) {
+				writeString(foreignKey.childColumns.get(i));
+				writeString(foreignKey.parentColumns.get(i));
+			}
+		}
+	}
+
+	/**
+	 * Strings are written as their position in the pool, adding them to it if they're new
+	 */
+	private void writeString(String value) throws IOException {
+		if (value == null) {
+			writeNumber(-1);
+			return;
+		}
+		Integer index = stringPool.get(value);
+		if (index == null) {
+			index = Integer.valueOf(strings.size());
+			stringPool.put(value, index);
+			strings.add(value);
+		}
+		writeNumber(index.intValue());
+	}
+
+	/**
+	 * Write a number of -1 or more in as few bytes as possible, 7 bits at a time.
+	 * Most are small counts so fit in a byte.
+	 */
+	private void writeNumber(int value) throws IOException {
+		int remaining = value + 1; // so that -1 (none) is 0
+		while ((remaining & ~0x7F) != 0) {
+			out.writeByte((remaining & 0x7F) | 0x80);
+			remaining >>>= 7;
+		}
+		out.writeByte(remaining);
+	}
+}
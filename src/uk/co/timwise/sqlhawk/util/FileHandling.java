@@ -17,8 +17,11 @@ package uk.co.timwise.sqlhawk.util;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 public class FileHandling {
 
@@ -35,4 +38,37 @@ public class FileHandling {
 		return stringBuilder.toString();
 	}
 
+	/**
+	 * Read the whole of a file exactly as it is, unlike {@link #readFile(File)}
+	 * which reads in the platform's charset and changes the line endings to the platform's.
+	 */
+	public static String readFile(File file, String charset) throws IOException {
+		return new String(readBytes(file), charset);
+	}
+
+	/**
+	 * Read the whole of a file with a single buffer the size of the file.
+	 */
+	public static byte[] readBytes(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+				throw new IOException("File too large to read: " + file);
+			ByteBuffer buffer = ByteBuffer.allocate((int) size);
+			while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+				// keep reading until full or the file turns out to be shorter
+			}
+			if (buffer.hasRemaining()) {
+				byte[] read = new byte[buffer.position()];
+				System.arraycopy(buffer.array(), 0, read, 0, read.length);
+				return read;
+			}
+			return buffer.array();
+		} finally {
+			in.close();
+		}
+	}
+
 }
@@ -25,6 +25,8 @@ import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 
+import uk.co.timwise.sqlhawk.profile.RunProfile;
+
 /**
  * BufferedWriter that adds a <code>writeln()</code> method
  * to output a <i>lineDelimited</i> line of text without
@@ -34,19 +36,19 @@ public class LineWriter extends BufferedWriter {
 	private final Writer out;
 
 	public LineWriter(String filename, String charset) throws UnsupportedEncodingException, FileNotFoundException {
-		this(new FileOutputStream(filename), charset);
+		this(RunProfile.getInstance().countBytes(new FileOutputStream(filename)), charset);
 	}
 
 	public LineWriter(String filename, int sz, String charset) throws UnsupportedEncodingException, FileNotFoundException {
-		this(new FileOutputStream(filename), sz, charset);
+		this(RunProfile.getInstance().countBytes(new FileOutputStream(filename)), sz, charset);
 	}
 
 	public LineWriter(File file, String charset) throws UnsupportedEncodingException, FileNotFoundException {
-		this(new FileOutputStream(file), charset);
+		this(RunProfile.getInstance().countBytes(new FileOutputStream(file)), charset);
 	}
 
 	public LineWriter(File file, int sz, String charset) throws UnsupportedEncodingException, IOException {
-		this(new FileOutputStream(file), sz, charset);
+		this(RunProfile.getInstance().countBytes(new FileOutputStream(file)), sz, charset);
 	}
 
 	public LineWriter(OutputStream out, String charset) throws UnsupportedEncodingException {
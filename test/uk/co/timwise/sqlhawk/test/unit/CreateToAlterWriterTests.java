@@ -0,0 +1,84 @@
+package uk.co.timwise.sqlhawk.test.unit;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+import uk.co.timwise.sqlhawk.db.CreateToAlterWriter;
+import uk.co.timwise.sqlhawk.db.SqlManagement;
+
+public class CreateToAlterWriterTests {
+	private static final String[] INPUTS = {
+		"CREATE PROCEDURE foo AS select 1",
+		"create view foo as select 'CREATE'",
+		"-- CREATE is in a comment\ncreate function foo()",
+		"/* leading\n   comment */\r\nCreate proc foo",
+		"  CREATE indented isn't at the start of a line\nCREATE proc foo",
+		"CREAT\nCRCREATE\nCREATE proc foo",
+		"CREA",
+		"no create at all",
+		"",
+	};
+
+	@Test
+	public void testMatchesConvertCreateToAlter() throws IOException {
+		for (String input : INPUTS) {
+			// arrange
+			String expected = SqlManagement.ConvertCreateToAlter(input);
+
+			// act
+			String actual = convert(input, input.length(), input.length());
+
+			// assert
+			assertEquals(expected, actual);
+		}
+	}
+
+	@Test
+	public void testSplitWithinCreate() throws IOException {
+		// arrange
+		String input = "-- comment\nCREATE proc foo";
+
+		// act
+		String actual = convert(input, 13, 15);
+
+		// assert
+		assertEquals("-- comment\nALTER proc foo", actual);
+	}
+
+	@Test
+	public void testMatchesConvertCreateToAlterWhereverSplit() throws IOException {
+		for (String input : INPUTS) {
+			// arrange
+			String expected = SqlManagement.ConvertCreateToAlter(input);
+
+			for (int first = 0; first <= input.length(); ++first) {
+				for (int second = first; second <= input.length(); ++second) {
+					// act
+					String actual = convert(input, first, second);
+
+					// assert
+					assertEquals("split at " + first + " and " + second, expected, actual);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write the input in three chunks, split at the specified offsets,
+	 * using each of the ways that text can be written
+	 */
+	private static String convert(String input, int first, int second) throws IOException {
+		StringWriter result = new StringWriter();
+		CreateToAlterWriter out = new CreateToAlterWriter(result);
+		out.write(input.substring(0, first).toCharArray());
+		out.write(input, first, second - first);
+		for (int i = second; i < input.length(); ++i)
+			out.write(input.charAt(i));
+		out.close();
+		return result.toString();
+	}
+}
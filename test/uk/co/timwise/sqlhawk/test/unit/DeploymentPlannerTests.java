@@ -0,0 +1,121 @@
+package uk.co.timwise.sqlhawk.test.unit;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import uk.co.timwise.sqlhawk.config.Config;
+import uk.co.timwise.sqlhawk.db.write.DeploymentPlanner;
+import uk.co.timwise.sqlhawk.model.View;
+
+public class DeploymentPlannerTests {
+
+	@Test
+	public void testGetReferencesIgnoresCommentsAndStrings() {
+		// arrange
+		String definition = "select * from Used -- from LineComment\n"
+				+ "/* Outer /* Inner */ StillComment */ where x = 'Literal' and y = 'It''s Quoted'";
+
+		// act
+		Set<String> actual = DeploymentPlanner.getReferences(definition);
+
+		// assert
+		assertTrue(actual.contains("USED"));
+		for (String ignored : new String[] { "LINECOMMENT", "OUTER", "INNER", "STILLCOMMENT", "LITERAL", "IT", "QUOTED", "S" })
+			assertFalse(ignored, actual.contains(ignored));
+	}
+
+	@Test
+	public void testGetReferencesFindsQuotedNames() {
+		// arrange
+		String definition = "select * from [dbo].[Bracketed Name] join \"Quoted Name\" on 1=1 join dbo.Dotted on @var = 1";
+
+		// act
+		Set<String> actual = DeploymentPlanner.getReferences(definition);
+
+		// assert
+		assertTrue(actual.contains("DBO"));
+		assertTrue(actual.contains("BRACKETED NAME"));
+		assertTrue(actual.contains("QUOTED NAME"));
+		assertTrue(actual.contains("DOTTED"));
+		assertFalse(actual.contains("@VAR"));
+	}
+
+	@Test
+	public void testChainOfViewsIsOrderedInWaves() {
+		// arrange
+		List<DeploymentPlanner.Step> steps = new ArrayList<DeploymentPlanner.Step>();
+		steps.add(step("Top", "create view Top as select * from Middle"));
+		steps.add(step("Middle", "create view Middle as select * from [Bottom]"));
+		steps.add(step("Bottom", "create view Bottom as select 1 as x"));
+
+		// act
+		List<List<DeploymentPlanner.Step>> actual = new DeploymentPlanner(null).order(steps);
+
+		// assert
+		assertEquals(Arrays.asList(Arrays.asList("Bottom"), Arrays.asList("Middle"), Arrays.asList("Top")), names(actual));
+	}
+
+	@Test
+	public void testCycleFallsBackToOneWave() {
+		// arrange
+		List<DeploymentPlanner.Step> steps = new ArrayList<DeploymentPlanner.Step>();
+		steps.add(step("A", "create view A as select * from B"));
+		steps.add(step("B", "create view B as select * from A"));
+
+		// act
+		List<List<DeploymentPlanner.Step>> actual = new DeploymentPlanner(null).order(steps);
+
+		// assert
+		assertEquals(Arrays.asList(Arrays.asList("A", "B")), names(actual));
+	}
+
+	@Test
+	public void testDropsComeFirstInReverseOrder() throws Exception {
+		// arrange
+		Config config = new Config();
+		config.setDbTypeName("mssql");
+		DeploymentPlanner planner = new DeploymentPlanner(config);
+		Map<String, View> existing = new HashMap<String, View>();
+		existing.put("Top", view("Top", "CREATE VIEW Top AS select * from Bottom"));
+		existing.put("Bottom", view("Bottom", "CREATE VIEW Bottom AS select 1 as x"));
+		Map<String, View> updated = new HashMap<String, View>();
+		updated.put("New", view("New", "CREATE VIEW New AS select 1 as x"));
+
+		// act
+		planner.add(updated, existing, "view");
+		List<List<DeploymentPlanner.Step>> actual = planner.getWaves();
+
+		// assert
+		assertEquals(3, actual.size());
+		assertEquals(Arrays.asList("DROP view Top"), actual.get(0).get(0).getStatements());
+		assertEquals(Arrays.asList("DROP view Bottom"), actual.get(1).get(0).getStatements());
+		assertEquals("adding new view New", actual.get(2).get(0).getDescription());
+	}
+
+	private static DeploymentPlanner.Step step(String name, String definition) {
+		return new DeploymentPlanner.Step("adding new view " + name, name, definition);
+	}
+
+	private static View view(String name, String definition) {
+		return new View("dbo", name, null, definition);
+	}
+
+	private static List<List<String>> names(List<List<DeploymentPlanner.Step>> waves) {
+		List<List<String>> names = new ArrayList<List<String>>();
+		for (List<DeploymentPlanner.Step> wave : waves) {
+			List<String> waveNames = new ArrayList<String>();
+			for (DeploymentPlanner.Step step : wave)
+				waveNames.add(step.getDescription().substring("adding new view ".length()));
+			names.add(waveNames);
+		}
+		return names;
+	}
+}
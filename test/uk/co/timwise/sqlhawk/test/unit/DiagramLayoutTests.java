@@ -0,0 +1,172 @@
+package uk.co.timwise.sqlhawk.test.unit;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import uk.co.timwise.sqlhawk.html.DiagramLayout;
+import uk.co.timwise.sqlhawk.html.DotConnector;
+import uk.co.timwise.sqlhawk.html.DotGraph;
+import uk.co.timwise.sqlhawk.html.DotNode;
+import uk.co.timwise.sqlhawk.model.ForeignKeyConstraint;
+import uk.co.timwise.sqlhawk.model.Table;
+import uk.co.timwise.sqlhawk.model.TableColumn;
+
+public class DiagramLayoutTests {
+	private final List<DotNode> nodes = new ArrayList<DotNode>();
+	private final List<DotConnector> connectors = new ArrayList<DotConnector>();
+
+	@Test
+	public void testCycle() {
+		// arrange
+		Table a = table("A", "BId");
+		Table b = table("B", "CId");
+		Table c = table("C", "AId");
+		link(a, "BId", b);
+		link(b, "CId", c);
+		link(c, "AId", a);
+
+		// act
+		DiagramLayout actual = layout();
+
+		// assert
+		assertLaidOut(actual);
+		assertEquals(3, actual.getRoutes().size());
+	}
+
+	@Test
+	public void testSelfReference() {
+		// arrange
+		Table tree = table("Tree", "ParentId");
+		link(tree, "ParentId", tree);
+
+		// act
+		DiagramLayout actual = layout();
+
+		// assert
+		assertLaidOut(actual);
+		assertEquals(1, actual.getRoutes().size());
+		assertTrue(actual.getRoutes().get(0).isLoop());
+	}
+
+	@Test
+	public void testParallelForeignKeys() {
+		// arrange
+		Table person = table("Person");
+		Table letter = table("Letter", "FromId", "ToId");
+		link(letter, "FromId", person);
+		link(letter, "ToId", person);
+
+		// act
+		DiagramLayout actual = layout();
+
+		// assert
+		assertLaidOut(actual);
+		assertEquals(2, actual.getRoutes().size());
+		DiagramLayout.Route first = actual.getRoutes().get(0);
+		DiagramLayout.Route second = actual.getRoutes().get(1);
+		assertFalse("parallel routes drawn on top of each other", first.getYs()[0] == second.getYs()[0]);
+	}
+
+	@Test
+	public void testLongEdge() {
+		// arrange
+		Table top = table("Top");
+		Table middle1 = table("Middle1", "TopId");
+		Table middle2 = table("Middle2", "Middle1Id");
+		Table bottom = table("Bottom", "Middle2Id", "TopId");
+		link(middle1, "TopId", top);
+		link(middle2, "Middle1Id", middle1);
+		link(bottom, "Middle2Id", middle2);
+		link(bottom, "TopId", top);
+
+		// act
+		DiagramLayout actual = layout();
+
+		// assert
+		assertLaidOut(actual);
+		assertEquals(4, actual.getRoutes().size());
+	}
+
+	@Test
+	public void testOrphan() {
+		// arrange
+		table("Lonely", "Thing");
+
+		// act
+		DiagramLayout actual = layout();
+
+		// assert
+		assertLaidOut(actual);
+		assertEquals(1, actual.getBoxes().size());
+		assertTrue(actual.getRoutes().isEmpty());
+	}
+
+	private DiagramLayout layout() {
+		return new DiagramLayout(new DotGraph("test", false, nodes, connectors), 11);
+	}
+
+	/**
+	 * Everything is on the canvas and no two boxes overlap
+	 */
+	private static void assertLaidOut(DiagramLayout layout) {
+		List<DiagramLayout.Box> boxes = layout.getBoxes();
+		for (DiagramLayout.Box box : boxes) {
+			String name = box.getNode().getFullName();
+			assertTrue(name + " off the left", box.getX() >= 0);
+			assertTrue(name + " off the top", box.getY() >= 0);
+			assertTrue(name + " off the right", box.getX() + box.getWidth() <= layout.getWidth());
+			assertTrue(name + " off the bottom", box.getY() + box.getHeight() <= layout.getHeight());
+		}
+		for (int i = 0; i < boxes.size(); ++i) {
+			for (int j = i + 1; j < boxes.size(); ++j) {
+				DiagramLayout.Box one = boxes.get(i);
+				DiagramLayout.Box other = boxes.get(j);
+				boolean overlap = one.getX() < other.getX() + other.getWidth() && other.getX() < one.getX() + one.getWidth()
+						&& one.getY() < other.getY() + other.getHeight() && other.getY() < one.getY() + one.getHeight();
+				assertFalse(one.getNode().getFullName() + " overlaps " + other.getNode().getFullName(), overlap);
+			}
+		}
+		for (DiagramLayout.Route route : layout.getRoutes()) {
+			int[] xs = route.getXs();
+			int[] ys = route.getYs();
+			assertEquals(xs.length, ys.length);
+			for (int i = 0; i < xs.length; ++i) {
+				assertTrue("route off the canvas", xs[i] >= 0 && xs[i] <= layout.getWidth());
+				assertTrue("route off the canvas", ys[i] >= 0 && ys[i] <= layout.getHeight());
+			}
+		}
+	}
+
+	private Table table(String name, String... foreignKeyColumns) {
+		Table table = new Table("dbo", name, null);
+		addColumn(table, name + "Id");
+		table.setPrimaryColumn(table.getColumn(name + "Id"));
+		for (String column : foreignKeyColumns)
+			addColumn(table, column);
+		nodes.add(new DotNode(table, ""));
+		return table;
+	}
+
+	private static void addColumn(Table table, String name) {
+		TableColumn column = new TableColumn(table, name, null);
+		column.setId(Integer.valueOf(table.getColumns().size()));
+		column.setType("int");
+		table.getColumnMap().put(name, column);
+	}
+
+	private void link(Table child, String childColumn, Table parent) {
+		TableColumn childKey = child.getColumn(childColumn);
+		TableColumn parentKey = parent.getColumn(parent.getName() + "Id");
+		ForeignKeyConstraint foreignKey = new ForeignKeyConstraint(child, "FK_" + child.getName() + "_" + childColumn, 3, 3);
+		foreignKey.addChildColumn(childKey);
+		foreignKey.addParentColumn(parentKey);
+		childKey.addParent(parentKey, foreignKey);
+		parentKey.addChild(childKey, foreignKey);
+		child.addForeignKey(foreignKey.getName(), foreignKey);
+		connectors.add(new DotConnector(parentKey, childKey, false));
+	}
+}
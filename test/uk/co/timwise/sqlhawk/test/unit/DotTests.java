@@ -0,0 +1,136 @@
+package uk.co.timwise.sqlhawk.test.unit;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+
+import uk.co.timwise.sqlhawk.html.Dot;
+
+public class DotTests {
+	private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+	@Test
+	public void testSplitPngs() throws IOException {
+		// arrange
+		byte[] first = png(10);
+		byte[] second = png(300);
+		byte[] third = png(0);
+
+		// act
+		List<byte[]> actual = Dot.getInstance().splitPngs(concat(first, second, third));
+
+		// assert
+		assertEquals(3, actual.size());
+		assertArrayEquals(first, actual.get(0));
+		assertArrayEquals(second, actual.get(1));
+		assertArrayEquals(third, actual.get(2));
+	}
+
+	@Test
+	public void testSplitPngsRejectsTruncatedPng() {
+		byte[] second = png(300);
+		int[] lengths = { second.length - 1, second.length - 12, 20, PNG_SIGNATURE.length + 3 };
+		for (int length : lengths) {
+			// arrange
+			byte[] pngs = concat(png(10), truncate(second, length));
+
+			// act
+			try {
+				Dot.getInstance().splitPngs(pngs);
+				fail("truncated to " + length + " bytes wasn't rejected");
+			} catch (Dot.DotFailure expected) {
+				// assert
+				assertTrue(expected.getMessage().contains("after 1 images"));
+			}
+		}
+	}
+
+	@Test
+	public void testSplitPngsRejectsImpossibleChunkLength() {
+		// arrange
+		byte[] pngs = png(10);
+		int lengthAt = PNG_SIGNATURE.length;
+		pngs[lengthAt] = 0x7f;
+		pngs[lengthAt + 1] = (byte) 0xff;
+		pngs[lengthAt + 2] = (byte) 0xff;
+		pngs[lengthAt + 3] = (byte) 0xf8;
+
+		// act
+		try {
+			Dot.getInstance().splitPngs(pngs);
+			fail("chunk longer than the file wasn't rejected");
+		} catch (Dot.DotFailure expected) {
+			// assert
+		}
+	}
+
+	@Test
+	public void testReadMapsSplitsEachMap() throws IOException {
+		// arrange
+		File mapFile = File.createTempFile("maps", ".cmapx");
+		FileWriter out = new FileWriter(mapFile);
+		out.write("<map id=\"first\" name=\"first\">\n<area shape=\"rect\" href=\"first.html\"/>\n</map>\n"
+				+ "<map id=\"second\" name=\"second\">\n<area shape=\"rect\" href=\"second.html\"/>\n  </map>\n");
+		out.close();
+
+		// act
+		List<String> actual;
+		try {
+			actual = Dot.getInstance().readMaps(mapFile, true);
+		} finally {
+			mapFile.delete();
+		}
+
+		// assert
+		assertEquals(2, actual.size());
+		assertTrue(actual.get(0).startsWith("<map id=\"first\""));
+		assertTrue(actual.get(0).contains("href=\"first.html\">"));
+		assertFalse(actual.get(0).contains("second"));
+		assertTrue(actual.get(1).startsWith("<map id=\"second\""));
+		assertTrue(actual.get(1).trim().endsWith("</map>"));
+		assertFalse(actual.get(1).contains("/>"));
+	}
+
+	/**
+	 * A png with its signature, a header chunk, a data chunk of the specified length and an end chunk.
+	 * The contents and crcs aren't valid as they're not looked at.
+	 */
+	private static byte[] png(int dataLength) {
+		ByteArrayOutputStream png = new ByteArrayOutputStream();
+		png.write(PNG_SIGNATURE, 0, PNG_SIGNATURE.length);
+		chunk(png, "IHDR", 13);
+		chunk(png, "IDAT", dataLength);
+		chunk(png, "IEND", 0);
+		return png.toByteArray();
+	}
+
+	private static void chunk(ByteArrayOutputStream png, String type, int length) {
+		png.write(length >>> 24);
+		png.write(length >>> 16);
+		png.write(length >>> 8);
+		png.write(length);
+		for (int i = 0; i < type.length(); ++i)
+			png.write(type.charAt(i));
+		for (int i = 0; i < length + 4; ++i) // data and crc
+			png.write(i);
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		ByteArrayOutputStream all = new ByteArrayOutputStream();
+		for (byte[] part : parts)
+			all.write(part, 0, part.length);
+		return all.toByteArray();
+	}
+
+	private static byte[] truncate(byte[] bytes, int length) {
+		ByteArrayOutputStream start = new ByteArrayOutputStream();
+		start.write(bytes, 0, length);
+		return start.toByteArray();
+	}
+}
@@ -0,0 +1,204 @@
+package uk.co.timwise.sqlhawk.test.unit;
+
+import static org.junit.Assert.*;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.co.timwise.sqlhawk.model.Database;
+import uk.co.timwise.sqlhawk.model.ForeignKeyConstraint;
+import uk.co.timwise.sqlhawk.model.RemoteTable;
+import uk.co.timwise.sqlhawk.model.RowCountStatus;
+import uk.co.timwise.sqlhawk.model.Table;
+import uk.co.timwise.sqlhawk.model.TableColumn;
+import uk.co.timwise.sqlhawk.model.TableIndex;
+import uk.co.timwise.sqlhawk.snapshot.Snapshot;
+import uk.co.timwise.sqlhawk.snapshot.SnapshotReader;
+import uk.co.timwise.sqlhawk.snapshot.SnapshotWriter;
+import uk.co.timwise.sqlhawk.util.CaseInsensitiveMap;
+
+public class SnapshotTests {
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("snapshot", ".bin");
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		// arrange
+		Database db = new Database("db", "dbo");
+		db.setDbms("test");
+		Table parent = addTable(db, "parent", "parent_id");
+		parent.setComments("the parent");
+		parent.setNumRows(42);
+		parent.setRowCountStatus(RowCountStatus.EXACT);
+		parent.setPrimaryColumn(parent.getColumn("parent_id"));
+		parent.addCheckConstraint("ck_parent", "([parent_id]>(0))");
+		Table child = addTable(db, "child", "child_id", "parent_id", "other_id");
+		TableIndex index = new TableIndex("ix_child", false);
+		index.addColumn(child.getColumn("other_id"), "D");
+		index.addColumn(child.getColumn("child_id"), "A");
+		child.addIndex(index.getName(), index);
+		link(child, "fk_child_parent", "parent_id", parent, "parent_id");
+		new ForeignKeyConstraint(parent.getColumn("parent_id"), child.getColumn("other_id")) {
+			@Override
+			public String getName() {
+				return "Defined in XML";
+			}
+		};
+		RemoteTable remote = new RemoteTable("other", "remote", "dbo");
+		addColumns(remote, "remote_id", "parent_id");
+		db.getRemoteTableMap().put("other.remote", remote);
+		link(remote, "fk_remote_parent", "parent_id", parent, "parent_id");
+		Map<String, String> markers = new CaseInsensitiveMap<String>();
+		markers.put(Snapshot.GetMarkerKey(Snapshot.TABLE, "parent"), "1");
+
+		// act
+		new SnapshotWriter().write(new Snapshot(db, "key", markers), file);
+		Snapshot snapshot = new SnapshotReader().read(file);
+		Database actual = snapshot.linkForeignKeys();
+
+		// assert
+		assertEquals("key", snapshot.getKey());
+		assertEquals("1", snapshot.getModificationMarkers().get(Snapshot.GetMarkerKey(Snapshot.TABLE, "parent")));
+		Table actualParent = actual.getTablesByName().get("parent");
+		assertEquals("the parent", actualParent.getComments());
+		assertEquals(42, actualParent.getNumRows());
+		assertEquals(RowCountStatus.EXACT, actualParent.getRowCountStatus());
+		assertEquals("([parent_id]>(0))", actualParent.getCheckConstraints().get("ck_parent"));
+		assertEquals("parent_id", actualParent.getPrimaryColumns().get(0).getName());
+
+		Table actualChild = actual.getTablesByName().get("child");
+		assertNull(actualChild.getComments());
+		assertNull(actualChild.getRowCountStatus());
+		assertEquals(0, actualChild.getNumRows());
+		TableIndex actualIndex = actualChild.getIndex("ix_child");
+		assertEquals("other_id", actualIndex.getColumns().get(0).getName());
+		assertEquals("child_id", actualIndex.getColumns().get(1).getName());
+		assertFalse(actualIndex.isAscending(actualIndex.getColumns().get(0)));
+		assertTrue(actualIndex.isAscending(actualIndex.getColumns().get(1)));
+
+		ForeignKeyConstraint foreignKey = actualChild.getForeignKey("fk_child_parent");
+		assertTrue(foreignKey.isReal());
+		assertSame(actualParent, foreignKey.getParentTable());
+		TableColumn xmlChild = actualChild.getColumn("other_id");
+		assertEquals(1, xmlChild.getParents().size());
+		TableColumn xmlParent = xmlChild.getParents().iterator().next();
+		assertSame(actualParent.getColumn("parent_id"), xmlParent);
+		assertFalse(xmlChild.getParentConstraint(xmlParent).isReal());
+		assertEquals("Defined in XML", xmlChild.getParentConstraint(xmlParent).getName());
+		assertNull(actualChild.getForeignKey("Defined in XML"));
+
+		Table actualRemote = actual.getRemoteTableMap().get("other.remote");
+		assertTrue(actualRemote.isRemote());
+		assertSame(actualParent, actualRemote.getForeignKey("fk_remote_parent").getParentTable());
+		assertEquals(3, actualParent.getColumn("parent_id").getChildren().size());
+	}
+
+	@Test
+	public void testColumnIdsRoundTrip() throws IOException {
+		// arrange
+		Database db = new Database("db", "dbo");
+		Table numbered = addTable(db, "numbered", "first", "second", "unnumbered");
+		numbered.getColumn("unnumbered").setId(null);
+		Table named = addTable(db, "named", "first", "second");
+		named.getColumn("first").setId("col-a");
+		named.getColumn("second").setId("col-b");
+
+		// act
+		new SnapshotWriter().write(new Snapshot(db, "key", new CaseInsensitiveMap<String>()), file);
+		Database actual = new SnapshotReader().read(file).getDatabase();
+
+		// assert
+		Table actualNumbered = actual.getTablesByName().get("numbered");
+		assertEquals(Integer.valueOf(1), actualNumbered.getColumn("second").getId());
+		assertNull(actualNumbered.getColumn("unnumbered").getId());
+		Table actualNamed = actual.getTablesByName().get("named");
+		assertEquals("col-a", actualNamed.getColumn("first").getId());
+		assertEquals("col-b", actualNamed.getColumn("second").getId());
+	}
+
+	@Test
+	public void testTruncatedSnapshotIsRejected() throws IOException {
+		// arrange
+		Database db = new Database("db", "dbo");
+		addTable(db, "table1", "column1", "column2");
+		new SnapshotWriter().write(new Snapshot(db, "key", new CaseInsensitiveMap<String>()), file);
+		RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+		truncated.setLength(truncated.length() - 3);
+		truncated.close();
+
+		// act
+		try {
+			new SnapshotReader().read(file);
+			fail("truncated snapshot was read");
+		} catch (IOException expected) {
+			// assert
+		}
+	}
+
+	@Test
+	public void testWrongVersionIsRejected() throws IOException {
+		// arrange
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+		out.writeUTF("sqlHawk snapshot");
+		out.writeInt(Integer.MAX_VALUE);
+		out.close();
+
+		// act
+		try {
+			new SnapshotReader().read(file);
+			fail("snapshot of an unknown version was read");
+		} catch (IOException expected) {
+			// assert
+			assertTrue(expected.getMessage().contains("version"));
+		}
+	}
+
+	private static Table addTable(Database db, String name, String... columns) {
+		Table table = new Table("dbo", name, null);
+		addColumns(table, columns);
+		Map<String, Table> tables = new CaseInsensitiveMap<Table>();
+		tables.putAll(db.getTablesByName());
+		tables.put(name, table);
+		db.setTables(tables);
+		return table;
+	}
+
+	private static void addColumns(Table table, String... columns) {
+		List<TableColumn> added = new ArrayList<TableColumn>();
+		for (String name : columns) {
+			TableColumn column = new TableColumn(table, name, null);
+			column.setId(Integer.valueOf(added.size()));
+			column.setType("int");
+			table.getColumnMap().put(name, column);
+			added.add(column);
+		}
+	}
+
+	private static void link(Table child, String name, String childColumn, Table parent, String parentColumn) {
+		ForeignKeyConstraint foreignKey = new ForeignKeyConstraint(child, name, 3, 3);
+		foreignKey.addChildColumn(child.getColumn(childColumn));
+		foreignKey.addParentColumn(parent.getColumn(parentColumn));
+		child.getColumn(childColumn).addParent(parent.getColumn(parentColumn), foreignKey);
+		parent.getColumn(parentColumn).addChild(child.getColumn(childColumn), foreignKey);
+		child.addForeignKey(name, foreignKey);
+	}
+}
@@ -46,4 +46,43 @@ public class SqlManagementTests {
 		String[] expected = { "select 'batch1';\n", "\nselect 'batch2';" };
 		assertArrayEquals(expected, actual);
 	}
+
+	@Test
+	public void testSplitBatchesIgnoresGoInComments() {
+		// arrange
+		String sqlText = "select 1;\n-- GO\n/* outer /* inner */\nGO\n*/\nselect 2;\nGO\nselect 3;";
+
+		// act
+		String[] actual = SqlManagement.SplitBatches(sqlText);
+
+		// assert
+		String[] expected = { "select 1;\n-- GO\n/* outer /* inner */\nGO\n*/\nselect 2;\n", "\nselect 3;" };
+		assertArrayEquals(expected, actual);
+	}
+
+	@Test
+	public void testSplitBatchesIgnoresGoInStrings() {
+		// arrange
+		String sqlText = "select 'it''s\nGO\n', [a\ngo\n], \"b\n Go \n\";\r\n  go  \r\nselect 2;";
+
+		// act
+		String[] actual = SqlManagement.SplitBatches(sqlText);
+
+		// assert
+		String[] expected = { "select 'it''s\nGO\n', [a\ngo\n], \"b\n Go \n\";\r\n", "\r\nselect 2;" };
+		assertArrayEquals(expected, actual);
+	}
+
+	@Test
+	public void testSplitBatchesSkipsEmptyBatches() {
+		// arrange
+		String sqlText = "GO\nselect 1;\nGO\n\nGO\nselect 2;\nGO\n";
+
+		// act
+		String[] actual = SqlManagement.SplitBatches(sqlText);
+
+		// assert
+		String[] expected = { "\nselect 1;\n", "\nselect 2;\n" };
+		assertArrayEquals(expected, actual);
+	}
 }
@@ -0,0 +1,57 @@
+package uk.co.timwise.sqlhawk.test.unit;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Enumeration;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import uk.co.timwise.sqlhawk.config.DbType;
+import uk.co.timwise.sqlhawk.db.read.SqlTemplate;
+
+public class SqlTemplateTests {
+
+	@Test
+	public void testModifiedObjectsSqlParses() throws Exception {
+		// arrange
+		File[] files = new File("src/dbTypes").listFiles();
+		assertNotNull("run from the root of the project", files);
+		int checked = 0;
+
+		for (File file : files) {
+			String type = file.getName().replace(".properties", "");
+			Properties properties = new DbType(type).getProps();
+			for (Enumeration<?> keys = properties.propertyNames(); keys.hasMoreElements(); ) {
+				String key = (String)keys.nextElement();
+				if (!key.endsWith("ModifiedObjectsSql"))
+					continue;
+
+				// act
+				SqlTemplate template = new SqlTemplate(properties.getProperty(key));
+
+				// assert
+				assertFalse(type + " " + key, template.getPositionalSql().contains(":"));
+				for (String paramName : template.getParamNames())
+					assertTrue(type + " " + key + " " + paramName, paramName.equals(":schema") || paramName.equals(":owner"));
+				++checked;
+			}
+		}
+		assertTrue(checked > 0);
+	}
+
+	@Test
+	public void testNamedParameters() {
+		// arrange
+		String sql = "select * from t where s = :schema and (n = :table or o = :owner)";
+
+		// act
+		SqlTemplate actual = new SqlTemplate(sql);
+
+		// assert
+		assertEquals("select * from t where s = ? and (n = ? or o = ?)", actual.getPositionalSql());
+		assertEquals(3, actual.getParamNames().size());
+		assertEquals(":table", actual.getParamNames().get(1));
+	}
+}
@@ -0,0 +1,41 @@
+package uk.co.timwise.sqlhawk.test.unit;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import uk.co.timwise.sqlhawk.config.Config;
+import uk.co.timwise.sqlhawk.html.DotConnector;
+import uk.co.timwise.sqlhawk.html.DotGraph;
+import uk.co.timwise.sqlhawk.html.DotNode;
+import uk.co.timwise.sqlhawk.html.SvgDiagramWriter;
+import uk.co.timwise.sqlhawk.model.Table;
+import uk.co.timwise.sqlhawk.model.TableColumn;
+
+public class SvgDiagramWriterTests {
+
+	@Test
+	public void testNamesAreEscaped() {
+		// arrange
+		Table table = new Table("dbo", "O'Brien <&> \"Co\"", null);
+		TableColumn column = new TableColumn(table, "a<b & c>'d'", null);
+		column.setId(Integer.valueOf(0));
+		column.setType("int");
+		table.getColumnMap().put(column.getName(), column);
+		DotGraph graph = new DotGraph("test", true, Arrays.asList(new DotNode(table, "")), Collections.<DotConnector>emptyList());
+
+		// act
+		String actual = new SvgDiagramWriter(new Config()).write(graph);
+
+		// assert
+		assertTrue(actual.startsWith("<svg "));
+		assertTrue(actual.contains("O&#39;Brien &lt;&amp;&gt; &quot;Co&quot;"));
+		assertTrue(actual.contains("a&lt;b &amp; c&gt;&#39;d&#39;"));
+		assertFalse(actual.contains("O'Brien"));
+		assertFalse(actual.contains("<&>"));
+		assertFalse(actual.contains("a<b"));
+	}
+}
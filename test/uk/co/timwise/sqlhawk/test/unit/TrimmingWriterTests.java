@@ -0,0 +1,90 @@
+package uk.co.timwise.sqlhawk.test.unit;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import org.junit.Test;
+
+import uk.co.timwise.sqlhawk.db.CreateToAlterWriter;
+import uk.co.timwise.sqlhawk.db.SqlManagement;
+import uk.co.timwise.sqlhawk.db.read.TrimmingWriter;
+
+public class TrimmingWriterTests {
+	private static final String[] INPUTS = {
+		"CREATE VIEW foo AS select 1",
+		" \t\r\n CREATE VIEW foo AS\n select 1 \n\n",
+		"\n\n-- leading comment\n  CREATE VIEW foo\n",
+		"\n/* leading\n   comment */\nCREATE VIEW foo AS  select  1\t",
+		"  a  b  ",
+		" \u0000\u001f ",
+		"",
+	};
+
+	@Test
+	public void testMatchesTrim() throws IOException {
+		for (String input : INPUTS) {
+			// arrange
+			String expected = input.trim();
+
+			for (int first = 0; first <= input.length(); ++first) {
+				for (int second = first; second <= input.length(); ++second) {
+					// act
+					StringWriter result = new StringWriter();
+					write(new TrimmingWriter(result), input, first, second);
+
+					// assert
+					assertEquals("split at " + first + " and " + second, expected, result.toString());
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testSplitWithinLeadingWhitespace() throws IOException {
+		// arrange
+		StringWriter result = new StringWriter();
+
+		// act
+		write(new TrimmingWriter(result), " \n \nCREATE VIEW foo\n ", 2, 6);
+
+		// assert
+		assertEquals("CREATE VIEW foo", result.toString());
+	}
+
+	/**
+	 * Definitions are trimmed before CREATE is converted, see DbReader.openDefinition
+	 */
+	@Test
+	public void testTrimThenConvertWhereverSplit() throws IOException {
+		for (String input : INPUTS) {
+			// arrange
+			String expected = SqlManagement.ConvertCreateToAlter(input.trim());
+
+			for (int first = 0; first <= input.length(); ++first) {
+				for (int second = first; second <= input.length(); ++second) {
+					// act
+					StringWriter result = new StringWriter();
+					write(new TrimmingWriter(new CreateToAlterWriter(result)), input, first, second);
+
+					// assert
+					assertEquals("split at " + first + " and " + second, expected, result.toString());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write the input in three chunks, split at the specified offsets,
+	 * using each of the ways that text can be written
+	 */
+	private static void write(Writer out, String input, int first, int second) throws IOException {
+		out.write(input.substring(0, first).toCharArray());
+		out.write(input, first, second - first);
+		for (int i = second; i < input.length(); ++i)
+			out.write(input.charAt(i));
+		out.close();
+	}
+}